@@ -18,6 +18,7 @@ package org.labkey.api;
 import org.apache.commons.collections4.Factory;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONObject;
+import org.labkey.api.action.ApiJsonWriter;
 import org.labkey.api.action.ApiXmlWriter;
 import org.labkey.api.admin.SubfolderWriter;
 import org.labkey.api.assay.ReplacedRunFilter;
@@ -25,23 +26,30 @@ import org.labkey.api.attachments.AttachmentService;
 import org.labkey.api.attachments.LookAndFeelResourceType;
 import org.labkey.api.attachments.SecureDocumentType;
 import org.labkey.api.cache.BlockingCache;
+import org.labkey.api.cache.cluster.CacheInvalidationBus;
+import org.labkey.api.cache.tinylfu.TinyLfuCacheProvider;
 import org.labkey.api.collections.ArrayListMap;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.collections.CaseInsensitiveMapWrapper;
 import org.labkey.api.collections.CollectionUtils;
 import org.labkey.api.collections.LabKeyCollectors;
+import org.labkey.api.collections.RoaringBitSet;
 import org.labkey.api.collections.Sampler;
 import org.labkey.api.collections.SwapQueue;
 import org.labkey.api.data.*;
 import org.labkey.api.data.dialect.ParameterSubstitutionTest;
 import org.labkey.api.data.dialect.StandardDialectStringHandler;
+import org.labkey.api.data.queryprofiler.LatencyHistogram;
+import org.labkey.api.dataiterator.AsyncDataIterator;
 import org.labkey.api.dataiterator.CachingDataIterator;
 import org.labkey.api.dataiterator.DataIteratorUtil;
+import org.labkey.api.dataiterator.ParallelDataIterator;
 import org.labkey.api.dataiterator.RemoveDuplicatesDataIterator;
 import org.labkey.api.dataiterator.ResultSetDataIterator;
 import org.labkey.api.dataiterator.SimpleTranslator;
 import org.labkey.api.dataiterator.StatementDataIterator;
+import org.labkey.api.dataiterator.TableCopyDataIterator;
 import org.labkey.api.exp.api.StorageProvisioner;
 import org.labkey.api.files.FileSystemWatcherImpl;
 import org.labkey.api.iterator.MarkableIterator;
@@ -64,6 +72,7 @@ import org.labkey.api.reader.ExcelFactory;
 import org.labkey.api.reader.ExcelLoader;
 import org.labkey.api.reader.JSONDataLoader;
 import org.labkey.api.reader.MapLoader;
+import org.labkey.api.reader.MappedTabLoader;
 import org.labkey.api.reader.TabLoader;
 import org.labkey.api.reports.model.ViewCategoryManager;
 import org.labkey.api.reports.report.RReport;
@@ -78,6 +87,7 @@ import org.labkey.api.security.Encryption;
 import org.labkey.api.security.GroupManager;
 import org.labkey.api.security.NestedGroupsTest;
 import org.labkey.api.security.PasswordExpiration;
+import org.labkey.api.security.PermissionBits;
 import org.labkey.api.security.SecurityManager;
 import org.labkey.api.security.ValidEmail;
 import org.labkey.api.settings.AppProps;
@@ -141,8 +151,11 @@ public class ApiModule extends CodeOnlyModule
     {
         return Set.of(
             Aggregate.TestCase.class,
+            ApiJsonWriter.TestCase.class,
+            ApiJsonWriter.PerformanceTestCase.class,
             ApiXmlWriter.TestCase.class,
             ArrayListMap.TestCase.class,
+            AsyncDataIterator.TestCase.class,
             BooleanFormat.TestCase.class,
             BuilderObjectFactory.TestCase.class,
             CachingDataIterator.ScrollTestCase.class,
@@ -151,8 +164,10 @@ public class ApiModule extends CodeOnlyModule
             CaseInsensitiveMapWrapper.TestCase.class,
             ChecksumUtil.TestCase.class,
             CollectionUtils.TestCase.class,
+            ColumnarRowStore.TestCase.class,
             Compress.TestCase.class,
             Constants.TestCase.class,
+            ContainerTree.TestCase.class,
             ConvertHelper.TestCase.class,
             DatabaseCache.TestCase.class,
             DataIteratorUtil.TestCase.class,
@@ -172,6 +187,7 @@ public class ApiModule extends CodeOnlyModule
             JSONDataLoader.MetadataTest.class,
             JSONDataLoader.RowTest.class,
             JsonTest.class,
+            LatencyHistogram.TestCase.class,
             MarkableIterator.TestCase.class,
             MaterializedQueryHelper.TestCase.class,
             MemTracker.TestCase.class,
@@ -181,11 +197,14 @@ public class ApiModule extends CodeOnlyModule
             NumberUtilsLabKey.TestCase.class,
             PageFlowUtil.TestCase.class,
             Pair.TestCase.class,
+            ParallelDataIterator.TestCase.class,
+            ParallelDataIterator.PerformanceTestCase.class,
             PasswordExpiration.TestCase.class,
             Path.TestCase.class,
             RemoveDuplicatesDataIterator.DeDuplicateTestCase.class,
             ReplacedRunFilter.TestCase.class,
             ResultSetUtil.TestCase.class,
+            RoaringBitSet.TestCase.class,
             RReport.TestCase.class,
             Sampler.TestCase.class,
             SchemaKey.TestCase.class,
@@ -198,6 +217,7 @@ public class ApiModule extends CodeOnlyModule
             StringUtilsLabKey.TestCase.class,
             SubfolderWriter.TestCase.class,
             SwapQueue.TestCase.class,
+            TableCopyDataIterator.TestCase.class,
             TabLoader.HeaderMatchTest.class,
             TidyUtil.TestCase.class,
             TSVMapWriter.Tests.class,
@@ -223,8 +243,10 @@ public class ApiModule extends CodeOnlyModule
             ActionURL.TestCase.class,
             AliasManager.TestCase.class,
             ApiKeyManager.TestCase.class,
+            ArrowStreamWriter.TestCase.class,
             AtomicDatabaseInteger.TestCase.class,
             BlockingCache.BlockingCacheTest.class,
+            CacheInvalidationBus.TestCase.class,
             ContainerDisplayColumn.TestCase.class,
             ContainerFilter.TestCase.class,
             ContainerManager.TestCase.class,
@@ -248,12 +270,16 @@ public class ApiModule extends CodeOnlyModule
             JspTemplate.TestCase.class,
             LabKeyCollectors.TestCase.class,
             MapLoader.MapLoaderTestCase.class,
+            MappedTabLoader.TestCase.class,
+            MappedTabLoader.PerformanceTestCase.class,
             MarkdownService.TestCase.class,
             MimeMap.TestCase.class,
             ModuleHtmlView.TestCase.class,
             ModuleXml.TestCase.class,
             NestedGroupsTest.class,
             ParameterSubstitutionTest.class,
+            PermissionBits.TestCase.class,
+            PermissionBits.PerformanceTestCase.class,
             Portal.TestCase.class,
             PropertyManager.TestCase.class,
             //RateLimiter.TestCase.class,
@@ -273,6 +299,8 @@ public class ApiModule extends CodeOnlyModule
             TableSelectorTestCase.class,
             TabLoader.TabLoaderTestCase.class,
             TempTableInClauseGenerator.TestCase.class,
+            TinyLfuCacheProvider.TestCase.class,
+            TinyLfuCacheProvider.PerformanceTestCase.class,
             TomcatVersion.TestCase.class,
             URLHelper.TestCase.class,
             ViewCategoryManager.TestCase.class,
@@ -18,17 +18,31 @@ package org.labkey.api.action;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.test.TestWhen;
 import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.JsonUtil;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Writer that knows how to generate a JSON version of the content back to the client.
@@ -149,6 +163,15 @@ public class ApiJsonWriter extends ApiResponseWriter
 
     @Override
     protected void writeObject(Object value) throws IOException
+    {
+        writeValue(value);
+
+        // 21112: Malformed JSON response in production environments
+        jg.flush();
+    }
+
+    /** Like writeObject(), but doesn't flush; rowset writers flush once per row instead of after every value */
+    void writeValue(Object value) throws IOException
     {
         if (value instanceof String || value instanceof Number || value instanceof Boolean || value == null)
         {
@@ -167,7 +190,7 @@ public class ApiJsonWriter extends ApiResponseWriter
             for (var e : ((Map<Object,Object>)value).entrySet())
             {
                 jg.writeFieldName(String.valueOf(e.getKey()));
-                writeObject(e.getValue());
+                writeValue(e.getValue());
             }
             jg.writeEndObject();
             if (badContext)
@@ -180,7 +203,7 @@ public class ApiJsonWriter extends ApiResponseWriter
             jg.writeStartArray();
             for (Object element : (Collection<?>)value)
             {
-                writeObject(element);
+                writeValue(element);
             }
             jg.writeEndArray();
         }
@@ -189,7 +212,7 @@ public class ApiJsonWriter extends ApiResponseWriter
             jg.writeStartArray();
             for (int i = 0; i < Array.getLength(value); i++)
             {
-                writeObject(Array.get(value, i));
+                writeValue(Array.get(value, i));
             }
             jg.writeEndArray();
         }
@@ -198,7 +221,7 @@ public class ApiJsonWriter extends ApiResponseWriter
             jg.writeStartArray();
             for (int i = 0; i < ((JSONArray) value).length(); i++)
             {
-                writeObject(((JSONArray) value).get(i));
+                writeValue(((JSONArray) value).get(i));
             }
             jg.writeEndArray();
         }
@@ -214,10 +237,70 @@ public class ApiJsonWriter extends ApiResponseWriter
         {
             jg.writeObject(value);
         }
+    }
 
-        // 21112: Malformed JSON response in production environments
-        // TODO: This is not the recommended pattern as this causes an unnecessary amount of flushing (performance)
-        jg.flush();
+    JsonGenerator getGenerator()
+    {
+        return jg;
+    }
+
+    /**
+     * Writes one value of a column, straight to the generator. Values of the column's usual type skip writeValue()'s
+     * instanceof chain and the ObjectMapper lookup that jg.writeObject() does for numbers and strings; anything else
+     * goes through writeValue(), so the JSON is the same either way.
+     */
+    interface ValueWriter
+    {
+        void write(@Nullable Object value) throws IOException;
+    }
+
+    /**
+     * @param type the Java class of the column's values (after Dates have been converted to JSON strings), or null if
+     * unknown
+     */
+    ValueWriter getValueWriter(@Nullable Class<?> type)
+    {
+        if (String.class == type || (null != type && Date.class.isAssignableFrom(type)))
+            return value -> {
+                if (value instanceof String)
+                    jg.writeString((String) value);
+                else
+                    writeValue(value);
+            };
+
+        if (Integer.class == type || Integer.TYPE == type)
+            return value -> {
+                if (value instanceof Integer)
+                    jg.writeNumber((int) (Integer) value);
+                else
+                    writeValue(value);
+            };
+
+        if (Long.class == type || Long.TYPE == type)
+            return value -> {
+                if (value instanceof Long)
+                    jg.writeNumber((long) (Long) value);
+                else
+                    writeValue(value);
+            };
+
+        if (Double.class == type || Double.TYPE == type)
+            return value -> {
+                if (value instanceof Double)
+                    jg.writeNumber((double) (Double) value);
+                else
+                    writeValue(value);
+            };
+
+        if (Boolean.class == type || Boolean.TYPE == type)
+            return value -> {
+                if (value instanceof Boolean)
+                    jg.writeBoolean((Boolean) value);
+                else
+                    writeValue(value);
+            };
+
+        return this::writeValue;
     }
 
     @Override
@@ -247,4 +330,123 @@ public class ApiJsonWriter extends ApiResponseWriter
         jg = new JsonFactory().createGenerator(getWriter());
         initGenerator();
     }
+
+
+    public static class TestCase extends Assert
+    {
+        private interface Output
+        {
+            void write(ApiJsonWriter writer) throws IOException;
+        }
+
+        private static String write(Output output) throws IOException
+        {
+            StringWriter out = new StringWriter();
+            ApiJsonWriter writer = new ApiJsonWriter(out);
+            writer.startResponse();
+            writer.getGenerator().writeFieldName("value");
+            output.write(writer);
+            writer.endResponse();
+            return out.toString();
+        }
+
+        @Test
+        public void testValueWriters() throws IOException
+        {
+            List<Object> values = Arrays.asList(null, "text", "", 42, 42L, -4.2, Double.NaN, true, new Date(0), new BigDecimal("1.50"), List.of(1, "two"), Map.of("a", 1));
+            Class<?>[] types = {null, String.class, Integer.class, Long.class, Double.class, Boolean.class, Date.class, Object.class};
+
+            // Whatever the column type, every value must come out as writeObject() would write it
+            for (Class<?> type : types)
+            {
+                for (Object value : values)
+                    assertEquals("Type " + type + ", value " + value, write(w -> w.writeObject(value)), write(w -> w.getValueWriter(type).write(value)));
+            }
+        }
+    }
+
+
+    /**
+     * Compares the cost of serializing a rowset the way selectRows used to, as a map per row passed to writeListEntry(),
+     * with streaming each column through a ValueWriter, as ApiQueryResponse does now. Logs timings; only asserts that
+     * both produce the same JSON.
+     */
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerformanceTestCase extends Assert
+    {
+        private static final Logger LOG = LogManager.getLogger(PerformanceTestCase.class);
+
+        private static final String[] NAMES = {"RowId", "Name", "Created", "Score", "Count", "Flag", "Comment", "Total"};
+        private static final Class<?>[] TYPES = {Integer.class, String.class, Date.class, Double.class, Long.class, Boolean.class, String.class, Double.class};
+
+        @Test
+        public void testMapsVersusStreaming() throws IOException
+        {
+            int rows = 50_000;
+            List<Object[]> data = new ArrayList<>(rows);
+
+            for (int i = 0; i < rows; i++)
+                data.add(new Object[]{i, "Name " + i, DateUtil.formatJsonDateTime(new Date(i * 1000L)), i / 7.0, (long) i * i, i % 2 == 0, i % 3 == 0 ? null : "Comment " + i, i * 1.5});
+
+            for (int round = 0; round < 3; round++)     // first rounds warm up
+            {
+                long start = System.nanoTime();
+                String maps = writeMaps(data);
+                long mapsNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                String streamed = writeStreamed(data);
+                long streamedNanos = System.nanoTime() - start;
+
+                assertEquals(maps, streamed);
+
+                if (round == 2)
+                    LOG.info(String.format("Serializing %,d rows: %,d ms as maps, %,d ms streamed", rows, TimeUnit.NANOSECONDS.toMillis(mapsNanos), TimeUnit.NANOSECONDS.toMillis(streamedNanos)));
+            }
+        }
+
+        private static String writeMaps(List<Object[]> data) throws IOException
+        {
+            StringWriter out = new StringWriter(data.size() * 200);
+            ApiJsonWriter writer = new ApiJsonWriter(out);
+            writer.startResponse();
+            writer.startList("rows");
+            for (Object[] values : data)
+            {
+                Map<String, Object> row = new LinkedHashMap<>();
+                for (int i = 0; i < NAMES.length; i++)
+                    row.put(NAMES[i], values[i]);
+                writer.writeListEntry(row);
+            }
+            writer.endList();
+            writer.endResponse();
+            return out.toString();
+        }
+
+        private static String writeStreamed(List<Object[]> data) throws IOException
+        {
+            StringWriter out = new StringWriter(data.size() * 200);
+            ApiJsonWriter writer = new ApiJsonWriter(out);
+            ValueWriter[] valueWriters = new ValueWriter[TYPES.length];
+            for (int i = 0; i < TYPES.length; i++)
+                valueWriters[i] = writer.getValueWriter(TYPES[i]);
+            JsonGenerator jg = writer.getGenerator();
+            writer.startResponse();
+            writer.startList("rows");
+            for (Object[] values : data)
+            {
+                jg.writeStartObject();
+                for (int i = 0; i < NAMES.length; i++)
+                {
+                    jg.writeFieldName(NAMES[i]);
+                    valueWriters[i].write(values[i]);
+                }
+                jg.writeEndObject();
+                jg.flush();
+            }
+            writer.endList();
+            writer.endResponse();
+            return out.toString();
+        }
+    }
 }
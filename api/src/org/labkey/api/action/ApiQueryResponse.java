@@ -15,8 +15,10 @@
  */
 package org.labkey.api.action;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.apache.commons.beanutils.ConversionException;
 import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.labkey.api.collections.ResultSetRowMapFactory;
@@ -59,6 +61,8 @@ import java.util.Set;
 public class ApiQueryResponse implements ApiResponse
 {
     private static final String URL_COL_PREFIX = "_labkeyurl_";
+    // Start with -Dlabkey.streamJsonRows=false to serialize JSON rows via a map per row, as writers other than ApiJsonWriter are
+    private static final boolean STREAM_JSON_ROWS = Boolean.parseBoolean(System.getProperty("labkey.streamJsonRows", "true"));
     boolean _doItWithStyle = false;
     private TableInfo _tinfo = null;
     private List<DisplayColumn> _displayColumns = null;
@@ -510,11 +514,28 @@ public class ApiQueryResponse implements ApiResponse
             ResultSetRowMapFactory factory = ResultSetRowMapFactory.create(results);
             factory.setConvertBigDecimalToDouble(false);
 
-            while (results.next())
+            if (STREAM_JSON_ROWS && writer instanceof ApiJsonWriter)
             {
-                _ctx.setRow(factory.getRowMap(results));
-                writer.writeListEntry(getRow());
-                ++_numRespRows;
+                // Display columns read the current row from the RenderContext, but the response row goes straight to
+                // the generator instead of through a map
+                ApiJsonWriter jsonWriter = (ApiJsonWriter) writer;
+                List<ColumnWriter> columns = createColumnWriters(jsonWriter);
+
+                while (results.next())
+                {
+                    _ctx.setRow(factory.getRowMap(results));
+                    writeRow(jsonWriter, columns);
+                    ++_numRespRows;
+                }
+            }
+            else
+            {
+                while (results.next())
+                {
+                    _ctx.setRow(factory.getRowMap(results));
+                    writer.writeListEntry(getRow());
+                    ++_numRespRows;
+                }
             }
             complete = results.isComplete();
         }
@@ -533,6 +554,96 @@ public class ApiQueryResponse implements ApiResponse
         return row;
     }
 
+    /**
+     * Writes one column of the current row as properties of the row's JSON object. Streaming rows skips getRow() and
+     * putValue(), so a subclass that overrides putValue() must override createColumnWriter() to match.
+     */
+    protected interface ColumnWriter
+    {
+        void write(JsonGenerator jg) throws IOException;
+    }
+
+    /**
+     * @return the columns getRow() includes, without repeats of a column name. Like getRow(), where a later column
+     * overwrites an earlier one's value, the last column with a given name wins. Columns without a name (e.g., the
+     * UrlColumns ReportingApiQueryResponse writes as links) are never merged.
+     */
+    protected List<DisplayColumn> getResponseColumns()
+    {
+        List<DisplayColumn> columns = new ArrayList<>();
+        Map<String, Integer> positions = new HashMap<>();
+
+        for (DisplayColumn dc : _displayColumns)
+        {
+            if (!includeColumnInResponse(dc))
+                continue;
+
+            String name = getColumnName(dc);
+            Integer position = null == name ? null : positions.putIfAbsent(name, columns.size());
+
+            if (null == position)
+                columns.add(dc);
+            else
+                columns.set(position, dc);
+        }
+
+        return columns;
+    }
+
+    /** Called once per rowset */
+    protected List<ColumnWriter> createColumnWriters(ApiJsonWriter writer)
+    {
+        List<ColumnWriter> columns = new ArrayList<>();
+
+        for (DisplayColumn dc : getResponseColumns())
+        {
+            ColumnWriter column = createColumnWriter(writer, dc);
+            if (null != column)
+                columns.add(column);
+        }
+
+        return columns;
+    }
+
+    /** Writes the same properties as putValue() */
+    protected @Nullable ColumnWriter createColumnWriter(ApiJsonWriter writer, DisplayColumn dc)
+    {
+        String colName = String.valueOf(getColumnName(dc));
+        String urlName = URL_COL_PREFIX + colName;
+        ApiJsonWriter.ValueWriter valueWriter = writer.getValueWriter(getValueClass(dc));
+
+        return jg -> {
+            jg.writeFieldName(colName);
+            valueWriter.write(getColumnValue(dc));
+
+            //Issue 23773: even for null urls include it so as not to cause ordering to change.
+            if (dc.includeURL())
+            {
+                jg.writeFieldName(urlName);
+                jg.writeString(dc.renderURL(_ctx));
+            }
+        };
+    }
+
+    /** @return the class of the column's JSON values, or null if it's not known */
+    protected static @Nullable Class<?> getValueClass(DisplayColumn dc)
+    {
+        return null == dc.getColumnInfo() ? null : dc.getColumnInfo().getJavaClass();
+    }
+
+    protected void writeRow(ApiJsonWriter writer, List<ColumnWriter> columns) throws IOException
+    {
+        JsonGenerator jg = writer.getGenerator();
+
+        jg.writeStartObject();
+        for (ColumnWriter column : columns)
+            column.write(jg);
+        jg.writeEndObject();
+
+        // 21112: Flush once per row, as writeListEntry() would
+        jg.flush();
+    }
+
     protected boolean includeColumnInResponse(DisplayColumn dc)
     {
         if (_columnFilter != null && dc.getColumnInfo() != null && !_columnFilter.contains(dc.getColumnInfo().getFieldKey()))
@@ -15,6 +15,7 @@
  */
 package org.labkey.api.action;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.DisplayColumn;
@@ -26,6 +27,7 @@ import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryView;
 import org.labkey.api.util.Pair;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -112,6 +114,77 @@ public class ExtendedApiQueryResponse extends ApiQueryResponse
         }
     }
 
+    @Override
+    protected @Nullable ColumnWriter createColumnWriter(ApiJsonWriter writer, DisplayColumn dc)
+    {
+        String columnName = getColumnName(dc);
+
+        if (null == columnName)
+            return null;
+
+        // Nested and multi-valued columns are rare enough to build as maps
+        if (dc instanceof NestedPropertyDisplayColumn || (_arrayMultiValueColumns && dc instanceof IMultiValuedDisplayColumn))
+        {
+            return jg -> {
+                jg.writeFieldName(columnName);
+                writer.writeValue(createColMap(dc));
+            };
+        }
+
+        ApiJsonWriter.ValueWriter valueWriter = writer.getValueWriter(getValueClass(dc));
+
+        return jg -> {
+            jg.writeFieldName(columnName);
+            writeColMap(writer, jg, valueWriter, dc);
+        };
+    }
+
+    // Writes the same properties that createColMap() puts in the ColMap of a single-valued column
+    private void writeColMap(ApiJsonWriter writer, JsonGenerator jg, ApiJsonWriter.ValueWriter valueWriter, DisplayColumn dc) throws IOException
+    {
+        RenderContext ctx = getRenderContext();
+        Object value = dc.getJsonValue(ctx);
+        Object displayValue = ensureJSONDate(dc.getDisplayValue(ctx));
+        String formattedValue = _includeFormattedValue ? dc.getFormattedText(ctx) : null;
+        String url = null != value ? dc.renderURL(ctx) : null;
+
+        value = ensureJSONDate(value);
+
+        jg.writeStartObject();
+        jg.writeFieldName(ColMapEntry.value.name());
+        valueWriter.write(value);
+
+        if (null != displayValue && !displayValue.equals(value))
+        {
+            jg.writeFieldName(ColMapEntry.displayValue.name());
+            writer.writeValue(displayValue);
+        }
+
+        if (formattedValue != null && !formattedValue.equals(displayValue))
+            jg.writeStringField(ColMapEntry.formattedValue.name(), formattedValue);
+
+        if (value != null && url != null)
+            jg.writeStringField(ColMapEntry.url.name(), url);
+
+        if (dc instanceof MVDisplayColumn)
+        {
+            MVDisplayColumn mvColumn = (MVDisplayColumn)dc;
+            jg.writeFieldName(ColMapEntry.mvValue.name());
+            writer.writeValue(mvColumn.getMvIndicator(ctx));
+            jg.writeFieldName(ColMapEntry.mvRawValue.name());
+            writer.writeValue(mvColumn.getRawValue(ctx));
+        }
+
+        if (_doItWithStyle)
+        {
+            String style = dc.getCssStyle(ctx);
+            if (!StringUtils.isEmpty(style))
+                jg.writeStringField(ColMapEntry.style.name(), style);
+        }
+
+        jg.writeEndObject();
+    }
+
     protected Object createColMap(DisplayColumn dc)
     {
         return createColMap(getRenderContext(), dc, _arrayMultiValueColumns, _includeFormattedValue, _doItWithStyle);
@@ -15,17 +15,21 @@
  */
 package org.labkey.api.action;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.labkey.api.data.DisplayColumn;
 import org.labkey.api.data.ReportingWriter;
 import org.labkey.api.data.UrlColumn;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryView;
 import org.labkey.api.query.SchemaKey;
+import org.labkey.api.util.Pair;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -142,6 +146,72 @@ public class ReportingApiQueryResponse extends ExtendedApiQueryResponse
         }
     }
 
+    @Override
+    protected List<ColumnWriter> createColumnWriters(ApiJsonWriter writer)
+    {
+        List<Pair<DisplayColumn, ColumnWriter>> columns = new ArrayList<>();
+
+        for (DisplayColumn dc : getResponseColumns())
+            columns.add(new Pair<>(dc, createColumnWriter(writer, dc)));
+
+        // Whether a link column goes in "data" or "links" depends on its value, so one writer handles the whole row
+        return Collections.singletonList(jg -> writeDataAndLinks(jg, columns));
+    }
+
+    // Writes the same "data" and "links" objects as putValue()
+    private void writeDataAndLinks(JsonGenerator jg, List<Pair<DisplayColumn, ColumnWriter>> columns) throws IOException
+    {
+        boolean inData = false;
+        Map<String, String> links = null;
+
+        for (Pair<DisplayColumn, ColumnWriter> column : columns)
+        {
+            DisplayColumn dc = column.first;
+
+            if (dc instanceof UrlColumn)
+            {
+                Object value = getColumnValue(dc);
+
+                if (null != value)
+                {
+                    if (null == links)
+                        links = new LinkedHashMap<>();
+
+                    String url = dc.renderURL(getRenderContext());
+                    if (null != url)
+                        links.put(value.toString(), url);
+                    continue;
+                }
+            }
+
+            if (null != column.second)
+            {
+                if (!inData)
+                {
+                    jg.writeObjectFieldStart("data");
+                    inData = true;
+                }
+                column.second.write(jg);
+            }
+        }
+
+        if (inData)
+            jg.writeEndObject();
+
+        if (null != links)
+        {
+            jg.writeObjectFieldStart("links");
+            for (Map.Entry<String, String> link : links.entrySet())
+            {
+                jg.writeObjectFieldStart(link.getKey());
+                jg.writeStringField("href", link.getValue());
+                jg.writeStringField("title", link.getKey());
+                jg.writeEndObject();
+            }
+            jg.writeEndObject();
+        }
+    }
+
     private void putLinksMap(Map<String, Object> row, DisplayColumn dc, String displayText)
     {
         if (!row.containsKey("links"))
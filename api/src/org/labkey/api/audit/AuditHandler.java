@@ -52,7 +52,7 @@ public abstract class AuditHandler
                     case SUMMARY:
                     case DETAILED:
                         AuditTypeEvent event = createSummaryAuditRecord(user, c, auditConfigurable, action, 0, null);
-                        AuditLogService.get().addEvent(user, event);
+                        AuditLogService.get().queueEvent(user, event);
                         return;
                 }
             }
@@ -69,7 +69,7 @@ public abstract class AuditHandler
                     List<Map<String, Object>> rows = params[0];
                     AuditTypeEvent event = createSummaryAuditRecord(user, c, auditConfigurable, action, rows.size(), rows.get(0));
 
-                    AuditLogService.get().addEvent(user, event);
+                    AuditLogService.get().queueEvent(user, event);
                     break;
                 }
                 case DETAILED:
@@ -143,7 +143,7 @@ public abstract class AuditHandler
                                 break;
                             }
                         }
-                        AuditLogService.get().addEvent(user, event);
+                        AuditLogService.get().queueEvent(user, event);
                     }
                     break;
                 }
@@ -99,6 +99,18 @@ public interface AuditLogService
 
     <K extends AuditTypeEvent> K addEvent(User user, K event);
 
+    /**
+     * Like addEvent(), but the event may be written later, batched with others. Inside a transaction, queued events are
+     * written just before it commits, so they commit or roll back with it and a failure fails the commit. Otherwise
+     * they're buffered briefly (about a second, or until enough arrive to fill a batch) and can be lost if the server
+     * dies in that time. Use addEvent() when you need the inserted event (e.g., its RowId) or it must be written before
+     * you return.
+     */
+    default void queueEvent(User user, AuditTypeEvent event)
+    {
+        addEvent(user, event);
+    }
+
     @Nullable
     <K extends AuditTypeEvent> K getAuditEvent(User user, String eventType, int rowId);
 
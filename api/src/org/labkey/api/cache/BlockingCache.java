@@ -15,6 +15,8 @@
  */
 package org.labkey.api.cache;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
@@ -26,8 +28,15 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 /**
  * This is a decorator for any Cache instance, it will provide for synchronizing object load
@@ -37,6 +46,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BlockingCache<K, V> implements Cache<K, V>
 {
+    private static final Logger LOG = LogManager.getLogger(BlockingCache.class);
+
     protected final Cache<K, Wrapper<V>> _cache;
     protected final CacheLoader<K, V> _loader;
     protected CacheTimeChooser<K> _cacheTimeChooser;
@@ -45,6 +56,14 @@ public class BlockingCache<K, V> implements Cache<K, V>
      * Note that we will NOT timeout the thread that is doing the load, but this can still help reduce deadlocks
      */
     protected final long _timeout;
+    /**
+     * Fraction of an entry's time-to-live after which get() returns the current value but starts a background reload.
+     * 0 disables refresh-ahead.
+     */
+    private double _refreshAhead = 0;
+    // Refresh-ahead timing and background reloads; tests substitute their own
+    private LongSupplier _clock = System::currentTimeMillis;
+    private Executor _refreshExecutor = RefreshExecutor.INSTANCE;
 
     public static final Object UNINITIALIZED = new Object() {public String toString() { return "UNINITIALIZED";}};
 
@@ -73,6 +92,25 @@ public class BlockingCache<K, V> implements Cache<K, V>
     }
 
 
+    /**
+     * Enable refresh-ahead: once an entry is older than refreshAhead * its time-to-live, get() keeps returning the
+     * current (stale) value while a single background thread reloads it. If the reload succeeds the new value replaces
+     * the old one and the entry's time-to-live starts over; if it fails the stale value stays until it expires. Entries
+     * that are never read during the refresh window simply expire and the next get() blocks on the load, as usual.
+     * Explicit remove() and clear() still discard entries immediately, so invalidated values are never served. Entries
+     * that never expire are never refreshed.
+     *
+     * The loader and argument passed to the get() that triggers the reload are used on a background thread, so they
+     * must not depend on request state.
+     */
+    public void setRefreshAhead(double refreshAhead)
+    {
+        if (refreshAhead < 0 || refreshAhead >= 1)
+            throw new IllegalArgumentException("refreshAhead must be at least 0 and less than 1");
+        _refreshAhead = refreshAhead;
+    }
+
+
     protected Wrapper<V> createWrapper()
     {
         return new Wrapper<>();
@@ -107,9 +145,19 @@ public class BlockingCache<K, V> implements Cache<K, V>
 
                 // Override the default TTL if a CacheTimeChooser is present and provides a custom value
                 if (null == _cacheTimeChooser || null == (ttl = _cacheTimeChooser.getTimeToLive(key, argument)))
+                {
                     _cache.put(key, w);
+                    if (_refreshAhead > 0)
+                        w.timeToLive = getTrackingCache().getDefaultExpires();
+                }
                 else
+                {
                     _cache.put(key, w, ttl);
+                    w.timeToLive = ttl;
+                }
+
+                if (w.timeToLive > 0)
+                    w.expires = _clock.getAsLong() + w.timeToLive;
             }
         }
 
@@ -120,7 +168,24 @@ public class BlockingCache<K, V> implements Cache<K, V>
         synchronized (w.getLockObject())
         {
             if (isInitialized(w))
-                return w.getValue();
+            {
+                V value = w.getValue();
+
+                if (_clock.getAsLong() >= w.nextRefresh)
+                {
+                    trackStaleHit();
+
+                    CacheLoader<K, V> refreshLoader = null != loader ? loader : _loader;
+
+                    if (!w.refreshing && null != refreshLoader)
+                    {
+                        w.refreshing = true;
+                        scheduleRefresh(key, argument, refreshLoader, w);
+                    }
+                }
+
+                return value;
+            }
 
             long endTime = _timeout > 0 ? System.currentTimeMillis() + _timeout : Long.MAX_VALUE;
             while (w.isLoading())
@@ -158,12 +223,15 @@ public class BlockingCache<K, V> implements Cache<K, V>
             if (null == loader)
                 throw new IllegalStateException("cache loader was not provided");
 
+            long start = System.nanoTime();
             V value = loader.load(key, argument);
+            trackLoad(System.nanoTime() - start);
             CacheManager.validate(loader, value);
 
             synchronized (w.getLockObject())
             {
                 w.setValue(value);
+                scheduleNextRefresh(w);
                 w.getLockObject().notifyAll();
             }
             success = true;
@@ -184,6 +252,109 @@ public class BlockingCache<K, V> implements Cache<K, V>
     }
 
 
+    private void scheduleRefresh(K key, @Nullable Object argument, CacheLoader<K, V> loader, Wrapper<V> w)
+    {
+        try
+        {
+            _refreshExecutor.execute(() -> refresh(key, argument, loader, w));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // All refresh threads are busy and the queue is full; keep serving the current value and try again on a later get()
+            w.refreshing = false;
+        }
+    }
+
+
+    private void refresh(K key, @Nullable Object argument, CacheLoader<K, V> loader, Wrapper<V> w)
+    {
+        try
+        {
+            long start = System.nanoTime();
+            V value = loader.load(key, argument);
+            trackLoad(System.nanoTime() - start);
+            CacheManager.validate(loader, value);
+
+            synchronized (w.getLockObject())
+            {
+                w.setValue(value);
+                w.refreshing = false;
+                w.expires = _clock.getAsLong() + w.timeToLive;
+                scheduleNextRefresh(w);
+            }
+
+            // Put the wrapper again to restart its time-to-live, unless it was removed (or replaced) while we were loading
+            synchronized (_cache)
+            {
+                if (_cache.get(key) == w)
+                    _cache.put(key, w, w.timeToLive);
+            }
+
+            if (_cache instanceof Tracking)
+                ((Tracking) _cache).getStats().refreshes.incrementAndGet();
+        }
+        catch (Throwable t)
+        {
+            LOG.warn("Background refresh of \"" + key + "\" failed; continuing to use the current value", t);
+
+            // Don't retry on every get(); wait half of what's left of the entry's lifetime, so there's still time to
+            // retry before it expires
+            synchronized (w.getLockObject())
+            {
+                long now = _clock.getAsLong();
+                w.refreshing = false;
+                w.nextRefresh = now + Math.max(0, (w.expires - now) / 2);
+            }
+
+            if (_cache instanceof Tracking)
+                ((Tracking) _cache).getStats().refreshFailures.incrementAndGet();
+        }
+    }
+
+
+    // Refresh once the entry is refreshAhead of the way through its lifetime
+    private void scheduleNextRefresh(Wrapper<V> w)
+    {
+        assert Thread.holdsLock(w.getLockObject());
+        w.nextRefresh = _refreshAhead > 0 && w.timeToLive > 0 ? w.expires - (long) (w.timeToLive * (1 - _refreshAhead)) : Long.MAX_VALUE;
+    }
+
+
+    private void trackLoad(long nanos)
+    {
+        // Loads happen here, not in the underlying cache, so record them in its stats
+        if (_cache instanceof Tracking)
+            ((Tracking) _cache).getStats().trackLoad(nanos);
+    }
+
+
+    private void trackStaleHit()
+    {
+        if (_cache instanceof Tracking)
+            ((Tracking) _cache).getStats().staleHits.incrementAndGet();
+    }
+
+
+    // Shared by all refresh-ahead caches, bounding the number of concurrent background reloads. Threads and queue size can
+    // be adjusted via -Dlabkey.cacheRefreshThreads and -Dlabkey.cacheRefreshQueueSize.
+    private static class RefreshExecutor
+    {
+        private static final ThreadPoolExecutor INSTANCE;
+
+        static
+        {
+            AtomicInteger count = new AtomicInteger();
+            int threads = Integer.getInteger("labkey.cacheRefreshThreads", 4);
+            INSTANCE = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(Integer.getInteger("labkey.cacheRefreshQueueSize", 1000)), r -> {
+                Thread t = new Thread(r, "BlockingCache refresh-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+
+
     /**
      * Preload or replace existing value at this key. Similar to remove() followed by get(), but doesn't block get() callers
      * and leaves existing value in place if load fails for any reason. This helps in cases of long-running and/or unreliable
@@ -262,7 +433,9 @@ public class BlockingCache<K, V> implements Cache<K, V>
     @Override
     public Cache<K, V> createTemporaryCache()
     {
-        return new BlockingCache<>(_cache.createTemporaryCache(), _loader, _timeout);
+        BlockingCache<K, V> cache = new BlockingCache<>(_cache.createTemporaryCache(), _loader, _timeout);
+        cache.setRefreshAhead(_refreshAhead);
+        return cache;
     }
 
     public static class BlockingCacheTest extends Assert
@@ -367,5 +540,95 @@ public class BlockingCache<K, V> implements Cache<K, V>
             assertEquals(1, calls.get());
             assertEquals(9, timeouts.get());
         }
+
+        @Test
+        public void testRefreshAhead()
+        {
+            final AtomicInteger calls = new AtomicInteger();
+            final BlockingCache<Integer, Integer> bc = new BlockingCache<>(_cache, (key, argument) -> calls.incrementAndGet());
+            final AtomicLong now = new AtomicLong();
+            final ConcurrentLinkedQueue<Runnable> refreshes = new ConcurrentLinkedQueue<>();
+            bc._clock = now::get;
+            bc._refreshExecutor = refreshes::add;
+            bc.setCacheTimeChooser((key, argument) -> 1000L);
+            bc.setRefreshAhead(0.5);
+
+            assertEquals(Integer.valueOf(1), bc.get(1));
+            now.set(499);
+            assertEquals(Integer.valueOf(1), bc.get(1));
+            assertTrue(refreshes.isEmpty());
+            now.set(500);
+
+            // Inside the refresh window every get() returns the stale value immediately and only one reload starts
+            final AtomicInteger stale = new AtomicInteger();
+            final Object start = new Object();
+            Runnable r = () -> {
+                synchronized (start) { try{start.wait(1000);}catch(InterruptedException x){/* */} }
+                if (Integer.valueOf(1).equals(bc.get(1)))
+                    stale.incrementAndGet();
+            };
+            createAndStartThreads(r, start, 10);
+            assertEquals(10, stale.get());
+            assertEquals(1, refreshes.size());
+            assertEquals(1, calls.get());
+
+            refreshes.remove().run();
+            assertEquals(2, calls.get());
+            assertEquals(Integer.valueOf(2), bc.get(1));
+
+            // The reload restarts the refresh window
+            now.set(999);
+            assertEquals(Integer.valueOf(2), bc.get(1));
+            assertTrue(refreshes.isEmpty());
+            now.set(1000);
+            assertEquals(Integer.valueOf(2), bc.get(1));
+            assertEquals(1, refreshes.size());
+        }
+
+        @Test
+        public void testRefreshAheadFailure()
+        {
+            final AtomicInteger calls = new AtomicInteger();
+            final BlockingCache<Integer, Integer> bc = new BlockingCache<>(_cache, (key, argument) -> {
+                if (calls.incrementAndGet() > 1)
+                    throw new IllegalStateException("Expected refresh failure");
+                return key;
+            });
+            final AtomicLong now = new AtomicLong();
+            final ConcurrentLinkedQueue<Runnable> refreshes = new ConcurrentLinkedQueue<>();
+            bc._clock = now::get;
+            bc._refreshExecutor = refreshes::add;
+            bc.setCacheTimeChooser((key, argument) -> 2000L);
+            bc.setRefreshAhead(0.5);
+
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            now.set(1000);
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            refreshes.remove().run();
+            assertEquals(2, calls.get());
+
+            // The stale value survives the failed reload, and we back off rather than retrying on every get()
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            assertTrue(refreshes.isEmpty());
+
+            // Half of the rest of the entry's lifetime (which ends at 2000) later, get() tries again
+            now.set(1499);
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            assertTrue(refreshes.isEmpty());
+            now.set(1500);
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            assertEquals(1, refreshes.size());
+
+            // Each further failure halves the wait again, so retries keep happening before the entry expires
+            refreshes.remove().run();
+            assertEquals(3, calls.get());
+            now.set(1749);
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            assertTrue(refreshes.isEmpty());
+            now.set(1750);
+            assertEquals(Integer.valueOf(5), bc.get(5));
+            assertEquals(1, refreshes.size());
+        }
     }
 }
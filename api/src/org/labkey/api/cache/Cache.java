@@ -57,6 +57,11 @@ public interface Cache<K, V>
             _prefix = prefix;
         }
 
+        public String getPrefix()
+        {
+            return _prefix;
+        }
+
         @Override
         public boolean accept(String s)
         {
@@ -20,6 +20,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cache.ehcache.EhCacheProvider;
+import org.labkey.api.cache.tinylfu.TinyLfuCacheProvider;
 import org.labkey.api.collections.CollectionUtils;
 import org.labkey.api.mbean.LabKeyManagement;
 
@@ -58,7 +59,7 @@ public class CacheManager
     // Set useCache = false to completely disable all caching... and slow your server to a near halt. Possibly useful for
     // reproducing CacheLoader re-entrancy problems, but not much else.
     private static final boolean useCache = true;
-    private static final CacheProvider PROVIDER = useCache ? EhCacheProvider.getInstance() : new NoopCacheProvider();
+    private static final CacheProvider PROVIDER = useCache ? createProvider() : new NoopCacheProvider();
 
     private static final List<TrackingCache> KNOWN_CACHES = new LinkedList<>();
 
@@ -67,11 +68,29 @@ public class CacheManager
     /** Indicates that we should not time out values in the cache */
     public static final int UNLIMITED = 0;
 
+    // Ehcache is the default; start the server with -Dlabkey.cacheProvider=tinylfu to use the frequency-aware, weight-based provider
+    private static CacheProvider createProvider()
+    {
+        String name = System.getProperty("labkey.cacheProvider");
+
+        if ("tinylfu".equalsIgnoreCase(name))
+            return TinyLfuCacheProvider.getInstance();
+
+        if (null != name && !"ehcache".equalsIgnoreCase(name))
+            LOG.warn("Unknown cache provider \"" + name + "\"; using Ehcache");
+
+        return EhCacheProvider.getInstance();
+    }
+
     private static <K, V> TrackingCache<K, V> createCache(int limit, long defaultTimeToLive, String debugName)
     {
-        CacheWrapper<K, V> cache = new CacheWrapper<>(PROVIDER.getSimpleCache(debugName, limit, defaultTimeToLive, UNLIMITED, false), debugName, null);
+        return register(new CacheWrapper<>(PROVIDER.getSimpleCache(debugName, limit, defaultTimeToLive, UNLIMITED, false), debugName, null));
+    }
+
+    private static <K, V> TrackingCache<K, V> register(CacheWrapper<K, V> cache)
+    {
         addToKnownCaches(cache);  // Permanent cache -- hold onto it
-        LabKeyManagement.register(cache.createDynamicMBean(), "Cache", debugName);
+        LabKeyManagement.register(cache.createDynamicMBean(), "Cache", cache.getDebugName());
         return cache;
     }
 
@@ -80,6 +99,67 @@ public class CacheManager
         return createCache(limit, defaultTimeToLive, debugName);
     }
 
+    /**
+     * Returns a cache bounded by total entry weight (e.g., estimated bytes) in addition to entry count. Only some
+     * providers support weighing; the others enforce just the entry limit, so choose a sensible limit as well.
+     *
+     * @param limit      Maximum number of entries or UNLIMITED
+     * @param maxWeight  Maximum total weight of all entries, in the units returned by weigher
+     */
+    public static <K, V> TrackingCache<K, V> getWeightedCache(int limit, long maxWeight, long defaultTimeToLive, String debugName, CacheWeigher<K, V> weigher)
+    {
+        return register(new CacheWrapper<>(PROVIDER.getSimpleCache(debugName, limit, defaultTimeToLive, UNLIMITED, false, CacheWrapper.wrapWeigher(weigher), maxWeight), debugName, null));
+    }
+
+    public static <K, V> BlockingCache<K, V> getWeightedBlockingCache(int limit, long maxWeight, long defaultTimeToLive, String debugName, CacheWeigher<K, V> weigher, @Nullable CacheLoader<K, V> loader)
+    {
+        TrackingCache<K, Wrapper<V>> cache = getWeightedCache(limit, maxWeight, defaultTimeToLive, debugName, wrapperWeigher(weigher));
+        return new BlockingCache<>(cache, loader);
+    }
+
+    /**
+     * Adapts a value weigher to the Wrappers held by a BlockingCache's underlying cache, for BlockingCache subclasses
+     * that create their own weighted cache. BlockingCache puts an empty Wrapper before loading; weigh it (and null
+     * values) as 1 until the value arrives. Weights are refreshed on read.
+     */
+    public static <K, V> CacheWeigher<K, Wrapper<V>> wrapperWeigher(CacheWeigher<K, V> weigher)
+    {
+        return (key, w) -> w.value == BlockingCache.UNINITIALIZED || null == w.value ? 1 : weigher.weigh(key, w.value);
+    }
+
+    /**
+     * Replay this cache's remove(), removeUsingFilter() and clear() calls on the other nodes of a cluster (see
+     * CacheInvalidationBus). Peers match caches by debug name, so it must be stable and unique on each server. Use for
+     * caches of database state that other nodes can change, e.g., containers and security.
+     */
+    public static <C extends Cache<?, ?>> C enableClusterInvalidation(C cache)
+    {
+        TrackingCache<?, ?> tracking = cache.getTrackingCache();
+
+        if (!(tracking instanceof CacheWrapper))
+            throw new IllegalArgumentException("Cluster invalidation requires a cache created by CacheManager");
+
+        ((CacheWrapper<?, ?>) tracking).setClusterInvalidation(true);
+        return cache;
+    }
+
+    /** Permanent caches with cluster invalidation enabled and the given debug name, or all of them if name is null */
+    public static List<TrackingCache<?, ?>> getClusterInvalidatedCaches(@Nullable String debugName)
+    {
+        List<TrackingCache<?, ?>> ret = new ArrayList<>();
+
+        synchronized (KNOWN_CACHES)
+        {
+            for (TrackingCache<?, ?> cache : KNOWN_CACHES)
+            {
+                if (cache instanceof CacheWrapper && ((CacheWrapper<?, ?>) cache).isClusterInvalidation() && (null == debugName || debugName.equals(cache.getDebugName())))
+                    ret.add(cache);
+            }
+        }
+
+        return ret;
+    }
+
     public static <V> Cache<String, V> getStringKeyCache(int limit, long defaultTimeToLive, String debugName)
     {
         return CacheManager.createCache(limit, defaultTimeToLive, debugName);
@@ -157,7 +237,7 @@ public class CacheManager
 
     public static CacheStats getCacheStats(TrackingCache cache)
     {
-        return new CacheStats(cache.getDebugName(), cache.getCreationStackTrace(), cache.getStats(), cache.size(), cache.getLimit());
+        return new CacheStats(cache.getDebugName(), cache.getCreationStackTrace(), cache.getStats(), cache.size(), cache.getLimit(), cache.getEvictions(), cache.getWeight(), cache.getMemoryEstimate());
     }
 
     public static CacheStats getTransactionCacheStats(TrackingCache cache)
@@ -35,5 +35,18 @@ public interface CacheProvider
      * @return                   A new cache created by the provider
      */
     <K, V> SimpleCache<K, V> getSimpleCache(String debugName, int limit, long defaultTimeToLive, long defaultTimeToIdle, boolean temporary);
+
+    /**
+     * Creates a new SimpleCache that is bounded by total weight as well as entry count. Providers that don't support
+     * weighing ignore the weigher and maximum weight, and enforce only the entry limit.
+     *
+     * @param weigher            Computes the weight of each entry
+     * @param maxWeight          Maximum total weight of all entries; a long value or CacheManager.UNLIMITED
+     */
+    default <K, V> SimpleCache<K, V> getSimpleCache(String debugName, int limit, long defaultTimeToLive, long defaultTimeToIdle, boolean temporary, CacheWeigher<K, V> weigher, long maxWeight)
+    {
+        return getSimpleCache(debugName, limit, defaultTimeToLive, defaultTimeToIdle, temporary);
+    }
+
     void shutdown();
 }
@@ -32,14 +32,32 @@ public class CacheStats implements Comparable<CacheStats>
     private final long _size;
     private final long _maxSize;
     private final int _limit;
+    private final long _evictions;
+    private final long _weight;
+    private final long _memoryEstimate;
+    private final long _loads;
+    private final long _loadNanos;
+    private final long[] _loadTimeHistogram;
+    private final long _staleHits;
+    private final long _refreshes;
+    private final long _refreshFailures;
 
 
     public CacheStats(String description, @Nullable StackTraceElement[] stackTrace, Stats stats, int size, int limit)
     {
-        this(description, stackTrace, stats.gets.get(), stats.misses.get(), stats.puts.get(), stats.expirations.get(), stats.removes.get(), stats.clears.get(), size, stats.max_size.get(), limit);
+        this(description, stackTrace, stats, size, limit, -1, -1, -1);
     }
 
-    private CacheStats(String description, @Nullable StackTraceElement[] stackTrace, long gets, long misses, long puts, long expirations, long removes, long clears, long size, long maxSize, int limit)
+    public CacheStats(String description, @Nullable StackTraceElement[] stackTrace, Stats stats, int size, int limit, long evictions, long weight, long memoryEstimate)
+    {
+        this(description, stackTrace, stats.gets.get(), stats.misses.get(), stats.puts.get(), stats.expirations.get(), stats.removes.get(), stats.clears.get(), size, stats.max_size.get(), limit,
+                evictions, weight, memoryEstimate, stats.loads.get(), stats.loadNanos.get(), toArray(stats),
+                stats.staleHits.get(), stats.refreshes.get(), stats.refreshFailures.get());
+    }
+
+    private CacheStats(String description, @Nullable StackTraceElement[] stackTrace, long gets, long misses, long puts, long expirations, long removes, long clears, long size, long maxSize, int limit,
+                       long evictions, long weight, long memoryEstimate, long loads, long loadNanos, long[] loadTimeHistogram,
+                       long staleHits, long refreshes, long refreshFailures)
     {
         _description = description;
         _stackTrace = stackTrace;
@@ -52,6 +70,23 @@ public class CacheStats implements Comparable<CacheStats>
         _size = size;
         _maxSize = maxSize;
         _limit = limit;
+        _evictions = evictions;
+        _weight = weight;
+        _memoryEstimate = memoryEstimate;
+        _loads = loads;
+        _loadNanos = loadNanos;
+        _loadTimeHistogram = loadTimeHistogram;
+        _staleHits = staleHits;
+        _refreshes = refreshes;
+        _refreshFailures = refreshFailures;
+    }
+
+    private static long[] toArray(Stats stats)
+    {
+        long[] ret = new long[stats.loadTimeHistogram.length()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = stats.loadTimeHistogram.get(i);
+        return ret;
     }
 
     public String getDescription()
@@ -113,6 +148,59 @@ public class CacheStats implements Comparable<CacheStats>
         return _expirations;
     }
 
+    // null if the provider doesn't track evictions
+    public Long getEvictions()
+    {
+        return _evictions < 0 ? null : _evictions;
+    }
+
+    // null if the cache isn't weighted
+    public Long getWeight()
+    {
+        return _weight < 0 ? null : _weight;
+    }
+
+    // null if the provider can't estimate memory usage
+    public Long getMemoryEstimate()
+    {
+        return _memoryEstimate < 0 ? null : _memoryEstimate;
+    }
+
+    public long getLoads()
+    {
+        return _loads;
+    }
+
+    // Average load time in milliseconds
+    public double getAverageLoadTime()
+    {
+        return 0 != _loads ? _loadNanos / (double)_loads / 1_000_000 : 0;
+    }
+
+    /**
+     * Counts of loads by duration, bucketed by the upper bounds in Stats.LOAD_TIME_BUCKETS
+     */
+    public long[] getLoadTimeHistogram()
+    {
+        return _loadTimeHistogram;
+    }
+
+    // Gets that returned a value due for refresh-ahead
+    public long getStaleHits()
+    {
+        return _staleHits;
+    }
+
+    public long getRefreshes()
+    {
+        return _refreshes;
+    }
+
+    public long getRefreshFailures()
+    {
+        return _refreshFailures;
+    }
+
     public double getMissRatio()
     {
         long gets = getGets();
@@ -23,5 +23,6 @@ package org.labkey.api.cache;
 public enum CacheType
 {
     DeterministicLRU,
-    NonDeterministicLRU
+    NonDeterministicLRU,
+    WindowTinyLFU
 }
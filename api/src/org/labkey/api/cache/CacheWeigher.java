@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache;
+
+/**
+ * Computes the relative weight of a cache entry, used by providers that support weight-based eviction (see
+ * CacheManager.getWeightedCache()). Units are up to the caller (bytes, rows, columns...), but must be consistent with
+ * the cache's maximum weight. Implementations must be fast and thread-safe; weights may be recomputed when entries are read.
+ */
+@FunctionalInterface
+public interface CacheWeigher<K, V>
+{
+    int weigh(K key, V value);
+}
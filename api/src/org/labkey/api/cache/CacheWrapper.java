@@ -18,6 +18,8 @@ package org.labkey.api.cache;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.cluster.CacheInvalidationBus;
+import org.labkey.api.cache.cluster.InvalidationMessage;
 import org.labkey.api.mbean.CacheMXBean;
 import org.labkey.api.miniprofiler.MiniProfiler;
 import org.labkey.api.util.Filter;
@@ -46,6 +48,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     private final @Nullable StackTraceElement[] _stackTrace;
     private final V _nullMarker = (V)NULL_MARKER;
 
+    // If true, invalidations are replayed on the other nodes of a cluster (see CacheInvalidationBus)
+    private volatile boolean _clusterInvalidation = false;
+
 
     CacheWrapper(@NotNull SimpleCache<K, V> cache, @NotNull String debugName, @Nullable Stats stats)
     {
@@ -116,7 +121,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
             }
             else if (null != loader)
             {
+                long start = System.nanoTime();
                 v = loader.load(key, arg);
+                _stats.trackLoad(System.nanoTime() - start);
                 CacheManager.validate(loader, v);
                 put(key, v);
             }
@@ -138,6 +145,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
         {
             _cache.remove(key);
             trackRemove();
+
+            if (_clusterInvalidation)
+                CacheInvalidationBus.publish(InvalidationMessage.remove(_debugName, key));
         }
         catch (IllegalStateException ise)
         {
@@ -151,7 +161,13 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     @Override
     public int removeUsingFilter(Filter<K> kFilter)
     {
-        return trackRemoves(_cache.removeUsingFilter(kFilter));
+        int removes = trackRemoves(_cache.removeUsingFilter(kFilter));
+
+        // Prefix filters can be replayed on other nodes; anything else means clearing the whole cache there
+        if (_clusterInvalidation)
+            CacheInvalidationBus.publish(kFilter instanceof StringPrefixFilter ? InvalidationMessage.removePrefix(_debugName, ((StringPrefixFilter) kFilter).getPrefix()) : InvalidationMessage.clear(_debugName));
+
+        return removes;
     }
 
 
@@ -166,6 +182,21 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     {
         _cache.clear();
         trackClear();
+
+        if (_clusterInvalidation)
+            CacheInvalidationBus.publish(InvalidationMessage.clear(_debugName));
+    }
+
+
+    void setClusterInvalidation(boolean clusterInvalidation)
+    {
+        _clusterInvalidation = clusterInvalidation;
+    }
+
+
+    boolean isClusterInvalidation()
+    {
+        return _clusterInvalidation;
     }
 
 
@@ -197,6 +228,27 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     }
 
 
+    @Override
+    public long getEvictions()
+    {
+        return _cache.getEvictions();
+    }
+
+
+    @Override
+    public long getWeight()
+    {
+        return _cache.getWeight();
+    }
+
+
+    @Override
+    public long getMemoryEstimate()
+    {
+        return _cache.getMemoryEstimate();
+    }
+
+
     @Override
     public String getDebugName()
     {
@@ -283,6 +335,12 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     }
 
 
+    // The wrapped cache may hold the null marker, which callers' weighers know nothing about
+    static <K, V> CacheWeigher<K, V> wrapWeigher(CacheWeigher<K, V> weigher)
+    {
+        return (key, value) -> value == NULL_MARKER ? 1 : weigher.weigh(key, value);
+    }
+
     public SimpleCache getWrappedCache()
     {
         return _cache;
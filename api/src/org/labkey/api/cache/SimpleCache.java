@@ -70,5 +70,29 @@ public interface SimpleCache<K, V>
 
     CacheType getCacheType();
 
+    /**
+     * Number of entries evicted to honor the size limit, or -1 if the provider doesn't track evictions
+     */
+    default long getEvictions()
+    {
+        return -1;
+    }
+
+    /**
+     * Current total weight of the entries, or -1 if this cache isn't weighted
+     */
+    default long getWeight()
+    {
+        return -1;
+    }
+
+    /**
+     * Rough estimate of the heap consumed by the cached keys and values in bytes, or -1 if the provider can't estimate it
+     */
+    default long getMemoryEstimate()
+    {
+        return -1;
+    }
+
     void log();
 }
@@ -15,7 +15,9 @@
  */
 package org.labkey.api.cache;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Simple bean for tracking cache usage and efficacy
@@ -31,4 +33,28 @@ public class Stats
     public final AtomicLong removes = new AtomicLong(0);
     public final AtomicLong clears = new AtomicLong(0);
     public final AtomicLong max_size = new AtomicLong(0);
+
+    // Upper bounds (in ms) of the load time histogram buckets; the final bucket counts everything slower
+    public static final long[] LOAD_TIME_BUCKETS = {1, 10, 100, 1000, 10000};
+
+    public final AtomicLong loads = new AtomicLong(0);
+    public final AtomicLong loadNanos = new AtomicLong(0);
+    public final AtomicLongArray loadTimeHistogram = new AtomicLongArray(LOAD_TIME_BUCKETS.length + 1);
+
+    // Refresh-ahead (see BlockingCache.setRefreshAhead()): gets answered with a stale value, and background reloads
+    public final AtomicLong staleHits = new AtomicLong(0);
+    public final AtomicLong refreshes = new AtomicLong(0);
+    public final AtomicLong refreshFailures = new AtomicLong(0);
+
+    public void trackLoad(long nanos)
+    {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < LOAD_TIME_BUCKETS.length && ms >= LOAD_TIME_BUCKETS[bucket])
+            bucket++;
+        loadTimeHistogram.incrementAndGet(bucket);
+    }
 }
@@ -42,4 +42,13 @@ public interface Tracking
     int size();
 
     long getDefaultExpires();
+
+    // Number of entries evicted by the provider, or -1 if unknown
+    long getEvictions();
+
+    // Current total weight of the entries, or -1 if this cache isn't weighted
+    long getWeight();
+
+    // Estimated heap used by the entries, or -1 if unknown
+    long getMemoryEstimate();
 }
@@ -30,6 +30,14 @@ public class Wrapper<V>
     // weak reference, because I'm paranoid of accidentally holding onto threads
     protected WeakReference<Thread> loadingThread;
 
+    // Refresh-ahead bookkeeping, used only by BlockingCaches that enable it. timeToLive is the lifetime the entry was
+    // put with (0 if it never expires); expires is when that lifetime ends; nextRefresh is when the next get() should
+    // kick off a background reload.
+    long timeToLive;
+    long expires = Long.MAX_VALUE;
+    long nextRefresh = Long.MAX_VALUE;
+    boolean refreshing;
+
     Object getLockObject()
     {
         return this;
@@ -0,0 +1,655 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.ShutdownListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Replays cache invalidations on the other web servers of a cluster that share one database. Caches opt in via
+ * CacheManager.enableClusterInvalidation(); their remove(), removeUsingFilter() and clear() calls are published here.
+ * Invalidations made inside a transaction on the LabKey scope are held until it commits (and dropped if it rolls back,
+ * since peers never saw the uncommitted data). Bursts are coalesced for a short interval, deduplicated, and collapsed
+ * to a clear when a cache has many invalidations, then sent via an InvalidationTransport. Receiving nodes apply them
+ * to their caches with the same debug name, without publishing them again.
+ *
+ * Disabled by default. Start the server with -Dlabkey.cacheInvalidation=postgres to broadcast via LISTEN/NOTIFY.
+ */
+public class CacheInvalidationBus
+{
+    private static final Logger LOG = LogManager.getLogger(CacheInvalidationBus.class);
+
+    // How long to gather a burst of invalidations before sending them
+    private static final long FLUSH_DELAY = 50;
+    // More invalidations than this for one cache in a batch are sent as a single clear
+    private static final int MAX_KEYS_PER_CACHE = 100;
+
+    private static final ThreadLocal<Boolean> APPLYING = ThreadLocal.withInitial(() -> false);
+
+    private static volatile @Nullable CacheInvalidationBus INSTANCE = null;
+
+    private final String _nodeId = GUID.makeGUID();
+    private final InvalidationTransport _transport;
+    private final Function<String, Collection<? extends Cache<?, ?>>> _cacheResolver;
+    private final @Nullable DbScope _scope;
+    private final ScheduledExecutorService _flusher;
+
+    private final Object _lock = new Object();
+    private Set<InvalidationMessage> _pending = new LinkedHashSet<>();
+    private boolean _flushScheduled = false;
+
+    private final AtomicLong _published = new AtomicLong();
+    private final AtomicLong _sent = new AtomicLong();
+    private final AtomicLong _payloadsSent = new AtomicLong();
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicLong _resets = new AtomicLong();
+
+    /**
+     * @param transport      Delivers batches to the other nodes
+     * @param cacheResolver  Finds this node's caches with a given debug name
+     * @param scope          Invalidations made inside this scope's transactions wait for the commit; null to send immediately
+     */
+    CacheInvalidationBus(InvalidationTransport transport, Function<String, Collection<? extends Cache<?, ?>>> cacheResolver, @Nullable DbScope scope)
+    {
+        _transport = transport;
+        _cacheResolver = cacheResolver;
+        _scope = scope;
+        _flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Cache invalidation publisher");
+            t.setDaemon(true);
+            return t;
+        });
+
+        _transport.start(new InvalidationTransport.Receiver()
+        {
+            @Override
+            public void receive(String payload)
+            {
+                CacheInvalidationBus.this.receive(payload);
+            }
+
+            @Override
+            public void reset()
+            {
+                CacheInvalidationBus.this.reset();
+            }
+        });
+    }
+
+    /** Starts the bus if this server is configured as part of a cluster. Call once the LabKey scope is initialized. */
+    public static void start()
+    {
+        String transport = System.getProperty("labkey.cacheInvalidation");
+
+        if (null == transport)
+            return;
+
+        if (!"postgres".equalsIgnoreCase(transport))
+        {
+            LOG.warn("Unknown cache invalidation transport \"" + transport + "\"; cluster cache invalidation is disabled");
+            return;
+        }
+
+        DbScope scope = DbScope.getLabKeyScope();
+        CacheInvalidationBus bus = new CacheInvalidationBus(new PostgresNotifyTransport(scope), CacheManager::getClusterInvalidatedCaches, scope);
+        INSTANCE = bus;
+        LOG.info("Cluster cache invalidation started; node " + bus._nodeId);
+
+        ContextListener.addShutdownListener(new ShutdownListener()
+        {
+            @Override
+            public String getName()
+            {
+                return "Cache invalidation bus";
+            }
+
+            @Override
+            public void shutdownPre()
+            {
+                INSTANCE = null;
+            }
+
+            @Override
+            public void shutdownStarted()
+            {
+                bus.close();
+            }
+        });
+    }
+
+    /** Publish an invalidation to the other nodes, if this server is part of a cluster. */
+    public static void publish(InvalidationMessage message)
+    {
+        CacheInvalidationBus bus = INSTANCE;
+
+        if (null != bus)
+            bus.enqueue(message);
+    }
+
+    public static boolean isEnabled()
+    {
+        return null != INSTANCE;
+    }
+
+    void enqueue(InvalidationMessage message)
+    {
+        // Don't echo invalidations we're applying on behalf of another node
+        if (APPLYING.get())
+            return;
+
+        _published.incrementAndGet();
+
+        DbScope.Transaction t = null != _scope ? _scope.getCurrentTransaction() : null;
+
+        if (null != t)
+            t.addCommitTask(new PendingInvalidations(), DbScope.CommitTaskOption.POSTCOMMIT).add(message);
+        else
+            enqueueAll(List.of(message));
+    }
+
+    private void enqueueAll(Collection<InvalidationMessage> messages)
+    {
+        synchronized (_lock)
+        {
+            _pending.addAll(messages);
+
+            if (!_flushScheduled)
+            {
+                _flushScheduled = true;
+                _flusher.schedule(this::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    void flush()
+    {
+        Set<InvalidationMessage> batch;
+
+        synchronized (_lock)
+        {
+            batch = _pending;
+            _pending = new LinkedHashSet<>();
+            _flushScheduled = false;
+        }
+
+        if (batch.isEmpty())
+            return;
+
+        try
+        {
+            for (String payload : toPayloads(coalesce(batch)))
+            {
+                _transport.send(payload);
+                _payloadsSent.incrementAndGet();
+            }
+        }
+        catch (Exception e)
+        {
+            // Peers will hold stale entries until they expire or are invalidated again; nothing more we can do
+            LOG.error("Failed to publish " + batch.size() + " cache invalidation(s)", e);
+        }
+    }
+
+    // Drop duplicates and messages made redundant by a prefix removal or clear; collapse big bursts to a clear
+    static List<InvalidationMessage> coalesce(Collection<InvalidationMessage> batch)
+    {
+        Map<String, Set<InvalidationMessage>> byCache = new LinkedHashMap<>();
+
+        for (InvalidationMessage message : batch)
+            byCache.computeIfAbsent(message.getCacheName(), name -> new LinkedHashSet<>()).add(message);
+
+        List<InvalidationMessage> ret = new ArrayList<>();
+
+        for (Map.Entry<String, Set<InvalidationMessage>> e : byCache.entrySet())
+        {
+            Set<InvalidationMessage> messages = e.getValue();
+
+            if (messages.size() > MAX_KEYS_PER_CACHE || messages.stream().anyMatch(m -> m.getType() == InvalidationMessage.Type.Clear))
+            {
+                ret.add(InvalidationMessage.clear(e.getKey()));
+                continue;
+            }
+
+            List<InvalidationMessage> prefixes = messages.stream().filter(m -> m.getType() == InvalidationMessage.Type.RemovePrefix).collect(Collectors.toList());
+
+            for (InvalidationMessage message : messages)
+            {
+                if (prefixes.stream().noneMatch(prefix -> prefix != message && prefix.covers(message)))
+                    ret.add(message);
+            }
+        }
+
+        return ret;
+    }
+
+    private List<String> toPayloads(List<InvalidationMessage> messages)
+    {
+        List<String> payloads = new ArrayList<>();
+        int max = _transport.getMaxPayloadLength();
+        JSONArray current = new JSONArray();
+        int length = 0;
+
+        for (InvalidationMessage message : messages)
+        {
+            String json = message.toJSON().toString();
+            int messageLength = json.getBytes(StandardCharsets.UTF_8).length + 1;
+
+            // A single invalidation that can't fit (giant key) becomes a clear
+            if (messageLength > max / 2)
+            {
+                message = InvalidationMessage.clear(message.getCacheName());
+                messageLength = message.toJSON().toString().getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+
+            if (length + messageLength > max - 100 && current.length() > 0)
+            {
+                payloads.add(toPayload(current));
+                current = new JSONArray();
+                length = 0;
+            }
+
+            current.put(message.toJSON());
+            length += messageLength;
+            _sent.incrementAndGet();
+        }
+
+        if (current.length() > 0)
+            payloads.add(toPayload(current));
+
+        return payloads;
+    }
+
+    private String toPayload(JSONArray messages)
+    {
+        JSONObject payload = new JSONObject();
+        payload.put("node", _nodeId);
+        payload.put("messages", messages);
+        return payload.toString();
+    }
+
+    void receive(String payload)
+    {
+        JSONObject json = new JSONObject(payload);
+
+        if (_nodeId.equals(json.getString("node")))
+            return;
+
+        JSONArray messages = json.getJSONArray("messages");
+        APPLYING.set(true);
+
+        try
+        {
+            for (int i = 0; i < messages.length(); i++)
+            {
+                InvalidationMessage message = InvalidationMessage.fromJSON(messages.getJSONArray(i));
+                _received.incrementAndGet();
+
+                for (Cache<?, ?> cache : _cacheResolver.apply(message.getCacheName()))
+                {
+                    //noinspection unchecked
+                    message.apply((Cache<Object, ?>) cache);
+                }
+            }
+        }
+        finally
+        {
+            APPLYING.set(false);
+        }
+    }
+
+    // The transport may have lost messages, so any cluster-invalidated cache could be stale. Clear them all.
+    void reset()
+    {
+        _resets.incrementAndGet();
+        LOG.warn("Cache invalidations may have been missed; clearing all cluster-invalidated caches");
+        APPLYING.set(true);
+
+        try
+        {
+            for (Cache<?, ?> cache : _cacheResolver.apply(null))
+                cache.clear();
+        }
+        finally
+        {
+            APPLYING.set(false);
+        }
+    }
+
+    void close()
+    {
+        _flusher.shutdown();
+
+        try
+        {
+            _flusher.awaitTermination(5, TimeUnit.SECONDS);
+            flush();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        _transport.close();
+    }
+
+    public String getNodeId()
+    {
+        return _nodeId;
+    }
+
+    // Invalidations published by this node, before coalescing
+    public long getPublished()
+    {
+        return _published.get();
+    }
+
+    // Invalidations sent, after coalescing
+    public long getSent()
+    {
+        return _sent.get();
+    }
+
+    public long getPayloadsSent()
+    {
+        return _payloadsSent.get();
+    }
+
+    public long getReceived()
+    {
+        return _received.get();
+    }
+
+    public long getResets()
+    {
+        return _resets.get();
+    }
+
+    // Collects one transaction's invalidations and hands them to the bus when it commits. Equal to every other
+    // instance for this bus, so each transaction gets exactly one.
+    private class PendingInvalidations implements Runnable
+    {
+        private final Set<InvalidationMessage> _messages = new LinkedHashSet<>();
+
+        void add(InvalidationMessage message)
+        {
+            _messages.add(message);
+        }
+
+        @Override
+        public void run()
+        {
+            enqueueAll(_messages);
+        }
+
+        private CacheInvalidationBus getBus()
+        {
+            return CacheInvalidationBus.this;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof PendingInvalidations && ((PendingInvalidations) o).getBus() == getBus();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(getBus());
+        }
+    }
+
+
+    /**
+     * Runs two "nodes" in this JVM, each with its own caches and its own bus. The loopback tests exercise coalescing and
+     * transaction handling on any database; the PostgreSQL test sends real notifications through the LabKey database.
+     */
+    public static class TestCase extends Assert
+    {
+        private static final String CACHE_NAME = "CacheInvalidationBus test";
+
+        private final List<Cache<Object, Object>> _caches = new ArrayList<>();
+        private final List<CacheInvalidationBus> _buses = new ArrayList<>();
+
+        private class Node
+        {
+            private final Cache<Object, Object> _cache = CacheManager.getTemporaryCache(1000, CacheManager.UNLIMITED, CACHE_NAME, null);
+            private final CacheInvalidationBus _bus;
+
+            private Node(InvalidationTransport transport)
+            {
+                _caches.add(_cache);
+                _bus = new CacheInvalidationBus(transport, name -> null == name || CACHE_NAME.equals(name) ? List.of(_cache) : List.of(), DbScope.getLabKeyScope());
+                _buses.add(_bus);
+            }
+
+            private void fill()
+            {
+                for (int i = 0; i < 10; i++)
+                {
+                    _cache.put("a" + i, i);
+                    _cache.put("b" + i, i);
+                    _cache.put(i, i);
+                }
+            }
+
+            // Invalidate locally and publish, as CacheWrapper does for clustered caches
+            private void remove(Object key)
+            {
+                _cache.remove(key);
+                _bus.enqueue(InvalidationMessage.remove(CACHE_NAME, key));
+            }
+        }
+
+        @Before
+        public void setUp()
+        {
+            _caches.clear();
+            _buses.clear();
+        }
+
+        @After
+        public void tearDown()
+        {
+            _buses.forEach(CacheInvalidationBus::close);
+            _caches.forEach(Cache::close);
+        }
+
+        @Test
+        public void testLoopback() throws InterruptedException
+        {
+            LoopbackHub hub = new LoopbackHub();
+            Node a = new Node(hub.createTransport());
+            Node b = new Node(hub.createTransport());
+            a.fill();
+            b.fill();
+
+            a.remove("a1");
+            a.remove(3);
+            a._cache.removeUsingFilter(k -> k instanceof String && ((String) k).startsWith("b"));
+            a._bus.enqueue(InvalidationMessage.removePrefix(CACHE_NAME, "b"));
+            waitFor(() -> null == b._cache.get("a1") && null == b._cache.get(3) && null == b._cache.get("b5"));
+
+            assertEquals(Integer.valueOf(2), b._cache.get("a2"));
+            assertEquals(Integer.valueOf(4), b._cache.get(4));
+            assertEquals(Integer.valueOf(2), a._cache.get("a2"));
+
+            // Applying on b must not echo back to a
+            Thread.sleep(2 * FLUSH_DELAY);
+            assertEquals(0, b._bus.getPublished());
+        }
+
+        @Test
+        public void testCoalescing() throws InterruptedException
+        {
+            LoopbackHub hub = new LoopbackHub();
+            Node a = new Node(hub.createTransport());
+            Node b = new Node(hub.createTransport());
+            b.fill();
+
+            // A burst of invalidations goes out as a single payload, collapsed to a clear
+            for (int i = 0; i < 500; i++)
+                a.remove("x" + i);
+            waitFor(() -> 0 == b._cache.getKeys().size());
+            assertEquals(500, a._bus.getPublished());
+            assertEquals(1, a._bus.getSent());
+            assertEquals(1, a._bus.getPayloadsSent());
+
+            List<InvalidationMessage> coalesced = coalesce(List.of(
+                    InvalidationMessage.remove(CACHE_NAME, "ab1"),
+                    InvalidationMessage.remove(CACHE_NAME, "ab1"),
+                    InvalidationMessage.removePrefix(CACHE_NAME, "ab"),
+                    InvalidationMessage.remove(CACHE_NAME, "c"),
+                    InvalidationMessage.remove("Other", 7),
+                    InvalidationMessage.clear("Other")));
+            assertEquals(List.of(InvalidationMessage.removePrefix(CACHE_NAME, "ab"), InvalidationMessage.remove(CACHE_NAME, "c"), InvalidationMessage.clear("Other")), coalesced);
+        }
+
+        @Test
+        public void testTransactions() throws InterruptedException
+        {
+            LoopbackHub hub = new LoopbackHub();
+            Node a = new Node(hub.createTransport());
+            Node b = new Node(hub.createTransport());
+            b.fill();
+            DbScope scope = DbScope.getLabKeyScope();
+
+            try (DbScope.Transaction t = scope.ensureTransaction())
+            {
+                a.remove("a1");
+                Thread.sleep(4 * FLUSH_DELAY);
+                assertEquals("Sent before commit", Integer.valueOf(1), b._cache.get("a1"));
+                t.commit();
+            }
+            waitFor(() -> null == b._cache.get("a1"));
+
+            try (DbScope.Transaction ignored = scope.ensureTransaction())
+            {
+                a.remove("a2");
+            }
+            Thread.sleep(4 * FLUSH_DELAY);
+            assertEquals("Sent after rollback", Integer.valueOf(2), b._cache.get("a2"));
+        }
+
+        @Test
+        public void testPostgres() throws InterruptedException
+        {
+            DbScope scope = DbScope.getLabKeyScope();
+            if (!scope.getSqlDialect().isPostgreSQL())
+                return;
+
+            String channel = "labkey_cache_test_" + GUID.makeHash();
+            Node a = new Node(new PostgresNotifyTransport(scope, channel));
+            Node b = new Node(new PostgresNotifyTransport(scope, channel));
+            a.fill();
+            b.fill();
+
+            a.remove("a1");
+            b.remove("b1");
+            waitFor(() -> null == b._cache.get("a1") && null == a._cache.get("b1"));
+            assertEquals(Integer.valueOf(2), a._cache.get("a2"));
+            assertEquals(Integer.valueOf(2), b._cache.get("b2"));
+
+            // Long keys span multiple notifications
+            for (int i = 0; i < 90; i++)
+                a._bus.enqueue(InvalidationMessage.remove(CACHE_NAME, "a".repeat(200) + i));
+            a.remove(5);
+            waitFor(() -> null == b._cache.get(5));
+            assertTrue(a._bus.getPayloadsSent() > 2);
+        }
+
+        private void waitFor(BooleanSupplier condition) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (!condition.getAsBoolean())
+            {
+                if (System.currentTimeMillis() > end)
+                    fail("Invalidation was not delivered");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+
+    // In-JVM transport for tests: every payload goes to every transport created by the hub, synchronously
+    private static class LoopbackHub
+    {
+        private final List<InvalidationTransport.Receiver> _receivers = new CopyOnWriteArrayList<>();
+
+        InvalidationTransport createTransport()
+        {
+            return new InvalidationTransport()
+            {
+                private InvalidationTransport.Receiver _receiver;
+
+                @Override
+                public void start(Receiver receiver)
+                {
+                    _receiver = receiver;
+                    _receivers.add(receiver);
+                }
+
+                @Override
+                public void send(String payload)
+                {
+                    _receivers.forEach(r -> r.receive(payload));
+                }
+
+                @Override
+                public int getMaxPayloadLength()
+                {
+                    return 7900;
+                }
+
+                @Override
+                public void close()
+                {
+                    _receivers.remove(_receiver);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.cluster;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.labkey.api.cache.Cache;
+
+import java.util.Objects;
+
+/**
+ * A single cache invalidation to be replayed on the other nodes of a cluster. Caches are identified by debug name, so
+ * only caches whose names are stable and unique within a server should opt in. Keys must be Strings or Integers to
+ * survive the trip; invalidations of other key types are sent as a clear of the whole cache.
+ */
+public class InvalidationMessage
+{
+    public enum Type
+    {
+        Remove
+        {
+            @Override
+            void apply(Cache<Object, ?> cache, @Nullable Object key)
+            {
+                cache.remove(Objects.requireNonNull(key));
+            }
+        },
+        RemovePrefix
+        {
+            @Override
+            void apply(Cache<Object, ?> cache, @Nullable Object key)
+            {
+                String prefix = (String) Objects.requireNonNull(key);
+                cache.removeUsingFilter(k -> k instanceof String && ((String) k).startsWith(prefix));
+            }
+        },
+        Clear
+        {
+            @Override
+            void apply(Cache<Object, ?> cache, @Nullable Object key)
+            {
+                cache.clear();
+            }
+        };
+
+        abstract void apply(Cache<Object, ?> cache, @Nullable Object key);
+    }
+
+    private final Type _type;
+    private final String _cacheName;
+    private final @Nullable Object _key;
+
+    private InvalidationMessage(Type type, String cacheName, @Nullable Object key)
+    {
+        _type = type;
+        _cacheName = cacheName;
+        _key = key;
+    }
+
+    public static InvalidationMessage remove(String cacheName, @NotNull Object key)
+    {
+        if (key instanceof String || key instanceof Integer)
+            return new InvalidationMessage(Type.Remove, cacheName, key);
+
+        return clear(cacheName);
+    }
+
+    public static InvalidationMessage removePrefix(String cacheName, String prefix)
+    {
+        return new InvalidationMessage(Type.RemovePrefix, cacheName, prefix);
+    }
+
+    public static InvalidationMessage clear(String cacheName)
+    {
+        return new InvalidationMessage(Type.Clear, cacheName, null);
+    }
+
+    public Type getType()
+    {
+        return _type;
+    }
+
+    public String getCacheName()
+    {
+        return _cacheName;
+    }
+
+    public @Nullable Object getKey()
+    {
+        return _key;
+    }
+
+    // True if applying this message makes applying other redundant
+    boolean covers(InvalidationMessage other)
+    {
+        if (!_cacheName.equals(other._cacheName))
+            return false;
+
+        switch (_type)
+        {
+            case Clear:
+                return true;
+            case RemovePrefix:
+                return other._type != Type.Clear && other._key instanceof String && ((String) other._key).startsWith((String) _key);
+            default:
+                return equals(other);
+        }
+    }
+
+    void apply(Cache<Object, ?> cache)
+    {
+        _type.apply(cache, _key);
+    }
+
+    JSONArray toJSON()
+    {
+        JSONArray json = new JSONArray();
+        json.put(_type.name());
+        json.put(_cacheName);
+        if (null != _key)
+            json.put(_key);
+        return json;
+    }
+
+    static InvalidationMessage fromJSON(JSONArray json)
+    {
+        return new InvalidationMessage(Type.valueOf(json.getString(0)), json.getString(1), json.length() > 2 ? json.get(2) : null);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        InvalidationMessage that = (InvalidationMessage) o;
+        return _type == that._type && _cacheName.equals(that._cacheName) && Objects.equals(_key, that._key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(_type, _cacheName, _key);
+    }
+
+    @Override
+    public String toString()
+    {
+        return _type + " " + _cacheName + (null != _key ? " " + _key : "");
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.cluster;
+
+/**
+ * Delivers serialized invalidation batches between the nodes of a cluster. Delivery is best effort, but a transport
+ * that may have dropped messages (e.g., after losing its connection) must call Receiver.reset() so the node can clear
+ * its cluster-invalidated caches. Every node receives every payload, including its own; CacheInvalidationBus filters
+ * those out.
+ */
+public interface InvalidationTransport
+{
+    interface Receiver
+    {
+        void receive(String payload);
+
+        // Messages may have been lost
+        void reset();
+    }
+
+    void start(Receiver receiver);
+
+    void send(String payload);
+
+    // Maximum payload length, in bytes of UTF-8
+    int getMaxPayloadLength();
+
+    void close();
+}
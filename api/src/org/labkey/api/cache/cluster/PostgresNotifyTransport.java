@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.RuntimeSQLException;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends invalidation batches with PostgreSQL's NOTIFY and receives them on a dedicated, unpooled connection that
+ * LISTENs on the channel. Every node connected to the same database sees every notification. If the listening
+ * connection fails we reconnect and reset the receiver, since notifications sent in the meantime are lost.
+ */
+public class PostgresNotifyTransport implements InvalidationTransport
+{
+    private static final Logger LOG = LogManager.getLogger(PostgresNotifyTransport.class);
+
+    static final String CHANNEL = "labkey_cache_invalidation";
+
+    // PostgreSQL rejects NOTIFY payloads of 8000 bytes or more
+    private static final int MAX_PAYLOAD_LENGTH = 7900;
+    private static final long RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    private final DbScope _scope;
+    private final String _channel;
+
+    private volatile boolean _closed = false;
+    private Thread _listener;
+
+    public PostgresNotifyTransport(DbScope scope)
+    {
+        this(scope, CHANNEL);
+    }
+
+    // Tests use a private channel so they don't disturb (or get disturbed by) other nodes
+    PostgresNotifyTransport(DbScope scope, String channel)
+    {
+        if (!scope.getSqlDialect().isPostgreSQL())
+            throw new IllegalStateException("LISTEN/NOTIFY cache invalidation requires PostgreSQL");
+
+        _scope = scope;
+        _channel = channel;
+    }
+
+    @Override
+    public void start(Receiver receiver)
+    {
+        Object ready = new Object();
+
+        synchronized (ready)
+        {
+            _listener = new Thread(() -> listen(receiver, ready), "Cache invalidation listener");
+            _listener.setDaemon(true);
+            _listener.start();
+
+            // Don't return until we're listening (or have failed to), so nothing sent after start() is missed
+            try
+            {
+                ready.wait(TimeUnit.SECONDS.toMillis(30));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void listen(Receiver receiver, Object ready)
+    {
+        boolean connected = false;
+
+        while (!_closed)
+        {
+            try (Connection conn = _scope.getUnpooledConnection())
+            {
+                try (Statement stmt = conn.createStatement())
+                {
+                    stmt.execute("LISTEN " + _channel);
+                }
+
+                // Anything sent while we were disconnected is gone
+                if (connected)
+                    receiver.reset();
+                connected = true;
+
+                synchronized (ready)
+                {
+                    ready.notifyAll();
+                }
+
+                PGConnection pgConn = conn.unwrap(PGConnection.class);
+
+                while (!_closed)
+                {
+                    PGNotification[] notifications = pgConn.getNotifications(1000);
+
+                    if (null != notifications)
+                    {
+                        for (PGNotification notification : notifications)
+                        {
+                            try
+                            {
+                                receiver.receive(notification.getParameter());
+                            }
+                            catch (Exception e)
+                            {
+                                LOG.error("Failed to apply cache invalidations", e);
+                            }
+                        }
+                    }
+                }
+            }
+            catch (SQLException e)
+            {
+                if (_closed)
+                    break;
+
+                LOG.warn("Cache invalidation listener lost its connection; reconnecting", e);
+
+                synchronized (ready)
+                {
+                    ready.notifyAll();
+                }
+
+                try
+                {
+                    Thread.sleep(RECONNECT_DELAY);
+                }
+                catch (InterruptedException x)
+                {
+                    // Likely closing
+                }
+            }
+        }
+    }
+
+    @Override
+    public void send(String payload)
+    {
+        try (Connection conn = _scope.getPooledConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT pg_notify(?, ?)"))
+        {
+            stmt.setString(1, _channel);
+            stmt.setString(2, payload);
+            stmt.execute();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+    }
+
+    @Override
+    public int getMaxPayloadLength()
+    {
+        return MAX_PAYLOAD_LENGTH;
+    }
+
+    @Override
+    public void close()
+    {
+        _closed = true;
+
+        if (null != _listener)
+        {
+            try
+            {
+                _listener.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
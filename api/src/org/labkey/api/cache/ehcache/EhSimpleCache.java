@@ -134,6 +134,12 @@ class EhSimpleCache<K, V> implements SimpleCache<K, V>
         return CacheType.NonDeterministicLRU;
     }
 
+    @Override
+    public long getEvictions()
+    {
+        return _cache.getStatistics().getEvictionCount();
+    }
+
     @Override
     public void close()
     {
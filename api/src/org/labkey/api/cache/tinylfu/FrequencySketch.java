@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.tinylfu;
+
+/**
+ * A count-min sketch of 4-bit counters used to estimate how often keys have been accessed recently. Each long in
+ * the table holds sixteen counters; a key maps to four counters in one long, and its frequency is the minimum of them.
+ * Once the number of increments reaches ten times the table capacity every counter is halved, so the estimates favor
+ * recent popularity ("aging").
+ *
+ * Not thread-safe; callers hold the cache's eviction lock.
+ */
+class FrequencySketch
+{
+    private static final long[] SEED = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private long[] _table = new long[0];
+    private int _tableMask;
+    private int _sampleSize;
+    private int _size;
+
+    /** Grow the sketch so it can estimate frequencies for roughly maximumSize keys. Growing resets all counts. */
+    void ensureCapacity(long maximumSize)
+    {
+        int maximum = (int) Math.min(Math.max(maximumSize, 16), Integer.MAX_VALUE >>> 1);
+        if (_table.length >= maximum)
+            return;
+
+        _table = new long[Integer.highestOneBit(maximum - 1) << 1];
+        _tableMask = _table.length - 1;
+        _sampleSize = 10 * maximum;
+        _size = 0;
+    }
+
+    int capacity()
+    {
+        return _table.length;
+    }
+
+    int frequency(Object key)
+    {
+        if (_table.length == 0)
+            return 0;
+
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++)
+        {
+            int index = indexOf(hash, i);
+            int count = (int) ((_table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object key)
+    {
+        if (_table.length == 0)
+            return;
+
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+
+        if (added && ++_size == _sampleSize)
+            reset();
+    }
+
+    // Increment counter j (0-15) of table[i] unless it's saturated
+    private boolean incrementAt(int i, int j)
+    {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((_table[i] & mask) != mask)
+        {
+            _table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    // Halve every counter. Odd counts lose their low bit, so correct the size for the truncation.
+    private void reset()
+    {
+        int count = 0;
+        for (int i = 0; i < _table.length; i++)
+        {
+            count += Long.bitCount(_table[i] & ONE_MASK);
+            _table[i] = (_table[i] >>> 1) & RESET_MASK;
+        }
+        _size = (_size >>> 1) - (count >>> 2);
+    }
+
+    private int indexOf(int item, int i)
+    {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & _tableMask;
+    }
+
+    // Supplemental hash to protect against poor hashCode() distributions
+    private static int spread(int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,718 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.tinylfu;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.CacheType;
+import org.labkey.api.cache.CacheWeigher;
+import org.labkey.api.cache.SimpleCache;
+import org.labkey.api.util.Filter;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process cache with Window TinyLFU eviction. Entries live in a ConcurrentHashMap, so reads never block. The
+ * eviction policy splits capacity into a small LRU "window" (1%) that absorbs bursts of new keys, and a segmented LRU
+ * main region (80% protected, 20% probation). When the window overflows, its oldest entry must compete with the main
+ * region's eviction victim for admission: whichever key the FrequencySketch says has been used more often stays. This
+ * keeps one-off scans (e.g., crawling every container) from flushing a cache's hot entries, which plain LRU can't do.
+ *
+ * Capacity is measured in weight units when a weigher and maximum weight are provided, otherwise in entries. Policy
+ * bookkeeping is guarded by a single lock; reads record accesses in a lossy ring buffer that's drained whenever the
+ * lock is free, so a busy read path never waits on writers.
+ */
+class TinyLfuCache<K, V> implements SimpleCache<K, V>
+{
+    private static final Logger LOG = LogManager.getLogger(TinyLfuCache.class);
+
+    private static final int READ_BUFFER_SIZE = 128;  // must be a power of two
+    private static final int READ_DRAIN_THRESHOLD = 32;
+    private static final int SWEEP_BATCH = 4;
+    private static final int MEMORY_SAMPLE_SIZE = 64;
+
+    private static final byte NONE = 0;
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+
+    private final int _limit;
+    private final long _maxWeight;
+    private final long _defaultTimeToLive;
+    private final long _defaultTimeToIdle;
+    private final @Nullable CacheWeigher<K, V> _weigher;
+    private final boolean _bounded;
+    private final Runnable _onClose;
+
+    private final ConcurrentHashMap<K, Node<K, V>> _map = new ConcurrentHashMap<>();
+    private final ReentrantLock _evictionLock = new ReentrantLock();
+
+    // Guarded by _evictionLock
+    private final FrequencySketch _sketch = new FrequencySketch();
+    private final AccessOrderDeque<K, V> _window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> _probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> _protected = new AccessOrderDeque<>();
+    private final long _windowMax;
+    private final long _protectedMax;
+    private long _windowWeight = 0;
+    private long _protectedWeight = 0;
+    private volatile long _totalWeight = 0;
+    private boolean _customTimeToLive = false;
+    private @Nullable Iterator<Node<K, V>> _sweeper = null;
+
+    private final AtomicReferenceArray<Node<K, V>> _readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicInteger _readCounter = new AtomicInteger();
+
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _expirations = new LongAdder();
+
+    TinyLfuCache(int limit, long defaultTimeToLive, long defaultTimeToIdle, @Nullable CacheWeigher<K, V> weigher, long maxWeight, Runnable onClose)
+    {
+        _limit = limit;
+        _maxWeight = null == weigher ? CacheManager.UNLIMITED : maxWeight;
+        _defaultTimeToLive = defaultTimeToLive;
+        _defaultTimeToIdle = defaultTimeToIdle;
+        _weigher = weigher;
+        _bounded = _limit != CacheManager.UNLIMITED || _maxWeight != CacheManager.UNLIMITED;
+        _onClose = onClose;
+
+        long capacity = _maxWeight != CacheManager.UNLIMITED ? _maxWeight : _limit;
+        _windowMax = Math.max(1, capacity / 100);
+        _protectedMax = (long) ((capacity - _windowMax) * 0.8);
+
+        if (_bounded)
+            _sketch.ensureCapacity(_limit != CacheManager.UNLIMITED ? _limit : 1024);
+    }
+
+    @Override
+    public void put(K key, V value)
+    {
+        put(key, value, _defaultTimeToLive, false);
+    }
+
+    @Override
+    public void put(K key, V value, long timeToLive)
+    {
+        put(key, value, timeToLive, true);
+    }
+
+    private void put(K key, V value, long timeToLive, boolean custom)
+    {
+        long now = System.currentTimeMillis();
+        Node<K, V> node = new Node<>(key, value, timeToLive == CacheManager.UNLIMITED ? Long.MAX_VALUE : now + timeToLive, now);
+        node.weight = weigh(key, value);
+
+        _evictionLock.lock();
+        try
+        {
+            drainReadBuffer();
+
+            Node<K, V> old = _map.put(key, node);
+            if (null != old)
+                unlink(old);
+
+            _totalWeight += node.weight;
+
+            if (_bounded)
+            {
+                if (_limit == CacheManager.UNLIMITED && _map.size() > _sketch.capacity())
+                    _sketch.ensureCapacity(2L * _map.size());
+                _sketch.increment(key);
+                node.queue = WINDOW;
+                _window.addLast(node);
+                _windowWeight += node.weight;
+                evict();
+            }
+
+            _customTimeToLive |= custom;
+            sweepExpired(now);
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public @Nullable V get(K key)
+    {
+        Node<K, V> node = _map.get(key);
+        if (null == node)
+            return null;
+
+        long now = System.currentTimeMillis();
+        if (isExpired(node, now))
+        {
+            expire(node);
+            return null;
+        }
+
+        if (_defaultTimeToIdle != CacheManager.UNLIMITED)
+            node.accessTime = now;
+
+        if (_bounded)
+            recordRead(node);
+
+        return node.value;
+    }
+
+    @Override
+    public void remove(K key)
+    {
+        _evictionLock.lock();
+        try
+        {
+            Node<K, V> node = _map.remove(key);
+            if (null != node)
+                unlink(node);
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public int removeUsingFilter(Filter<K> filter)
+    {
+        int removes = 0;
+
+        _evictionLock.lock();
+        try
+        {
+            for (Iterator<Node<K, V>> iter = _map.values().iterator(); iter.hasNext(); )
+            {
+                Node<K, V> node = iter.next();
+                if (filter.accept(node.key))
+                {
+                    iter.remove();
+                    unlink(node);
+                    removes++;
+                }
+            }
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+
+        return removes;
+    }
+
+    @Override
+    public Set<K> getKeys()
+    {
+        return new HashSet<>(_map.keySet());
+    }
+
+    @Override
+    public void clear()
+    {
+        _evictionLock.lock();
+        try
+        {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++)
+                _readBuffer.set(i, null);
+            for (Node<K, V> node : _map.values())
+                node.queue = NONE;
+            _map.clear();
+            _window.clear();
+            _probation.clear();
+            _protected.clear();
+            _windowWeight = 0;
+            _protectedWeight = 0;
+            _totalWeight = 0;
+            _sweeper = null;
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public int getLimit()
+    {
+        return _limit;
+    }
+
+    @Override
+    public int size()
+    {
+        return _map.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return _map.isEmpty();
+    }
+
+    @Override
+    public long getDefaultExpires()
+    {
+        return _defaultTimeToLive;
+    }
+
+    @Override
+    public void close()
+    {
+        clear();
+        _onClose.run();
+    }
+
+    @Override
+    public CacheType getCacheType()
+    {
+        return CacheType.WindowTinyLFU;
+    }
+
+    @Override
+    public long getEvictions()
+    {
+        return _evictions.sum();
+    }
+
+    long getExpirations()
+    {
+        return _expirations.sum();
+    }
+
+    @Override
+    public long getWeight()
+    {
+        return _maxWeight == CacheManager.UNLIMITED ? -1 : _totalWeight;
+    }
+
+    long getMaxWeight()
+    {
+        return _maxWeight;
+    }
+
+    /**
+     * Estimates heap usage by measuring a sample of entries with a shallow, type-based heuristic and scaling up to the
+     * full size. This is meant for spotting outsized caches on the admin page, not for accounting.
+     */
+    @Override
+    public long getMemoryEstimate()
+    {
+        int size = _map.size();
+        if (0 == size)
+            return 0;
+
+        long sampleBytes = 0;
+        int sampled = 0;
+        for (Node<K, V> node : _map.values())
+        {
+            sampleBytes += ENTRY_OVERHEAD + estimate(node.key, 0) + estimate(node.value, 0);
+            if (++sampled == MEMORY_SAMPLE_SIZE)
+                break;
+        }
+
+        return 0 == sampled ? 0 : sampleBytes * size / sampled;
+    }
+
+    @Override
+    public void log()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Node<K, V> node : _map.values())
+            sb.append(node.key).append(" -> ").append(node.value).append("\n");
+
+        LOG.info(sb);
+    }
+
+    private int weigh(K key, V value)
+    {
+        if (null == _weigher || _maxWeight == CacheManager.UNLIMITED)
+            return 1;
+
+        return Math.max(0, _weigher.weigh(key, value));
+    }
+
+    private boolean isExpired(Node<K, V> node, long now)
+    {
+        if (now >= node.expireTime)
+            return true;
+
+        return _defaultTimeToIdle != CacheManager.UNLIMITED && now - node.accessTime >= _defaultTimeToIdle;
+    }
+
+    private void expire(Node<K, V> node)
+    {
+        _evictionLock.lock();
+        try
+        {
+            if (_map.remove(node.key, node))
+            {
+                unlink(node);
+                _expirations.increment();
+            }
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+    }
+
+    // Drop expired entries that nobody has asked for; otherwise they'd linger until evicted (or forever, if unbounded).
+    // Each put checks the next few entries of a scan that wraps around the map, so the work is spread across puts instead
+    // of walking the whole map while holding the lock. An unbounded cache can't grow much past its live entries, since
+    // every put removes up to SWEEP_BATCH expired ones.
+    private void sweepExpired(long now)
+    {
+        if (!_customTimeToLive && _defaultTimeToLive == CacheManager.UNLIMITED && _defaultTimeToIdle == CacheManager.UNLIMITED)
+            return;
+
+        for (int i = 0; i < SWEEP_BATCH; i++)
+        {
+            if (null == _sweeper || !_sweeper.hasNext())
+            {
+                _sweeper = _map.values().iterator();
+                if (!_sweeper.hasNext())
+                    return;
+            }
+
+            Node<K, V> node = _sweeper.next();
+            if (isExpired(node, now) && _map.remove(node.key, node))
+            {
+                unlink(node);
+                _expirations.increment();
+            }
+        }
+    }
+
+    // Lossy: under heavy load reads overwrite slots that haven't been drained yet, which just means a few accesses go uncounted
+    private void recordRead(Node<K, V> node)
+    {
+        int index = _readCounter.getAndIncrement() & (READ_BUFFER_SIZE - 1);
+        _readBuffer.lazySet(index, node);
+
+        if ((index & (READ_DRAIN_THRESHOLD - 1)) == READ_DRAIN_THRESHOLD - 1 && _evictionLock.tryLock())
+        {
+            try
+            {
+                drainReadBuffer();
+            }
+            finally
+            {
+                _evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffer()
+    {
+        assert _evictionLock.isHeldByCurrentThread();
+
+        if (!_bounded)
+            return;
+
+        boolean reweighed = false;
+
+        for (int i = 0; i < READ_BUFFER_SIZE; i++)
+        {
+            Node<K, V> node = _readBuffer.getAndSet(i, null);
+            if (null != node && node.queue != NONE)
+                reweighed |= onAccess(node);
+        }
+
+        if (reweighed)
+            evict();
+    }
+
+    // Returns true if the node's weight changed
+    private boolean onAccess(Node<K, V> node)
+    {
+        _sketch.increment(node.key);
+
+        // Values can grow after they're cached (e.g., BlockingCache fills in its Wrapper after the put), so re-weigh on access
+        int weight = weigh(node.key, node.value);
+        int delta = weight - node.weight;
+        if (0 != delta)
+        {
+            node.weight = weight;
+            _totalWeight += delta;
+            if (node.queue == WINDOW)
+                _windowWeight += delta;
+            else if (node.queue == PROTECTED)
+                _protectedWeight += delta;
+        }
+
+        switch (node.queue)
+        {
+            case WINDOW:
+                _window.moveToBack(node);
+                break;
+            case PROBATION:
+                // A second access promotes the entry to the protected segment
+                _probation.remove(node);
+                node.queue = PROTECTED;
+                _protected.addLast(node);
+                _protectedWeight += node.weight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                _protected.moveToBack(node);
+                break;
+        }
+
+        return 0 != delta;
+    }
+
+    private void demoteProtected()
+    {
+        while (_protectedWeight > _protectedMax)
+        {
+            Node<K, V> demoted = _protected.pollFirst();
+            if (null == demoted)
+                break;
+            _protectedWeight -= demoted.weight;
+            demoted.queue = PROBATION;
+            _probation.addLast(demoted);
+        }
+    }
+
+    private void evict()
+    {
+        // Entries that overflow the window become candidates for the main region, at the back of probation
+        while (_windowWeight > _windowMax)
+        {
+            Node<K, V> candidate = _window.pollFirst();
+            if (null == candidate)
+                break;
+            _windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            _probation.addLast(candidate);
+        }
+
+        while (isOverCapacity())
+        {
+            Node<K, V> victim = _probation.peekFirst();
+            Node<K, V> candidate = _probation.peekLast();
+
+            if (null == victim)
+            {
+                // Probation is empty; take the least recently used entry from wherever entries remain
+                victim = _protected.peekFirst();
+                if (null == victim)
+                    victim = _window.peekFirst();
+                if (null == victim)
+                    break;
+                evictEntry(victim);
+            }
+            else if (victim == candidate)
+            {
+                evictEntry(victim);
+            }
+            else
+            {
+                // TinyLFU admission: the newcomer stays only if it's been used more often than the entry it would displace.
+                // Ties go to the victim, so a scan of never-repeated keys can't push out the working set.
+                if (_sketch.frequency(candidate.key) > _sketch.frequency(victim.key))
+                    evictEntry(victim);
+                else
+                    evictEntry(candidate);
+            }
+        }
+    }
+
+    private boolean isOverCapacity()
+    {
+        return (_maxWeight != CacheManager.UNLIMITED && _totalWeight > _maxWeight) ||
+                (_limit != CacheManager.UNLIMITED && _map.size() > _limit);
+    }
+
+    private void evictEntry(Node<K, V> node)
+    {
+        _map.remove(node.key, node);
+        unlink(node);
+        _evictions.increment();
+    }
+
+    // Remove the node from the policy and weight bookkeeping; caller has already removed it from the map
+    private void unlink(Node<K, V> node)
+    {
+        switch (node.queue)
+        {
+            case WINDOW:
+                _window.remove(node);
+                _windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                _probation.remove(node);
+                break;
+            case PROTECTED:
+                _protected.remove(node);
+                _protectedWeight -= node.weight;
+                break;
+        }
+
+        node.queue = NONE;
+        _totalWeight -= node.weight;
+    }
+
+    private static final int ENTRY_OVERHEAD = 96;  // map entry, node and its fields
+    private static final int COLLECTION_SAMPLE_SIZE = 16;
+
+    // Very rough, shallow estimate of an object's retained size
+    private static long estimate(@Nullable Object o, int depth)
+    {
+        if (null == o)
+            return 0;
+        if (o instanceof CharSequence)
+            return 40 + 2L * ((CharSequence) o).length();
+        if (o instanceof Number || o instanceof Boolean || o instanceof Character || o instanceof Enum)
+            return 16;
+        if (depth > 2)
+            return 64;
+        if (o instanceof Collection)
+            return 48 + sample(((Collection<?>) o).iterator(), ((Collection<?>) o).size(), depth);
+        if (o instanceof Map)
+        {
+            Map<?, ?> map = (Map<?, ?>) o;
+            return 64 + sample(map.keySet().iterator(), map.size(), depth) + sample(map.values().iterator(), map.size(), depth);
+        }
+        if (o.getClass().isArray())
+        {
+            int length = Array.getLength(o);
+            if (o.getClass().getComponentType().isPrimitive())
+                return 16 + 8L * length;
+            List<Object> elements = new ArrayList<>(Math.min(length, COLLECTION_SAMPLE_SIZE));
+            for (int i = 0; i < length && i < COLLECTION_SAMPLE_SIZE; i++)
+                elements.add(Array.get(o, i));
+            return 16 + 8L * length + sample(elements.iterator(), length, depth);
+        }
+        return 64;
+    }
+
+    private static long sample(Iterator<?> iter, int size, int depth)
+    {
+        long bytes = 0;
+        int sampled = 0;
+        while (iter.hasNext() && sampled < COLLECTION_SAMPLE_SIZE)
+        {
+            bytes += 8 + estimate(iter.next(), depth + 1);
+            sampled++;
+        }
+        return 0 == sampled ? 0 : bytes * size / sampled;
+    }
+
+    static class Node<K, V>
+    {
+        final K key;
+        final V value;
+        final long expireTime;
+        volatile long accessTime;
+
+        // Guarded by the eviction lock
+        int weight;
+        byte queue = NONE;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(@NotNull K key, V value, long expireTime, long accessTime)
+        {
+            this.key = key;
+            this.value = value;
+            this.expireTime = expireTime;
+            this.accessTime = accessTime;
+        }
+    }
+
+    // Intrusive doubly-linked list, so moving an entry to the back is O(1). Guarded by the eviction lock.
+    static class AccessOrderDeque<K, V>
+    {
+        private Node<K, V> _head;
+        private Node<K, V> _tail;
+
+        void addLast(Node<K, V> node)
+        {
+            node.prev = _tail;
+            node.next = null;
+            if (null == _tail)
+                _head = node;
+            else
+                _tail.next = node;
+            _tail = node;
+        }
+
+        void remove(Node<K, V> node)
+        {
+            if (null == node.prev)
+                _head = node.next;
+            else
+                node.prev.next = node.next;
+
+            if (null == node.next)
+                _tail = node.prev;
+            else
+                node.next.prev = node.prev;
+
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node)
+        {
+            if (node != _tail)
+            {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        @Nullable Node<K, V> peekFirst()
+        {
+            return _head;
+        }
+
+        @Nullable Node<K, V> peekLast()
+        {
+            return _tail;
+        }
+
+        @Nullable Node<K, V> pollFirst()
+        {
+            Node<K, V> node = _head;
+            if (null != node)
+                remove(node);
+            return node;
+        }
+
+        void clear()
+        {
+            _head = null;
+            _tail = null;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.tinylfu;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.CacheProvider;
+import org.labkey.api.cache.CacheWeigher;
+import org.labkey.api.cache.SimpleCache;
+import org.labkey.api.cache.ehcache.EhCacheProvider;
+import org.labkey.api.test.TestWhen;
+import org.labkey.api.util.MemTracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Provider of Window TinyLFU caches (see TinyLfuCache). Unlike Ehcache this supports weight-based eviction and
+ * frequency-aware admission, and reports evictions and memory estimates to the admin console. Select it by starting
+ * the server with -Dlabkey.cacheProvider=tinylfu.
+ */
+// Do not use CacheProvider implementations directly; use CacheManager.getCache() to get a cache
+public class TinyLfuCacheProvider implements CacheProvider
+{
+    private static final Logger LOG = LogManager.getLogger(TinyLfuCacheProvider.class);
+    private static final TinyLfuCacheProvider INSTANCE = new TinyLfuCacheProvider();
+
+    private final AtomicLong _openCaches = new AtomicLong(0);
+
+    public static TinyLfuCacheProvider getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private TinyLfuCacheProvider()
+    {
+    }
+
+    @Override
+    public <K, V> SimpleCache<K, V> getSimpleCache(String debugName, int limit, long defaultTimeToLive, long defaultTimeToIdle, boolean temporary)
+    {
+        return create(debugName, limit, defaultTimeToLive, defaultTimeToIdle, temporary, null, CacheManager.UNLIMITED);
+    }
+
+    @Override
+    public <K, V> SimpleCache<K, V> getSimpleCache(String debugName, int limit, long defaultTimeToLive, long defaultTimeToIdle, boolean temporary, CacheWeigher<K, V> weigher, long maxWeight)
+    {
+        return create(debugName, limit, defaultTimeToLive, defaultTimeToIdle, temporary, weigher, maxWeight);
+    }
+
+    private <K, V> SimpleCache<K, V> create(String debugName, int limit, long defaultTimeToLive, long defaultTimeToIdle, boolean temporary, @Nullable CacheWeigher<K, V> weigher, long maxWeight)
+    {
+        TinyLfuCache<K, V> cache = new TinyLfuCache<>(limit, defaultTimeToLive, defaultTimeToIdle, weigher, maxWeight, _openCaches::decrementAndGet);
+        long count = _openCaches.incrementAndGet();
+        LOG.debug("Created \"" + debugName + "\". TinyLFU caches: " + count);
+
+        // Memtrack temporary caches to ensure they're closed
+        if (temporary)
+            MemTracker.getInstance().put(cache);
+
+        return cache;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        LOG.info("Shutting down TinyLFU cache provider");
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private <V> TinyLfuCache<Integer, V> cache(int limit, @Nullable CacheWeigher<Integer, V> weigher, long maxWeight)
+        {
+            return new TinyLfuCache<>(limit, CacheManager.UNLIMITED, CacheManager.UNLIMITED, weigher, maxWeight, () -> {});
+        }
+
+        @Test
+        public void testEntryLimit()
+        {
+            TinyLfuCache<Integer, String> cache = cache(100, null, CacheManager.UNLIMITED);
+            for (int i = 0; i < 1000; i++)
+                cache.put(i, "value" + i);
+
+            assertEquals(100, cache.size());
+            assertEquals(900, cache.getEvictions());
+            assertEquals(-1, cache.getWeight());
+            assertTrue(cache.getMemoryEstimate() > 0);
+        }
+
+        @Test
+        public void testWeightLimit()
+        {
+            TinyLfuCache<Integer, String> cache = cache(CacheManager.UNLIMITED, (key, value) -> value.length(), 1000);
+            for (int i = 0; i < 50; i++)
+                cache.put(i, "x".repeat(100));
+
+            assertTrue(cache.getWeight() <= 1000);
+            assertEquals(cache.getWeight(), 100L * cache.size());
+
+            // An entry heavier than the whole cache can't stay
+            cache.put(1000, "x".repeat(2000));
+            assertNull(cache.get(1000));
+            assertTrue(cache.getWeight() <= 1000);
+
+            cache.clear();
+            assertEquals(0, cache.getWeight());
+            assertTrue(cache.isEmpty());
+        }
+
+        @Test
+        public void testFrequencyAdmission()
+        {
+            TinyLfuCache<Integer, Integer> cache = cache(100, null, CacheManager.UNLIMITED);
+
+            // Establish a hot working set...
+            for (int round = 0; round < 20; round++)
+            {
+                for (int key = 0; key < 50; key++)
+                {
+                    if (null == cache.get(key))
+                        cache.put(key, key);
+                }
+            }
+
+            // ...then scan a large number of keys that are each used once. Plain LRU would flush the working set.
+            for (int key = 1000; key < 11000; key++)
+                cache.put(key, key);
+
+            int hot = 0;
+            for (int key = 0; key < 50; key++)
+            {
+                if (null != cache.get(key))
+                    hot++;
+            }
+
+            assertTrue("Only " + hot + " of 50 hot entries survived the scan", hot >= 45);
+            assertEquals(100, cache.size());
+        }
+
+        @Test
+        public void testExpiration() throws InterruptedException
+        {
+            TinyLfuCache<Integer, Integer> cache = cache(10, null, CacheManager.UNLIMITED);
+            cache.put(1, 1, 1);
+            cache.put(2, 2);
+            Thread.sleep(10);
+
+            assertNull(cache.get(1));
+            assertEquals(Integer.valueOf(2), cache.get(2));
+            assertEquals(1, cache.getExpirations());
+        }
+
+        @Test
+        public void testSweep()
+        {
+            TinyLfuCache<Integer, Integer> cache = cache(CacheManager.UNLIMITED, null, CacheManager.UNLIMITED);
+            for (int i = 0; i < 1000; i++)
+                cache.put(i, i, 1);
+
+            long now = System.currentTimeMillis();
+            while (System.currentTimeMillis() < now + 2)
+                Thread.onSpinWait();
+
+            // Nobody reads the expired entries; the puts that follow must clear them out a few at a time
+            for (int i = 1000; i < 2000; i++)
+                cache.put(i, i);
+
+            assertEquals(1000, cache.getExpirations());
+            assertEquals(1000, cache.size());
+            assertNull(cache.get(0));
+            assertEquals(Integer.valueOf(1999), cache.get(1999));
+        }
+
+        @Test
+        public void testRemove()
+        {
+            TinyLfuCache<Integer, Integer> cache = cache(100, null, CacheManager.UNLIMITED);
+            for (int i = 0; i < 50; i++)
+                cache.put(i, i);
+
+            cache.remove(0);
+            assertNull(cache.get(0));
+            assertEquals(25, cache.removeUsingFilter(key -> key % 2 == 1));
+            assertEquals(24, cache.size());
+            assertEquals(24, cache.getKeys().size());
+            assertEquals(0, cache.getEvictions());
+        }
+    }
+
+
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerformanceTestCase extends Assert
+    {
+        /**
+         * Compares this provider with Ehcache under concurrent load: eight threads doing get-or-load against a skewed
+         * (power law) key distribution ten times larger than the cache. Logs throughput and hit ratio for each.
+         */
+        @Test
+        public void testConcurrentBenchmark() throws Exception
+        {
+            int limit = 10_000;
+
+            SimpleCache<Integer, Integer> ehcache = EhCacheProvider.getInstance().getSimpleCache("TinyLfuBenchmark", limit, CacheManager.UNLIMITED, CacheManager.UNLIMITED, true);
+            SimpleCache<Integer, Integer> tinyLfu = getInstance().getSimpleCache("TinyLfuBenchmark", limit, CacheManager.UNLIMITED, CacheManager.UNLIMITED, true);
+
+            try
+            {
+                // warm up both, then measure
+                benchmark("Ehcache", ehcache, limit * 10, false);
+                benchmark("TinyLFU", tinyLfu, limit * 10, false);
+                benchmark("Ehcache", ehcache, limit * 10, true);
+                benchmark("TinyLFU", tinyLfu, limit * 10, true);
+            }
+            finally
+            {
+                ehcache.close();
+                tinyLfu.close();
+            }
+
+            assertTrue(tinyLfu.getEvictions() > 0);
+        }
+
+        private void benchmark(String name, SimpleCache<Integer, Integer> cache, int keySpace, boolean log) throws Exception
+        {
+            int threads = 8;
+            int operations = 200_000;
+            LongAdder hits = new LongAdder();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+            try
+            {
+                long start = System.nanoTime();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++)
+                {
+                    long seed = t;
+                    futures.add(executor.submit(() -> {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < operations; i++)
+                        {
+                            int key = (int) (keySpace * Math.pow(random.nextDouble(), 4));
+                            if (null != cache.get(key))
+                                hits.increment();
+                            else
+                                cache.put(key, key);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get();
+                long elapsed = System.nanoTime() - start;
+
+                if (log)
+                {
+                    long total = (long) threads * operations;
+                    LOG.info(String.format("%s: %,d ops in %,d ms (%,.0f ops/sec), hit ratio %.1f%%", name, total,
+                            TimeUnit.NANOSECONDS.toMillis(elapsed), total / (elapsed / 1e9), 100.0 * hits.sum() / total));
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,932 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Compressed bit set in the style of Roaring bitmaps (Chambi, Lemire et al.). The int space is split into chunks of
+ * 65536 values keyed by the high 16 bits. Each non-empty chunk is stored either as a sorted char[] of the low 16 bits
+ * (up to 4096 values) or as a 1024 word bitmap, whichever is smaller, so both sparse and dense sets stay compact and
+ * intersections only visit chunks present in both sets.
+ *
+ * Only non-negative indexes are supported, like java.util.BitSet. Not thread safe for writes; seal() a set before
+ * sharing it (e.g. via a cache) to catch accidental modification.
+ */
+public class RoaringBitSet implements Cloneable, Serializable
+{
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] _keys;
+    private Container[] _containers;
+    private int _size;
+    private boolean _sealed = false;
+
+
+    public RoaringBitSet()
+    {
+        _keys = new char[4];
+        _containers = new Container[4];
+        _size = 0;
+    }
+
+
+    private RoaringBitSet(int capacity)
+    {
+        _keys = new char[Math.max(1, capacity)];
+        _containers = new Container[Math.max(1, capacity)];
+        _size = 0;
+    }
+
+
+    public void seal()
+    {
+        _sealed = true;
+    }
+
+
+    private void checkSealed()
+    {
+        if (_sealed) throw new IllegalStateException();
+    }
+
+
+    private static char high(int i)
+    {
+        return (char)(i >>> 16);
+    }
+
+
+    private static char low(int i)
+    {
+        return (char)i;
+    }
+
+
+    private int indexOf(char key)
+    {
+        int lo = 0, hi = _size - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            char k = _keys[mid];
+            if (k < key)
+                lo = mid + 1;
+            else if (k > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+
+    private void insertAt(int index, char key, Container c)
+    {
+        if (_size == _keys.length)
+        {
+            int capacity = _size * 2;
+            _keys = Arrays.copyOf(_keys, capacity);
+            _containers = Arrays.copyOf(_containers, capacity);
+        }
+        System.arraycopy(_keys, index, _keys, index + 1, _size - index);
+        System.arraycopy(_containers, index, _containers, index + 1, _size - index);
+        _keys[index] = key;
+        _containers[index] = c;
+        _size++;
+    }
+
+
+    private void removeAt(int index)
+    {
+        System.arraycopy(_keys, index + 1, _keys, index, _size - index - 1);
+        System.arraycopy(_containers, index + 1, _containers, index, _size - index - 1);
+        _size--;
+        _containers[_size] = null;
+    }
+
+
+    private void append(char key, Container c)
+    {
+        if (_size == _keys.length)
+        {
+            int capacity = Math.max(4, _size * 2);
+            _keys = Arrays.copyOf(_keys, capacity);
+            _containers = Arrays.copyOf(_containers, capacity);
+        }
+        _keys[_size] = key;
+        _containers[_size] = c;
+        _size++;
+    }
+
+
+    public void set(int i)
+    {
+        checkSealed();
+        if (i < 0)
+            throw new IndexOutOfBoundsException("i=" + i);
+        char key = high(i);
+        int index = indexOf(key);
+        if (index >= 0)
+            _containers[index] = _containers[index].add(low(i));
+        else
+            insertAt(-index - 1, key, new ArrayContainer().add(low(i)));
+    }
+
+
+    public void clear(int i)
+    {
+        checkSealed();
+        if (i < 0)
+            throw new IndexOutOfBoundsException("i=" + i);
+        int index = indexOf(high(i));
+        if (index < 0)
+            return;
+        Container c = _containers[index].remove(low(i));
+        if (c.cardinality() == 0)
+            removeAt(index);
+        else
+            _containers[index] = c;
+    }
+
+
+    public void clear()
+    {
+        checkSealed();
+        Arrays.fill(_containers, 0, _size, null);
+        _size = 0;
+    }
+
+
+    public boolean get(int i)
+    {
+        if (i < 0)
+            throw new IndexOutOfBoundsException("i=" + i);
+        int index = indexOf(high(i));
+        return index >= 0 && _containers[index].contains(low(i));
+    }
+
+
+    public int cardinality()
+    {
+        int count = 0;
+        for (int k = 0; k < _size; k++)
+            count += _containers[k].cardinality();
+        return count;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return _size == 0;
+    }
+
+
+    /** @return the index of the first set bit at or after i, or -1 */
+    public int nextSetBit(int i)
+    {
+        if (i < 0)
+            throw new IndexOutOfBoundsException("i=" + i);
+        char key = high(i);
+        int index = indexOf(key);
+        if (index >= 0)
+        {
+            int next = _containers[index].next(low(i));
+            if (next >= 0)
+                return (key << 16) | next;
+            index++;
+        }
+        else
+        {
+            index = -index - 1;
+        }
+        if (index >= _size)
+            return -1;
+        return (_keys[index] << 16) | _containers[index].next(0);
+    }
+
+
+    /** in place intersection */
+    public void and(RoaringBitSet other)
+    {
+        checkSealed();
+        int a = 0, b = 0, size = 0;
+        while (a < _size && b < other._size)
+        {
+            char ka = _keys[a], kb = other._keys[b];
+            if (ka < kb)
+                a++;
+            else if (ka > kb)
+                b++;
+            else
+            {
+                Container c = _containers[a].and(other._containers[b]);
+                if (c.cardinality() > 0)
+                {
+                    _keys[size] = ka;
+                    _containers[size] = c;
+                    size++;
+                }
+                a++;
+                b++;
+            }
+        }
+        Arrays.fill(_containers, size, _size, null);
+        _size = size;
+    }
+
+
+    /** in place union */
+    public void or(RoaringBitSet other)
+    {
+        checkSealed();
+        RoaringBitSet result = new RoaringBitSet(_size + other._size);
+        int a = 0, b = 0;
+        while (a < _size || b < other._size)
+        {
+            if (b == other._size || (a < _size && _keys[a] < other._keys[b]))
+            {
+                result.append(_keys[a], _containers[a]);
+                a++;
+            }
+            else if (a == _size || _keys[a] > other._keys[b])
+            {
+                result.append(other._keys[b], other._containers[b].clone());
+                b++;
+            }
+            else
+            {
+                result.append(_keys[a], _containers[a].or(other._containers[b]));
+                a++;
+                b++;
+            }
+        }
+        _keys = result._keys;
+        _containers = result._containers;
+        _size = result._size;
+    }
+
+
+    public boolean intersects(RoaringBitSet other)
+    {
+        int a = 0, b = 0;
+        while (a < _size && b < other._size)
+        {
+            char ka = _keys[a], kb = other._keys[b];
+            if (ka < kb)
+                a++;
+            else if (ka > kb)
+                b++;
+            else
+            {
+                if (_containers[a].andCardinality(other._containers[b]) > 0)
+                    return true;
+                a++;
+                b++;
+            }
+        }
+        return false;
+    }
+
+
+    /** @return the cardinality of the intersection of a and b, without materializing it */
+    public static int andCardinality(RoaringBitSet a, RoaringBitSet b)
+    {
+        int count = 0;
+        int i = 0, j = 0;
+        while (i < a._size && j < b._size)
+        {
+            char ka = a._keys[i], kb = b._keys[j];
+            if (ka < kb)
+                i++;
+            else if (ka > kb)
+                j++;
+            else
+            {
+                count += a._containers[i].andCardinality(b._containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+
+    /** @return the intersection of the given sets, smallest first so the intermediate result shrinks quickly */
+    public static RoaringBitSet intersect(RoaringBitSet... sets)
+    {
+        RoaringBitSet[] sorted = sets.clone();
+        Arrays.sort(sorted, (x, y) -> Integer.compare(x.cardinality(), y.cardinality()));
+        RoaringBitSet result = sorted[0].clone();
+        for (int s = 1; s < sorted.length && !result.isEmpty(); s++)
+            result.and(sorted[s]);
+        return result;
+    }
+
+
+    /** returned copy is not sealed */
+    @Override
+    public RoaringBitSet clone()
+    {
+        RoaringBitSet copy = new RoaringBitSet(_size);
+        for (int k = 0; k < _size; k++)
+            copy.append(_keys[k], _containers[k].clone());
+        return copy;
+    }
+
+
+    public long getMemorySizeInBytes()
+    {
+        long size = 32 + 2L * _keys.length + 4L * _containers.length;
+        for (int k = 0; k < _size; k++)
+            size += _containers[k].getMemorySizeInBytes();
+        return size;
+    }
+
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof RoaringBitSet))
+            return false;
+        RoaringBitSet other = (RoaringBitSet)obj;
+        if (_size != other._size)
+            return false;
+        for (int k = 0; k < _size; k++)
+        {
+            if (_keys[k] != other._keys[k] || !_containers[k].equals(other._containers[k]))
+                return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        int h = 1;
+        for (int i = nextSetBit(0); i >= 0; i = i == Integer.MAX_VALUE ? -1 : nextSetBit(i + 1))
+            h = 31 * h + i;
+        return h;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("{");
+        String comma = "";
+        for (int i = nextSetBit(0); i >= 0; i = i == Integer.MAX_VALUE ? -1 : nextSetBit(i + 1))
+        {
+            sb.append(comma).append(i);
+            comma = ", ";
+        }
+        return sb.append("}").toString();
+    }
+
+
+    /** Holds the low 16 bits of the values in one 65536 value chunk */
+    private static abstract class Container implements Cloneable, Serializable
+    {
+        abstract int cardinality();
+        abstract boolean contains(char v);
+        /** @return this or a replacement container */
+        abstract Container add(char v);
+        /** @return this or a replacement container */
+        abstract Container remove(char v);
+        /** @return first value >= from, or -1 */
+        abstract int next(int from);
+        abstract Container and(Container other);
+        abstract int andCardinality(Container other);
+        abstract Container or(Container other);
+        abstract long getMemorySizeInBytes();
+        @Override
+        public abstract Container clone();
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Container))
+                return false;
+            Container other = (Container)obj;
+            if (cardinality() != other.cardinality())
+                return false;
+            return andCardinality(other) == cardinality();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return cardinality();
+        }
+    }
+
+
+    private static class ArrayContainer extends Container
+    {
+        private char[] _values;
+        private int _cardinality;
+
+        ArrayContainer()
+        {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality)
+        {
+            _values = values;
+            _cardinality = cardinality;
+        }
+
+        private int indexOf(char v)
+        {
+            return Arrays.binarySearch(_values, 0, _cardinality, v);
+        }
+
+        @Override
+        int cardinality()
+        {
+            return _cardinality;
+        }
+
+        @Override
+        boolean contains(char v)
+        {
+            return indexOf(v) >= 0;
+        }
+
+        @Override
+        Container add(char v)
+        {
+            // fast path for ascending inserts, e.g. building a set from ordinals
+            if (_cardinality > 0 && _values[_cardinality - 1] < v)
+            {
+                if (_cardinality == ARRAY_MAX)
+                    return toBitmap().add(v);
+                if (_cardinality == _values.length)
+                    _values = Arrays.copyOf(_values, Math.min(ARRAY_MAX, _cardinality * 2));
+                _values[_cardinality++] = v;
+                return this;
+            }
+
+            int index = indexOf(v);
+            if (index >= 0)
+                return this;
+            if (_cardinality == ARRAY_MAX)
+                return toBitmap().add(v);
+            index = -index - 1;
+            if (_cardinality == _values.length)
+                _values = Arrays.copyOf(_values, Math.min(ARRAY_MAX, Math.max(4, _cardinality * 2)));
+            System.arraycopy(_values, index, _values, index + 1, _cardinality - index);
+            _values[index] = v;
+            _cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char v)
+        {
+            int index = indexOf(v);
+            if (index >= 0)
+            {
+                System.arraycopy(_values, index + 1, _values, index, _cardinality - index - 1);
+                _cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        int next(int from)
+        {
+            int index = Arrays.binarySearch(_values, 0, _cardinality, (char)from);
+            if (index < 0)
+                index = -index - 1;
+            return index < _cardinality ? _values[index] : -1;
+        }
+
+        BitmapContainer toBitmap()
+        {
+            BitmapContainer b = new BitmapContainer();
+            for (int i = 0; i < _cardinality; i++)
+                b.set(_values[i]);
+            return b;
+        }
+
+        @Override
+        Container and(Container other)
+        {
+            char[] result = new char[Math.min(_cardinality, other.cardinality())];
+            int n = 0;
+            if (other instanceof ArrayContainer)
+            {
+                ArrayContainer o = (ArrayContainer)other;
+                int i = 0, j = 0;
+                while (i < _cardinality && j < o._cardinality)
+                {
+                    char a = _values[i], b = o._values[j];
+                    if (a < b)
+                        i++;
+                    else if (a > b)
+                        j++;
+                    else
+                    {
+                        result[n++] = a;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            else
+            {
+                BitmapContainer o = (BitmapContainer)other;
+                for (int i = 0; i < _cardinality; i++)
+                {
+                    if (o.contains(_values[i]))
+                        result[n++] = _values[i];
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        int andCardinality(Container other)
+        {
+            int n = 0;
+            if (other instanceof ArrayContainer)
+            {
+                ArrayContainer o = (ArrayContainer)other;
+                int i = 0, j = 0;
+                while (i < _cardinality && j < o._cardinality)
+                {
+                    char a = _values[i], b = o._values[j];
+                    if (a < b)
+                        i++;
+                    else if (a > b)
+                        j++;
+                    else
+                    {
+                        n++;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            else
+            {
+                BitmapContainer o = (BitmapContainer)other;
+                for (int i = 0; i < _cardinality; i++)
+                {
+                    if (o.contains(_values[i]))
+                        n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        Container or(Container other)
+        {
+            if (other instanceof BitmapContainer)
+                return other.or(this);
+
+            ArrayContainer o = (ArrayContainer)other;
+            if (_cardinality + o._cardinality > ARRAY_MAX)
+                return toBitmap().or(o);
+
+            char[] result = new char[_cardinality + o._cardinality];
+            int i = 0, j = 0, n = 0;
+            while (i < _cardinality || j < o._cardinality)
+            {
+                if (j == o._cardinality || (i < _cardinality && _values[i] < o._values[j]))
+                    result[n++] = _values[i++];
+                else if (i == _cardinality || _values[i] > o._values[j])
+                    result[n++] = o._values[j++];
+                else
+                {
+                    result[n++] = _values[i++];
+                    j++;
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        long getMemorySizeInBytes()
+        {
+            return 24 + 2L * _values.length;
+        }
+
+        @Override
+        public ArrayContainer clone()
+        {
+            return new ArrayContainer(Arrays.copyOf(_values, Math.max(1, _cardinality)), _cardinality);
+        }
+    }
+
+
+    private static class BitmapContainer extends Container
+    {
+        private final long[] _words;
+        private int _cardinality;
+
+        BitmapContainer()
+        {
+            this(new long[BITMAP_WORDS], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality)
+        {
+            _words = words;
+            _cardinality = cardinality;
+        }
+
+        void set(char v)
+        {
+            long before = _words[v >>> 6];
+            long after = before | (1L << v);
+            _words[v >>> 6] = after;
+            if (before != after)
+                _cardinality++;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return _cardinality;
+        }
+
+        @Override
+        boolean contains(char v)
+        {
+            return (_words[v >>> 6] & (1L << v)) != 0;
+        }
+
+        @Override
+        Container add(char v)
+        {
+            set(v);
+            return this;
+        }
+
+        @Override
+        Container remove(char v)
+        {
+            long before = _words[v >>> 6];
+            long after = before & ~(1L << v);
+            _words[v >>> 6] = after;
+            if (before != after)
+                _cardinality--;
+            return _cardinality > ARRAY_MAX ? this : toArray(_words, _cardinality);
+        }
+
+        @Override
+        int next(int from)
+        {
+            int w = from >>> 6;
+            if (w >= BITMAP_WORDS)
+                return -1;
+            long word = _words[w] & (-1L << from);
+            while (true)
+            {
+                if (word != 0)
+                    return (w << 6) + Long.numberOfTrailingZeros(word);
+                if (++w == BITMAP_WORDS)
+                    return -1;
+                word = _words[w];
+            }
+        }
+
+        private static Container toArray(long[] words, int cardinality)
+        {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+            {
+                long word = words[w];
+                while (word != 0)
+                {
+                    values[n++] = (char)((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+
+        @Override
+        Container and(Container other)
+        {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+
+            BitmapContainer o = (BitmapContainer)other;
+            long[] words = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+            {
+                words[w] = _words[w] & o._words[w];
+                cardinality += Long.bitCount(words[w]);
+            }
+            return cardinality > ARRAY_MAX ? new BitmapContainer(words, cardinality) : toArray(words, cardinality);
+        }
+
+        @Override
+        int andCardinality(Container other)
+        {
+            if (other instanceof ArrayContainer)
+                return other.andCardinality(this);
+
+            BitmapContainer o = (BitmapContainer)other;
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+                n += Long.bitCount(_words[w] & o._words[w]);
+            return n;
+        }
+
+        @Override
+        Container or(Container other)
+        {
+            BitmapContainer result = clone();
+            if (other instanceof ArrayContainer)
+            {
+                ArrayContainer o = (ArrayContainer)other;
+                for (int i = 0; i < o._cardinality; i++)
+                    result.set(o._values[i]);
+            }
+            else
+            {
+                BitmapContainer o = (BitmapContainer)other;
+                int cardinality = 0;
+                for (int w = 0; w < BITMAP_WORDS; w++)
+                {
+                    result._words[w] |= o._words[w];
+                    cardinality += Long.bitCount(result._words[w]);
+                }
+                result._cardinality = cardinality;
+            }
+            return result;
+        }
+
+        @Override
+        long getMemorySizeInBytes()
+        {
+            return 24 + 8L * BITMAP_WORDS;
+        }
+
+        @Override
+        public BitmapContainer clone()
+        {
+            return new BitmapContainer(_words.clone(), _cardinality);
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static void assertMatches(BitSet expected, RoaringBitSet actual)
+        {
+            assertEquals(expected.cardinality(), actual.cardinality());
+            assertEquals(expected.isEmpty(), actual.isEmpty());
+            int e = expected.nextSetBit(0), a = actual.nextSetBit(0);
+            while (e >= 0)
+            {
+                assertEquals(e, a);
+                e = expected.nextSetBit(e + 1);
+                a = actual.nextSetBit(a + 1);
+            }
+            assertEquals(-1, a);
+        }
+
+        private static RoaringBitSet random(Random r, BitSet expected, int count, int range)
+        {
+            RoaringBitSet set = new RoaringBitSet();
+            for (int i = 0; i < count; i++)
+            {
+                int v = r.nextInt(range);
+                set.set(v);
+                expected.set(v);
+            }
+            return set;
+        }
+
+        @Test
+        public void testBasic()
+        {
+            RoaringBitSet s = new RoaringBitSet();
+            assertTrue(s.isEmpty());
+            assertEquals(-1, s.nextSetBit(0));
+            s.set(5);
+            s.set(70_000);
+            s.set(3);
+            s.set(5);
+            assertEquals(3, s.cardinality());
+            assertTrue(s.get(3));
+            assertTrue(s.get(70_000));
+            assertFalse(s.get(4));
+            assertEquals(3, s.nextSetBit(0));
+            assertEquals(5, s.nextSetBit(4));
+            assertEquals(70_000, s.nextSetBit(6));
+            assertEquals(-1, s.nextSetBit(70_001));
+            s.clear(70_000);
+            assertEquals(2, s.cardinality());
+            assertEquals(-1, s.nextSetBit(6));
+            assertEquals("{3, 5}", s.toString());
+
+            s.seal();
+            try
+            {
+                s.set(1);
+                fail("sealed set should not be modifiable");
+            }
+            catch (IllegalStateException x)
+            {
+                // expected
+            }
+            RoaringBitSet copy = s.clone();
+            copy.set(1);
+            assertEquals(3, copy.cardinality());
+            assertEquals(2, s.cardinality());
+        }
+
+        @Test
+        public void testDenseAndSparse()
+        {
+            // push one chunk past the array/bitmap threshold and back again
+            RoaringBitSet s = new RoaringBitSet();
+            BitSet expected = new BitSet();
+            for (int i = 0; i < 10_000; i++)
+            {
+                s.set(i * 3);
+                expected.set(i * 3);
+            }
+            assertMatches(expected, s);
+            for (int i = 0; i < 10_000; i += 2)
+            {
+                s.clear(i * 3);
+                expected.clear(i * 3);
+            }
+            assertMatches(expected, s);
+            assertEquals(expected, toBitSet(s));
+        }
+
+        @Test
+        public void testOperations()
+        {
+            Random r = new Random(0);
+            for (int round = 0; round < 20; round++)
+            {
+                int range = round % 2 == 0 ? 200_000 : 5_000_000;
+                BitSet ea = new BitSet(), eb = new BitSet();
+                RoaringBitSet a = random(r, ea, r.nextInt(50_000), range);
+                RoaringBitSet b = random(r, eb, r.nextInt(50_000), range);
+
+                BitSet and = (BitSet)ea.clone();
+                and.and(eb);
+                assertEquals(and.cardinality(), RoaringBitSet.andCardinality(a, b));
+                assertEquals(ea.intersects(eb), a.intersects(b));
+                RoaringBitSet ra = a.clone();
+                ra.and(b);
+                assertMatches(and, ra);
+                assertMatches(and, RoaringBitSet.intersect(b, a));
+
+                BitSet or = (BitSet)ea.clone();
+                or.or(eb);
+                RoaringBitSet ro = a.clone();
+                ro.or(b);
+                assertMatches(or, ro);
+                assertMatches(ea, a);
+                assertMatches(eb, b);
+
+                assertEquals(ra, RoaringBitSet.intersect(a, b));
+                assertEquals(ra.hashCode(), RoaringBitSet.intersect(a, b).hashCode());
+            }
+        }
+
+        private static BitSet toBitSet(RoaringBitSet s)
+        {
+            BitSet b = new BitSet();
+            for (int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i + 1))
+                b.set(i);
+            return b;
+        }
+    }
+}
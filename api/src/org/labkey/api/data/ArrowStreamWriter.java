@@ -0,0 +1,1100 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.collections.ResultSetRowMapFactory;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.Pair;
+import org.labkey.api.util.ResultSetUtil;
+import org.labkey.api.view.HttpView;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Writes query results in the Apache Arrow IPC streaming format, a columnar binary format that pyarrow, pandas, R's
+ * arrow package, DuckDB, and Spark load without parsing text. Rows are collected into record batches of
+ * getBatchSize() rows, with each column's values in a little-endian buffer of the Arrow type chosen from its JdbcType.
+ * Integers, floating point numbers, booleans, dates, and timestamps go out as binary values; DECIMAL columns become
+ * 64-bit floating point, and everything else is written as UTF-8 text.
+ *
+ * The format is small enough to write without the Arrow libraries: a stream is a schema message, a message per record
+ * batch, and an end-of-stream marker, where each message is a FlatBuffers header followed by the column buffers.
+ * See https://arrow.apache.org/docs/format/Columnar.html
+ */
+public class ArrowStreamWriter implements ExportWriter, Closeable
+{
+    public static final String CONTENT_TYPE = "application/vnd.apache.arrow.stream";
+    public static final String FILE_EXTENSION = "arrows";
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    public static final int MAX_BATCH_SIZE = 1024 * 1024;
+
+    private static final int CONTINUATION = 0xFFFFFFFF;
+    private static final short METADATA_VERSION_V5 = 4;
+    private static final byte HEADER_SCHEMA = 1;
+    private static final byte HEADER_RECORD_BATCH = 3;
+    private static final byte[] PADDING = new byte[8];
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    private final Results _results;
+    private final List<DisplayColumn> _displayColumns;
+
+    private ColumnHeaderType _columnHeaderType = ColumnHeaderType.FieldKey;
+    private int _batchSize = DEFAULT_BATCH_SIZE;
+    private String _filenamePrefix = "query";
+    private int _dataRowCount = 0;
+
+    public ArrowStreamWriter(Results results)
+    {
+        this(results, createDisplayColumns(results.getFieldMap().values()));
+    }
+
+    public ArrowStreamWriter(Results results, List<DisplayColumn> displayColumns)
+    {
+        _results = results;
+        _displayColumns = displayColumns;
+    }
+
+    private static List<DisplayColumn> createDisplayColumns(Collection<ColumnInfo> cols)
+    {
+        List<DisplayColumn> displayColumns = new ArrayList<>(cols.size());
+
+        for (ColumnInfo col : cols)
+            displayColumns.add(col.getDisplayColumnFactory().createRenderer(col));
+
+        return displayColumns;
+    }
+
+    public ColumnHeaderType getColumnHeaderType()
+    {
+        return _columnHeaderType;
+    }
+
+    /** Arrow fields must be named, so ColumnHeaderType.None gets field keys */
+    public void setColumnHeaderType(@Nullable ColumnHeaderType columnHeaderType)
+    {
+        _columnHeaderType = null == columnHeaderType || ColumnHeaderType.None == columnHeaderType ? ColumnHeaderType.FieldKey : columnHeaderType;
+    }
+
+    public int getBatchSize()
+    {
+        return _batchSize;
+    }
+
+    /** The number of rows per record batch, between 1 and MAX_BATCH_SIZE */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+
+        _batchSize = batchSize;
+    }
+
+    public String getFilenamePrefix()
+    {
+        return _filenamePrefix;
+    }
+
+    public void setFilenamePrefix(String filenamePrefix)
+    {
+        _filenamePrefix = filenamePrefix;
+    }
+
+    public void write(HttpServletResponse response) throws IOException
+    {
+        // NOTE: reset() ALSO CLEARS HEADERS! such as cache pragmas
+        boolean noindex = response.containsHeader("X-Robots-Tag");
+
+        // Flush any extraneous output (e.g., <CR><LF> from JSPs)
+        response.reset();
+
+        if (noindex)
+            response.setHeader("X-Robots-Tag", "noindex");
+
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Content-disposition", "attachment; filename=\"" + FileUtil.makeFileNameWithTimestamp(_filenamePrefix, FILE_EXTENSION) + "\"");
+
+        write(response.getOutputStream());
+    }
+
+    /** Writes the stream and flushes, but doesn't close, out */
+    public void write(OutputStream out) throws IOException
+    {
+        RenderContext ctx = HttpView.hasCurrentView() ? new RenderContext(HttpView.currentContext()) : new RenderContext();
+        ctx.setResults(_results);
+
+        List<ArrowVector> vectors = new ArrayList<>(_displayColumns.size());
+
+        for (DisplayColumn dc : _displayColumns)
+        {
+            dc.setRequiresHtmlFiltering(false);
+
+            if (dc.isVisible(ctx))
+                vectors.add(createVector(dc, _columnHeaderType.getText(dc), _batchSize));
+        }
+
+        OutputStream stream = new BufferedOutputStream(out, 64 * 1024);
+        writeMessage(stream, createSchemaMessage(vectors), List.of());
+
+        try
+        {
+            ResultSetRowMapFactory factory = ResultSetRowMapFactory.create(_results);
+            int rows = 0;
+
+            while (_results.next())
+            {
+                ctx.setRow(factory.getRowMap(_results));
+
+                for (ArrowVector vector : vectors)
+                    vector.set(rows, vector._dc.getDisplayValue(ctx));
+
+                _dataRowCount++;
+
+                if (++rows == _batchSize)
+                {
+                    writeRecordBatch(stream, vectors, rows);
+                    rows = 0;
+                }
+            }
+
+            if (rows > 0)
+                writeRecordBatch(stream, vectors, rows);
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+
+        // End of stream
+        writeInt(stream, CONTINUATION);
+        writeInt(stream, 0);
+        stream.flush();
+    }
+
+    @Override
+    public void close()
+    {
+        ResultSetUtil.close(_results);
+    }
+
+    @Override
+    public int getDataRowCount()
+    {
+        return _dataRowCount;
+    }
+
+    private static ArrowVector createVector(DisplayColumn dc, String name, int batchSize)
+    {
+        ColumnInfo col = dc.getDisplayColumnInfo();
+        JdbcType type = null != col ? col.getJdbcType() : JdbcType.valueOf(dc.getDisplayValueClass());
+
+        if (null == type)
+            return new Utf8Vector(dc, name, batchSize);
+
+        switch (type)
+        {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+                return new IntVector(dc, name, batchSize);
+            case BIGINT:
+                return new BigIntVector(dc, name, batchSize);
+            case REAL:
+                return new FloatVector(dc, name, batchSize);
+            case DOUBLE:
+            case DECIMAL:
+                return new DoubleVector(dc, name, batchSize);
+            case BOOLEAN:
+                return new BooleanVector(dc, name, batchSize);
+            case DATE:
+                return new DateVector(dc, name, batchSize);
+            case TIMESTAMP:
+                return new TimestampVector(dc, name, batchSize);
+            default:
+                return new Utf8Vector(dc, name, batchSize);
+        }
+    }
+
+    private static Table createSchemaMessage(List<ArrowVector> vectors)
+    {
+        List<Table> fields = new ArrayList<>(vectors.size());
+
+        for (ArrowVector vector : vectors)
+        {
+            fields.add(new Table()
+                .addString(0, vector._name)                 // name
+                .addBool(1, true)                           // nullable
+                .addByte(2, vector.getTypeType())           // type_type
+                .addTable(3, vector.getType())              // type
+                .addTables(5, List.of()));                  // children, which readers require even when empty
+        }
+
+        Table schema = new Table()
+            .addShort(0, 0)                                 // endianness: little
+            .addTables(1, fields);                          // fields
+
+        return new Table()
+            .addShort(0, METADATA_VERSION_V5)               // version
+            .addByte(1, HEADER_SCHEMA)                      // header_type
+            .addTable(2, schema)                            // header
+            .addLong(3, 0);                                 // bodyLength
+    }
+
+    private static void writeRecordBatch(OutputStream out, List<ArrowVector> vectors, int rows) throws IOException
+    {
+        List<Pair<byte[], Integer>> body = new ArrayList<>();
+        long[] nodes = new long[2 * vectors.size()];
+
+        for (int i = 0; i < vectors.size(); i++)
+        {
+            ArrowVector vector = vectors.get(i);
+            nodes[2 * i] = rows;
+            nodes[2 * i + 1] = vector._nullCount;
+
+            // Validity bitmap, which can be left out when there are no nulls
+            body.add(new Pair<>(vector._validity, 0 == vector._nullCount ? 0 : (rows + 7) / 8));
+            vector.addBuffers(body, rows);
+            vector.reset();
+        }
+
+        long[] buffers = new long[2 * body.size()];
+        long offset = 0;
+
+        for (int i = 0; i < body.size(); i++)
+        {
+            int length = body.get(i).second;
+            buffers[2 * i] = offset;
+            buffers[2 * i + 1] = length;
+            offset += padded(length);
+        }
+
+        Table recordBatch = new Table()
+            .addLong(0, rows)                               // length
+            .addStructs(1, nodes)                           // nodes: FieldNode { length, null_count }
+            .addStructs(2, buffers);                        // buffers: Buffer { offset, length }
+
+        Table message = new Table()
+            .addShort(0, METADATA_VERSION_V5)
+            .addByte(1, HEADER_RECORD_BATCH)
+            .addTable(2, recordBatch)
+            .addLong(3, offset);
+
+        writeMessage(out, message, body);
+    }
+
+    private static void writeMessage(OutputStream out, Table message, List<Pair<byte[], Integer>> body) throws IOException
+    {
+        byte[] metadata = FlatBufferOutput.build(message);
+        int metadataLength = padded(metadata.length);
+
+        writeInt(out, CONTINUATION);
+        writeInt(out, metadataLength);
+        out.write(metadata);
+        out.write(PADDING, 0, metadataLength - metadata.length);
+
+        // Each buffer starts on an 8-byte boundary
+        for (Pair<byte[], Integer> buffer : body)
+        {
+            out.write(buffer.first, 0, buffer.second);
+            out.write(PADDING, 0, padded(buffer.second) - buffer.second);
+        }
+    }
+
+    private static int padded(int length)
+    {
+        return (length + 7) & ~7;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException
+    {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+
+    // One column of the current record batch
+    private static abstract class ArrowVector
+    {
+        private final DisplayColumn _dc;
+        private final String _name;
+        private final byte[] _validity;
+        private int _nullCount = 0;
+
+        private ArrowVector(DisplayColumn dc, String name, int batchSize)
+        {
+            _dc = dc;
+            _name = name;
+            _validity = new byte[(batchSize + 7) / 8];
+        }
+
+        void set(int row, @Nullable Object value)
+        {
+            if (null == value)
+            {
+                _validity[row >> 3] &= ~(1 << (row & 7));
+                _nullCount++;
+                setNull(row);
+            }
+            else
+            {
+                _validity[row >> 3] |= 1 << (row & 7);
+                setValue(row, value);
+            }
+        }
+
+        void setNull(int row)
+        {
+            // Fixed-width values under a null are never read
+        }
+
+        void reset()
+        {
+            _nullCount = 0;
+        }
+
+        abstract void setValue(int row, @NotNull Object value);
+
+        /** @return the Arrow Type union's type code */
+        abstract byte getTypeType();
+
+        abstract Table getType();
+
+        /** Adds the buffers that follow the validity bitmap */
+        abstract void addBuffers(List<Pair<byte[], Integer>> buffers, int rows);
+
+        Number toNumber(Object value)
+        {
+            return value instanceof Number ? (Number) value : (Number) JdbcType.DOUBLE.convert(value);
+        }
+
+        long toMillis(Object value)
+        {
+            Date date = value instanceof Date ? (Date) value : (Date) JdbcType.TIMESTAMP.convert(value);
+            long time = date.getTime();
+
+            // Arrow dates and timestamps without a time zone are wall clock times, stored as if they were UTC
+            return time + TimeZone.getDefault().getOffset(time);
+        }
+    }
+
+    private static abstract class FixedWidthVector extends ArrowVector
+    {
+        protected final ByteBuffer _data;
+        private final int _width;
+
+        private FixedWidthVector(DisplayColumn dc, String name, int batchSize, int width)
+        {
+            super(dc, name, batchSize);
+            _data = ByteBuffer.allocate(batchSize * width).order(ByteOrder.LITTLE_ENDIAN);
+            _width = width;
+        }
+
+        @Override
+        void addBuffers(List<Pair<byte[], Integer>> buffers, int rows)
+        {
+            buffers.add(new Pair<>(_data.array(), rows * _width));
+        }
+    }
+
+    private static class IntVector extends FixedWidthVector
+    {
+        private IntVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize, 4);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            _data.putInt(row * 4, toNumber(value).intValue());
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 2;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table().addInt(0, 32).addBool(1, true);     // bitWidth, is_signed
+        }
+    }
+
+    private static class BigIntVector extends FixedWidthVector
+    {
+        private BigIntVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize, 8);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            _data.putLong(row * 8, toNumber(value).longValue());
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 2;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table().addInt(0, 64).addBool(1, true);
+        }
+    }
+
+    private static class FloatVector extends FixedWidthVector
+    {
+        private FloatVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize, 4);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            _data.putFloat(row * 4, toNumber(value).floatValue());
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 3;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table().addShort(0, 1);     // precision: SINGLE
+        }
+    }
+
+    private static class DoubleVector extends FixedWidthVector
+    {
+        private DoubleVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize, 8);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            _data.putDouble(row * 8, toNumber(value).doubleValue());
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 3;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table().addShort(0, 2);     // precision: DOUBLE
+        }
+    }
+
+    private static class DateVector extends FixedWidthVector
+    {
+        private DateVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize, 4);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            _data.putInt(row * 4, (int) Math.floorDiv(toMillis(value), MILLIS_PER_DAY));
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 8;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table().addShort(0, 0);     // unit: DAY
+        }
+    }
+
+    private static class TimestampVector extends FixedWidthVector
+    {
+        private TimestampVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize, 8);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            _data.putLong(row * 8, toMillis(value));
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 10;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table().addShort(0, 1);     // unit: MILLISECOND, and no time zone
+        }
+    }
+
+    private static class BooleanVector extends ArrowVector
+    {
+        private final byte[] _bits;
+
+        private BooleanVector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize);
+            _bits = new byte[(batchSize + 7) / 8];
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            boolean b = value instanceof Boolean ? (Boolean) value : (Boolean) JdbcType.BOOLEAN.convert(value);
+
+            if (b)
+                _bits[row >> 3] |= 1 << (row & 7);
+            else
+                _bits[row >> 3] &= ~(1 << (row & 7));
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 6;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table();
+        }
+
+        @Override
+        void addBuffers(List<Pair<byte[], Integer>> buffers, int rows)
+        {
+            buffers.add(new Pair<>(_bits, (rows + 7) / 8));
+        }
+    }
+
+    private static class Utf8Vector extends ArrowVector
+    {
+        private final ByteBuffer _offsets;
+        private byte[] _data = new byte[64 * 1024];
+        private int _end = 0;
+
+        private Utf8Vector(DisplayColumn dc, String name, int batchSize)
+        {
+            super(dc, name, batchSize);
+            _offsets = ByteBuffer.allocate((batchSize + 1) * 4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        void setValue(int row, @NotNull Object value)
+        {
+            byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+
+            if (_end + (long) bytes.length > Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Column " + super._name + " has more than 2GB of text in one record batch; use a smaller batch size");
+
+            if (_end + bytes.length > _data.length)
+                _data = Arrays.copyOf(_data, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(_end + (long) bytes.length, 2L * _data.length)));
+
+            System.arraycopy(bytes, 0, _data, _end, bytes.length);
+            _end += bytes.length;
+            _offsets.putInt((row + 1) * 4, _end);
+        }
+
+        @Override
+        void setNull(int row)
+        {
+            _offsets.putInt((row + 1) * 4, _end);
+        }
+
+        @Override
+        void reset()
+        {
+            super.reset();
+            _end = 0;
+        }
+
+        @Override
+        byte getTypeType()
+        {
+            return 5;
+        }
+
+        @Override
+        Table getType()
+        {
+            return new Table();
+        }
+
+        @Override
+        void addBuffers(List<Pair<byte[], Integer>> buffers, int rows)
+        {
+            buffers.add(new Pair<>(_offsets.array(), (rows + 1) * 4));
+            buffers.add(new Pair<>(_data, _end));
+        }
+    }
+
+
+    // A FlatBuffers table: field values by slot number. Scalars are Byte, Short, Integer, and Long; String, Table,
+    // List<Table>, and long[] (a vector of structs made of longs) are written after the table and referenced by offset.
+    private static class Table
+    {
+        private final TreeMap<Integer, Object> _fields = new TreeMap<>();
+
+        Table addByte(int slot, int value)
+        {
+            _fields.put(slot, (byte) value);
+            return this;
+        }
+
+        Table addBool(int slot, boolean value)
+        {
+            return addByte(slot, value ? 1 : 0);
+        }
+
+        Table addShort(int slot, int value)
+        {
+            _fields.put(slot, (short) value);
+            return this;
+        }
+
+        Table addInt(int slot, int value)
+        {
+            _fields.put(slot, value);
+            return this;
+        }
+
+        Table addLong(int slot, long value)
+        {
+            _fields.put(slot, value);
+            return this;
+        }
+
+        Table addString(int slot, String value)
+        {
+            _fields.put(slot, value);
+            return this;
+        }
+
+        Table addTable(int slot, Table value)
+        {
+            _fields.put(slot, value);
+            return this;
+        }
+
+        Table addTables(int slot, List<Table> value)
+        {
+            _fields.put(slot, value);
+            return this;
+        }
+
+        Table addStructs(int slot, long[] value)
+        {
+            _fields.put(slot, value);
+            return this;
+        }
+    }
+
+    /**
+     * Lays out a FlatBuffer front to back. Each table's vtable comes just before it and everything it references comes
+     * after it, so every offset points forward, as the format requires. Scalars are aligned to their size relative to
+     * the start of the buffer, which the stream keeps 8-byte aligned.
+     */
+    private static class FlatBufferOutput
+    {
+        private ByteBuffer _buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        static byte[] build(Table root)
+        {
+            FlatBufferOutput out = new FlatBufferOutput();
+            out.putInt(0);
+            int rootPos = out.writeTable(root);
+            out._buf.putInt(0, rootPos);
+
+            return Arrays.copyOf(out._buf.array(), out._buf.position());
+        }
+
+        private int writeTable(Table table)
+        {
+            // Widest fields first, so each is aligned once the first is
+            List<Map.Entry<Integer, Object>> fields = new ArrayList<>(table._fields.entrySet());
+            fields.sort(Comparator.comparingInt((Map.Entry<Integer, Object> e) -> size(e.getValue())).reversed());
+
+            int slots = table._fields.isEmpty() ? 0 : table._fields.lastKey() + 1;
+            int[] offsets = new int[slots];
+            int size = 4;   // the vtable offset
+
+            for (Map.Entry<Integer, Object> field : fields)
+            {
+                offsets[field.getKey()] = size;
+                size += size(field.getValue());
+            }
+
+            align(2, 0);
+            int vtablePos = _buf.position();
+            putShort(4 + 2 * slots);
+            putShort(size);
+            for (int offset : offsets)
+                putShort(offset);
+
+            // 8-byte fields start just after the 4-byte vtable offset
+            align(4, 0);
+            if (!fields.isEmpty() && 8 == size(fields.get(0).getValue()))
+                align(8, 4);
+
+            int tablePos = _buf.position();
+            putInt(tablePos - vtablePos);
+
+            Map<Integer, Object> references = new LinkedHashMap<>();
+
+            for (Map.Entry<Integer, Object> field : fields)
+            {
+                Object value = field.getValue();
+
+                if (value instanceof Byte)
+                    putByte((Byte) value);
+                else if (value instanceof Short)
+                    putShort((Short) value);
+                else if (value instanceof Integer)
+                    putInt((Integer) value);
+                else if (value instanceof Long)
+                    putLong((Long) value);
+                else
+                {
+                    references.put(_buf.position(), value);
+                    putInt(0);
+                }
+            }
+
+            for (Map.Entry<Integer, Object> reference : references.entrySet())
+                patch(reference.getKey(), writeReferenced(reference.getValue()));
+
+            return tablePos;
+        }
+
+        @SuppressWarnings("unchecked")
+        private int writeReferenced(Object value)
+        {
+            if (value instanceof String)
+                return writeString((String) value);
+            if (value instanceof Table)
+                return writeTable((Table) value);
+            if (value instanceof List)
+                return writeTables((List<Table>) value);
+            return writeStructs((long[]) value);
+        }
+
+        private int writeString(String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            align(4, 0);
+            int pos = _buf.position();
+            putInt(bytes.length);
+            ensureCapacity(bytes.length + 1);
+            _buf.put(bytes);
+            putByte((byte) 0);
+
+            return pos;
+        }
+
+        private int writeTables(List<Table> tables)
+        {
+            align(4, 0);
+            int pos = _buf.position();
+            putInt(tables.size());
+            for (int i = 0; i < tables.size(); i++)
+                putInt(0);
+
+            for (int i = 0; i < tables.size(); i++)
+                patch(pos + 4 + 4 * i, writeTable(tables.get(i)));
+
+            return pos;
+        }
+
+        // Arrow's structs are all pairs of longs
+        private int writeStructs(long[] values)
+        {
+            align(8, 4);
+            int pos = _buf.position();
+            putInt(values.length / 2);
+            for (long value : values)
+                putLong(value);
+
+            return pos;
+        }
+
+        private void patch(int pos, int target)
+        {
+            _buf.putInt(pos, target - pos);
+        }
+
+        private static int size(Object value)
+        {
+            if (value instanceof Byte)
+                return 1;
+            if (value instanceof Short)
+                return 2;
+            if (value instanceof Long)
+                return 8;
+            return 4;
+        }
+
+        private void align(int alignment, int remainder)
+        {
+            while (_buf.position() % alignment != remainder)
+                putByte((byte) 0);
+        }
+
+        private void ensureCapacity(int bytes)
+        {
+            if (_buf.remaining() < bytes)
+            {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * _buf.capacity(), _buf.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+                _buf.flip();
+                grown.put(_buf);
+                _buf = grown;
+            }
+        }
+
+        private void putByte(byte value)
+        {
+            ensureCapacity(1);
+            _buf.put(value);
+        }
+
+        private void putShort(int value)
+        {
+            ensureCapacity(2);
+            _buf.putShort((short) value);
+        }
+
+        private void putInt(int value)
+        {
+            ensureCapacity(4);
+            _buf.putInt(value);
+        }
+
+        private void putLong(long value)
+        {
+            ensureCapacity(8);
+            _buf.putLong(value);
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testStream() throws Exception
+        {
+            TableInfo principals = CoreSchema.getInstance().getTableInfoPrincipals();
+            Sort sort = new Sort("UserId");
+            List<Integer> userIds = new TableSelector(principals.getColumn("UserId"), null, sort).getArrayList(Integer.class);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try (ArrowStreamWriter writer = new ArrowStreamWriter(new TableSelector(principals, PageFlowUtil.set("UserId", "Name", "Active"), null, sort).getResults()))
+            {
+                writer.setBatchSize(2);
+                writer.write(out);
+                assertEquals(userIds.size(), writer.getDataRowCount());
+            }
+
+            ByteBuffer stream = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+            boolean schema = true;
+            int batches = 0;
+            long rows = 0;
+
+            while (true)
+            {
+                assertEquals(0, stream.position() % 8);
+                assertEquals(CONTINUATION, stream.getInt());
+                int metadataLength = stream.getInt();
+
+                if (0 == metadataLength)
+                    break;
+
+                assertEquals(0, metadataLength % 8);
+                ByteBuffer metadata = stream.slice().order(ByteOrder.LITTLE_ENDIAN);
+                int message = metadata.getInt(0);
+                assertEquals(METADATA_VERSION_V5, metadata.getShort(field(metadata, message, 0)));
+                byte headerType = metadata.get(field(metadata, message, 1));
+                int header = deref(metadata, field(metadata, message, 2));
+                long bodyLength = metadata.getLong(field(metadata, message, 3));
+
+                if (schema)
+                {
+                    schema = false;
+                    assertEquals(HEADER_SCHEMA, headerType);
+                    int fields = deref(metadata, field(metadata, header, 1));
+                    assertEquals(3, metadata.getInt(fields));
+
+                    List<String> names = new ArrayList<>();
+                    List<Byte> types = new ArrayList<>();
+                    for (int i = 0; i < 3; i++)
+                    {
+                        int f = deref(metadata, fields + 4 + 4 * i);
+                        int name = deref(metadata, field(metadata, f, 0));
+                        byte[] bytes = new byte[metadata.getInt(name)];
+                        metadata.position(name + 4);
+                        metadata.get(bytes);
+                        names.add(new String(bytes, StandardCharsets.UTF_8));
+                        types.add(metadata.get(field(metadata, f, 2)));
+                    }
+                    assertEquals(List.of("UserId", "Name", "Active"), names);
+                    assertEquals(List.of((byte) 2, (byte) 5, (byte) 6), types);
+                    assertEquals(0, bodyLength);
+                }
+                else
+                {
+                    assertEquals(HEADER_RECORD_BATCH, headerType);
+                    long length = metadata.getLong(field(metadata, header, 0));
+                    assertTrue(length > 0 && length <= 2);
+
+                    // Second buffer is the UserId values
+                    int buffers = deref(metadata, field(metadata, header, 2));
+                    assertEquals(7, metadata.getInt(buffers));
+                    long offset = metadata.getLong(buffers + 4 + 16);
+                    int body = stream.position() + metadataLength;
+                    assertEquals(userIds.get((int) rows), Integer.valueOf(stream.getInt(body + (int) offset)));
+
+                    rows += length;
+                    batches++;
+                }
+
+                stream.position(stream.position() + metadataLength + (int) bodyLength);
+            }
+
+            assertEquals(userIds.size(), rows);
+            assertEquals((userIds.size() + 1) / 2, batches);
+            assertFalse(stream.hasRemaining());
+        }
+
+        /**
+         * Compares the stream for a fixed set of values, covering every type, nulls, and more than one record batch, with
+         * ArrowStreamWriter.arrows. That stream was decoded independently of this class and checked value by value
+         * against the Arrow format specification. If a change to the writer alters the stream on purpose, check the new
+         * stream the same way (or with pyarrow.ipc.open_stream()) before replacing the file.
+         */
+        @Test
+        public void testGolden() throws Exception
+        {
+            List<String> names = List.of("id", "count", "ratio", "measure", "flag", "day", "at", "name");
+            List<JdbcType> types = List.of(JdbcType.INTEGER, JdbcType.BIGINT, JdbcType.REAL, JdbcType.DOUBLE, JdbcType.BOOLEAN, JdbcType.DATE, JdbcType.TIMESTAMP, JdbcType.VARCHAR);
+            List<ColumnInfo> cols = new ArrayList<>();
+
+            for (int i = 0; i < names.size(); i++)
+            {
+                BaseColumnInfo col = new BaseColumnInfo(names.get(i), types.get(i));
+                col.setAlias(names.get(i));
+                cols.add(col);
+            }
+
+            // Dates and timestamps are wall clock times, so the stream is the same in every time zone
+            List<Map<String, Object>> rows = List.of(
+                row(names, 1, 10_000_000_000L, 0.5f, 1.25, true, java.sql.Date.valueOf("2020-03-04"), Timestamp.valueOf("2020-03-04 05:06:07.089"), "alpha"),
+                row(names, 2, null, null, -2.5, false, null, Timestamp.valueOf("1969-12-31 23:59:59.999"), null),
+                row(names, 3, -7L, 1.5f, null, null, java.sql.Date.valueOf("1960-01-01"), null, "\u00e9\u4e2d")
+            );
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try (ArrowStreamWriter writer = new ArrowStreamWriter(new ResultsImpl(CachedResultSets.create(rows, names), cols)))
+            {
+                writer.setBatchSize(2);
+                writer.write(out);
+                assertEquals(3, writer.getDataRowCount());
+            }
+
+            try (InputStream is = ArrowStreamWriter.class.getResourceAsStream("ArrowStreamWriter.arrows"))
+            {
+                assertNotNull(is);
+                assertArrayEquals(is.readAllBytes(), out.toByteArray());
+            }
+        }
+
+        private static Map<String, Object> row(List<String> names, Object... values)
+        {
+            Map<String, Object> row = new LinkedHashMap<>();
+
+            for (int i = 0; i < names.size(); i++)
+                row.put(names.get(i), values[i]);
+
+            return row;
+        }
+
+        // Position of a table's field, which must be present
+        private static int field(ByteBuffer buf, int table, int slot)
+        {
+            int vtable = table - buf.getInt(table);
+            assertTrue(4 + 2 * slot < buf.getShort(vtable));
+            int offset = buf.getShort(vtable + 4 + 2 * slot);
+            assertTrue(offset > 0);
+
+            return table + offset;
+        }
+
+        private static int deref(ByteBuffer buf, int pos)
+        {
+            return pos + buf.getInt(pos);
+        }
+    }
+}
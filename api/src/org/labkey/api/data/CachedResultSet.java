@@ -75,7 +75,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     private final HashMap<String, Integer> _columns;
 
     // data
-    private final ArrayList<RowMap<Object>> _rowMaps;
+    private final RowStore _rows;
     private final boolean _isComplete;
     @Nullable
     private final StackTraceElement[] _stackTrace;
@@ -99,7 +99,12 @@ public class CachedResultSet implements ResultSet, TableResultSet
      */
     CachedResultSet(ResultSetMetaData md, boolean cacheMetaData, ArrayList<RowMap<Object>> maps, boolean isComplete, @Nullable StackTraceElement[] stackTrace)
     {
-        _rowMaps = maps;
+        this(md, cacheMetaData, new RowMapStore(maps), isComplete, stackTrace);
+    }
+
+    CachedResultSet(ResultSetMetaData md, boolean cacheMetaData, RowStore rows, boolean isComplete, @Nullable StackTraceElement[] stackTrace)
+    {
+        _rows = rows;
         _isComplete = isComplete;
 
         try
@@ -218,6 +223,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     public void close()
     {
         _wasClosed = true;
+        _rows.close();
     }
 
     @Override
@@ -611,10 +617,10 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public Object getObject(int columnIndex) throws SQLException
     {
-        if (_row < 0 || _row >= _rowMaps.size())
+        if (_row < 0 || _row >= _rows.size())
             throw new SQLException("No current row");
 
-        _lastObject = _rowMaps.get(_row).get(columnIndex);
+        _lastObject = _rows.get(_row, columnIndex);
 
         if (_lastObject instanceof Double)
             _lastObject = ResultSetUtil.mapDatabaseDoubleToJavaDouble((Double) _lastObject);
@@ -625,7 +631,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public Object getObject(String columnName) throws SQLException
     {
-        _lastObject = _rowMaps.get(_row).get(columnName);
+        _lastObject = _rows.get(_row, columnName);
         // check for no illegal column name
         if (_lastObject == null)
             findColumn(columnName);
@@ -640,7 +646,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     // careful! this does no error checking
     public void _setObject(int columnIndex, Object o)
     {
-        _rowMaps.get(_row).set(columnIndex, o);
+        _rows.set(_row, columnIndex, o);
     }
 
 
@@ -687,19 +693,19 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public boolean isAfterLast()
     {
-        return _row == _rowMaps.size();
+        return _row == _rows.size();
     }
 
     @Override
     public boolean isFirst()
     {
-        return _rowMaps.size() > 0 && _row == 0;
+        return _rows.size() > 0 && _row == 0;
     }
 
     @Override
     public boolean isLast()
     {
-        return _rowMaps.size() > 0 && _row == _rowMaps.size() - 1;
+        return _rows.size() > 0 && _row == _rows.size() - 1;
     }
 
     @Override
@@ -711,7 +717,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public void afterLast()
     {
-        _row = _rowMaps.size();
+        _row = _rows.size();
     }
 
     @Override
@@ -753,7 +759,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     public int getRow()
     {
         // adjust to 1-based
-        return _row >= 0 && _row < _rowMaps.size() ? _row + 1 : 0;
+        return _row >= 0 && _row < _rows.size() ? _row + 1 : 0;
     }
 
     @Override
@@ -769,7 +775,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public boolean relative(int rows)
     {
-        _row = max(-1, min(_rowMaps.size(), _row + rows));
+        _row = max(-1, min(_rows.size(), _row + rows));
         return getRow() != 0;
     }
 
@@ -1248,52 +1254,27 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public Map<String, Object> getRowMap() throws SQLException
     {
-        if (_row >= _rowMaps.size())
+        if (_row >= _rows.size())
             throw new SQLException("No current row");
-        return _rowMaps.get(_row);
+        return _rows.getRowMap(_row);
     }
 
     @Override
     @NotNull
     public Iterator<Map<String, Object>> iterator()
     {
-        Iterator<Map<String, Object>> it = new RowMapIterator(_rowMaps.iterator());
-
-        return IteratorUtils.unmodifiableIterator(it);
+        return IteratorUtils.unmodifiableIterator(_rows.iterator());
     }
 
-    private static class RowMapIterator implements Iterator<Map<String, Object>>
+    @Override
+    public int getSize()
     {
-        private final Iterator<RowMap<Object>> _iter;
-
-        private RowMapIterator(Iterator<RowMap<Object>> iter)
-        {
-            _iter = iter;
-        }
-
-        @Override
-        public boolean hasNext()
-        {
-            return _iter.hasNext();
-        }
-
-        @Override
-        public Map<String, Object> next()
-        {
-            return _iter.next();
-        }
-
-        @Override
-        public void remove()
-        {
-            _iter.remove();
-        }
+        return _rows.size();
     }
 
-    @Override
-    public int getSize()
+    RowStore getRowStore()
     {
-        return _rowMaps.size();
+        return _rows;
     }
 
     //
@@ -1630,6 +1611,83 @@ public class CachedResultSet implements ResultSet, TableResultSet
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Row storage behind a CachedResultSet. Row indexes are 0-based; column indexes are 1-based, and column 0 is the
+     * 1-based row number (matching ResultSetRowMapFactory).
+     */
+    interface RowStore
+    {
+        int size();
+
+        Object get(int row, int col);
+
+        /** @return null if name isn't a column */
+        Object get(int row, String name);
+
+        void set(int row, int col, Object value);
+
+        RowMap<Object> getRowMap(int row);
+
+        Iterator<Map<String, Object>> iterator();
+
+        void close();
+    }
+
+
+    /** The original one-RowMap-per-row storage, used for CachedResultSets created from maps */
+    private static class RowMapStore implements RowStore
+    {
+        private final ArrayList<RowMap<Object>> _rowMaps;
+
+        private RowMapStore(ArrayList<RowMap<Object>> rowMaps)
+        {
+            _rowMaps = rowMaps;
+        }
+
+        @Override
+        public int size()
+        {
+            return _rowMaps.size();
+        }
+
+        @Override
+        public Object get(int row, int col)
+        {
+            return _rowMaps.get(row).get(col);
+        }
+
+        @Override
+        public Object get(int row, String name)
+        {
+            return _rowMaps.get(row).get(name);
+        }
+
+        @Override
+        public void set(int row, int col, Object value)
+        {
+            _rowMaps.get(row).set(col, value);
+        }
+
+        @Override
+        public RowMap<Object> getRowMap(int row)
+        {
+            return _rowMaps.get(row);
+        }
+
+        @Override
+        public Iterator<Map<String, Object>> iterator()
+        {
+            Iterator<? extends Map<String, Object>> it = _rowMaps.iterator();
+            return IteratorUtils.unmodifiableIterator(it);
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+
     @SuppressWarnings("UnusedDeclaration")
     private static class DataIteratorAdapter implements DataIterator
     {
@@ -34,6 +34,20 @@ import java.util.Map;
  */
 public class CachedResultSets
 {
+    // Heap budget for each CachedResultSet created from a ResultSet; rows beyond this spill to a temp file
+    private static volatile long _memoryBudget = Long.getLong("cachedResultSetMemoryBudget", 32L * 1024 * 1024);
+
+    public static long getMemoryBudget()
+    {
+        return _memoryBudget;
+    }
+
+    public static void setMemoryBudget(long bytes)
+    {
+        _memoryBudget = bytes;
+    }
+
+
     public static CachedResultSet create(ResultSet rs, boolean cacheMetaData, int maxRows) throws SQLException
     {
         return create(rs, cacheMetaData, maxRows, null, QueryLogging.emptyQueryLogging());      // TODO: Should be only for MetaData??
@@ -44,21 +58,28 @@ public class CachedResultSets
     {
         try (ResultSet rs = new LoggingResultSetWrapper(rsIn, queryLogging))         // TODO: avoid is we're passed a read-only and empty one??
         {
-            ArrayList<RowMap<Object>> list = new ArrayList<>();
-
             if (maxRows == Table.ALL_ROWS)
                 maxRows = Integer.MAX_VALUE;
 
-            ResultSetRowMapFactory factory = ResultSetRowMapFactory.create(rs);
-
-            // Note: we check in this order to avoid consuming the "extra" row used to detect complete vs. not
-            while (list.size() < maxRows && rs.next())
-                list.add(factory.getRowMap(rs));
-
-            // If we have another row, then we're not complete
-            boolean isComplete = !rs.next();
-
-            return new CachedResultSet(rs.getMetaData(), cacheMetaData, list, isComplete, stackTrace);
+            ResultSetMetaData md = rs.getMetaData();
+            ColumnarRowStore rows = new ColumnarRowStore(md, getMemoryBudget());
+
+            try
+            {
+                // Note: we check in this order to avoid consuming the "extra" row used to detect complete vs. not
+                while (rows.size() < maxRows && rs.next())
+                    rows.add(rs);
+
+                // If we have another row, then we're not complete
+                boolean isComplete = !rs.next();
+
+                return new CachedResultSet(md, cacheMetaData, rows, isComplete, stackTrace);
+            }
+            catch (SQLException | RuntimeException x)
+            {
+                rows.close();
+                throw x;
+            }
         }
     }
 
@@ -0,0 +1,868 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.collections.ResultSetRowMapFactory;
+import org.labkey.api.collections.RowMap;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.ResultSetUtil;
+import org.labkey.api.util.UnexpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Column-oriented row storage for CachedResultSet. Rows are held in pages of up to PAGE_ROWS rows, and each page keeps
+ * one vector per column (int[], long[], double[], String[], ...) rather than a RowMap per row, so a cached integer costs
+ * four bytes instead of a boxed Integer plus its share of an ArrayList and a map.
+ *
+ * Once the estimated size of the resident pages exceeds the memory budget, each further page is written to a temp file
+ * and read back through a read-only memory mapping. Reading a spilled page decodes it into a single scratch page, so a
+ * forward scan over a large export holds about one page on the heap regardless of the number of rows selected.
+ * Closing the store drops the mappings and deletes the file, so spilled rows can't be read after close().
+ *
+ * RowMaps are built on demand; getRowMap() returns a new map on every call.
+ */
+public class ColumnarRowStore implements CachedResultSet.RowStore
+{
+    private static final Logger LOG = LogManager.getLogger(ColumnarRowStore.class);
+
+    static final int PAGE_ROWS = 4096;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ResultSetRowMapFactory _factory;
+    private final int _columnCount;
+    private final Map<String, Integer> _columns;
+    private final long _memoryBudget;
+    private final ArrayList<Page> _pages = new ArrayList<>();
+
+    private int _size = 0;
+    private long _residentBytes = 0;
+
+    // spill state
+    private File _file = null;
+    private FileChannel _channel = null;
+    private long _fileLength = 0;
+    private int _spilledPages = 0;
+    private boolean _spillDisabled = false;
+    private boolean _closed = false;
+    private volatile Page _decoded = null;
+
+
+    ColumnarRowStore(ResultSetMetaData md, long memoryBudget) throws SQLException
+    {
+        _factory = ResultSetRowMapFactory.create(md);
+        _columnCount = md.getColumnCount();
+        _columns = new HashMap<>(_columnCount * 2);
+        for (int col = _columnCount; col >= 1; col--)
+            _columns.put(md.getColumnLabel(col).toLowerCase(Locale.ROOT), col);
+        _memoryBudget = memoryBudget;
+    }
+
+
+    /** Append the current row of rs, converting values the same way ResultSetRowMapFactory does */
+    void add(ResultSet rs) throws SQLException
+    {
+        Page page = _pages.isEmpty() ? null : _pages.get(_pages.size() - 1);
+
+        if (null == page || page._rows == PAGE_ROWS)
+        {
+            page = new Page(_pages.size(), _columnCount);
+            _pages.add(page);
+        }
+
+        int r = page._rows;
+        page.ensureCapacity(r + 1);
+
+        for (int col = 1; col <= _columnCount; col++)
+        {
+            Object o = rs.getObject(col);
+
+            if (o instanceof Clob)
+                o = ConvertHelper.convertClobToString((Clob)o);
+            else if (o instanceof Double)
+                o = ResultSetUtil.mapDatabaseDoubleToJavaDouble((Double)o);
+
+            page._columns[col - 1].set(r, o);
+        }
+
+        page._rows++;
+        _size++;
+
+        if (page._rows == PAGE_ROWS)
+            completePage(page);
+    }
+
+
+    private void completePage(Page page)
+    {
+        long bytes = page.estimateSize();
+
+        if (_residentBytes + bytes > _memoryBudget && spill(page))
+            return;
+
+        _residentBytes += bytes;
+    }
+
+
+    private boolean spill(Page page)
+    {
+        if (_spillDisabled)
+            return false;
+
+        try
+        {
+            byte[] data = page.encode();
+
+            if (null == _channel)
+            {
+                _file = File.createTempFile("cachedresultset", ".tmp", FileUtil.getTempDirectory());
+                _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            long position = _fileLength;
+            while (buf.hasRemaining())
+                position += _channel.write(buf, position);
+
+            // Map now rather than on first read, while the channel is open
+            page._mapped = _channel.map(FileChannel.MapMode.READ_ONLY, _fileLength, data.length);
+            page._columns = null;
+            _fileLength += data.length;
+            _spilledPages++;
+            return true;
+        }
+        catch (NotSerializableException x)
+        {
+            // Some driver-specific value we can't write out; keep this page on the heap
+            LOG.debug("Keeping CachedResultSet page in memory: " + x.getMessage());
+            return false;
+        }
+        catch (IOException x)
+        {
+            LOG.warn("Unable to spill CachedResultSet to disk, keeping all rows in memory", x);
+            _spillDisabled = true;
+            return false;
+        }
+    }
+
+
+    private Page page(int row)
+    {
+        if (row < 0 || row >= _size)
+            throw new IndexOutOfBoundsException("Row " + row + " of " + _size);
+
+        int index = row / PAGE_ROWS;
+        Page page = _pages.get(index);
+
+        if (null != page._columns)
+            return page;
+
+        if (null == page._mapped)
+            throw new IllegalStateException("CachedResultSet has been closed, row " + row + " is no longer available");
+
+        Page decoded = _decoded;
+        if (null != decoded && decoded._index == index)
+            return decoded;
+
+        decoded = page.decode(_columnCount);
+        _decoded = decoded;
+        return decoded;
+    }
+
+
+    int getSpilledPageCount()
+    {
+        return _spilledPages;
+    }
+
+
+    long getResidentBytes()
+    {
+        return _residentBytes;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return _size;
+    }
+
+
+    @Override
+    public Object get(int row, int col)
+    {
+        if (col == 0)
+            return row + 1;
+        return page(row)._columns[col - 1].get(row % PAGE_ROWS);
+    }
+
+
+    @Override
+    public Object get(int row, String name)
+    {
+        Integer col = _columns.get(name.toLowerCase(Locale.ROOT));
+        if (null == col)
+            return "_row".equalsIgnoreCase(name) ? row + 1 : null;
+        return get(row, col);
+    }
+
+
+    @Override
+    public void set(int row, int col, Object value)
+    {
+        Page page = page(row);
+
+        // Updating a spilled row brings its page back onto the heap for good
+        if (page != _pages.get(page._index))
+        {
+            Page spilled = _pages.get(page._index);
+            spilled._columns = page._columns;
+            spilled._mapped = null;
+            _residentBytes += spilled.estimateSize();
+            _spilledPages--;
+            _decoded = null;
+            page = spilled;
+        }
+
+        page._columns[col - 1].set(row % PAGE_ROWS, value);
+    }
+
+
+    @Override
+    public RowMap<Object> getRowMap(int row)
+    {
+        Page page = page(row);
+        int r = row % PAGE_ROWS;
+        ArrayList<Object> list = new ArrayList<>(_columnCount + 1);
+
+        // Index 0 holds the 1-based row number, as in ResultSetRowMapFactory
+        list.add(row + 1);
+        for (Vector column : page._columns)
+            list.add(column.get(r));
+
+        return _factory.getRowMap(list);
+    }
+
+
+    @Override
+    public Iterator<Map<String, Object>> iterator()
+    {
+        return new Iterator<Map<String, Object>>()
+        {
+            private int _next = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return _next < _size;
+            }
+
+            @Override
+            public Map<String, Object> next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return getRowMap(_next++);
+            }
+        };
+    }
+
+
+    @Override
+    public void close()
+    {
+        _decoded = null;
+
+        if (null == _channel || _closed)
+            return;
+        _closed = true;
+
+        // Drop the mappings before deleting the file. Windows won't delete a file while any part of it is mapped.
+        for (Page page : _pages)
+            page._mapped = null;
+
+        try
+        {
+            _channel.close();
+        }
+        catch (IOException x)
+        {
+            LOG.warn("Error closing CachedResultSet spill file", x);
+        }
+
+        // The buffers are unmapped once they're garbage collected, which may not have happened yet
+        if (!_file.delete())
+        {
+            LOG.debug("Could not delete CachedResultSet spill file " + _file.getAbsolutePath() + ", will delete on exit");
+            _file.deleteOnExit();
+        }
+    }
+
+
+    private static class Page
+    {
+        private final int _index;
+        private volatile Vector[] _columns;
+        private MappedByteBuffer _mapped = null;
+        private int _rows = 0;
+        private int _capacity = 0;
+
+        Page(int index, int columnCount)
+        {
+            _index = index;
+            _columns = new Vector[columnCount];
+            for (int i = 0; i < columnCount; i++)
+                _columns[i] = new Vector();
+        }
+
+        void ensureCapacity(int rows)
+        {
+            if (rows <= _capacity)
+                return;
+            int capacity = Math.max(INITIAL_CAPACITY, _capacity);
+            while (capacity < rows)
+                capacity *= 2;
+            capacity = Math.min(PAGE_ROWS, capacity);
+            for (Vector column : _columns)
+                column.grow(capacity);
+            _capacity = capacity;
+        }
+
+        long estimateSize()
+        {
+            long size = 32;
+            for (Vector column : _columns)
+                size += column.estimateSize(_rows);
+            return size;
+        }
+
+        byte[] encode() throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(_columns.length * _rows * 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(_rows);
+            for (Vector column : _columns)
+                column.encode(out, _rows);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        Page decode(int columnCount)
+        {
+            ByteBuffer in = _mapped.duplicate();
+            Page page = new Page(_index, columnCount);
+            page._rows = in.getInt();
+            page.ensureCapacity(page._rows);
+            for (Vector column : page._columns)
+                column.decode(in, page._rows);
+            return page;
+        }
+    }
+
+
+    // Vector kinds, also used as the tag in the spill format
+    private static final byte K_NULL = 0;
+    private static final byte K_INT = 1;
+    private static final byte K_LONG = 2;
+    private static final byte K_DOUBLE = 3;
+    private static final byte K_BOOLEAN = 4;
+    private static final byte K_TIMESTAMP = 5;
+    private static final byte K_DATE = 6;
+    private static final byte K_STRING = 7;
+    private static final byte K_OBJECT = 8;
+
+
+    private static byte kindOf(Object o)
+    {
+        Class<?> c = o.getClass();
+        if (c == Integer.class)
+            return K_INT;
+        if (c == Long.class)
+            return K_LONG;
+        if (c == Double.class)
+            return K_DOUBLE;
+        if (c == Boolean.class)
+            return K_BOOLEAN;
+        if (c == Timestamp.class)
+            return K_TIMESTAMP;
+        if (c == java.sql.Date.class)
+            return K_DATE;
+        if (c == String.class)
+            return K_STRING;
+        return K_OBJECT;
+    }
+
+
+    /**
+     * One column of one page. The vector takes the kind of the first non-null value it sees, and falls back to boxed
+     * objects if a later value doesn't fit.
+     */
+    private static class Vector
+    {
+        private byte _kind = K_NULL;
+        private int _capacity = 0;
+        private long[] _nulls = new long[0];
+        private int[] _ints;            // K_INT, K_BOOLEAN, nanos for K_TIMESTAMP
+        private long[] _longs;          // K_LONG, millis for K_TIMESTAMP and K_DATE
+        private double[] _doubles;      // K_DOUBLE
+        private Object[] _objects;      // K_STRING, K_OBJECT
+
+        void grow(int capacity)
+        {
+            _capacity = capacity;
+            _nulls = Arrays.copyOf(_nulls, (capacity + 63) >> 6);
+            if (null != _ints)
+                _ints = Arrays.copyOf(_ints, capacity);
+            if (null != _longs)
+                _longs = Arrays.copyOf(_longs, capacity);
+            if (null != _doubles)
+                _doubles = Arrays.copyOf(_doubles, capacity);
+            if (null != _objects)
+                _objects = Arrays.copyOf(_objects, capacity);
+        }
+
+        private boolean isNull(int i)
+        {
+            return (_nulls[i >> 6] & (1L << i)) != 0;
+        }
+
+        private void setNull(int i, boolean isNull)
+        {
+            if (isNull)
+                _nulls[i >> 6] |= 1L << i;
+            else
+                _nulls[i >> 6] &= ~(1L << i);
+        }
+
+        private void allocate(byte kind)
+        {
+            _kind = kind;
+            switch (kind)
+            {
+                case K_INT:
+                case K_BOOLEAN:
+                    _ints = new int[_capacity];
+                    break;
+                case K_LONG:
+                case K_DATE:
+                    _longs = new long[_capacity];
+                    break;
+                case K_TIMESTAMP:
+                    _longs = new long[_capacity];
+                    _ints = new int[_capacity];
+                    break;
+                case K_DOUBLE:
+                    _doubles = new double[_capacity];
+                    break;
+                default:
+                    _objects = new Object[_capacity];
+                    break;
+            }
+        }
+
+        // Box everything seen so far; used when a column turns out to hold mixed types
+        private void toObjects()
+        {
+            Object[] objects = new Object[_capacity];
+            for (int i = 0; i < _capacity; i++)
+                objects[i] = get(i);
+            _ints = null;
+            _longs = null;
+            _doubles = null;
+            _objects = objects;
+            _kind = K_OBJECT;
+        }
+
+        void set(int i, Object o)
+        {
+            if (null == o)
+            {
+                setNull(i, true);
+                if (null != _objects)
+                    _objects[i] = null;
+                return;
+            }
+
+            byte kind = kindOf(o);
+            if (_kind == K_NULL)
+            {
+                // everything before this row was null, and the null bits already say so
+                allocate(kind);
+            }
+            else if (_kind != kind && _kind != K_OBJECT)
+            {
+                toObjects();
+            }
+
+            setNull(i, false);
+            switch (_kind)
+            {
+                case K_INT:
+                    _ints[i] = (Integer)o;
+                    break;
+                case K_LONG:
+                    _longs[i] = (Long)o;
+                    break;
+                case K_DOUBLE:
+                    _doubles[i] = (Double)o;
+                    break;
+                case K_BOOLEAN:
+                    _ints[i] = ((Boolean)o) ? 1 : 0;
+                    break;
+                case K_TIMESTAMP:
+                    _longs[i] = ((Timestamp)o).getTime();
+                    _ints[i] = ((Timestamp)o).getNanos();
+                    break;
+                case K_DATE:
+                    _longs[i] = ((java.sql.Date)o).getTime();
+                    break;
+                default:
+                    _objects[i] = o;
+                    break;
+            }
+        }
+
+        Object get(int i)
+        {
+            if (_kind == K_NULL || isNull(i))
+                return null;
+
+            switch (_kind)
+            {
+                case K_INT:
+                    return _ints[i];
+                case K_LONG:
+                    return _longs[i];
+                case K_DOUBLE:
+                    return _doubles[i];
+                case K_BOOLEAN:
+                    return _ints[i] != 0;
+                case K_TIMESTAMP:
+                    Timestamp ts = new Timestamp(_longs[i]);
+                    ts.setNanos(_ints[i]);
+                    return ts;
+                case K_DATE:
+                    return new java.sql.Date(_longs[i]);
+                default:
+                    return _objects[i];
+            }
+        }
+
+        long estimateSize(int rows)
+        {
+            long size = 48 + 8L * _nulls.length;
+            if (null != _ints)
+                size += 4L * _ints.length;
+            if (null != _longs)
+                size += 8L * _longs.length;
+            if (null != _doubles)
+                size += 8L * _doubles.length;
+            if (null != _objects)
+            {
+                size += 4L * _objects.length;
+                for (int i = 0; i < rows; i++)
+                {
+                    Object o = _objects[i];
+                    if (o instanceof String)
+                        size += 40 + ((String)o).length();
+                    else if (o instanceof byte[])
+                        size += 16 + ((byte[])o).length;
+                    else if (null != o)
+                        size += 32;
+                }
+            }
+            return size;
+        }
+
+        void encode(DataOutputStream out, int rows) throws IOException
+        {
+            out.writeByte(_kind);
+            if (_kind == K_NULL)
+                return;
+
+            int words = (rows + 63) >> 6;
+            for (int w = 0; w < words; w++)
+                out.writeLong(_nulls[w]);
+
+            if (_kind == K_OBJECT)
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes))
+                {
+                    oos.writeObject(Arrays.copyOf(_objects, rows));
+                }
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+                return;
+            }
+
+            for (int i = 0; i < rows; i++)
+            {
+                if (isNull(i))
+                    continue;
+                switch (_kind)
+                {
+                    case K_INT:
+                    case K_BOOLEAN:
+                        out.writeInt(_ints[i]);
+                        break;
+                    case K_LONG:
+                    case K_DATE:
+                        out.writeLong(_longs[i]);
+                        break;
+                    case K_TIMESTAMP:
+                        out.writeLong(_longs[i]);
+                        out.writeInt(_ints[i]);
+                        break;
+                    case K_DOUBLE:
+                        out.writeDouble(_doubles[i]);
+                        break;
+                    case K_STRING:
+                        byte[] utf8 = ((String)_objects[i]).getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(utf8.length);
+                        out.write(utf8);
+                        break;
+                }
+            }
+        }
+
+        void decode(ByteBuffer in, int rows)
+        {
+            byte kind = in.get();
+            if (kind == K_NULL)
+                return;
+
+            allocate(kind);
+            int words = (rows + 63) >> 6;
+            for (int w = 0; w < words; w++)
+                _nulls[w] = in.getLong();
+
+            if (kind == K_OBJECT)
+            {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+                {
+                    Object[] objects = (Object[])ois.readObject();
+                    System.arraycopy(objects, 0, _objects, 0, rows);
+                }
+                catch (IOException | ClassNotFoundException x)
+                {
+                    throw new UnexpectedException(x);
+                }
+                return;
+            }
+
+            for (int i = 0; i < rows; i++)
+            {
+                if (isNull(i))
+                    continue;
+                switch (kind)
+                {
+                    case K_INT:
+                    case K_BOOLEAN:
+                        _ints[i] = in.getInt();
+                        break;
+                    case K_LONG:
+                    case K_DATE:
+                        _longs[i] = in.getLong();
+                        break;
+                    case K_TIMESTAMP:
+                        _longs[i] = in.getLong();
+                        _ints[i] = in.getInt();
+                        break;
+                    case K_DOUBLE:
+                        _doubles[i] = in.getDouble();
+                        break;
+                    case K_STRING:
+                        byte[] utf8 = new byte[in.getInt()];
+                        in.get(utf8);
+                        _objects[i] = new String(utf8, StandardCharsets.UTF_8);
+                        break;
+                }
+            }
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static final int ROWS = PAGE_ROWS * 3 + 17;
+
+        private List<Map<String, Object>> makeRows()
+        {
+            List<Map<String, Object>> rows = new ArrayList<>(ROWS);
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < ROWS; i++)
+            {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("intCol", i);
+                row.put("longCol", i % 7 == 0 ? null : (long)i * 1_000_000_000L);
+                row.put("doubleCol", i / 4.0);
+                row.put("boolCol", i % 3 == 0);
+                Timestamp ts = new Timestamp(now + i * 1000L);
+                ts.setNanos(i % 1000 * 1000);
+                row.put("tsCol", ts);
+                row.put("stringCol", i % 5 == 0 ? null : "row \u00e9 " + i);
+                row.put("decimalCol", new BigDecimal(i).movePointLeft(2));
+                // mixed types: starts out as integers, then turns into strings part way through a page
+                row.put("mixedCol", i < PAGE_ROWS + 100 ? (Object)i : (Object)("s" + i));
+                row.put("nullCol", null);
+                rows.add(row);
+            }
+
+            return rows;
+        }
+
+        private CachedResultSet load(List<Map<String, Object>> rows, long budget) throws SQLException
+        {
+            try (CachedResultSet source = CachedResultSets.create(rows, rows.get(0).keySet()))
+            {
+                ResultSetMetaData md = source.getMetaData();
+                ColumnarRowStore store = new ColumnarRowStore(md, budget);
+                while (source.next())
+                    store.add(source);
+                return new CachedResultSet(md, false, store, true, null);
+            }
+        }
+
+        private void verify(List<Map<String, Object>> expected, CachedResultSet rs) throws SQLException
+        {
+            assertEquals(expected.size(), rs.getSize());
+
+            int i = 0;
+            while (rs.next())
+            {
+                Map<String, Object> row = expected.get(i);
+                int col = 1;
+                for (Map.Entry<String, Object> e : row.entrySet())
+                {
+                    assertEquals("row " + i + " " + e.getKey(), e.getValue(), rs.getObject(col++));
+                    assertEquals("row " + i + " " + e.getKey(), e.getValue(), rs.getObject(e.getKey()));
+                }
+                assertEquals(i + 1, rs.getRow());
+                i++;
+            }
+            assertEquals(expected.size(), i);
+
+            // random access, including back into spilled pages
+            for (int row : new int[] {ROWS, 1, PAGE_ROWS + 1, ROWS - 1, 2 * PAGE_ROWS + 5})
+            {
+                assertTrue(rs.absolute(row));
+                assertEquals(row - 1, rs.getInt("intCol"));
+                assertEquals(expected.get(row - 1).get("stringCol"), rs.getRowMap().get("stringCol"));
+            }
+
+            i = 0;
+            for (Map<String, Object> map : rs)
+            {
+                assertEquals(expected.get(i).get("tsCol"), map.get("tsCol"));
+                assertEquals(expected.get(i).get("mixedCol"), map.get("mixedCol"));
+                i++;
+            }
+            assertEquals(expected.size(), i);
+        }
+
+        @Test
+        public void testInMemory() throws SQLException
+        {
+            List<Map<String, Object>> rows = makeRows();
+            try (CachedResultSet rs = load(rows, Long.MAX_VALUE))
+            {
+                assertEquals(0, ((ColumnarRowStore)rs.getRowStore()).getSpilledPageCount());
+                verify(rows, rs);
+            }
+        }
+
+        @Test
+        public void testSpill() throws SQLException
+        {
+            List<Map<String, Object>> rows = makeRows();
+            CachedResultSet rs = load(rows, 0);
+            ColumnarRowStore store = (ColumnarRowStore)rs.getRowStore();
+            File file = store._file;
+
+            try
+            {
+                // every full page goes to disk, the trailing partial page stays on the heap
+                assertEquals(ROWS / PAGE_ROWS, store.getSpilledPageCount());
+                assertNotNull(file);
+                assertTrue(file.exists());
+                verify(rows, rs);
+
+                // updating a spilled row pulls its page back onto the heap
+                assertTrue(rs.absolute(10));
+                rs._setObject(6, "updated");
+                assertTrue(rs.absolute(PAGE_ROWS + 10));
+                assertTrue(rs.absolute(10));
+                assertEquals("updated", rs.getString("stringCol"));
+                assertEquals(ROWS / PAGE_ROWS - 1, store.getSpilledPageCount());
+            }
+            finally
+            {
+                rs.close();
+            }
+
+            assertFalse(file.exists());
+
+            // pages on the heap are still readable after close, spilled pages are not
+            assertTrue(rs.absolute(ROWS));
+            assertEquals(ROWS - 1, rs.getInt("intCol"));
+            assertTrue(rs.absolute(PAGE_ROWS * 2 + 1));
+            try
+            {
+                rs.getInt("intCol");
+                fail("Expected spilled page to be unavailable after close");
+            }
+            catch (IllegalStateException ignored)
+            {
+            }
+        }
+    }
+}
@@ -882,7 +882,7 @@ public class ConnectionWrapper implements java.sql.Connection
     @Override
     public boolean isWrapperFor(Class<?> iface)
     {
-        return iface.isAssignableFrom(_connection.getClass());
+        return null != unwrap(iface);
     }
 
     @Override
@@ -905,8 +905,17 @@ public class ConnectionWrapper implements java.sql.Connection
     @Override
     public <T> T unwrap(Class<T> iface)
     {
-        //noinspection unchecked
-        return isWrapperFor(iface)?  (T)_connection : null;
+        if (iface.isAssignableFrom(_connection.getClass()))
+            //noinspection unchecked
+            return (T)_connection;
+
+        // Look through the connection pool's wrapper, e.g., to get at driver-specific APIs like PGConnection.getCopyAPI()
+        Connection delegate = DbScope.getDelegate(_connection);
+        if (null != delegate && iface.isAssignableFrom(delegate.getClass()))
+            //noinspection unchecked
+            return (T)delegate;
+
+        return null;
     }
 
     @Override
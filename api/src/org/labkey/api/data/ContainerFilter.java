@@ -593,6 +593,23 @@ public abstract class ContainerFilter
             return result;
         }
 
+        /**
+         * Ids of the containers in root's subtree (including root) in which the user has the permission, resolved in
+         * one pass over the tree. Containers that are duplicated in container filters (e.g., workbooks, which the SQL
+         * picks up via their parent) are left out, except for root itself.
+         */
+        protected Set<GUID> generateSubtreeIds(Container root, Class<? extends Permission> permission, Set<Role> roles)
+        {
+            Set<GUID> result = new HashSet<>();
+            for (String id : ContainerManager.getContainerIdsWithPermission(root, _user, permission, roles))
+            {
+                Container c = ContainerManager.getForId(id);
+                if (null != c && (c.equals(root) || !c.isDuplicatedInContainerFilter()))
+                    result.add(c.getEntityId());
+            }
+            return result;
+        }
+
         Collection<GUID> _cached = null;
 
         // If a permission is not explicitly passed, then use ReadPermission by default.  Otherwise, subclasses
@@ -790,10 +807,7 @@ public abstract class ContainerFilter
         {
             assert null == _container || _container.equals(currentContainer);
 
-            List<Container> containers = new ArrayList<>(removeDuplicatedContainers(ContainerManager.getAllChildren(currentContainer, _user, perm, roles)));
-            if (currentContainer.hasPermission(_user, perm, roles))
-                containers.add(currentContainer);
-            return toIds(containers);
+            return generateSubtreeIds(currentContainer, perm, roles);
         }
 
         @Override
@@ -1147,10 +1161,7 @@ public abstract class ContainerFilter
                 // Don't allow anything
                 return Collections.emptySet();
             }
-            Set<Container> containers = new HashSet<>(removeDuplicatedContainers(ContainerManager.getAllChildren(project, _user, perm, roles)));
-            if (project.hasPermission(_user, perm, roles))
-                containers.add(project);
-            return toIds(containers);
+            return generateSubtreeIds(project, perm, roles);
         }
 
         @Override
@@ -1175,16 +1186,7 @@ public abstract class ContainerFilter
                 // Don't bother filtering, the user can see everything
                 return null;
             }
-            List<Container> containers = ContainerManager.getAllChildren(ContainerManager.getRoot(), _user, perm, roles);
-            Set<GUID> ids = containers.stream()
-                    .filter(c -> !c.isDuplicatedInContainerFilter())
-                    .map(Container::getEntityId)
-                    .collect(Collectors.toSet());
-            if (ContainerManager.getRoot().hasPermission(_user, perm, roles))
-            {
-                ids.add(ContainerManager.getRoot().getEntityId());
-            }
-            return ids;
+            return generateSubtreeIds(ContainerManager.getRoot(), perm, roles);
         }
 
         @Override
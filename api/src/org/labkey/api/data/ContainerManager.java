@@ -59,6 +59,7 @@ import org.labkey.api.security.Group;
 import org.labkey.api.security.MutableSecurityPolicy;
 import org.labkey.api.security.SecurityLogger;
 import org.labkey.api.security.SecurityManager;
+import org.labkey.api.security.SecurityPolicy;
 import org.labkey.api.security.SecurityPolicyManager;
 import org.labkey.api.security.User;
 import org.labkey.api.security.permissions.AdminPermission;
@@ -100,6 +101,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -112,6 +114,7 @@ import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 /**
@@ -139,12 +142,17 @@ public class ContainerManager
     private static final String CONTAINER_CHILDREN_PREFIX = ContainerManager.class.getName() + "/children/";
     private static final String CONTAINER_ALL_CHILDREN_PREFIX = ContainerManager.class.getName() + "/children/*/";
     private static final String PROJECT_LIST_ID = "Projects";
+    // Deliberately doesn't start with CONTAINER_PREFIX, so it can't collide with a container path
+    private static final String TREE_KEY = ContainerManager.class.getName() + "#tree";
 
     public static final String HOME_PROJECT_PATH = "/home";
     public static final String DEFAULT_SUPPORT_PROJECT_PATH = ContainerManager.HOME_PROJECT_PATH + "/support";
 
-    private static final Cache<String, Object> CACHE = CacheManager.getStringKeyCache(CacheManager.UNLIMITED, CacheManager.DAY, "Containers");
+    private static final Cache<String, Object> CACHE = CacheManager.enableClusterInvalidation(CacheManager.getStringKeyCache(CacheManager.UNLIMITED, CacheManager.DAY, "Containers"));
     private static final ReentrantLock DATABASE_QUERY_LOCK = new ReentrantLock();
+    // Serializes copy-on-write updates of the ContainerTree snapshot; _treeVersion lets a load detect a concurrent change
+    private static final Object TREE_LOCK = new Object();
+    private static long _treeVersion = 0;
     public static final String FOLDER_TYPE_PROPERTY_SET_NAME = "folderType";
     public static final String FOLDER_TYPE_PROPERTY_NAME = "name";
     public static final String FOLDER_TYPE_PROPERTY_TABTYPE_OVERRIDDEN = "ctFolderTypeOverridden";
@@ -298,6 +306,9 @@ public class ContainerManager
 
         Container c = insertMap == null ? null  : getForId((String) insertMap.get("EntityId"));
 
+        if (null != c)
+            updateTreeAfterCommit(tree -> tree.with(List.of(new ContainerTree.Node(c.getId(), parent.getId(), c.getName(), c.getSortOrder()))));
+
         if (null == c)
         {
             if (null != sqlx)
@@ -821,11 +832,12 @@ public class ContainerManager
     public static List<Container> getAllChildren(Container parent, User u, Class<? extends Permission> perm, Set<Role> roles, Set<String> typesIncluded)
     {
         Set<Container> allChildren = getAllChildren(parent);
+        Set<String> permitted = getContainerIdsWithPermission(parent, u, perm, roles);
         List<Container> result = new ArrayList<>(allChildren.size());
 
         for (Container container : allChildren)
         {
-            if (typesIncluded.contains(container.getContainerType().getName()) && container.hasPermission(u, perm, roles))
+            if (typesIncluded.contains(container.getContainerType().getName()) && permitted.contains(container.getId()))
             {
                 result.add(container);
             }
@@ -834,6 +846,83 @@ public class ContainerManager
         return result;
     }
 
+    /**
+     * Returns the ids of the containers in root's subtree (including root) in which the user has the permission, with
+     * the same result as calling Container.hasPermission() on each of them. Resolves the whole subtree in one pass over
+     * the container tree snapshot: each container's policy is either its own or the one it inherits from its parent, and
+     * the permission check is evaluated once per distinct policy rather than once per container. Inside a transaction,
+     * falls back to checking each container.
+     */
+    @NotNull
+    public static Set<String> getContainerIdsWithPermission(@NotNull Container root, @NotNull User user, @NotNull Class<? extends Permission> perm, @Nullable Set<Role> roles)
+    {
+        ContainerTree tree = CORE.getSchema().getScope().isTransactionActive() ? null : getTree();
+        Set<String> result = new HashSet<>();
+
+        if (null == tree || !tree.contains(root.getId()))
+        {
+            for (Container c : getAllChildren(root))
+                if (c.hasPermission(user, perm, roles))
+                    result.add(c.getId());
+            return result;
+        }
+
+        // Containers outside the impersonation project are forbidden, see Container.isForbiddenProject()
+        Container impersonationProject = user.getImpersonationProject();
+        if (null != impersonationProject && !impersonationProject.getId().equals(root.getId()) && !tree.isDescendant(root.getId(), impersonationProject.getId()))
+        {
+            if (!tree.isDescendant(impersonationProject.getId(), root.getId()))
+                return result;
+            // Only the impersonation project's subtree can be permitted
+            root = impersonationProject;
+        }
+
+        // Effective policy of each container visited so far; null means neither it nor any ancestor has a policy
+        Map<String, SecurityPolicy> effective = new HashMap<>();
+        Map<SecurityPolicy, Boolean> decisions = new IdentityHashMap<>();
+
+        for (String id : tree.getSubtreeIds(root.getId()))
+        {
+            Container c = getForId(id);
+            if (null == c)
+                continue;
+
+            SecurityPolicy policy = SecurityPolicyManager.getPolicy(c, c.getResourceId());
+            if (null == policy)
+                policy = id.equals(root.getId()) ? getNearestPolicy(c) : effective.get(tree.getParentId(id));
+            effective.put(id, policy);
+
+            boolean permitted;
+            if (null != policy)
+            {
+                permitted = decisions.computeIfAbsent(policy, p -> p.hasPermission(user, perm, roles));
+            }
+            else
+            {
+                // No policy anywhere above; SecurityPolicyManager hands back an empty policy specific to this container
+                permitted = c.getPolicy().hasPermission(user, perm, roles);
+            }
+
+            if (permitted)
+                result.add(id);
+        }
+
+        return result;
+    }
+
+    // The policy explicitly defined on this container or its nearest ancestor, or null if there is none
+    @Nullable
+    private static SecurityPolicy getNearestPolicy(Container c)
+    {
+        for (Container cur = c; null != cur; cur = cur.isRoot() ? null : cur.getParent())
+        {
+            SecurityPolicy policy = SecurityPolicyManager.getPolicy(cur, cur.getResourceId());
+            if (null != policy)
+                return policy;
+        }
+        return null;
+    }
+
     // Returns the next available child container name based on the baseName
     public static String getAvailableChildContainerName(Container c, String baseName)
     {
@@ -977,6 +1066,20 @@ public class ContainerManager
         if (null != d)
             return d;
 
+        // Resolve the path in one step using the tree snapshot, if it's loaded, instead of walking down from the root.
+        // The snapshot reflects committed state, so verify the path (a rename may be in progress) and fall back if needed.
+        ContainerTree tree = (ContainerTree) CACHE.get(TREE_KEY);
+        if (null != tree && path.size() > 0)
+        {
+            String id = tree.getId(path);
+            if (null != id)
+            {
+                d = getForId(id);
+                if (null != d && toString(d).equals(toString(path)))
+                    return d;
+            }
+        }
+
         // Special case for ROOT -- we want to throw instead of returning null
         if (path.equals(Path.rootPath))
         {
@@ -1194,17 +1297,23 @@ public class ContainerManager
             Map<String, NavTree> m = new HashMap<>();
             Map<String, Boolean> permission = new HashMap<>();
 
+            // Resolve read permission for the whole project in one pass. All these folders share the project, so unless
+            // it's forbidden (when impersonating) the result also seeds the policy read checks below.
+            Set<String> readable = getContainerIdsWithPermission(project, user, ReadPermission.class, null);
+            if (!project.isForbiddenProject(user))
+                folders.forEach(f -> permission.put(f.getId(), readable.contains(f.getId())));
+
             for (Container f : folders)
             {
                 if (!f.isInFolderNav())
                     continue;
 
-                boolean hasPolicyRead = f.getPolicy().hasPermission(user, ReadPermission.class);
+                boolean hasPolicyRead = permission.computeIfAbsent(f.getId(), id -> f.getPolicy().hasPermission(user, ReadPermission.class));
 
                 boolean skip = (
                         !hasPolicyRead ||
                         !f.shouldDisplay(user) ||
-                        !f.hasPermission(user, ReadPermission.class)
+                        !readable.contains(f.getId())
                 );
 
                 //Always put the project and current container in...
@@ -1464,6 +1573,9 @@ public class ContainerManager
         // Synchronize the transaction, but not the listeners -- see #9901
         try (DbScope.Transaction t = CORE.getSchema().getScope().ensureTransaction(DATABASE_QUERY_LOCK))
         {
+            // Capture the subtree (and its old paths) before the move, so we can uncache just those containers
+            ContainerTree before = getTree();
+
             new SqlExecutor(CORE.getSchema()).execute("UPDATE " + CORE.getTableInfoContainers() + " SET Parent = ? WHERE EntityId = ?", newParent.getId(), c.getId());
 
             // Refresh the container directly from the database so the container reflects the new parent, isProject(), etc.
@@ -1473,7 +1585,8 @@ public class ContainerManager
             if (changedProjects)
                 SecurityManager.changeProject(c, oldProject, newProject);
 
-            clearCache();
+            // Containers cache their full paths, so uncache the moved subtree (but nothing else)
+            _removeSubtreeFromCache(before, c.getId());
 
             try
             {
@@ -1486,9 +1599,11 @@ public class ContainerManager
 
             // Clear after the commit has propagated the state to other threads and transactions
             // Do this in a commit task in case we've joined another existing DbScope.Transaction instead of starting our own
+            ContainerTree.Node moved = new ContainerTree.Node(c.getId(), newParent.getId(), c.getName(), c.getSortOrder());
             t.addCommitTask(() ->
             {
-                clearCache();
+                _removeSubtreeFromCache(before, moved.getId());
+                updateTree(tree -> tree.with(List.of(moved)));
                 getChildrenMap(newParent); // reload the cache
             }, DbScope.CommitTaskOption.POSTCOMMIT);
 
@@ -1520,14 +1635,20 @@ public class ContainerManager
 
         try (DbScope.Transaction t = CORE.getSchema().getScope().ensureTransaction(DATABASE_QUERY_LOCK))
         {
+            ContainerTree before = getTree();
             new SqlExecutor(CORE.getSchema()).execute("UPDATE " + CORE.getTableInfoContainers() + " SET Name=? WHERE EntityId=?", name, c.getId());
-            clearCache();  // Clear the entire cache, since containers cache their full paths
+            _removeSubtreeFromCache(before, c.getId());  // Containers cache their full paths, so uncache the whole subtree
             //Get new version since name has changed.
             c = getForId(c.getId());
             fireRenameContainer(c, user, oldName);
             // Clear again after the commit has propagated the state to other threads and transactions
             // Do this in a commit task in case we've joined another existing DbScope.Transaction instead of starting our own
-            t.addCommitTask(ContainerManager::clearCache, DbScope.CommitTaskOption.POSTCOMMIT);
+            ContainerTree.Node renamed = new ContainerTree.Node(c.getId(), c.getParent().getId(), name, c.getSortOrder());
+            t.addCommitTask(() ->
+            {
+                _removeSubtreeFromCache(before, renamed.getId());
+                updateTree(tree -> tree.with(List.of(renamed)));
+            }, DbScope.CommitTaskOption.POSTCOMMIT);
             t.commit();
         }
     }
@@ -1551,15 +1672,23 @@ public class ContainerManager
     {
         try (DbScope.Transaction t = CORE.getSchema().getScope().ensureTransaction(DATABASE_QUERY_LOCK))
         {
+            List<ContainerTree.Node> reordered = new ArrayList<>(siblings.size());
             for (int index = 0; index < siblings.size(); index++)
             {
                 Container current = siblings.get(index);
+                int sortOrder = resetToAlphabetical ? 0 : index;
                 new SqlExecutor(CORE.getSchema()).execute("UPDATE " + CORE.getTableInfoContainers() + " SET SortOrder = ? WHERE EntityId = ?",
-                        resetToAlphabetical ? 0 : index, current.getId());
+                        sortOrder, current.getId());
+                reordered.add(new ContainerTree.Node(current.getId(), current.getParent().getId(), current.getName(), sortOrder));
             }
             // Clear after the commit has propagated the state to other threads and transactions
-            // Do this in a commit task in case we've joined another existing DbScope.Transaction instead of starting our own
-            t.addCommitTask(ContainerManager::clearCache, DbScope.CommitTaskOption.POSTCOMMIT);
+            // Do this in a commit task in case we've joined another existing DbScope.Transaction instead of starting our own.
+            // Only the siblings (which cache their sort order) and their parent's child list need to go.
+            t.addCommitTask(() ->
+            {
+                siblings.forEach(ContainerManager::_removeFromCache);
+                updateTree(tree -> tree.with(reordered));
+            }, DbScope.CommitTaskOption.POSTCOMMIT);
 
             t.commit();
         }
@@ -1632,6 +1761,7 @@ public class ContainerManager
                 try
                 {
                     _removeFromCache(c);
+                    updateTree(tree -> tree.without(c.getId()));
                 }
                 finally
                 {
@@ -1753,7 +1883,7 @@ public class ContainerManager
         return toString(c.getParsedPath());
     }
 
-    private static String toString(Path p)
+    static String toString(Path p)
     {
         return StringUtils.strip(p.toString(), "/").toLowerCase();
     }
@@ -1795,9 +1925,93 @@ public class ContainerManager
     }
 
 
+    /**
+     * Uncache a container and all its descendants, which is needed after a move or rename since containers cache their
+     * full paths. Uses the given snapshot (taken before the change) to find the subtree and its old paths, falling back
+     * to clearing the entire cache if the container isn't in it.
+     */
+    private static void _removeSubtreeFromCache(ContainerTree before, String id)
+    {
+        if (!before.contains(id))
+        {
+            clearCache();
+            return;
+        }
+
+        for (String subtreeId : before.getSubtreeIds(id))
+        {
+            CACHE.remove(CONTAINER_PREFIX + subtreeId);
+            CACHE.remove(CONTAINER_PREFIX + toString(before.getPath(subtreeId)));
+        }
+
+        // Child lists hold ids, not containers, but the old and new parents' lists changed; blow away the child caches
+        CACHE.removeUsingFilter(new Cache.StringPrefixFilter(CONTAINER_CHILDREN_PREFIX));
+
+        // UNDONE: NavTreeManager should register a ContainerListener
+        NavTreeManager.uncacheAll();
+    }
+
+
+    /**
+     * @return A snapshot of the committed container hierarchy, loading it (one query) if needed. Inside a transaction
+     * the returned snapshot may include that transaction's uncommitted changes, but it won't be cached.
+     */
+    @NotNull
+    public static ContainerTree getTree()
+    {
+        ContainerTree tree = (ContainerTree) CACHE.get(TREE_KEY);
+        if (null != tree)
+            return tree;
+
+        long version;
+        synchronized (TREE_LOCK)
+        {
+            version = _treeVersion;
+        }
+
+        List<ContainerTree.Node> nodes = new ArrayList<>();
+        new SqlSelector(CORE.getSchema(), "SELECT EntityId, Parent, Name, SortOrder FROM " + CORE.getTableInfoContainers())
+            .forEach(rs -> nodes.add(new ContainerTree.Node(rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4))));
+        tree = ContainerTree.create(nodes);
+
+        synchronized (TREE_LOCK)
+        {
+            // Don't cache if containers changed while we were loading, or if we might be seeing uncommitted changes
+            if (version == _treeVersion && !CORE.getSchema().getScope().isTransactionActive())
+                CACHE.put(TREE_KEY, tree);
+        }
+
+        return tree;
+    }
+
+
+    // Apply a copy-on-write change to the cached snapshot; if no snapshot is cached, the next getTree() loads a fresh one
+    private static void updateTree(UnaryOperator<ContainerTree> update)
+    {
+        synchronized (TREE_LOCK)
+        {
+            _treeVersion++;
+            ContainerTree tree = (ContainerTree) CACHE.get(TREE_KEY);
+            CACHE.remove(TREE_KEY);   // Other cluster nodes reload their snapshots
+            if (null != tree)
+                CACHE.put(TREE_KEY, update.apply(tree));
+        }
+    }
+
+
+    private static void updateTreeAfterCommit(UnaryOperator<ContainerTree> update)
+    {
+        CORE.getSchema().getScope().addCommitTask(() -> updateTree(update), DbScope.CommitTaskOption.POSTCOMMIT);
+    }
+
+
     public static void clearCache()
     {
-        CACHE.clear();
+        synchronized (TREE_LOCK)
+        {
+            _treeVersion++;
+            CACHE.clear();
+        }
 
         // UNDONE: NavTreeManager should register a ContainerListener
         NavTreeManager.uncacheAll();
@@ -1841,8 +2055,23 @@ public class ContainerManager
         if (children != null)
             return children;
 
-        children = getAllChildrenDepthFirst(root);
-        children.add(root);
+        ContainerTree tree = CORE.getSchema().getScope().isTransactionActive() ? null : getTree();
+        if (null != tree && tree.contains(root.getId()))
+        {
+            // Enumerate the subtree from the snapshot instead of walking (and possibly loading) each child list
+            children = new LinkedHashSet<>();
+            for (String id : tree.getSubtreeIdsDepthFirst(root.getId()))
+            {
+                Container c = getForId(id);
+                if (null != c)
+                    children.add(c);
+            }
+        }
+        else
+        {
+            children = getAllChildrenDepthFirst(root);
+            children.add(root);
+        }
 
         children = Collections.unmodifiableSet(children); // don't let callers modify the cached copy
         _addAllChildrenToCache(root, children);
@@ -1873,6 +2102,10 @@ public class ContainerManager
     /** Retrieve entire container hierarchy */
     public static MultiValuedMap<Container, Container> getContainerTree()
     {
+        MultiValuedMap<Container, Container> fromSnapshot = getContainerTreeFromSnapshot(getRoot());
+        if (null != fromSnapshot)
+            return fromSnapshot;
+
         final MultiValuedMap<Container, Container> mm = new ArrayListValuedHashMap<>();
 
         // Get all containers and parents
@@ -1897,6 +2130,10 @@ public class ContainerManager
      */
     public static MultiValuedMap<Container, Container> getContainerTree(Container root)
     {
+        MultiValuedMap<Container, Container> fromSnapshot = getContainerTreeFromSnapshot(root);
+        if (null != fromSnapshot)
+            return fromSnapshot;
+
         //build a multimap of only the container ids
         final MultiValuedMap<String, String> mmIds = new ArrayListValuedHashMap<>();
 
@@ -1917,6 +2154,30 @@ public class ContainerManager
         return mm;
     }
 
+    // Build the branch from the snapshot, without querying core.Containers. Returns null inside a transaction (which
+    // may have uncommitted container changes) or if root isn't in the snapshot.
+    @Nullable
+    private static MultiValuedMap<Container, Container> getContainerTreeFromSnapshot(Container root)
+    {
+        if (CORE.getSchema().getScope().isTransactionActive())
+            return null;
+
+        ContainerTree tree = getTree();
+        if (!tree.contains(root.getId()))
+            return null;
+
+        // Pre-order, so each parent is resolved before its children, and siblings are already in display order
+        MultiValuedMap<Container, Container> mm = new ArrayListValuedHashMap<>();
+        for (String id : tree.getSubtreeIds(root.getId()))
+        {
+            Container child = getForId(id);
+            if (null == child)
+                continue;
+            mm.put(id.equals(root.getId()) ? null : getForId(tree.getParentId(id)), child);
+        }
+        return mm;
+    }
+
     private static void addChildren(Container c, MultiValuedMap<String, String> mmIds, MultiValuedMap<Container, Container> mm)
     {
         Collection<String> childIds = mmIds.get(c.getId());
@@ -2502,6 +2763,42 @@ public class ContainerManager
         }
 
 
+        @Test
+        public void testTreeAndBulkPermissions()
+        {
+            User user = TestContext.get().getUser();
+            Container one = ContainerManager.createContainer(_testRoot, "one");
+            Container oneA = ContainerManager.createContainer(one, "A");
+            Container two = ContainerManager.createContainer(_testRoot, "two");
+
+            // Snapshot sees the new containers once their commit tasks have run
+            ContainerTree tree = getTree();
+            assertTrue(tree.isDescendant(oneA.getId(), _testRoot.getId()));
+            assertEquals(oneA.getId(), tree.getId(oneA.getParsedPath()));
+            assertEquals(_testRoot.getId(), tree.getParentId(two.getId()));
+
+            ContainerManager.rename(one, user, "renamed");
+            Container renamed = getForId(one.getId());
+            assertEquals(oneA.getId(), getTree().getId(renamed.getParsedPath().append("A")));
+            assertEquals(getForId(oneA.getId()), getForPath(renamed.getParsedPath().append("A")));
+
+            // Bulk resolution matches checking each container, both for the test user and for guests
+            for (User u : List.of(user, User.guest))
+            {
+                Set<String> expected = new HashSet<>();
+                for (Container c : getAllChildren(_testRoot))
+                    if (c.hasPermission(u, ReadPermission.class))
+                        expected.add(c.getId());
+                assertEquals(expected, getContainerIdsWithPermission(_testRoot, u, ReadPermission.class, null));
+            }
+
+            assertTrue(delete(oneA, user));
+            assertFalse(getTree().contains(oneA.getId()));
+            assertTrue(delete(getForId(one.getId()), user));
+            assertTrue(delete(two, user));
+        }
+
+
         @Test
         public void testFolderType()
         {
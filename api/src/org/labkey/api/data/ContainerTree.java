@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the committed container hierarchy: ids, names, parents, and sort orders only, no Container
+ * objects. Nodes are numbered in pre-order (siblings ordered by SortOrder, then case-insensitive name, matching
+ * getChildren()), so every subtree is a contiguous range. That makes path and id lookup, subtree enumeration, and
+ * ancestor checks O(1) (plus the size of the result).
+ *
+ * Changes produce a new snapshot (copy-on-write); ContainerManager swaps it in after the changing transaction commits.
+ * Callers inside a transaction that modifies containers should not expect to see their own changes here.
+ */
+public class ContainerTree
+{
+    private final String[] _ids;
+    private final String[] _names;
+    private final int[] _sortOrders;
+    private final int[] _parents;   // index of parent, -1 for the root
+    private final int[] _ends;      // exclusive end of each node's subtree
+    private final int[][] _children;
+    private final Path[] _paths;
+    private final Map<String, Integer> _byId;
+    private final Map<String, Integer> _byPath;
+
+    /** A single row of core.Containers, as far as the tree is concerned */
+    public static class Node
+    {
+        private final String _id;
+        private final @Nullable String _parentId;
+        private final String _name;
+        private final int _sortOrder;
+
+        public Node(@NotNull String id, @Nullable String parentId, String name, int sortOrder)
+        {
+            _id = id;
+            _parentId = parentId;
+            _name = null == name ? "" : name;
+            _sortOrder = sortOrder;
+        }
+
+        public String getId()
+        {
+            return _id;
+        }
+
+        public @Nullable String getParentId()
+        {
+            return _parentId;
+        }
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public int getSortOrder()
+        {
+            return _sortOrder;
+        }
+    }
+
+    private static final Comparator<Node> SIBLING_ORDER = Comparator.comparingInt(Node::getSortOrder).thenComparing(node -> node.getName().toLowerCase());
+
+    /**
+     * Build a tree from all rows of core.Containers. Nodes whose parent is missing (including descendants of such
+     * nodes) are left out.
+     */
+    public static ContainerTree create(Collection<Node> nodes)
+    {
+        return new ContainerTree(nodes);
+    }
+
+    private ContainerTree(Collection<Node> nodes)
+    {
+        Map<String, List<Node>> childMap = new HashMap<>();
+        List<Node> roots = new ArrayList<>(1);
+
+        for (Node node : nodes)
+        {
+            if (null == node.getParentId())
+                roots.add(node);
+            else
+                childMap.computeIfAbsent(node.getParentId(), k -> new ArrayList<>()).add(node);
+        }
+
+        for (List<Node> siblings : childMap.values())
+            siblings.sort(SIBLING_ORDER);
+
+        int capacity = nodes.size();
+        String[] ids = new String[capacity];
+        String[] names = new String[capacity];
+        int[] sortOrders = new int[capacity];
+        int[] parents = new int[capacity];
+        int[] ends = new int[capacity];
+        int[][] children = new int[capacity][];
+        Path[] paths = new Path[capacity];
+        int count = 0;
+
+        // Iterative pre-order walk; each stack frame is a node index plus the position of the next child to visit
+        int[] stack = new int[Math.max(1, capacity)];
+        int[] next = new int[Math.max(1, capacity)];
+        List<List<Node>> kids = new ArrayList<>(capacity);
+
+        for (Node root : roots)
+        {
+            count = visit(root, -1, Path.rootPath, ids, names, sortOrders, parents, paths, kids, childMap, count);
+            int depth = 0;
+            stack[0] = count - 1;
+            next[0] = 0;
+
+            while (depth >= 0)
+            {
+                int index = stack[depth];
+                List<Node> siblings = kids.get(index);
+
+                if (next[depth] < siblings.size())
+                {
+                    Node child = siblings.get(next[depth]++);
+                    count = visit(child, index, paths[index].append(child.getName(), true), ids, names, sortOrders, parents, paths, kids, childMap, count);
+                    depth++;
+                    stack[depth] = count - 1;
+                    next[depth] = 0;
+                }
+                else
+                {
+                    ends[index] = count;
+                    depth--;
+                }
+            }
+        }
+
+        Map<String, Integer> byId = new HashMap<>(count * 4 / 3 + 1);
+        Map<String, Integer> byPath = new HashMap<>(count * 4 / 3 + 1);
+
+        for (int i = 0; i < count; i++)
+        {
+            byId.put(ids[i], i);
+            byPath.put(ContainerManager.toString(paths[i]), i);
+
+            int[] childIndexes = new int[kids.get(i).size()];
+            int childCount = 0;
+            for (int c = i + 1; c < ends[i]; c = ends[c])
+                childIndexes[childCount++] = c;
+            children[i] = childIndexes;
+        }
+
+        _ids = Arrays.copyOf(ids, count);
+        _names = Arrays.copyOf(names, count);
+        _sortOrders = Arrays.copyOf(sortOrders, count);
+        _parents = Arrays.copyOf(parents, count);
+        _ends = Arrays.copyOf(ends, count);
+        _children = Arrays.copyOf(children, count);
+        _paths = Arrays.copyOf(paths, count);
+        _byId = byId;
+        _byPath = byPath;
+    }
+
+    private static int visit(Node node, int parent, Path path, String[] ids, String[] names, int[] sortOrders, int[] parents,
+                             Path[] paths, List<List<Node>> kids, Map<String, List<Node>> childMap, int count)
+    {
+        ids[count] = node.getId();
+        names[count] = node.getName();
+        sortOrders[count] = node.getSortOrder();
+        parents[count] = parent;
+        paths[count] = path;
+        kids.add(childMap.getOrDefault(node.getId(), Collections.emptyList()));
+        return count + 1;
+    }
+
+    public int size()
+    {
+        return _ids.length;
+    }
+
+    public boolean contains(String id)
+    {
+        return _byId.containsKey(id);
+    }
+
+    /** @return The id of the container at this path (case-insensitive), or null if there isn't one */
+    public @Nullable String getId(Path path)
+    {
+        Integer index = _byPath.get(ContainerManager.toString(path));
+        return null == index ? null : _ids[index];
+    }
+
+    public @Nullable Path getPath(String id)
+    {
+        Integer index = _byId.get(id);
+        return null == index ? null : _paths[index];
+    }
+
+    public @Nullable String getParentId(String id)
+    {
+        Integer index = _byId.get(id);
+        return null == index || _parents[index] < 0 ? null : _ids[_parents[index]];
+    }
+
+    /** @return Ids of the immediate children, in display order */
+    public @NotNull List<String> getChildIds(String id)
+    {
+        Integer index = _byId.get(id);
+        if (null == index)
+            return Collections.emptyList();
+
+        int[] children = _children[index];
+        List<String> ret = new ArrayList<>(children.length);
+        for (int child : children)
+            ret.add(_ids[child]);
+        return ret;
+    }
+
+    /** @return Ids of the container and all its descendants, in pre-order (the container first) */
+    public @NotNull List<String> getSubtreeIds(String id)
+    {
+        Integer index = _byId.get(id);
+        if (null == index)
+            return Collections.emptyList();
+
+        return Collections.unmodifiableList(Arrays.asList(_ids).subList(index, _ends[index]));
+    }
+
+    /** @return Ids of all descendants in depth-first post-order (children before their parents), then the container itself */
+    public @NotNull List<String> getSubtreeIdsDepthFirst(String id)
+    {
+        Integer index = _byId.get(id);
+        if (null == index)
+            return Collections.emptyList();
+
+        List<String> ret = new ArrayList<>(_ends[index] - index);
+        addDepthFirst(index, ret);
+        return ret;
+    }
+
+    private void addDepthFirst(int index, List<String> list)
+    {
+        for (int child : _children[index])
+            addDepthFirst(child, list);
+        list.add(_ids[index]);
+    }
+
+    /** @return true if id is a strict descendant of ancestorId */
+    public boolean isDescendant(String id, String ancestorId)
+    {
+        Integer index = _byId.get(id);
+        Integer ancestor = _byId.get(ancestorId);
+        return null != index && null != ancestor && ancestor < index && index < _ends[ancestor];
+    }
+
+    /** @return A copy of this tree with these nodes added or replaced (e.g., a created, moved, renamed or reordered container) */
+    public ContainerTree with(Collection<Node> changed)
+    {
+        Map<String, Node> nodes = getNodes();
+        for (Node node : changed)
+            nodes.put(node.getId(), node);
+        return new ContainerTree(nodes.values());
+    }
+
+    /** @return A copy of this tree without the container and its descendants */
+    public ContainerTree without(String id)
+    {
+        Integer index = _byId.get(id);
+        if (null == index)
+            return this;
+
+        Map<String, Node> nodes = getNodes();
+        for (int i = index; i < _ends[index]; i++)
+            nodes.remove(_ids[i]);
+        return new ContainerTree(nodes.values());
+    }
+
+    public @Nullable Node getNode(String id)
+    {
+        Integer index = _byId.get(id);
+        return null == index ? null : getNode(index);
+    }
+
+    private Node getNode(int index)
+    {
+        return new Node(_ids[index], _parents[index] < 0 ? null : _ids[_parents[index]], _names[index], _sortOrders[index]);
+    }
+
+    private Map<String, Node> getNodes()
+    {
+        Map<String, Node> nodes = new LinkedHashMap<>(_ids.length * 4 / 3 + 2);
+        for (int i = 0; i < _ids.length; i++)
+            nodes.put(_ids[i], getNode(i));
+        return nodes;
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private final String _root = GUID.makeGUID();
+        private final String _home = GUID.makeGUID();
+        private final String _shared = GUID.makeGUID();
+        private final String _a = GUID.makeGUID();
+        private final String _b = GUID.makeGUID();
+        private final String _c = GUID.makeGUID();
+
+        private ContainerTree createTree()
+        {
+            return ContainerTree.create(List.of(
+                new Node(_b, _home, "B", 0),
+                new Node(_shared, _root, "Shared", 0),
+                new Node(_a, _home, "a", 0),
+                new Node(_root, null, "", 0),
+                new Node(_c, _a, "c", 0),
+                new Node(_home, _root, "home", 0),
+                new Node(GUID.makeGUID(), GUID.makeGUID(), "orphan", 0)
+            ));
+        }
+
+        @Test
+        public void testLookups()
+        {
+            ContainerTree tree = createTree();
+
+            assertEquals(6, tree.size());
+            assertEquals(_root, tree.getId(Path.rootPath));
+            assertEquals(_c, tree.getId(Path.parse("/HOME/A/C/")));
+            assertEquals(Path.parse("/home/a/c/"), tree.getPath(_c));
+            assertNull(tree.getId(Path.parse("/home/nothere/")));
+            assertEquals(_a, tree.getParentId(_c));
+            assertNull(tree.getParentId(_root));
+
+            // Siblings sort case-insensitively by name
+            assertEquals(List.of(_home, _shared), tree.getChildIds(_root));
+            assertEquals(List.of(_a, _b), tree.getChildIds(_home));
+
+            assertEquals(List.of(_home, _a, _c, _b), tree.getSubtreeIds(_home));
+            assertEquals(List.of(_c, _a, _b, _home), tree.getSubtreeIdsDepthFirst(_home));
+
+            assertTrue(tree.isDescendant(_c, _home));
+            assertTrue(tree.isDescendant(_c, _root));
+            assertFalse(tree.isDescendant(_home, _home));
+            assertFalse(tree.isDescendant(_shared, _home));
+        }
+
+        @Test
+        public void testCopyOnWrite()
+        {
+            ContainerTree tree = createTree();
+
+            // Move a (and c with it) under Shared, renaming it and sorting it first
+            ContainerTree moved = tree.with(List.of(new Node(_a, _shared, "z", -1)));
+            assertEquals(_c, moved.getId(Path.parse("/Shared/z/c/")));
+            assertNull(moved.getId(Path.parse("/home/a/")));
+            assertTrue(moved.isDescendant(_c, _shared));
+            assertFalse(moved.isDescendant(_c, _home));
+            assertEquals(List.of(_b), moved.getChildIds(_home));
+
+            // The original snapshot is unchanged
+            assertEquals(_c, tree.getId(Path.parse("/home/a/c/")));
+
+            ContainerTree removed = moved.without(_shared);
+            assertEquals(3, removed.size());
+            assertFalse(removed.contains(_c));
+            assertSame(removed, removed.without(_c));
+        }
+    }
+}
@@ -127,8 +127,10 @@ public class DbSchemaCache
     {
         public DbSchemaBlockingCache(String dsName)
         {
-            super(CacheManager.getCache(1000, CacheManager.UNLIMITED, "DbSchemas for " + dsName), new DbSchemaLoader());
+            super(CacheManager.enableClusterInvalidation(CacheManager.getCache(1000, CacheManager.UNLIMITED, "DbSchemas for " + dsName)), new DbSchemaLoader());
             setCacheTimeChooser(SCHEMA_CACHE_TIME_CHOOSER);
+            // Reload short-lived (e.g., Bare and Fast) schemas in the background instead of blocking requests when they expire
+            setRefreshAhead(0.75);
         }
     }
 }
@@ -62,7 +62,7 @@ public class LoggingResultSetWrapper extends ResultSetWrapper
             if (!_dataLoggingValues.isEmpty() || logEmpty)
             {
                 selectQueryAuditEvent.setDataLogging(_queryLogging, _dataLoggingValues);
-                AuditLogService.get().addEvent(_queryLogging.getUser(), selectQueryAuditEvent);
+                AuditLogService.get().queueEvent(_queryLogging.getUser(), selectQueryAuditEvent);
             }
         }
         super.close();
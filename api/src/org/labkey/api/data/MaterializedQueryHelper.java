@@ -42,6 +42,7 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 import static org.labkey.api.test.TestWhen.When.BVT;
@@ -193,6 +194,7 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     private final SQLFragment _selectQuery;
     private final SQLFragment _uptodateQuery;
     private final Supplier<String> _supplier;
+    private final @Nullable LongConsumer _onMaterialize;
     private final List<String> _indexes = new ArrayList<>();
     private final long _maxTimeToCache;
     private final boolean _perContainer;
@@ -214,13 +216,14 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     private boolean _closed = false;
 
     private MaterializedQueryHelper(String prefix, DbScope scope, SQLFragment select, @Nullable SQLFragment uptodate, Supplier<String> supplier, @Nullable Collection<String> indexes, long maxTimeToCache,
-                                    boolean perContainer)
+                                    boolean perContainer, @Nullable LongConsumer onMaterialize)
     {
         _prefix = StringUtils.defaultString(prefix,"mat");
         _scope = scope;
         _selectQuery = select;
         _uptodateQuery = uptodate;
         _supplier = supplier;
+        _onMaterialize = onMaterialize;
         _maxTimeToCache = maxTimeToCache;
         _perContainer = perContainer;
         if (null != indexes)
@@ -351,6 +354,7 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         if (null == materialized)
         {
             _countSelectInto.incrementAndGet();
+            long start = System.currentTimeMillis();
             DbSchema temp = DbSchema.getTemp();
             String name = _prefix + "_" + GUID.makeHash();
             materialized = new Materialized(txCacheKey, now, "\"" + temp.getName() + "\".\"" + name + "\"");
@@ -379,6 +383,9 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
             {
                 _map.put(materialized._cacheKey, materialized);
             }
+
+            if (null != _onMaterialize)
+                _onMaterialize.accept(System.currentTimeMillis() - start);
         }
 
         if (_scope.isTransactionActive())
@@ -410,14 +417,14 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     @Deprecated // use Builder
     public static MaterializedQueryHelper create(String prefix, DbScope scope, SQLFragment select, @Nullable SQLFragment uptodate, Collection<String> indexes, long maxTimeToCache)
     {
-        return new MaterializedQueryHelper(prefix, scope, select, uptodate, null, indexes, maxTimeToCache, false);
+        return new MaterializedQueryHelper(prefix, scope, select, uptodate, null, indexes, maxTimeToCache, false, null);
     }
 
 
     @Deprecated // use Builder
     public static MaterializedQueryHelper create(String prefix, DbScope scope, SQLFragment select, Supplier<String> uptodate, Collection<String> indexes, long maxTimeToCache)
     {
-        return new MaterializedQueryHelper(prefix, scope, select, null, uptodate, indexes, maxTimeToCache, false);
+        return new MaterializedQueryHelper(prefix, scope, select, null, uptodate, indexes, maxTimeToCache, false, null);
     }
 
 
@@ -431,6 +438,7 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         private SQLFragment _uptodate = null;
         private Supplier<String> _supplier = null;
         private Collection<String> _indexes = new ArrayList<>();
+        private LongConsumer _onMaterialize = null;
 
         public Builder(String prefix, DbScope scope, SQLFragment select)
         {
@@ -463,10 +471,17 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
             return this;
         }
 
+        /** Called on the thread that (re)built the table, with the time it took in milliseconds */
+        public Builder onMaterialize(LongConsumer onMaterialize)
+        {
+            _onMaterialize = onMaterialize;
+            return this;
+        }
+
         @Override
         public MaterializedQueryHelper build()
         {
-            return new MaterializedQueryHelper(_prefix, _scope, _select, _uptodate, _supplier, _indexes, _max, false);
+            return new MaterializedQueryHelper(_prefix, _scope, _select, _uptodate, _supplier, _indexes, _max, false, _onMaterialize);
         }
     }
 
@@ -103,7 +103,7 @@ public class SchemaTableInfo implements TableInfo, UpdateableTableInfo, AuditCon
 
     // Column-related
     private TableType _xmlTable = null;
-    private SchemaColumnMetaData _columnMetaData = null;
+    private volatile SchemaColumnMetaData _columnMetaData = null;
     private final Object _columnLock = new Object();
     private String _versionColumnName = null;
     private List<FieldKey> _defaultVisibleColumns = null;
@@ -414,6 +414,13 @@ public class SchemaTableInfo implements TableInfo, UpdateableTableInfo, AuditCon
     }
 
 
+    // Relative size of this table's metadata for SchemaTableInfoCache, without loading the column metadata
+    int getCacheWeight()
+    {
+        SchemaColumnMetaData md = _columnMetaData;
+        return 1 + (null == md ? 0 : md.getColumns().size());
+    }
+
     private SchemaColumnMetaData getColumnMetaData()
     {
         synchronized (_columnLock)
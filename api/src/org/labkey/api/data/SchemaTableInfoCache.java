@@ -36,6 +36,10 @@ public class SchemaTableInfoCache
 {
     private static final Logger LOG = LogManager.getLogger(SchemaTableInfoCache.class);
 
+    // Tables vary from a handful of columns to hundreds, so bound each scope's cache by total columns as well as tables
+    private static final int MAX_TABLES = 10000;
+    private static final long MAX_COLUMNS = Long.getLong("labkey.schemaTableCacheMaxColumns", 250_000);
+
     private final BlockingCache<String, SchemaTableInfo> _blockingCache;
 
     public SchemaTableInfoCache(DbScope scope)
@@ -131,12 +135,13 @@ public class SchemaTableInfoCache
         {
             super(createCache(scope), new SchemaTableLoader());
             setCacheTimeChooser(TABLE_CACHE_TIME_CHOOSER);
+            setRefreshAhead(0.75);
         }
     }
 
 
     private static Cache<String, Wrapper<SchemaTableInfo>> createCache(DbScope scope)
     {
-        return CacheManager.getStringKeyCache(10000, CacheManager.UNLIMITED, "SchemaTableInfos for " + scope.getDisplayName());
+        return CacheManager.enableClusterInvalidation(CacheManager.getWeightedCache(MAX_TABLES, MAX_COLUMNS, CacheManager.UNLIMITED, "SchemaTableInfos for " + scope.getDisplayName(), CacheManager.wrapperWeigher((String key, SchemaTableInfo table) -> table.getCacheWeight())));
     }
 }
@@ -34,8 +34,10 @@ import org.labkey.api.data.dialect.SqlDialect;
 import org.labkey.api.data.validator.ColumnValidator;
 import org.labkey.api.data.validator.ColumnValidators;
 import org.labkey.api.dataiterator.AbstractDataIterator;
+import org.labkey.api.dataiterator.DataIterator;
 import org.labkey.api.dataiterator.DataIteratorBuilder;
 import org.labkey.api.dataiterator.DataIteratorContext;
+import org.labkey.api.dataiterator.DataIteratorUtil;
 import org.labkey.api.dataiterator.Pump;
 import org.labkey.api.dataiterator.SimpleTranslator;
 import org.labkey.api.dataiterator.TableInsertDataIterator;
@@ -47,6 +49,7 @@ import org.labkey.api.miniprofiler.MiniProfiler;
 import org.labkey.api.query.AliasedColumn;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.query.QueryUpdateService;
 import org.labkey.api.query.RuntimeValidationException;
 import org.labkey.api.security.User;
 import org.labkey.api.util.GUID;
@@ -74,6 +77,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Table manipulation methods
@@ -807,6 +811,117 @@ public class Table
     }
 
 
+    // Keeps statements under SQL Server's limits of 2100 parameters and 1000 rows per VALUES clause
+    private static final int BATCH_INSERT_MAX_PARAMETERS = 2000;
+    private static final int BATCH_INSERT_MAX_ROWS = 1000;
+
+    /**
+     * Inserts rows using multi-row INSERT statements, for callers that write many rows and don't need them back. Special
+     * fields (Created, EntityId, etc.) are filled in and values are validated as in insert(), but auto-increment values
+     * are not reselected. Columns missing from a row are inserted as NULL rather than defaulted.
+     * @return the number of rows inserted
+     */
+    public static int batchInsert(@Nullable User user, TableInfo table, List<?> rows)
+    {
+        assert (table.getTableType() != DatabaseTableType.NOT_IN_DB): ("Table " + table.getSchema().getName() + "." + table.getName() + " is not in the physical database.");
+
+        if (rows.isEmpty())
+            return 0;
+
+        java.sql.Timestamp date = new java.sql.Timestamp(System.currentTimeMillis());
+        List<Map<String, Object>> rowFields = new ArrayList<>(rows.size());
+        Set<String> names = new CaseInsensitiveHashSet();
+
+        for (Object row : rows)
+        {
+            //noinspection unchecked
+            Map<String, Object> fields = row instanceof Map ?
+                    _getTableData(table, (Map<String, Object>)row, true) :
+                    _getTableData(table, row, true);
+            _insertSpecialFields(user, table, fields, date);
+            _updateSpecialFields(user, table, fields, date);
+            rowFields.add(fields);
+            names.addAll(fields.keySet());
+        }
+
+        List<ColumnInfo> columns = new ArrayList<>();
+
+        for (ColumnInfo column : table.getColumns())
+        {
+            if (names.contains(column.getName()))
+                columns.add(column);
+        }
+
+        if (columns.isEmpty())
+            throw new IllegalArgumentException("Table.batchInsert called with no column data. table=" + table);
+
+        for (ColumnInfo column : columns)
+        {
+            List<ColumnValidator> validators = ColumnValidators.create(column, null);
+            boolean required = column.isRequired() && !Table.AUTOPOPULATED_COLUMN_NAMES.contains(column.getName()) && column.getJdbcDefaultValue() == null;
+
+            for (int i = 0; i < rowFields.size(); i++)
+            {
+                Object value = rowFields.get(i).get(column.getName());
+
+                if (null == value || value instanceof String && 0 == ((String) value).length())
+                {
+                    if (required)
+                        throw new RuntimeValidationException("A value is required for field '" + column.getName() + "'", column.getName());
+                }
+                else
+                {
+                    for (ColumnValidator v : validators)
+                    {
+                        String msg = v.validate(i + 1, value);
+                        if (msg != null)
+                            throw new RuntimeValidationException(msg, column.getName());
+                    }
+                }
+            }
+        }
+
+        String columnSQL = columns.stream().map(ColumnInfo::getSelectName).collect(Collectors.joining(", "));
+        String valueSQL = "(" + StringUtils.repeat("?", ", ", columns.size()) + ")";
+        int rowsPerStatement = Math.max(1, Math.min(BATCH_INSERT_MAX_ROWS, BATCH_INSERT_MAX_PARAMETERS / columns.size()));
+        SqlExecutor executor = new SqlExecutor(table.getSchema());
+
+        for (int start = 0; start < rowFields.size(); start += rowsPerStatement)
+        {
+            List<Map<String, Object>> chunk = rowFields.subList(start, Math.min(start + rowsPerStatement, rowFields.size()));
+            SQLFragment insertSQL = new SQLFragment("INSERT INTO ");
+            insertSQL.append(table.getSelectName());
+            insertSQL.append("\n\t(").append(columnSQL).append(")\n\tVALUES ");
+            String comma = "";
+
+            for (Map<String, Object> fields : chunk)
+            {
+                insertSQL.append(comma).append(valueSQL);
+                comma = ", ";
+
+                for (ColumnInfo column : columns)
+                {
+                    Object value = fields.get(column.getName());
+
+                    if (value instanceof String && 0 == ((String) value).length())
+                        value = null;
+
+                    if (value instanceof Parameter.JdbcParameterValue)
+                        insertSQL.add(value);
+                    else
+                        insertSQL.add(new Parameter.TypedValue(value, column.getJdbcType()));
+                }
+            }
+
+            executor.execute(insertSQL);
+        }
+
+        notifyTableUpdate(table);
+
+        return rowFields.size();
+    }
+
+
     public static <K> K update(@Nullable User user, TableInfo table, K fieldsIn, Object pkVals)
     {
         return update(user, table, fieldsIn, pkVals, null, Level.WARN);
@@ -1684,5 +1799,102 @@ public class Table
 
             new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE EntityId = '" + extract.guid + "'");
         }
+
+        @Test
+        public void testBulkLoad() throws Exception
+        {
+            TableInfo testTable = TestSchema.getInstance().getTableInfoTestTable();
+            if (!testTable.getSqlDialect().isPostgreSQL())
+                return;
+
+            Container c = JunitUtil.getTestContainer();
+            int maxRowId = new SqlSelector(testTable.getSchema(), "SELECT COALESCE(MAX(RowId), 0) FROM test.testtable").getObject(Integer.class);
+
+            try
+            {
+                for (boolean selectIds : new boolean[] {false, true})
+                {
+                    DataIteratorContext dic = new DataIteratorContext();
+                    dic.setInsertOption(QueryUpdateService.InsertOption.IMPORT);
+                    dic.setUseBulkLoad(true);
+                    dic.setSelectIds(selectIds);
+                    TestDataIterator extract = new TestDataIterator();
+                    SimpleTranslator translate = new SimpleTranslator(extract, dic);
+                    translate.selectAll();
+                    translate.addBuiltInColumns(dic, c, TestContext.get().getUser(), testTable, false);
+
+                    List<Integer> rowIds = new ArrayList<>();
+                    try (DataIterator load = TableInsertDataIterator.create(translate, testTable, dic).getDataIterator(dic))
+                    {
+                        Integer rowIdIndex = DataIteratorUtil.createColumnNameMap(load).get("RowId");
+                        while (load.next())
+                        {
+                            if (selectIds)
+                                rowIds.add((Integer) load.get(rowIdIndex));
+                        }
+                    }
+
+                    assertFalse(dic.getErrors().hasErrors());
+                    if (selectIds)
+                    {
+                        assertEquals(3, rowIds.size());
+                        for (int i = 0; i < rowIds.size(); i++)
+                            assertEquals(101 + i, (int) new SqlSelector(testTable.getSchema(), "SELECT IntNotNull FROM test.testtable WHERE RowId = ?", rowIds.get(i)).getObject(Integer.class));
+                    }
+                }
+
+                assertEquals(6, new SqlSelector(testTable.getSchema(), "SELECT COUNT(*) FROM test.testtable WHERE Container = ? AND RowId > ?", c, maxRowId).getObject(Integer.class).intValue());
+            }
+            finally
+            {
+                new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE Container = ? AND RowId > ?", c, maxRowId);
+            }
+        }
+
+        @Test
+        public void testBatchInsert()
+        {
+            TableInfo testTable = TestSchema.getInstance().getTableInfoTestTable();
+            Container c = JunitUtil.getTestContainer();
+            int maxRowId = new SqlSelector(testTable.getSchema(), "SELECT COALESCE(MAX(RowId), 0) FROM test.testtable").getObject(Integer.class);
+
+            try
+            {
+                // Enough rows to need several statements; odd rows leave Text out entirely
+                List<Map<String, Object>> rows = new ArrayList<>();
+                for (int i = 0; i < 2500; i++)
+                {
+                    Map<String, Object> row = new CaseInsensitiveHashMap<>();
+                    row.put("Container", c.getId());
+                    if (i % 2 == 0)
+                        row.put("Text", "Row " + i);
+                    row.put("IntNotNull", i);
+                    row.put("BitNotNull", true);
+                    row.put("DateTimeNotNull", new Date());
+                    rows.add(row);
+                }
+
+                assertEquals(2500, Table.batchInsert(TestContext.get().getUser(), testTable, rows));
+
+                SQLFragment sql = new SQLFragment("SELECT COUNT(*) FROM test.testtable WHERE Container = ? AND RowId > ?", c, maxRowId);
+                assertEquals(2500, new SqlSelector(testTable.getSchema(), sql).getObject(Integer.class).intValue());
+                sql.append(" AND Text IS NULL AND EntityId IS NOT NULL");
+                assertEquals(1250, new SqlSelector(testTable.getSchema(), sql).getObject(Integer.class).intValue());
+
+                try
+                {
+                    rows.get(1).remove("IntNotNull");
+                    Table.batchInsert(TestContext.get().getUser(), testTable, rows);
+                    fail("Expected RuntimeValidationException");
+                }
+                catch (RuntimeValidationException ignored)
+                {
+                }
+            }
+            finally
+            {
+                new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE Container = ? AND RowId > ?", c, maxRowId);
+            }
+        }
     }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data.queryprofiler;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts non-negative values (query times, in milliseconds) in the style of HdrHistogram: each power-of-two range is
+ * split into SUB_BUCKETS linear buckets, so any percentile is reported to within 1/16th of the true value, however
+ * large. Ranges are allocated the first time a value lands in them; a query whose times stay within a few powers of
+ * two costs a few hundred bytes. Recording is lock-free and reads don't block writers.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Range 0 holds values 0 - 15, one per bucket. Range r > 0 holds [2^(r + 3), 2^(r + 4)), in buckets 2^(r - 1) wide.
+    private static final int RANGES = Long.SIZE - SUB_BUCKET_BITS;
+
+    private final AtomicReferenceArray<AtomicLongArray> _ranges = new AtomicReferenceArray<>(RANGES);
+
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        int range = range(value);
+        AtomicLongArray counts = _ranges.get(range);
+
+        if (null == counts)
+        {
+            _ranges.compareAndSet(range, null, new AtomicLongArray(SUB_BUCKETS));
+            counts = _ranges.get(range);
+        }
+
+        counts.incrementAndGet(bucket(value, range));
+    }
+
+    /** @return a copy that won't change as this histogram records more values */
+    public LatencyHistogram copy()
+    {
+        LatencyHistogram copy = new LatencyHistogram();
+
+        for (int range = 0; range < RANGES; range++)
+        {
+            AtomicLongArray counts = _ranges.get(range);
+
+            if (null != counts)
+            {
+                AtomicLongArray copied = new AtomicLongArray(SUB_BUCKETS);
+                for (int bucket = 0; bucket < SUB_BUCKETS; bucket++)
+                    copied.set(bucket, counts.get(bucket));
+                copy._ranges.set(range, copied);
+            }
+        }
+
+        return copy;
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+
+        for (int range = 0; range < RANGES; range++)
+        {
+            AtomicLongArray counts = _ranges.get(range);
+
+            if (null != counts)
+                for (int bucket = 0; bucket < SUB_BUCKETS; bucket++)
+                    count += counts.get(bucket);
+        }
+
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the largest value that falls in the same bucket as the value at that percentile, or 0 if nothing has been
+     * recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = getCount();
+
+        if (0 == count)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        long highest = 0;
+
+        for (int range = 0; range < RANGES; range++)
+        {
+            AtomicLongArray counts = _ranges.get(range);
+
+            if (null != counts)
+            {
+                for (int bucket = 0; bucket < SUB_BUCKETS; bucket++)
+                {
+                    long n = counts.get(bucket);
+
+                    if (n > 0)
+                    {
+                        seen += n;
+                        highest = highestValue(range, bucket);
+
+                        if (seen >= rank)
+                            return highest;
+                    }
+                }
+            }
+        }
+
+        // Only if values were recorded while we were counting
+        return highest;
+    }
+
+    private static int range(long value)
+    {
+        int bits = Long.SIZE - Long.numberOfLeadingZeros(value);
+        return Math.max(0, bits - SUB_BUCKET_BITS);
+    }
+
+    private static int bucket(long value, int range)
+    {
+        return 0 == range ? (int) value : (int) (value >>> (range - 1)) & (SUB_BUCKETS - 1);
+    }
+
+    private static long highestValue(int range, int bucket)
+    {
+        if (0 == range)
+            return bucket;
+
+        long lowest = (long) (SUB_BUCKETS + bucket) << (range - 1);
+        return lowest + (1L << (range - 1)) - 1;
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testPercentiles()
+        {
+            LatencyHistogram histogram = new LatencyHistogram();
+            assertEquals(0, histogram.getValueAtPercentile(50));
+
+            for (int i = 1; i <= 100; i++)
+                histogram.record(i);
+
+            assertEquals(100, histogram.getCount());
+            assertEquals(1, histogram.getValueAtPercentile(0));
+            assertEquals(15, histogram.getValueAtPercentile(15));
+            assertWithin(50, histogram.getValueAtPercentile(50));
+            assertWithin(95, histogram.getValueAtPercentile(95));
+            assertWithin(99, histogram.getValueAtPercentile(99));
+            assertWithin(100, histogram.getValueAtPercentile(100));
+        }
+
+        @Test
+        public void testRanges()
+        {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long[] values = {0, 15, 16, 31, 32, 1000, 60_000, 3_600_000, Long.MAX_VALUE};
+
+            for (long value : values)
+            {
+                histogram.record(value);
+
+                int range = range(value);
+                int bucket = bucket(value, range);
+                assertTrue(range < RANGES);
+                assertTrue(bucket >= 0 && bucket < SUB_BUCKETS);
+                assertTrue(value <= highestValue(range, bucket));
+                assertWithin(value, highestValue(range, bucket));
+            }
+
+            histogram.record(-5);
+            assertEquals(values.length + 1, histogram.getCount());
+            assertEquals(0, histogram.getValueAtPercentile(1));
+            assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+            LatencyHistogram copy = histogram.copy();
+            histogram.record(5);
+            assertEquals(values.length + 1, copy.getCount());
+        }
+
+        // Bucket boundaries are within 1/16th of the value
+        private void assertWithin(long expected, long actual)
+        {
+            assertTrue("Expected about " + expected + " but was " + actual, actual >= expected && actual - expected <= expected / SUB_BUCKETS);
+        }
+    }
+}
@@ -63,7 +63,7 @@ public class Query
 
     public String getSql()
     {
-        // Do any transformations on the SQL on the way out, in the background thread
+        // Do any transformations on the SQL on the way out, to coalesce queries that differ only in temp table names
         return transform(_sql);
     }
 
@@ -93,34 +93,68 @@ public class Query
             return MiniProfiler.NO_STACK_TRACE_AVAILABLE;
         }
         StringBuilder sb = new StringBuilder();
+        int end = getStackTraceEnd();
 
-        for (int i = 3; i < _stackTrace.length; i++)
+        for (int i = FIRST_FRAME; i < end; i++)
         {
-            String line = _stackTrace[i].toString();
-
-            // Ignore all the servlet container stuff, #11159
-            // Ignore everything before HttpView.render, standard action classes, etc., #13753
-            if  (
-                    line.startsWith(HttpView.class.getName() + ".render") ||
-                    line.startsWith("org.labkey.jsp.compiled.org.labkey.core.view.template.bootstrap.PageTemplate_jsp._jspService") ||
-                    line.startsWith(WebPartView.class.getName() + ".renderInternal") ||
-                    line.startsWith(JspView.class.getName() + ".renderView") ||
-                    line.startsWith(SimpleViewAction.class.getName() + ".handleRequest") ||
-                    line.startsWith(FormViewAction.class.getName() + ".handleRequest") ||
-                    line.startsWith("org.junit.internal.runners.TestMethodRunner.executeMethodBody") ||
-                    line.startsWith("org.apache.catalina.core.ApplicationFilterChain.internalDoFilter") ||
-                    line.startsWith(HttpServlet.class.getName() + ".service")
-                )
-                break;
-
             sb.append("at ");  // Improves compatibility with IntelliJ "Analyze Stacktrace" feature
-            sb.append(line);
+            sb.append(_stackTrace[i]);
             sb.append('\n');
         }
 
         return sb.toString();
     }
 
+    /**
+     * Hash of the frames that getStackTrace() would render, which is much cheaper than rendering them. Lets trackers
+     * count repeats of a stack trace without rendering and compressing it every time.
+     */
+    public int getStackTraceHash()
+    {
+        if (_stackTrace == null)
+            return 0;
+
+        int hash = 1;
+        int end = getStackTraceEnd();
+
+        for (int i = FIRST_FRAME; i < end; i++)
+            hash = 31 * hash + _stackTrace[i].hashCode();
+
+        return hash;
+    }
+
+    private static final int FIRST_FRAME = 3;
+
+    // Class and method name prefix of the frames where stack traces stop. Ignore all the servlet container stuff, #11159.
+    // Ignore everything before HttpView.render, standard action classes, etc., #13753
+    private static final String[][] STOP_FRAMES = {
+        {HttpView.class.getName(), "render"},
+        {"org.labkey.jsp.compiled.org.labkey.core.view.template.bootstrap.PageTemplate_jsp", "_jspService"},
+        {WebPartView.class.getName(), "renderInternal"},
+        {JspView.class.getName(), "renderView"},
+        {SimpleViewAction.class.getName(), "handleRequest"},
+        {FormViewAction.class.getName(), "handleRequest"},
+        {"org.junit.internal.runners.TestMethodRunner", "executeMethodBody"},
+        {"org.apache.catalina.core.ApplicationFilterChain", "internalDoFilter"},
+        {HttpServlet.class.getName(), "service"}
+    };
+
+    private int getStackTraceEnd()
+    {
+        for (int i = FIRST_FRAME; i < _stackTrace.length; i++)
+        {
+            StackTraceElement element = _stackTrace[i];
+
+            for (String[] stop : STOP_FRAMES)
+            {
+                if (element.getClassName().equals(stop[0]) && element.getMethodName().startsWith(stop[1]))
+                    return i;
+            }
+        }
+
+        return _stackTrace.length;
+    }
+
     public boolean isRequestThread()
     {
         return _isRequestThread;
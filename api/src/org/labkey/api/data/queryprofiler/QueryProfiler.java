@@ -16,8 +16,6 @@
 
 package org.labkey.api.data.queryprofiler;
 
-import org.apache.commons.collections4.map.AbstractReferenceMap.ReferenceStrength;
-import org.apache.commons.collections4.map.ReferenceMap;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -57,37 +55,47 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /*
 * User: adam
 * Date: Oct 14, 2009
 * Time: 6:31:40 PM
+*
+* Each query is recorded by the thread that ran it, directly into its QueryTracker's striped counters and latency
+* histogram, so no samples are dropped under load and rendering a report never holds up queries. The tracker sets (the
+* top queries by each statistic) are built from snapshots when they're needed. A background thread keeps the number of
+* trackers bounded.
 */
 public class QueryProfiler
 {
     private static final Logger LOG = LogManager.getLogger(QueryProfiler.class);
     private static final QueryProfiler INSTANCE = new QueryProfiler();
 
-    private final BlockingQueue<Query> _queue = new LinkedBlockingQueue<>(1000);
-    private final Map<String, QueryTracker> _queries = new ReferenceMap<>(ReferenceStrength.HARD, ReferenceStrength.WEAK);
-    private final Object _lock = new Object();
+    // Beyond this many unique queries, drop the ones that wouldn't appear in any tracker set
+    private static final int MAX_TRACKED_QUERIES = QueryTrackerSet.STANDARD_LIMIT * 10;
+
+    private final Map<String, QueryTracker> _queries = new ConcurrentHashMap<>();
     private final Collection<QueryTrackerSet> _trackerSets = new ArrayList<>();
+    private final QueryProfilerThread _thread;
 
-    // All access to these guarded by LOCK
-    private long _requestQueryCount;
-    private long _requestQueryTime;
-    private long _backgroundQueryCount;
-    private long _backgroundQueryTime;
-    private long _uniqueQueryCountEstimate;  // This is a ceiling; true unique count is likely less than this since we're limiting capacity
-    private int _requestCountAtLastReset;
-    private long _upTimeAtLastReset;
-    private boolean _hasBeenReset = false;
+    private final LongAdder _requestQueryCount = new LongAdder();
+    private final LongAdder _requestQueryTime = new LongAdder();
+    private final LongAdder _backgroundQueryCount = new LongAdder();
+    private final LongAdder _backgroundQueryTime = new LongAdder();
+    private final LongAdder _uniqueQueryCountEstimate = new LongAdder();  // This is a ceiling; true unique count is likely less than this since we're limiting capacity
+    private volatile int _requestCountAtLastReset;
+    private volatile long _upTimeAtLastReset;
+    private volatile boolean _hasBeenReset = false;
 
     private final List<DatabaseQueryListener> _listeners = new CopyOnWriteArrayList<>();
 
@@ -100,7 +108,7 @@ public class QueryProfiler
     {
         getTrackerSets().add(new InvocationQueryTrackerSet());
 
-        getTrackerSets().add(new QueryTrackerSet("Total", "highest cumulative execution time", false, true, new QueryTrackerComparator()
+        getTrackerSets().add(new QueryTrackerSet("Total", "highest cumulative execution time", true, new QueryTrackerComparator()
         {
             @Override
             long getPrimaryStatisticValue(QueryTracker qt)
@@ -115,7 +123,7 @@ public class QueryProfiler
             }
         }));
 
-        getTrackerSets().add(new QueryTrackerSet("Avg", "highest average execution time", false, true, new QueryTrackerComparator()
+        getTrackerSets().add(new QueryTrackerSet("Avg", "highest average execution time", true, new QueryTrackerComparator()
         {
             @Override
             long getPrimaryStatisticValue(QueryTracker qt)
@@ -130,7 +138,7 @@ public class QueryProfiler
             }
         }));
 
-        getTrackerSets().add(new QueryTrackerSet("Max", "highest maximum execution time", false, true, new QueryTrackerComparator()
+        getTrackerSets().add(new QueryTrackerSet("Max", "highest maximum execution time", true, new QueryTrackerComparator()
         {
             @Override
             long getPrimaryStatisticValue(QueryTracker qt)
@@ -145,7 +153,11 @@ public class QueryProfiler
             }
         }));
 
-        getTrackerSets().add(new QueryTrackerSet("Last", "most recent invocation time", false, true, new QueryTrackerComparator()
+        addPercentileTrackerSet("P50", "median", 50);
+        addPercentileTrackerSet("P95", "95th percentile", 95);
+        addPercentileTrackerSet("P99", "99th percentile", 99);
+
+        getTrackerSets().add(new QueryTrackerSet("Last", "most recent invocation time", true, new QueryTrackerComparator()
         {
             @Override
             long getPrimaryStatisticValue(QueryTracker qt)
@@ -168,7 +180,7 @@ public class QueryProfiler
 
         // Not displayed, but gives new queries some time to get above one of the other thresholds. Without this,
         // the first N unique queries would dominate the statistics.
-        getTrackerSets().add(new QueryTrackerSet("First", "first invocation time", true, false, new QueryTrackerComparator()
+        getTrackerSets().add(new QueryTrackerSet("First", "first invocation time", false, new QueryTrackerComparator()
         {
             @Override
             long getPrimaryStatisticValue(QueryTracker qt)
@@ -184,11 +196,29 @@ public class QueryProfiler
         }));
 
         initializeCounters();
-        QueryProfilerThread thread = new QueryProfilerThread();
+        _thread = new QueryProfilerThread();
         // It's a daemon thread, but shutdown listener ensures orderly shutdown and logs query stats at shutdown
-        ContextListener.addShutdownListener(thread);
+        ContextListener.addShutdownListener(_thread);
 
-        thread.start();
+        _thread.start();
+    }
+
+    private void addPercentileTrackerSet(String caption, String name, double percentile)
+    {
+        getTrackerSets().add(new QueryTrackerSet(caption, "highest " + name + " execution time", true, new QueryTrackerComparator()
+        {
+            @Override
+            long getPrimaryStatisticValue(QueryTracker qt)
+            {
+                return qt.getPercentile(percentile);
+            }
+
+            @Override
+            long getSecondaryStatisticValue(QueryTracker qt)
+            {
+                return qt.getCumulative();
+            }
+        }));
     }
 
     public void addListener(DatabaseQueryListener listener)
@@ -232,41 +262,98 @@ public class QueryProfiler
 
         MiniProfiler.addQuery(elapsed, sql, stackTrace);
 
-        // Don't block if queue is full
-        _queue.offer(new Query(scope, sql, parameters, elapsed, stackTrace, requestThread));
+        record(new Query(scope, sql, parameters, elapsed, stackTrace, requestThread));
         return stackTrace;
     }
 
-    public void resetAllStatistics()
+    private void record(Query query)
     {
-        synchronized (_lock)
+        if (query.isRequestThread())
+        {
+            _requestQueryCount.increment();
+            _requestQueryTime.add(query.getElapsed());
+        }
+        else
+        {
+            _backgroundQueryCount.increment();
+            _backgroundQueryTime.add(query.getElapsed());
+        }
+
+        String sql = query.getSql();
+        QueryTracker tracker = _queries.get(sql);
+
+        if (null == tracker)
         {
-            for (QueryTrackerSet set : getTrackerSets())
-                set.clear();
+            // First instance of this query, so the new tracker records this invocation and saves its parameters
+            QueryTracker newTracker = new QueryTracker(query);
+            tracker = _queries.putIfAbsent(sql, newTracker);
 
-            _queries.clear();
+            if (null == tracker)
+            {
+                _uniqueQueryCountEstimate.increment();
 
-            initializeCounters();
+                if (_queries.size() > MAX_TRACKED_QUERIES)
+                    _thread.requestPrune();
 
-            _hasBeenReset = true;
+                return;
+            }
         }
+
+        tracker.addInvocation(query);
+    }
+
+    public void resetAllStatistics()
+    {
+        _queries.clear();
+
+        initializeCounters();
+
+        _hasBeenReset = true;
     }
 
     private void initializeCounters()
     {
-        synchronized (_lock)
-        {
-            _requestQueryCount = 0;
-            _requestQueryTime = 0;
-            _backgroundQueryCount = 0;
-            _backgroundQueryTime = 0;
-            _uniqueQueryCountEstimate = 0;
-            _requestCountAtLastReset = ViewServlet.getRequestCount();
+        _requestQueryCount.reset();
+        _requestQueryTime.reset();
+        _backgroundQueryCount.reset();
+        _backgroundQueryTime.reset();
+        _uniqueQueryCountEstimate.reset();
+        _requestCountAtLastReset = ViewServlet.getRequestCount();
+
+        RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
+        if (runtimeBean != null)
+            _upTimeAtLastReset = runtimeBean.getUptime();
+    }
 
-            RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
-            if (runtimeBean != null)
-                _upTimeAtLastReset = runtimeBean.getUptime();
-        }
+    // Statistics that hold still while they're sorted
+    private List<QueryTracker> getSnapshots()
+    {
+        return _queries.values().stream()
+            .map(QueryTracker::snapshot)
+            .collect(Collectors.toList());
+    }
+
+    /** @return a copy of each tracker set, holding the top queries by its statistic as of now */
+    private List<QueryTrackerSet> getCurrentTrackerSets()
+    {
+        List<QueryTracker> snapshots = getSnapshots();
+
+        return getTrackerSets().stream()
+            .map(set -> set.top(snapshots))
+            .collect(Collectors.toList());
+    }
+
+    // Keep the queries that appear in at least one tracker set and drop the rest
+    private void prune()
+    {
+        long start = System.currentTimeMillis();
+        Set<QueryTracker> keep = new HashSet<>();
+
+        for (QueryTrackerSet set : getCurrentTrackerSets())
+            keep.addAll(set);
+
+        // Trackers are equal to their snapshots. Spare the ones added since we took the snapshots.
+        _queries.values().removeIf(tracker -> !keep.contains(tracker) && tracker.getFirstInvocation() < start);
     }
 
     private class ReportView extends HttpView
@@ -287,71 +374,70 @@ public class QueryProfiler
         @Override
         protected void renderInternal(Object model, PrintWriter out)
         {
-            for (QueryTrackerSet set : getTrackerSets())
+            for (QueryTrackerSet definition : getTrackerSets())
             {
-                if (set.getCaption().equals(_statName))
+                if (definition.getCaption().equals(_statName))
                 {
+                    QueryTrackerSet set = definition.top(getSnapshots());
                     out.println("\n<table>");
 
-                    // Don't update anything while we're rendering the report or vice versa
-                    synchronized (_lock)
+                    int requests = ViewServlet.getRequestCount() - _requestCountAtLastReset;
+                    long requestQueryCount = _requestQueryCount.sum();
+                    long requestQueryTime = _requestQueryTime.sum();
+
+                    out.println("  <tr><td colspan=5>" + _buttonHTML + "</td></tr>");
+
+                    out.println("  <tr><td style=\"border-top:1px solid;text-align:center\" colspan=5>Queries Executed Within HTTP Requests</td></tr>");
+                    out.println("  <tr><td>Query Count:</td><td style=\"text-align:right\">" + Formats.commaf0.format(requestQueryCount) + "</td>");
+                    out.println("<td style=\"width:10px\">&nbsp;</td>");
+                    out.println("<td>Query Time:</td><td style=\"text-align:right\">" + Formats.commaf0.format(requestQueryTime) + "</td>");
+                    out.println("</tr>\n  <tr>");
+                    out.println("<td>Queries per Request:</td><td style=\"text-align:right\">" + Formats.f1.format((double) requestQueryCount / requests) + "</td>");
+                    out.println("<td style=\"width:10px\">&nbsp;</td>");
+                    out.println("<td>Query Time per Request:</td><td style=\"text-align:right\">" + Formats.f1.format((double) requestQueryTime / requests) + "</td>");
+                    out.println("</tr>\n  <tr>");
+                    out.println("<td>" + (_hasBeenReset ? "Request Count Since Last Reset" : "Request Count") + ":</td><td style=\"text-align:right\">" + Formats.commaf0.format(requests) + "</td><td colspan=3></td></tr>");
+                    out.println("  <tr><td style=\"border-top:1px solid\" colspan=5>&nbsp;</td></tr>");
+
+                    out.println("  <tr><td style=\"border-top:1px solid;text-align:center\" colspan=5>Queries Executed Within Background Threads</td></tr>");
+                    out.println("  <tr><td>Query Count:</td><td style=\"text-align:right\">" + Formats.commaf0.format(_backgroundQueryCount.sum()) + "</td>");
+                    out.println("<td style=\"width:10px\">&nbsp;</td>");
+                    out.println("<td>Query Time:</td><td style=\"text-align:right\">" + Formats.commaf0.format(_backgroundQueryTime.sum()) + "</td>");
+                    out.println("</tr>");
+                    out.println("  <tr><td style=\"border-top:1px solid\" colspan=5>&nbsp;</td></tr>");
+                    out.println("  <tr><td colspan=5>&nbsp;</td></tr>");
+
+                    out.println("  <tr><td>Total Unique Queries");
+
+                    if (_uniqueQueryCountEstimate.sum() > QueryTrackerSet.STANDARD_LIMIT)
+                        out.println(" (Estimate)");
+
+                    out.println(":</td><td style=\"text-align:right\">" + Formats.commaf0.format(_uniqueQueryCountEstimate.sum()) + "</td>");
+                    out.println("<td style=\"width:10px\">&nbsp;</td>");
+
+                    RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
+                    if (runtimeBean != null)
                     {
-                        int requests = ViewServlet.getRequestCount() - _requestCountAtLastReset;
-
-                        out.println("  <tr><td colspan=5>" + _buttonHTML + "</td></tr>");
-
-                        out.println("  <tr><td style=\"border-top:1px solid;text-align:center\" colspan=5>Queries Executed Within HTTP Requests</td></tr>");
-                        out.println("  <tr><td>Query Count:</td><td style=\"text-align:right\">" + Formats.commaf0.format(_requestQueryCount) + "</td>");
-                        out.println("<td style=\"width:10px\">&nbsp;</td>");
-                        out.println("<td>Query Time:</td><td style=\"text-align:right\">" + Formats.commaf0.format(_requestQueryTime) + "</td>");
-                        out.println("</tr>\n  <tr>");
-                        out.println("<td>Queries per Request:</td><td style=\"text-align:right\">" + Formats.f1.format((double) _requestQueryCount / requests) + "</td>");
-                        out.println("<td style=\"width:10px\">&nbsp;</td>");
-                        out.println("<td>Query Time per Request:</td><td style=\"text-align:right\">" + Formats.f1.format((double) _requestQueryTime / requests) + "</td>");
-                        out.println("</tr>\n  <tr>");
-                        out.println("<td>" + (_hasBeenReset ? "Request Count Since Last Reset" : "Request Count") + ":</td><td style=\"text-align:right\">" + Formats.commaf0.format(requests) + "</td><td colspan=3></td></tr>");
-                        out.println("  <tr><td style=\"border-top:1px solid\" colspan=5>&nbsp;</td></tr>");
-
-                        out.println("  <tr><td style=\"border-top:1px solid;text-align:center\" colspan=5>Queries Executed Within Background Threads</td></tr>");
-                        out.println("  <tr><td>Query Count:</td><td style=\"text-align:right\">" + Formats.commaf0.format(_backgroundQueryCount) + "</td>");
-                        out.println("<td style=\"width:10px\">&nbsp;</td>");
-                        out.println("<td>Query Time:</td><td style=\"text-align:right\">" + Formats.commaf0.format(_backgroundQueryTime) + "</td>");
-                        out.println("</tr>");
-                        out.println("  <tr><td style=\"border-top:1px solid\" colspan=5>&nbsp;</td></tr>");
-                        out.println("  <tr><td colspan=5>&nbsp;</td></tr>");
-
-                        out.println("  <tr><td>Total Unique Queries");
-
-                        if (_uniqueQueryCountEstimate > QueryTrackerSet.STANDARD_LIMIT)
-                            out.println(" (Estimate)");
-
-                        out.println(":</td><td style=\"text-align:right\">" + Formats.commaf0.format(_uniqueQueryCountEstimate) + "</td>");
-                        out.println("<td style=\"width:10px\">&nbsp;</td>");
-
-                        RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
-                        if (runtimeBean != null)
-                        {
-                            long upTime = runtimeBean.getUptime() - _upTimeAtLastReset;
-                            upTime = upTime - (upTime % 1000);
-                            out.println("<td>" + (_hasBeenReset ? "Elapsed Time Since Last Reset" : "Server Uptime") + ":</td><td style=\"text-align:right\">" + DateUtil.formatDuration(upTime) + "</td>");
-                        }
-                        out.println("</tr>");
-                        out.println("</table><br><br>");
-
-                        out.println("<table>");
-                        out.println("  <tr><td>Unique queries with the " + set.getDescription() + " (top " + Formats.commaf0.format(set.size()) + "):</td></tr>");
-                        out.println("</table><br>");
-
-                        out.println("<table class=\"labkey-data-region-legacy labkey-show-borders\">");
-                        QueryTracker.renderRowHeader(out, set, _captionURLFactory);
-
-                        int row = 0;
-
-                        for (QueryTracker tracker : set.descendingSet())
-                            tracker.renderRow(out, (0 == (++row) % 2) ? "labkey-alternate-row" : "labkey-row", _stackTraceURLFactory);
-
-                        out.println("</table>");
+                        long upTime = runtimeBean.getUptime() - _upTimeAtLastReset;
+                        upTime = upTime - (upTime % 1000);
+                        out.println("<td>" + (_hasBeenReset ? "Elapsed Time Since Last Reset" : "Server Uptime") + ":</td><td style=\"text-align:right\">" + DateUtil.formatDuration(upTime) + "</td>");
                     }
+                    out.println("</tr>");
+                    out.println("</table><br><br>");
+
+                    out.println("<table>");
+                    out.println("  <tr><td>Unique queries with the " + set.getDescription() + " (top " + Formats.commaf0.format(set.size()) + "):</td></tr>");
+                    out.println("</table><br>");
+
+                    out.println("<table class=\"labkey-data-region-legacy labkey-show-borders\">");
+                    QueryTracker.renderRowHeader(out, set, _captionURLFactory);
+
+                    int row = 0;
+
+                    for (QueryTracker tracker : set.descendingSet())
+                        tracker.renderRow(out, (0 == (++row) % 2) ? "labkey-alternate-row" : "labkey-row", _stackTraceURLFactory);
+
+                    out.println("</table>");
 
                     return;
                 }
@@ -381,45 +467,41 @@ public class QueryProfiler
             @Override
             protected void renderInternal(Object model, PrintWriter out)
             {
-                // Don't update anything while we're rendering the report or vice versa
-                synchronized (_lock)
-                {
-                    QueryTracker tracker = findTracker(hashCode);
-
-                    if (null == tracker)
-                    {
-                        out.print("<font class=\"labkey-error\">Error: That query no longer exists</font>");
-                        return;
-                    }
+                QueryTracker tracker = findTracker(hashCode);
 
-                    out.println("<table>\n");
-                    out.println("  <tr>\n    <td><strong>SQL</strong></td>\n    <td style=\"padding-left: 1em;\"><strong>SQL&nbsp;With&nbsp;Parameters</strong></td>\n  </tr>\n");
+                if (null == tracker)
+                {
+                    out.print("<font class=\"labkey-error\">Error: That query no longer exists</font>");
+                    return;
+                }
 
-                    out.println("  <tr>\n    <td align=\"right\">");
-                    out.println(new Link.LinkBuilder("copy to clipboard").onClick("return false;").id("copyToClipboardNoParams").attributes(Collections.singletonMap("data-clipboard-target", "#sqlNoParams")).build().getHtmlString());
-                    out.println("</td>\n    <td align=\"right\">");
-                    out.println(new Link.LinkBuilder("copy to clipboard").onClick("return false;").id("copyToClipboardWithParams").attributes(Collections.singletonMap("data-clipboard-target", "#sqlWithParams")).build().getHtmlString());
-                    out.println("</td>\n  </tr>\n");
-                    out.println("  <tr>\n");
-                    out.println("    <td id=\"sqlNoParams\">" + PageFlowUtil.filter(tracker.getSql(), true) + "</td>\n");
-                    out.println("    <td style=\"padding-left: 20px;\" id=\"sqlWithParams\">" + PageFlowUtil.filter(tracker.getSqlAndParameters(), true) + "</td>\n");
-                    out.println("  </tr>\n");
-                    out.println("</table>\n<br>\n");
+                out.println("<table>\n");
+                out.println("  <tr>\n    <td><strong>SQL</strong></td>\n    <td style=\"padding-left: 1em;\"><strong>SQL&nbsp;With&nbsp;Parameters</strong></td>\n  </tr>\n");
 
-                    out.println("\n<script>new Clipboard('#copyToClipboardNoParams');new Clipboard('#copyToClipboardWithParams');</script>\n");
+                out.println("  <tr>\n    <td align=\"right\">");
+                out.println(new Link.LinkBuilder("copy to clipboard").onClick("return false;").id("copyToClipboardNoParams").attributes(Collections.singletonMap("data-clipboard-target", "#sqlNoParams")).build().getHtmlString());
+                out.println("</td>\n    <td align=\"right\">");
+                out.println(new Link.LinkBuilder("copy to clipboard").onClick("return false;").id("copyToClipboardWithParams").attributes(Collections.singletonMap("data-clipboard-target", "#sqlWithParams")).build().getHtmlString());
+                out.println("</td>\n  </tr>\n");
+                out.println("  <tr>\n");
+                out.println("    <td id=\"sqlNoParams\">" + PageFlowUtil.filter(tracker.getSql(), true) + "</td>\n");
+                out.println("    <td style=\"padding-left: 20px;\" id=\"sqlWithParams\">" + PageFlowUtil.filter(tracker.getSqlAndParameters(), true) + "</td>\n");
+                out.println("  </tr>\n");
+                out.println("</table>\n<br>\n");
 
-                    if (tracker.canShowExecutionPlan())
-                    {
-                        out.println("<table>\n  <tr><td>");
-                        ActionURL url = executeFactory.getActionURL(tracker.getSql());
-                        out.println(PageFlowUtil.textLink("Show Execution Plan", url));
-                        out.println("  </td></tr></table>\n<br>\n");
-                    }
+                out.println("\n<script>new Clipboard('#copyToClipboardNoParams');new Clipboard('#copyToClipboardWithParams');</script>\n");
 
-                    out.println("<table>\n");
-                    tracker.renderStackTraces(out);
-                    out.println("</table>\n");
+                if (tracker.canShowExecutionPlan())
+                {
+                    out.println("<table>\n  <tr><td>");
+                    ActionURL url = executeFactory.getActionURL(tracker.getSql());
+                    out.println(PageFlowUtil.textLink("Show Execution Plan", url));
+                    out.println("  </td></tr></table>\n<br>\n");
                 }
+
+                out.println("<table>\n");
+                tracker.renderStackTraces(out);
+                out.println("</table>\n");
             }
         };
     }
@@ -427,27 +509,20 @@ public class QueryProfiler
 
     public HttpView getExecutionPlanView(int hashCode)
     {
-        SQLFragment sql;
-        DbScope scope;
+        QueryTracker tracker = findTracker(hashCode);
 
-        // Don't update anything while we're gathering the SQL and parameters
-        synchronized (_lock)
-        {
-            QueryTracker tracker = findTracker(hashCode);
+        if (null == tracker)
+            return new HtmlView("<font class=\"labkey-error\">Error: That query no longer exists</font>");
 
-            if (null == tracker)
-                return new HtmlView("<font class=\"labkey-error\">Error: That query no longer exists</font>");
+        if (!tracker.canShowExecutionPlan())
+            throw new IllegalStateException("Can't show the execution plan for this query");
 
-            if (!tracker.canShowExecutionPlan())
-                throw new IllegalStateException("Can't show the execution plan for this query");
+        DbScope scope = tracker.getScope();
 
-            scope = tracker.getScope();
+        if (null == scope)
+            throw new IllegalStateException("Scope should not be null");
 
-            if (null == scope)
-                throw new IllegalStateException("Scope should not be null");
-
-            sql = tracker.getSQLFragment();
-        }
+        SQLFragment sql = tracker.getSQLFragment();
 
         Collection<String> executionPlan = scope.getSqlDialect().getExecutionPlan(scope, sql);
 
@@ -509,32 +584,30 @@ public class QueryProfiler
                 }
             };
 
-            // Don't update anything while we're rendering the report or vice versa
-            synchronized (getInstance()._lock)
+            QueryProfiler profiler = getInstance();
+
+            profiler.getCurrentTrackerSets()
+                .stream()
+                .filter(QueryTrackerSet::shouldDisplay)
+                .forEach(export::addAll);
+
+            long upTime = 0;
+            RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
+            if (runtimeBean != null)
             {
-                getInstance().getTrackerSets()
-                    .stream()
-                    .filter(QueryTrackerSet::shouldDisplay)
-                    .forEach(export::addAll);
-
-                long upTime = 0;
-                RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
-                if (runtimeBean != null)
-                {
-                    upTime = runtimeBean.getUptime() - getInstance()._upTimeAtLastReset;
-                    upTime = upTime - (upTime % 1000);
-                }
-                _pw.printf("#Summary - unique queries: %,d, elapsed time: %s\n", getInstance()._uniqueQueryCountEstimate, DateUtil.formatDuration(upTime));
+                upTime = runtimeBean.getUptime() - profiler._upTimeAtLastReset;
+                upTime = upTime - (upTime % 1000);
+            }
+            _pw.printf("#Summary - unique queries: %,d, elapsed time: %s\n", profiler._uniqueQueryCountEstimate.sum(), DateUtil.formatDuration(upTime));
 
-                int requests = ViewServlet.getRequestCount() - getInstance()._requestCountAtLastReset;
-                _pw.printf("#HTTP Requests - query count: %,d, query time (ms): %,d, request count: %d\n", getInstance()._requestQueryCount, getInstance()._requestQueryTime, requests);
-                _pw.printf("#Background Threads - query count: %,d, query time (ms): %,d\n", getInstance()._backgroundQueryCount, getInstance()._backgroundQueryTime);
+            int requests = ViewServlet.getRequestCount() - profiler._requestCountAtLastReset;
+            _pw.printf("#HTTP Requests - query count: %,d, query time (ms): %,d, request count: %d\n", profiler._requestQueryCount.sum(), profiler._requestQueryTime.sum(), requests);
+            _pw.printf("#Background Threads - query count: %,d, query time (ms): %,d\n", profiler._backgroundQueryCount.sum(), profiler._backgroundQueryTime.sum());
 
-                QueryTracker.exportRowHeader(_pw);
+            QueryTracker.exportRowHeader(_pw);
 
-                for (QueryTracker tracker : export.descendingSet())
-                    tracker.exportRow(_pw);
-            }
+            for (QueryTracker tracker : export.descendingSet())
+                tracker.exportRow(_pw);
         }
     }
 
@@ -546,6 +619,15 @@ public class QueryProfiler
             setName(QueryProfilerThread.class.getSimpleName());
         }
 
+        private final Semaphore _pruneRequests = new Semaphore(0);
+
+        void requestPrune()
+        {
+            // Collapse a burst of requests into one pass
+            if (0 == _pruneRequests.availablePermits())
+                _pruneRequests.release();
+        }
+
         @Override
         public void run()
         {
@@ -554,52 +636,16 @@ public class QueryProfiler
                 //noinspection InfiniteLoopStatement
                 while (!interrupted())
                 {
-                    Query query = _queue.take();
+                    _pruneRequests.acquire();
+                    _pruneRequests.drainPermits();
 
-                    // Don't update or add while we're rendering the report or vice versa
-                    synchronized (_lock)
+                    try
+                    {
+                        prune();
+                    }
+                    catch (Exception e)
                     {
-                        if (query.isRequestThread())
-                        {
-                            _requestQueryCount++;
-                            _requestQueryTime += query.getElapsed();
-                        }
-                        else
-                        {
-                            _backgroundQueryCount++;
-                            _backgroundQueryTime += query.getElapsed();
-                        }
-
-                        QueryTracker tracker = _queries.get(query.getSql());
-
-                        if (null == tracker)
-                        {
-                            tracker = new QueryTracker(query.getScope(), query.getSql(), query.getElapsed(), query.getStackTrace(), query.isValidSql());
-
-                            // First instance of this query, so always save its parameters
-                            tracker.setParameters(query.getParameters());
-
-                            _uniqueQueryCountEstimate++;
-
-                            for (QueryTrackerSet set : getTrackerSets())
-                                set.add(tracker);
-
-                            _queries.put(query.getSql(), tracker);
-                        }
-                        else
-                        {
-                            for (QueryTrackerSet set : getTrackerSets())
-                                set.beforeUpdate(tracker);
-
-                            tracker.addInvocation(query.getElapsed(), query.getStackTrace());
-
-                            for (QueryTrackerSet set : getTrackerSets())
-                                set.update(tracker);
-
-                            // Save the parameters of the longest running query
-                            if (tracker.getMax() == query.getElapsed())
-                                tracker.setParameters(query.getParameters());
-                        }
+                        LOG.error("Exception pruning query statistics", e);
                     }
                 }
             }
@@ -653,7 +699,7 @@ public class QueryProfiler
     {
         InvocationQueryTrackerSet()
         {
-            super("Count", "highest number of invocations", false, true, new QueryTrackerComparator()
+            super("Count", "highest number of invocations", true, new QueryTrackerComparator()
             {
                 @Override
                 long getPrimaryStatisticValue(QueryTracker qt)
@@ -15,12 +15,9 @@
  */
 package org.labkey.api.data.queryprofiler;
 
-import org.apache.commons.collections4.map.AbstractReferenceMap.ReferenceStrength;
-import org.apache.commons.collections4.map.ReferenceMap;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.labkey.api.collections.ByteArrayHashKey;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.Table;
@@ -38,56 +35,96 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.DataFormatException;
 
 /**
  * Information about a specific query that has been issued against the database. Intended to have one instance
  * per unique SQL. Tracks information about executions to date, and code that invoked it.
+ *
+ * Invocations are added concurrently by the threads that ran the queries, so the statistics are striped accumulators
+ * that are summed when read. Sorting needs statistics that hold still, so the profiler sorts snapshots (see
+ * snapshot()) rather than live trackers.
  * User: jeckels
  * Date: 2/13/14
  */
 class QueryTracker
 {
+    private static final int MAX_STACK_TRACES = 1000;
+
     private final @Nullable DbScope _scope;
     private final String _sql;
     private final boolean _validSql;
     private final long _firstInvocation;
-    private final Map<ByteArrayHashKey, AtomicInteger> _stackTraces = new ReferenceMap<>(ReferenceStrength.SOFT, ReferenceStrength.HARD, true); // Not sure about purgeValues
+    // Keyed by Query.getStackTraceHash(), so each distinct stack trace is rendered and compressed just once
+    private final Map<Integer, StackTrace> _stackTraces;
 
-    private @Nullable List<Object> _parameters = null;  // Keep parameters from the longest running query
+    private volatile @Nullable List<Object> _parameters = null;  // Keep parameters from the longest running query
 
-    private long _count = 0;
-    private long _max = 0;
-    private long _cumulative = 0;
-    private long _lastInvocation;
+    private final LongAdder _count = new LongAdder();
+    private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+    private final LongAdder _cumulative = new LongAdder();
+    private final LongAccumulator _lastInvocation = new LongAccumulator(Math::max, 0);
+    private final LatencyHistogram _histogram;
 
-    QueryTracker(@Nullable DbScope scope, @NotNull String sql, long elapsed, String stackTrace, boolean validSql)
+    QueryTracker(@NotNull Query query)
     {
-        _scope = scope;
-        _sql = sql;
-        _validSql = validSql;
+        _scope = query.getScope();
+        _sql = query.getSql();
+        _validSql = query.isValidSql();
         _firstInvocation = System.currentTimeMillis();
+        _stackTraces = new ConcurrentHashMap<>();
+        _histogram = new LatencyHistogram();
 
-        addInvocation(elapsed, stackTrace);
+        addInvocation(query);
     }
 
-    public void addInvocation(long elapsed, String stackTrace)
+    // Snapshot of the tracker's current statistics; shares its stack traces and parameters
+    private QueryTracker(QueryTracker tracker)
     {
-        _count++;
-        _cumulative += elapsed;
-        _lastInvocation = System.currentTimeMillis();
+        _scope = tracker._scope;
+        _sql = tracker._sql;
+        _validSql = tracker._validSql;
+        _firstInvocation = tracker._firstInvocation;
+        _stackTraces = tracker._stackTraces;
+        _parameters = tracker._parameters;
+        _count.add(tracker.getCount());
+        _max.accumulate(tracker.getMax());
+        _cumulative.add(tracker.getCumulative());
+        _lastInvocation.accumulate(tracker.getLastInvocation());
+        _histogram = tracker._histogram.copy();
+    }
+
+    public void addInvocation(Query query)
+    {
+        long elapsed = query.getElapsed();
+
+        // Save the parameters of the longest running query (and of the first)
+        if (elapsed >= _max.get())
+            _parameters = query.getParameters();
+
+        _count.increment();
+        _cumulative.add(elapsed);
+        _max.accumulate(elapsed);
+        _lastInvocation.accumulate(System.currentTimeMillis());
+        _histogram.record(elapsed);
 
-        if (elapsed > _max)
-            _max = elapsed;
+        int hash = query.getStackTraceHash();
+        StackTrace stackTrace = _stackTraces.get(hash);
 
-        ByteArrayHashKey compressed = new ByteArrayHashKey(Compress.deflate(stackTrace));
-        AtomicInteger frequency = _stackTraces.get(compressed);
+        if (null == stackTrace && _stackTraces.size() < MAX_STACK_TRACES)
+            stackTrace = _stackTraces.computeIfAbsent(hash, h -> new StackTrace(query.getStackTrace()));
 
-        if (null == frequency)
-            _stackTraces.put(compressed, new AtomicInteger(1));
-        else
-            frequency.incrementAndGet();
+        if (null != stackTrace)
+            stackTrace.increment();
+    }
+
+    /** @return a copy whose statistics won't change, for sorting and rendering */
+    QueryTracker snapshot()
+    {
+        return new QueryTracker(this);
     }
 
     @Nullable
@@ -129,17 +166,17 @@ class QueryTracker
 
     public long getCount()
     {
-        return _count;
+        return _count.sum();
     }
 
     public long getMax()
     {
-        return _max;
+        return _max.get();
     }
 
     public long getCumulative()
     {
-        return _cumulative;
+        return _cumulative.sum();
     }
 
     public long getFirstInvocation()
@@ -149,12 +186,22 @@ class QueryTracker
 
     public long getLastInvocation()
     {
-        return _lastInvocation;
+        return _lastInvocation.get();
     }
 
     public long getAverage()
     {
-        return _cumulative / _count;
+        long count = getCount();
+        return 0 == count ? 0 : getCumulative() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return execution time at that percentile, to within 1/16th, and never more than the maximum
+     */
+    public long getPercentile(double percentile)
+    {
+        return Math.min(_histogram.getValueAtPercentile(percentile), getMax());
     }
 
     public int getStackTraceCount()
@@ -165,9 +212,9 @@ class QueryTracker
     public void renderStackTraces(PrintWriter out)
     {
         // Descending order by occurrences (the value)
-        Set<Pair<String, AtomicInteger>> set = new TreeSet<>((e1, e2) ->
+        Set<Pair<String, Long>> set = new TreeSet<>((e1, e2) ->
         {
-            int compare = e2.getValue().intValue() - e1.getValue().intValue();
+            int compare = Long.compare(e2.getValue(), e1.getValue());
 
             if (0 == compare)
                 compare = e2.getKey().compareTo(e1.getKey());
@@ -178,12 +225,12 @@ class QueryTracker
         // Save the stacktraces separately to find common prefix
         List<String> stackTraces = new LinkedList<>();
 
-        for (Map.Entry<ByteArrayHashKey, AtomicInteger> entry : _stackTraces.entrySet())
+        for (StackTrace stackTrace : _stackTraces.values())
         {
             try
             {
-                String decompressed = Compress.inflate(entry.getKey().getBytes());
-                set.add(new Pair<>(decompressed, entry.getValue()));
+                String decompressed = Compress.inflate(stackTrace.getCompressed());
+                set.add(new Pair<>(decompressed, stackTrace.getCount()));
                 stackTraces.add(decompressed);
             }
             catch (DataFormatException e)
@@ -212,11 +259,11 @@ class QueryTracker
         int alt = 0;
         String[] classes = new String[]{"labkey-alternate-row", "labkey-row"};
 
-        for (Map.Entry<String, AtomicInteger> entry : set)
+        for (Map.Entry<String, Long> entry : set)
         {
             String stackTrace = entry.getKey();
             String formattedStackTrace = formattedCommonPrefix + PageFlowUtil.filter(stackTrace.substring(commonLength), true);
-            int count = entry.getValue().get();
+            long count = entry.getValue();
 
             out.println("<tr class=\"" + classes[alt] + "\"><td valign=top align=right>" + count + "</td><td style=\"padding-left:1em;\">" + formattedStackTrace + "</td></tr>\n");
             alt = 1 - alt;
@@ -246,7 +293,7 @@ class QueryTracker
 
         for (QueryTrackerSet set : QueryProfiler.getInstance().getTrackerSets())
             if (set.shouldDisplay())
-                renderColumnHeader(set.getCaption(), set == currentSet, out, factory);
+                renderColumnHeader(set.getCaption(), set.getCaption().equals(currentSet.getCaption()), out, factory);
 
         out.print("<td class=\"labkey-column-header\">");
         out.print("Traces");
@@ -322,4 +369,30 @@ class QueryTracker
         out.print(tab + getSql().trim().replaceAll("(\\s)+", " "));
         out.print('\n');
     }
+
+    private static class StackTrace
+    {
+        private final byte[] _compressed;
+        private final LongAdder _count = new LongAdder();
+
+        private StackTrace(String stackTrace)
+        {
+            _compressed = Compress.deflate(stackTrace);
+        }
+
+        private void increment()
+        {
+            _count.increment();
+        }
+
+        private byte[] getCompressed()
+        {
+            return _compressed;
+        }
+
+        private long getCount()
+        {
+            return _count.sum();
+        }
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.labkey.api.data.queryprofiler;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.TreeSet;
 
@@ -32,16 +33,14 @@ public class QueryTrackerSet extends TreeSet<QueryTracker>
 
     private final String _caption;
     private final String _description;
-    private final boolean _stable;   // Is this statistic stable, i.e., will it never change once a QueryTracker has been added to the set?
     private final boolean _display;  // Should we display this statistic in the report?
 
-    QueryTrackerSet(String caption, String description, boolean stable, boolean display, Comparator<? super QueryTracker> comparator)
+    QueryTrackerSet(String caption, String description, boolean display, Comparator<? super QueryTracker> comparator)
     {
         super(comparator);
         _caption = caption;
         _description = description;
         _display = display;
-        _stable = stable;
     }
 
     public String getCaption()
@@ -59,18 +58,16 @@ public class QueryTrackerSet extends TreeSet<QueryTracker>
         return _display;
     }
 
-    public void beforeUpdate(QueryTracker tracker)
+    /**
+     * @param snapshots trackers whose statistics won't change while they're being sorted
+     * @return a new set with this set's caption and ordering, holding the top trackers from snapshots
+     */
+    QueryTrackerSet top(Collection<QueryTracker> snapshots)
     {
-        // If the statistic changes at each update, then we need to remove and re-add it
-        if (!_stable)
-            remove(tracker);
-    }
+        QueryTrackerSet set = new QueryTrackerSet(_caption, _description, _display, comparator());
+        snapshots.forEach(set::add);
 
-    public void update(QueryTracker tracker)
-    {
-        // If the statistic changes at each update, then we need to remove and re-add it
-        if (!_stable)
-            add(tracker);
+        return set;
     }
 
     protected int getLimit()
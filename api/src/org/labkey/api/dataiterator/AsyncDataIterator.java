@@ -15,22 +15,58 @@
  */
 package org.labkey.api.dataiterator;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.util.JobRunner;
+import org.labkey.api.util.UnexpectedException;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
+ * Reads the wrapped DataIterator on a background thread so that the upstream pipeline (e.g. parsing/conversion)
+ * overlaps with the downstream consumer (e.g. StatementDataIterator).
+ *
+ * Rows are handed across in chunks rather than one at a time. Chunks (and the Object[] rows in them) are recycled
+ * through a free list, so a steady state import does not allocate per row, and the consumer touches the shared queue
+ * once per chunk.
+ *
+ * Background readers run on a shared, bounded JobRunner. If all readers are busy the iterator simply reads the
+ * wrapped iterator on the calling thread, so a busy server degrades to the synchronous pipeline instead of queuing
+ * (or deadlocking on) nested async stages.
+ *
  * User: matthew
  * Date: 5/4/13
  * Time: 9:21 AM
  */
 public class AsyncDataIterator implements DataIterator
 {
+    private static final Logger LOG = LogManager.getLogger(AsyncDataIterator.class);
+
+    static final int DEFAULT_CHUNK_SIZE = 256;
+    static final int DEFAULT_QUEUE_CHUNKS = 8;
+
+    private static final int MAX_READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final Semaphore READER_PERMITS = new Semaphore(MAX_READERS);
+    private static final JobRunner READERS = new JobRunner("AsyncDataIterator", MAX_READERS, Thread.NORM_PRIORITY);
+
+    // server-wide counters, see getServerStats()
+    private static final AtomicLong TOTAL_ROWS = new AtomicLong();
+    private static final AtomicLong TOTAL_PRODUCER_STALLS = new AtomicLong();
+    private static final AtomicLong TOTAL_CONSUMER_STALLS = new AtomicLong();
+    private static final AtomicLong TOTAL_SYNCHRONOUS = new AtomicLong();
+
     public static class Builder implements DataIteratorBuilder
     {
         final DataIteratorBuilder _in;
@@ -49,24 +85,74 @@ public class AsyncDataIterator implements DataIterator
         }
     }
 
-    // DataIterator instances are not usually thread safe, so use a lock for pass through calls
-    Object _itLock;
-    DataIterator _it;
-    int _columnCount;
-    DataIteratorContext _context;
+    /** A block of rows handed from the reader to the consumer. */
+    static class Chunk
+    {
+        final Object[][] rows;
+        int size = 0;
+
+        Chunk(int chunkSize, int columnCount)
+        {
+            rows = new Object[chunkSize][columnCount+1];
+        }
+    }
 
-    Thread _reader;
+    private static final Chunk EOF = new Chunk(0, 0);
 
-//    ArrayListMap.FindMap<String> _findMap;
-//    static ArrayListMap<String,Object> eof = new ArrayListMap<String,Object>();
-//    protected LinkedBlockingQueue<ArrayListMap<String,Object>> _queue;
-    protected LinkedBlockingQueue<Object[]> _queue;
-    static Object[] eof = new Object[0];
+    /** State shared by an AsyncDataIterator and the partners created by fork() */
+    static class Channel
+    {
+        final DataIterator it;
+        final Object itLock = new Object();
+        final int columnCount;
+        final int chunkSize;
+        final BlockingQueue<Chunk> full;
+        final BlockingQueue<Chunk> free;
+        final AtomicInteger partnerCount = new AtomicInteger(1);
+        final AtomicReference<Throwable> exception = new AtomicReference<>();    // anything other than validation errors stops the reader
+        final CountDownLatch readerDone = new CountDownLatch(1);
+        volatile boolean started = false;
+        volatile boolean cancelled = false;
+        volatile boolean synchronous = false;
+        boolean atEndOfInput = false;    // only used in synchronous mode, guarded by itLock
+
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong producerStalls = new AtomicLong();
+        final AtomicLong consumerStalls = new AtomicLong();
+
+        Channel(DataIterator it, int chunkSize, int queueChunks)
+        {
+            this.it = it;
+            this.columnCount = it.getColumnCount();
+            this.chunkSize = chunkSize;
+            // every chunk plus EOF fits in the full queue, so the reader only ever blocks waiting for a free chunk
+            this.full = new ArrayBlockingQueue<>(queueChunks + 3);
+            this.free = new ArrayBlockingQueue<>(queueChunks + 2);
+            for (int i = 0; i < queueChunks + 2; i++)
+                free.add(new Chunk(chunkSize, columnCount));
+        }
 
-    ArrayList<Object[]> _buffer = new ArrayList<>(100);
-    int _currentRow = -1;
+        /* fill one chunk from the wrapped iterator, returns false at end of input */
+        boolean fill(Chunk chunk) throws BatchValidationException
+        {
+            chunk.size = 0;
+            while (chunk.size < chunkSize)
+            {
+                if (cancelled || !it.next())
+                    return false;
+                Object[] row = chunk.rows[chunk.size++];
+                for (int i=0 ; i<=columnCount ; i++)
+                    row[i] = it.get(i);
+            }
+            return true;
+        }
+    }
+
+    final Channel _channel;
+    final DataIteratorContext _context;
 
-    AtomicInteger _partnerCount = new AtomicInteger(1);
+    Chunk _current = null;
+    int _currentRow = -1;
 
 
     public AsyncDataIterator(DataIterator it, DataIteratorContext context)
@@ -77,29 +163,26 @@ public class AsyncDataIterator implements DataIterator
 
     public AsyncDataIterator(DataIterator it, DataIteratorContext context, boolean autostart)
     {
-        _queue = new LinkedBlockingQueue<>(1000);
-        _itLock = new Object();
-        _it = it;
-        _columnCount = it.getColumnCount();
+        this(it, context, autostart, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CHUNKS);
+    }
+
+
+    public AsyncDataIterator(DataIterator it, DataIteratorContext context, boolean autostart, int chunkSize, int queueChunks)
+    {
+        _channel = new Channel(it, Math.max(1, chunkSize), Math.max(1, queueChunks));
         _context = context;
-//        _findMap = new ArrayListMap.FindMap<String>(new CaseInsensitiveHashMap<Integer>());
-//        for (int i=0 ; i<= it.getColumnCount() ; i++)
-//            _findMap.put(it.getColumnInfo(i).getName(), i);
         if (autostart)
             start();
     }
 
 
-
     protected AsyncDataIterator(AsyncDataIterator partner)
     {
-        synchronized (partner._itLock)
+        synchronized (partner._channel.itLock)
         {
-            _itLock = partner._itLock;
-            _it = partner._it;
-            _queue = partner._queue;
-            _partnerCount = partner._partnerCount;
-            int count = _partnerCount.incrementAndGet();
+            _channel = partner._channel;
+            _context = partner._context;
+            int count = _channel.partnerCount.incrementAndGet();
             assert count > 1;
         }
     }
@@ -111,39 +194,102 @@ public class AsyncDataIterator implements DataIterator
     }
 
 
-
     private void start()
     {
-        _reader = new Thread(new ReadRunnable(), "AsyncDataIterator");
-        _reader.start();
+        _channel.started = true;
+        if (!READER_PERMITS.tryAcquire())
+        {
+            LOG.debug("All background readers are busy, reading synchronously");
+            TOTAL_SYNCHRONOUS.incrementAndGet();
+            _channel.synchronous = true;
+            _channel.readerDone.countDown();
+            return;
+        }
+
+        try
+        {
+            READERS.execute(new ReadRunnable(_channel));
+        }
+        catch (RuntimeException x)
+        {
+            // e.g. RejectedExecutionException during shutdown
+            READER_PERMITS.release();
+            _channel.synchronous = true;
+            _channel.readerDone.countDown();
+        }
     }
 
 
-    private class ReadRunnable implements Runnable
+    private static class ReadRunnable implements Runnable
     {
+        private final Channel _ch;
+
+        ReadRunnable(Channel ch)
+        {
+            _ch = ch;
+        }
+
         @Override
         public void run()
         {
             try
             {
-                while (!Thread.interrupted() && _it.next())
+                boolean more = true;
+                while (more && !_ch.cancelled)
                 {
-                    Object[] row = new Object[_columnCount+1];
-                    for (int i=0 ; i<=_columnCount ; i++)
-                        row[i] = _it.get(i);
-                    _queue.put(row);
+                    Chunk chunk = _ch.free.poll();
+                    if (null == chunk)
+                    {
+                        _ch.producerStalls.incrementAndGet();
+                        chunk = _ch.free.take();
+                    }
+                    more = _ch.fill(chunk);
+                    if (chunk.size > 0)
+                    {
+                        _ch.rows.addAndGet(chunk.size);
+                        _ch.full.put(chunk);
+                    }
+                    else
+                    {
+                        _ch.free.offer(chunk);
+                    }
                 }
             }
             catch (BatchValidationException x)
             {
+                // errors are collected in the DataIteratorContext, the consumer will see them when it checks
                 assert x.hasErrors();
             }
             catch (InterruptedException x)
             {
+                // cancelled by close(), otherwise the consumer must not mistake this for end of input
+                if (!_ch.cancelled)
+                    _ch.exception.set(x);
             }
-            try { _queue.put(eof); } catch (InterruptedException x) { }
-            // don't close _it from background thread, this causes DbScope/Transaction problems
-            // try {_it.close(); } catch (IOException x) {}
+            catch (Throwable x)
+            {
+                // includes Errors (e.g. OutOfMemoryError), which would otherwise look like end of input
+                _ch.exception.set(x);
+            }
+            finally
+            {
+                putEOF(_ch);
+                // don't close _it from background thread, this causes DbScope/Transaction problems
+                _ch.readerDone.countDown();
+                READER_PERMITS.release();
+            }
+        }
+    }
+
+
+    private static void putEOF(Channel ch)
+    {
+        if (!ch.full.offer(EOF))
+        {
+            // only possible after close() added extra chunks, nobody is reading anymore
+            assert ch.cancelled;
+            ch.full.clear();
+            ch.full.offer(EOF);
         }
     }
 
@@ -151,9 +297,9 @@ public class AsyncDataIterator implements DataIterator
     @Override
     public int getColumnCount()
     {
-        synchronized (_itLock)
+        synchronized (_channel.itLock)
         {
-            return _it.getColumnCount();
+            return _channel.it.getColumnCount();
         }
     }
 
@@ -161,45 +307,93 @@ public class AsyncDataIterator implements DataIterator
     @Override
     public ColumnInfo getColumnInfo(int i)
     {
-        synchronized (_itLock)
+        synchronized (_channel.itLock)
         {
-            return _it.getColumnInfo(i);
+            return _channel.it.getColumnInfo(i);
         }
     }
 
 
     @Override
-    public boolean next()
+    public boolean next() throws BatchValidationException
     {
-        Object[] row=null;
-        if (_currentRow+1 >= _buffer.size())
+        if (null != _current && _currentRow+1 < _current.size)
+        {
+            _currentRow++;
+            return true;
+        }
+
+        if (!_channel.started)
+        {
+            synchronized (_channel.itLock)
+            {
+                if (!_channel.started)
+                    start();
+            }
+        }
+
+        if (_channel.synchronous)
+            return nextSynchronous();
+
+        if (null != _current && EOF != _current)
+            _channel.free.offer(_current);
+        _current = null;
+        _currentRow = -1;
+
+        Chunk chunk = _channel.full.poll();
+        if (null == chunk)
         {
-            _buffer.clear();
-            _currentRow = -1;
-            while (_buffer.isEmpty())
+            _channel.consumerStalls.incrementAndGet();
+            while (null == chunk)
             {
-                int count = _queue.drainTo(_buffer, 100);
-                if (count == 0)
+                try
                 {
-                    try { row = _queue.take(); } catch (InterruptedException x) { }
-                    if (null != row)
-                        _buffer.add(row);
-                    if (eof == row)
-                        break;
+                    chunk = _channel.full.take();
+                }
+                catch (InterruptedException x)
+                {
+                    _channel.cancelled = true;
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(x);
                 }
             }
         }
-        _currentRow++;
-        row = _buffer.get(_currentRow);
-        if (eof == row)
+
+        if (EOF == chunk)
         {
-            try { _queue.put(eof); } catch (InterruptedException x) { }
+            // let any partners see EOF as well
+            _channel.full.offer(EOF);
+            _current = EOF;
+            Throwable x = _channel.exception.get();
+            if (null != x)
+                UnexpectedException.rethrow(x);
             return false;
         }
+
+        _current = chunk;
+        _currentRow = 0;
         return true;
     }
 
 
+    /* reader pool was saturated, read the wrapped iterator on this thread (still chunked, so fork() partners share fairly) */
+    private boolean nextSynchronous() throws BatchValidationException
+    {
+        synchronized (_channel.itLock)
+        {
+            if (_channel.atEndOfInput)
+                return false;
+            if (null == _current)
+                _current = new Chunk(_channel.chunkSize, _channel.columnCount);
+            if (!_channel.fill(_current))
+                _channel.atEndOfInput = true;
+            _channel.rows.addAndGet(_current.size);
+            _currentRow = 0;
+            return _current.size > 0;
+        }
+    }
+
+
     @Override
     public String getDebugName()
     {
@@ -210,9 +404,9 @@ public class AsyncDataIterator implements DataIterator
     @Override
     public boolean isConstant(int i)
     {
-        synchronized (_itLock)
+        synchronized (_channel.itLock)
         {
-            return _it.isConstant(i);
+            return _channel.it.isConstant(i);
         }
     }
 
@@ -220,9 +414,9 @@ public class AsyncDataIterator implements DataIterator
     @Override
     public Object getConstantValue(int i)
     {
-        synchronized (_itLock)
+        synchronized (_channel.itLock)
         {
-            return _it.getConstantValue(i);
+            return _channel.it.getConstantValue(i);
         }
     }
 
@@ -230,22 +424,80 @@ public class AsyncDataIterator implements DataIterator
     @Override
     public Object get(int i)
     {
-        if (i == 0)
-            return _currentRow+1;
-        return _buffer.get(_currentRow)[i];
+        return _current.rows[_currentRow][i];
+    }
+
+
+    /** @return number of filled chunks waiting for the consumer */
+    public int getQueueDepth()
+    {
+        int depth = _channel.full.size();
+        return _channel.full.contains(EOF) ? depth-1 : depth;
+    }
+
+    public long getRowCount()
+    {
+        return _channel.rows.get();
+    }
+
+    /** @return number of times the reader had to wait for the consumer to hand back a chunk (the queue was full) */
+    public long getProducerStalls()
+    {
+        return _channel.producerStalls.get();
+    }
+
+    /** @return number of times the consumer had to wait for the reader (the queue was empty) */
+    public long getConsumerStalls()
+    {
+        return _channel.consumerStalls.get();
+    }
+
+    public boolean isSynchronous()
+    {
+        return _channel.synchronous;
+    }
+
+    /** Summary of all async data iterators since startup, suitable for logging or admin pages */
+    public static String getServerStats()
+    {
+        return "AsyncDataIterator: readers active=" + (MAX_READERS - READER_PERMITS.availablePermits()) + "/" + MAX_READERS +
+                ", rows=" + TOTAL_ROWS.get() +
+                ", producer stalls=" + TOTAL_PRODUCER_STALLS.get() +
+                ", consumer stalls=" + TOTAL_CONSUMER_STALLS.get() +
+                ", synchronous fallbacks=" + TOTAL_SYNCHRONOUS.get();
     }
 
 
     @Override
     public void close() throws IOException
     {
-        synchronized (_itLock)
+        synchronized (_channel.itLock)
         {
-            if (0 == _partnerCount.decrementAndGet())
+            if (0 == _channel.partnerCount.decrementAndGet())
             {
-                _reader.interrupt();
-                try {_reader.join();} catch (InterruptedException x) {}
-                _it.close();
+                _channel.cancelled = true;
+                // unblock a reader waiting on a full queue
+                _channel.full.clear();
+                _channel.free.offer(new Chunk(_channel.chunkSize, _channel.columnCount));
+                if (_channel.started)
+                {
+                    try
+                    {
+                        _channel.readerDone.await();
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                TOTAL_ROWS.addAndGet(_channel.rows.get());
+                TOTAL_PRODUCER_STALLS.addAndGet(_channel.producerStalls.get());
+                TOTAL_CONSUMER_STALLS.addAndGet(_channel.consumerStalls.get());
+                if (LOG.isDebugEnabled())
+                    LOG.debug("closed: rows=" + getRowCount() + ", producer stalls=" + getProducerStalls() + ", consumer stalls=" + getConsumerStalls() + (isSynchronous() ? " (synchronous)" : ""));
+
+                _channel.it.close();
             }
         }
     }
@@ -253,9 +505,109 @@ public class AsyncDataIterator implements DataIterator
     @Override
     public void debugLogInfo(StringBuilder sb)
     {
-        sb.append("  " + getDebugName() + ": " + this.getClass().getName() + "\n");
-        if (null != _it)
-            _it.debugLogInfo(sb);
+        sb.append("  " + getDebugName() + ": " + this.getClass().getName() + " chunkSize=" + _channel.chunkSize + "\n");
+        if (null != _channel.it)
+            _channel.it.debugLogInfo(sb);
     }
 
+
+    public static class TestCase extends Assert
+    {
+        private void readAll(int rowCount, int chunkSize, int queueChunks) throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            StatementDataIterator.DummyDataIterator source = new StatementDataIterator.DummyDataIterator(context, rowCount);
+            int expected = 0;
+            try (AsyncDataIterator async = new AsyncDataIterator(source, context, true, chunkSize, queueChunks))
+            {
+                while (async.next())
+                {
+                    assertEquals(expected, async.get(0));
+                    assertEquals(1, async.get(1));
+                    expected++;
+                }
+                assertFalse(async.next());
+                assertEquals(rowCount, async.getRowCount());
+            }
+            assertEquals(rowCount, expected);
+        }
+
+        @Test
+        public void testReadAll() throws Exception
+        {
+            readAll(0, 10, 2);
+            readAll(1, 10, 2);
+            readAll(10, 10, 2);
+            readAll(11, 10, 2);
+            readAll(10000, 7, 1);
+            readAll(10000, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CHUNKS);
+        }
+
+        @Test
+        public void testCloseEarly() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            StatementDataIterator.DummyDataIterator source = new StatementDataIterator.DummyDataIterator(context, 100000);
+            AsyncDataIterator async = new AsyncDataIterator(source, context, true, 10, 2);
+            assertTrue(async.next());
+            // must not hang waiting for the reader, which is blocked on a full queue
+            async.close();
+        }
+
+        @Test
+        public void testException() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            StatementDataIterator.DummyDataIterator source = new StatementDataIterator.DummyDataIterator(context, 1000)
+            {
+                @Override
+                public Object get(int i)
+                {
+                    if (i == 1 && currentRow == 500)
+                        throw new IllegalStateException("boom");
+                    return super.get(i);
+                }
+            };
+            try (AsyncDataIterator async = new AsyncDataIterator(source, context, true, 10, 2))
+            {
+                int count = 0;
+                while (async.next())
+                    count++;
+                // synchronous fallback throws directly from next(), so we only get here if something is wrong
+                fail("Expected exception, read " + count + " rows");
+            }
+            catch (IllegalStateException x)
+            {
+                assertEquals("boom", x.getMessage());
+            }
+        }
+
+        @Test
+        public void testError() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            StatementDataIterator.DummyDataIterator source = new StatementDataIterator.DummyDataIterator(context, 1000)
+            {
+                @Override
+                public Object get(int i)
+                {
+                    if (i == 1 && currentRow == 500)
+                        throw new StackOverflowError("boom");
+                    return super.get(i);
+                }
+            };
+            try (AsyncDataIterator async = new AsyncDataIterator(source, context, true, 10, 2))
+            {
+                int count = 0;
+                while (async.next())
+                    count++;
+                // must not look like a short read
+                fail("Expected error, read " + count + " rows");
+            }
+            catch (StackOverflowError x)
+            {
+                assertEquals("boom", x.getMessage());
+            }
+        }
+    }
 }
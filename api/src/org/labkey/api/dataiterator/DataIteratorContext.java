@@ -46,6 +46,8 @@ public class DataIteratorContext
     boolean _verbose = false;
     boolean _supportAutoIncrementKey = false;
     boolean _allowImportLookupByAlternateKey = false;
+    boolean _useBulkLoad = false;
+    int _parallelism = 1;
     private final Set<String> _passThroughBuiltInColumnNames = new CaseInsensitiveHashSet();
     private final Set<String> _dontUpdateColumnNames = new CaseInsensitiveHashSet();
     private final Set<String> _alternateKeys = new CaseInsensitiveHashSet();
@@ -65,6 +67,26 @@ public class DataIteratorContext
         _errors = errors;
     }
 
+    /** Copy the settings of another context, but collect errors separately. Used by ParallelDataIterator workers. */
+    public DataIteratorContext(DataIteratorContext from, BatchValidationException errors)
+    {
+        _errors = errors;
+        _insertOption = from._insertOption;
+        _selectIds = from._selectIds;
+        _failFast = from._failFast;
+        _verbose = from._verbose;
+        _supportAutoIncrementKey = from._supportAutoIncrementKey;
+        _allowImportLookupByAlternateKey = from._allowImportLookupByAlternateKey;
+        _useBulkLoad = from._useBulkLoad;
+        _parallelism = from._parallelism;
+        _passThroughBuiltInColumnNames.addAll(from._passThroughBuiltInColumnNames);
+        _dontUpdateColumnNames.addAll(from._dontUpdateColumnNames);
+        _alternateKeys.addAll(from._alternateKeys);
+        _dataSource = from._dataSource;
+        _maxRowErrors = from._maxRowErrors;
+        _configParameters = from._configParameters;
+    }
+
     public QueryUpdateService.InsertOption getInsertOption()
     {
         return _insertOption;
@@ -159,6 +181,38 @@ public class DataIteratorContext
         _allowImportLookupByAlternateKey = allowImportLookupByAlternateKey;
     }
 
+    public boolean isUseBulkLoad()
+    {
+        return _useBulkLoad;
+    }
+
+    /**
+     * When true, TableInsertDataIterator may load rows using the database's bulk load mechanism (e.g. PostgreSQL
+     * COPY FROM STDIN) instead of batched INSERT statements. This is only a hint, inserts that the bulk path can't
+     * handle (merge, exp.Object backed tables, non-PostgreSQL) silently use the standard statement path.
+     * See TableCopyDataIterator.
+     */
+    public void setUseBulkLoad(boolean useBulkLoad)
+    {
+        _useBulkLoad = useBulkLoad;
+    }
+
+    public int getParallelism()
+    {
+        return _parallelism;
+    }
+
+    /**
+     * When greater than one, StandardDataIteratorBuilder runs the convert and validate steps on this many
+     * worker threads. See ParallelDataIterator for the restrictions on the steps that can be run this way. Ignored
+     * when the import runs in a transaction and those steps query the database (lookups by alternate key or lookup
+     * validators).
+     */
+    public void setParallelism(int parallelism)
+    {
+        _parallelism = Math.max(1, parallelism);
+    }
+
     /** Normally all built in columns (created, createdBy, etc) are populated with newly calculated values on writing to target.
      * This list specifies those which should pass through from source.
      */
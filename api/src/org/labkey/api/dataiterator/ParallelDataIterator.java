@@ -0,0 +1,645 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.dataiterator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.query.ValidationException;
+import org.labkey.api.reader.TabLoader;
+import org.labkey.api.test.TestWhen;
+import org.labkey.api.util.JobRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a row-at-a-time stage of a DataIterator pipeline (e.g. the SimpleTranslator/ValidatorIterator convert and
+ * validate steps from StandardDataIteratorBuilder) on several worker threads.
+ *
+ * The source iterator is read on the calling thread in chunks, chunk k is handed to worker (k % n), and each
+ * worker runs its own instance of the stage. Output is read back in the same round-robin order, so rows come out
+ * in their original order, and errors are merged into the caller's BatchValidationException in row order as the
+ * rows are consumed.
+ *
+ * Restrictions on the stage:
+ * <ul>
+ *     <li>it must be streaming, i.e. it produces the output for a row before it asks for the next input row
+ *     (no look-ahead or caching iterators),</li>
+ *     <li>it must not depend on database state of the caller's transaction, workers don't share the caller's connection,</li>
+ *     <li>it must report problems via the DataIteratorContext it is given, not the caller's context.</li>
+ * </ul>
+ */
+public class ParallelDataIterator implements DataIterator
+{
+    private static final Logger LOG = LogManager.getLogger(ParallelDataIterator.class);
+
+    static final int DEFAULT_CHUNK_SIZE = 500;
+    private static final int CHUNKS_PER_WORKER = 2;
+
+    private static final int MAX_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final Semaphore WORKER_PERMITS = new Semaphore(MAX_WORKERS);
+    private static final JobRunner WORKERS = new JobRunner("ParallelDataIterator", MAX_WORKERS, Thread.NORM_PRIORITY);
+
+    /** Creates one instance of the parallelized part of the pipeline */
+    public interface Stage
+    {
+        DataIterator create(DataIterator input, DataIteratorContext context);
+    }
+
+    /**
+     * Returns the stage applied to source, running on up to parallelism threads. Falls back to running
+     * the stage on the calling thread if parallelism < 2 or the worker pool is busy.
+     */
+    public static DataIterator wrap(DataIterator source, DataIteratorContext context, Stage stage, int parallelism)
+    {
+        int workers = 0;
+        if (parallelism > 1)
+        {
+            workers = Math.min(parallelism, MAX_WORKERS);
+            while (workers > 1 && !WORKER_PERMITS.tryAcquire(workers))
+                workers--;
+        }
+        if (workers < 2)
+        {
+            LOG.debug("Running stage serially, requested parallelism " + parallelism);
+            return stage.create(source, context);
+        }
+        try
+        {
+            return new ParallelDataIterator(source, context, stage, workers, DEFAULT_CHUNK_SIZE);
+        }
+        catch (RuntimeException x)
+        {
+            WORKER_PERMITS.release(workers);
+            throw x;
+        }
+    }
+
+
+    /** A block of rows, in and out of a worker */
+    private static class Chunk
+    {
+        final List<Object[]> rows;
+        List<ValidationException> errors = null;
+        RuntimeException exception = null;
+
+        Chunk(int size)
+        {
+            rows = new ArrayList<>(size);
+        }
+    }
+
+    private static final Chunk EOF = new Chunk(0);
+
+
+    private class Worker implements Runnable
+    {
+        final int index;
+        final BlockingQueue<Chunk> in = new ArrayBlockingQueue<>(CHUNKS_PER_WORKER + 1);
+        final BlockingQueue<Chunk> out = new ArrayBlockingQueue<>(CHUNKS_PER_WORKER + 2);
+        final BatchValidationException errors = new BatchValidationException();
+        final DataIteratorContext context;
+        final Feed feed;
+        final DataIterator chain;
+        Chunk pending = new Chunk(_chunkSize);
+        int errorsPublished = 0;
+
+        Worker(int index)
+        {
+            this.index = index;
+            context = new DataIteratorContext(_context, errors);
+            // the caller's context decides when to give up, see nextChunk()
+            context.setFailFast(false);
+            context.setMaxRowErrors(Integer.MAX_VALUE);
+            feed = new Feed(this);
+            chain = _stage.create(feed, context);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                int columnCount = chain.getColumnCount();
+                while (chain.next())
+                {
+                    Object[] row = new Object[columnCount+1];
+                    for (int i=0 ; i<=columnCount ; i++)
+                        row[i] = chain.get(i);
+                    pending.rows.add(row);
+                }
+            }
+            catch (BatchValidationException x)
+            {
+                // shouldn't happen with failFast=false, but the errors are already in the worker context
+            }
+            catch (InterruptedRuntimeException x)
+            {
+                // cancelled
+            }
+            catch (RuntimeException x)
+            {
+                pending.exception = x;
+            }
+            finally
+            {
+                try
+                {
+                    // output for a partially processed chunk (i.e. the exception case)
+                    if (!pending.rows.isEmpty() || null != pending.exception || errors.getRowErrors().size() > errorsPublished)
+                        publish();
+                    // a stage that stops early must not leave the dispatcher blocked on our input queue
+                    while (!_cancelled && !feed._eof && EOF != in.take())
+                    {
+                        // discard
+                    }
+                    if (!_cancelled)
+                        out.put(EOF);
+                }
+                catch (InterruptedException x)
+                {
+                    // cancelled
+                }
+                _workersDone.countDown();
+                WORKER_PERMITS.release();
+            }
+        }
+
+        /* called when the stage has consumed all of the current input chunk */
+        void publish() throws InterruptedException
+        {
+            if (_cancelled)
+                return;
+            if (errors.getRowErrors().size() > errorsPublished)
+            {
+                pending.errors = new ArrayList<>(errors.getRowErrors().subList(errorsPublished, errors.getRowErrors().size()));
+                errorsPublished = errors.getRowErrors().size();
+            }
+            out.put(pending);
+            pending = new Chunk(_chunkSize);
+        }
+    }
+
+
+    private static class InterruptedRuntimeException extends RuntimeException
+    {
+        InterruptedRuntimeException(InterruptedException x)
+        {
+            super(x);
+        }
+    }
+
+
+    /* The input of one worker's stage. Exposes the source columns, and blocks for the next chunk. */
+    private class Feed implements DataIterator
+    {
+        final Worker _worker;
+        Chunk _chunk = null;
+        int _row = -1;
+        boolean _eof = false;
+
+        Feed(Worker worker)
+        {
+            _worker = worker;
+        }
+
+        @Override
+        public String getDebugName()
+        {
+            return "ParallelDataIterator feed " + _worker.index;
+        }
+
+        @Override
+        public int getColumnCount()
+        {
+            return _source.getColumnCount();
+        }
+
+        @Override
+        public ColumnInfo getColumnInfo(int i)
+        {
+            return _source.getColumnInfo(i);
+        }
+
+        @Override
+        public boolean isConstant(int i)
+        {
+            return _source.isConstant(i);
+        }
+
+        @Override
+        public Object getConstantValue(int i)
+        {
+            return _source.getConstantValue(i);
+        }
+
+        @Override
+        public boolean next()
+        {
+            if (_eof)
+                return false;
+            if (null != _chunk && _row+1 < _chunk.rows.size())
+            {
+                _row++;
+                return true;
+            }
+            try
+            {
+                if (null != _chunk)
+                    _worker.publish();
+                _chunk = _worker.in.take();
+            }
+            catch (InterruptedException x)
+            {
+                throw new InterruptedRuntimeException(x);
+            }
+            if (EOF == _chunk)
+            {
+                _eof = true;
+                _chunk = null;
+                return false;
+            }
+            _row = 0;
+            return true;
+        }
+
+        @Override
+        public Object get(int i)
+        {
+            return _chunk.rows.get(_row)[i];
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+
+    final DataIterator _source;
+    final DataIteratorContext _context;
+    final Stage _stage;
+    final int _chunkSize;
+    final Worker[] _workers;
+    final CountDownLatch _workersDone;
+    volatile boolean _cancelled = false;
+
+    boolean _atEndOfInput = false;
+    long _dispatched = 0;
+    long _consumed = 0;
+    Chunk _current = null;
+    int _currentRow = -1;
+    int _eofCount = 0;
+    boolean _closed = false;
+
+
+    ParallelDataIterator(DataIterator source, DataIteratorContext context, Stage stage, int workers, int chunkSize)
+    {
+        _source = source;
+        _context = context;
+        _stage = stage;
+        _chunkSize = chunkSize;
+        _workersDone = new CountDownLatch(workers);
+
+        // create all of the stage instances on this thread, they may look at metadata
+        _workers = new Worker[workers];
+        for (int i=0 ; i<workers ; i++)
+            _workers[i] = new Worker(i);
+        for (Worker w : _workers)
+            WORKERS.execute(w);
+    }
+
+
+    @Override
+    public String getDebugName()
+    {
+        return "ParallelDataIterator(" + _workers.length + ")";
+    }
+
+    @Override
+    public int getColumnCount()
+    {
+        return _workers[0].chain.getColumnCount();
+    }
+
+    @Override
+    public ColumnInfo getColumnInfo(int i)
+    {
+        return _workers[0].chain.getColumnInfo(i);
+    }
+
+    @Override
+    public boolean isConstant(int i)
+    {
+        return _workers[0].chain.isConstant(i);
+    }
+
+    @Override
+    public Object getConstantValue(int i)
+    {
+        return _workers[0].chain.getConstantValue(i);
+    }
+
+
+    @Override
+    public boolean next() throws BatchValidationException
+    {
+        while (null == _current || _currentRow+1 >= _current.rows.size())
+        {
+            if (_eofCount == _workers.length)
+                return false;
+            _current = nextChunk();
+            _currentRow = -1;
+            if (null == _current)
+                return false;
+        }
+        _currentRow++;
+        return true;
+    }
+
+
+    private Chunk nextChunk() throws BatchValidationException
+    {
+        dispatch();
+
+        Worker w = _workers[(int)(_consumed % _workers.length)];
+        Chunk chunk;
+        try
+        {
+            chunk = w.out.take();
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(x);
+        }
+
+        if (EOF == chunk)
+        {
+            // every worker sees EOF in the same round, so they all finish together
+            _eofCount++;
+            _consumed++;
+            return _eofCount == _workers.length ? null : nextChunk();
+        }
+        _consumed++;
+
+        if (null != chunk.errors)
+        {
+            for (ValidationException error : chunk.errors)
+                _context.getErrors().addRowError(error);
+            _context.checkShouldCancel();
+        }
+        if (null != chunk.exception)
+            throw chunk.exception;
+        return chunk;
+    }
+
+
+    /* keep each worker supplied with up to CHUNKS_PER_WORKER chunks of input */
+    private void dispatch() throws BatchValidationException
+    {
+        while (!_atEndOfInput && _dispatched - _consumed < (long) CHUNKS_PER_WORKER * _workers.length)
+        {
+            Chunk chunk = new Chunk(_chunkSize);
+            int columnCount = _source.getColumnCount();
+            while (chunk.rows.size() < _chunkSize)
+            {
+                if (!_source.next())
+                {
+                    _atEndOfInput = true;
+                    break;
+                }
+                Object[] row = new Object[columnCount+1];
+                for (int i=0 ; i<=columnCount ; i++)
+                    row[i] = _source.get(i);
+                chunk.rows.add(row);
+            }
+
+            if (!chunk.rows.isEmpty())
+            {
+                put(_workers[(int)(_dispatched % _workers.length)], chunk);
+                _dispatched++;
+            }
+
+            if (_atEndOfInput)
+            {
+                // EOF in the same round robin order, so nextChunk() reads a complete round of EOFs
+                for (int i=0 ; i<_workers.length ; i++)
+                    put(_workers[(int)((_dispatched + i) % _workers.length)], EOF);
+            }
+        }
+    }
+
+
+    private void put(Worker w, Chunk chunk)
+    {
+        try
+        {
+            w.in.put(chunk);
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(x);
+        }
+    }
+
+
+    @Override
+    public Object get(int i)
+    {
+        return _current.rows.get(_currentRow)[i];
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        if (_closed)
+            return;
+        _closed = true;
+        _cancelled = true;
+        for (Worker w : _workers)
+        {
+            w.in.clear();
+            w.in.offer(EOF);
+            w.out.clear();
+        }
+        try
+        {
+            if (!_workersDone.await(1, TimeUnit.MINUTES))
+                LOG.warn("Timed out waiting for ParallelDataIterator workers to finish");
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Worker w : _workers)
+            w.chain.close();
+        _source.close();
+    }
+
+
+    @Override
+    public void debugLogInfo(StringBuilder sb)
+    {
+        sb.append("  ").append(getDebugName()).append(": ").append(getClass().getName()).append("\n");
+        _workers[0].chain.debugLogInfo(sb);
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        static final int COLUMNS = 60;
+
+        static String wideTsv(int rows, int badRow)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int c=0 ; c<COLUMNS ; c++)
+                sb.append(c==0 ? "" : "\t").append("col").append(c);
+            sb.append("\n");
+            for (int r=0 ; r<rows ; r++)
+            {
+                for (int c=0 ; c<COLUMNS ; c++)
+                {
+                    sb.append(c==0 ? "" : "\t");
+                    if (r == badRow && c == 1)
+                        sb.append("notanumber");
+                    else if (c % 3 == 0)
+                        sb.append(r);
+                    else if (c % 3 == 1)
+                        sb.append(r + 0.5);
+                    else
+                        sb.append(String.format("2020-01-%02d 12:34", 1 + r % 28));
+                }
+                sb.append("\n");
+            }
+            return sb.toString();
+        }
+
+        private static final Stage CONVERT = (input, context) ->
+        {
+            SimpleTranslator t = new SimpleTranslator(input, context);
+            for (int c=1 ; c<=input.getColumnCount() ; c++)
+            {
+                JdbcType type = (c-1) % 3 == 0 ? JdbcType.INTEGER : (c-1) % 3 == 1 ? JdbcType.DOUBLE : JdbcType.TIMESTAMP;
+                t.addConvertColumn(input.getColumnInfo(c).getName(), c, type, false);
+            }
+            return t;
+        };
+
+        static List<Object[]> run(String tsv, int parallelism, DataIteratorContext context) throws Exception
+        {
+            TabLoader loader = new TabLoader(tsv, true);
+            loader.setInferTypes(false);
+            List<Object[]> result = new ArrayList<>();
+            try (DataIterator it = wrap(loader.getDataIterator(context), context, CONVERT, parallelism))
+            {
+                while (it.next())
+                {
+                    Object[] row = new Object[it.getColumnCount()+1];
+                    for (int i=0 ; i<=it.getColumnCount() ; i++)
+                        row[i] = it.get(i);
+                    result.add(row);
+                }
+            }
+            catch (BatchValidationException x)
+            {
+                assertSame(context.getErrors(), x);
+            }
+            return result;
+        }
+
+        @Test
+        public void testOrderPreserved() throws Exception
+        {
+            String tsv = wideTsv(5003, -1);
+            DataIteratorContext serialContext = new DataIteratorContext();
+            List<Object[]> serial = run(tsv, 1, serialContext);
+            DataIteratorContext parallelContext = new DataIteratorContext();
+            List<Object[]> parallel = run(tsv, 4, parallelContext);
+
+            assertFalse(serialContext.getErrors().hasErrors());
+            assertFalse(parallelContext.getErrors().hasErrors());
+            assertEquals(5003, serial.size());
+            assertEquals(serial.size(), parallel.size());
+            for (int r=0 ; r<serial.size() ; r++)
+                assertArrayEquals(serial.get(r), parallel.get(r));
+        }
+
+        @Test
+        public void testErrorRowNumbers() throws Exception
+        {
+            String tsv = wideTsv(3000, 1234);
+            DataIteratorContext serialContext = new DataIteratorContext();
+            serialContext.setFailFast(false);
+            run(tsv, 1, serialContext);
+            DataIteratorContext parallelContext = new DataIteratorContext();
+            parallelContext.setFailFast(false);
+            run(tsv, 4, parallelContext);
+
+            assertEquals(1, serialContext.getErrors().getRowErrors().size());
+            assertEquals(1, parallelContext.getErrors().getRowErrors().size());
+            assertEquals(serialContext.getErrors().getRowErrors().get(0).getRowNumber(), parallelContext.getErrors().getRowErrors().get(0).getRowNumber());
+        }
+
+        @Test
+        public void testFailFast() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            List<Object[]> rows = run(wideTsv(3000, 10), 4, context);
+            assertTrue(context.getErrors().hasErrors());
+            assertTrue(rows.size() < 3000);
+        }
+    }
+
+
+    /** Compares serial and parallel conversion of a wide TSV. Logs timings, only asserts correctness. */
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerformanceTestCase extends Assert
+    {
+        @Test
+        public void testWideFileScaling() throws Exception
+        {
+            String tsv = TestCase.wideTsv(20000, -1);
+            TestCase.run(tsv, 1, new DataIteratorContext());    // warm up
+
+            int workers = Math.min(4, MAX_WORKERS);
+            long start = System.nanoTime();
+            List<Object[]> serial = TestCase.run(tsv, 1, new DataIteratorContext());
+            long serialMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<Object[]> parallel = TestCase.run(tsv, workers, new DataIteratorContext());
+            long parallelMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(20000, serial.size());
+            assertEquals(20000, parallel.size());
+            LOG.info("Converted " + serial.size() + " rows x " + TestCase.COLUMNS + " columns: serial " + serialMs + "ms, " + workers + " workers " + parallelMs + "ms");
+        }
+    }
+}
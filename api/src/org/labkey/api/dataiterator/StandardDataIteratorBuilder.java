@@ -26,8 +26,11 @@ import org.labkey.api.data.UpdateableTableInfo;
 import org.labkey.api.data.validator.ColumnValidator;
 import org.labkey.api.data.validator.ColumnValidators;
 import org.labkey.api.exp.PropertyType;
+import org.labkey.api.exp.property.DefaultPropertyValidator;
 import org.labkey.api.exp.property.Domain;
 import org.labkey.api.exp.property.DomainProperty;
+import org.labkey.api.exp.property.IPropertyValidator;
+import org.labkey.api.gwt.client.model.PropertyValidatorType;
 import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryUpdateService;
@@ -216,34 +219,64 @@ public class StandardDataIteratorBuilder implements DataIteratorBuilder
         // set up a SimpleTranslator for conversion and missing-value handling
         //
 
-        SimpleTranslator convert = new SimpleTranslator(input, context);
-        convert.setDebugName("StandardDIB convert");
-        convert.setMvContainer(_c);
-        ValidatorIterator validate = new ValidatorIterator(LoggingDataIterator.wrap(convert), context, _c, _user);
-        validate.setDebugName("StandardDIB validate");
-
-        for (TranslateHelper pair : targetCols)
+        // With context.getParallelism() > 1 the convert and validate steps run on worker threads, each with its own
+        // SimpleTranslator and ValidatorIterator (see ParallelDataIterator). Most of these steps never touch the
+        // database, but lookups by alternate key and lookup validators query the lookup table on the worker's own
+        // connection. Inside a transaction those queries couldn't see rows inserted earlier in that transaction, so
+        // stay serial in that case only.
+        int parallelism = context.getParallelism();
+        if (parallelism > 1 && _target.getSchema().getScope().isTransactionActive() &&
+                (context.isAllowImportLookupByAlternateKey() || hasLookupValidator(targetCols)))
+            parallelism = 1;
+
+        ParallelDataIterator.Stage convertAndValidate = (in, stageContext) ->
         {
-            PropertyType pt = null==pair.dp ? null : pair.dp.getPropertyDescriptor().getPropertyType();
-            boolean isAttachment = pt == PropertyType.ATTACHMENT || pt == PropertyType.FILE_LINK;
-            boolean supportsMV = (null != pair.target && null != pair.target.getMvColumnName()) || (null != pair.dp && pair.dp.isMvEnabled());
-            int indexConvert;
-
-            if (null == pair.target || isAttachment)
-                indexConvert = convert.addColumn(pair.indexFrom);
-            else if (null == pair.dp)
-                indexConvert = convert.addConvertColumn(pair.target, pair.indexFrom, pair.indexMv, supportsMV);
-            else
-                indexConvert = convert.addConvertColumn(pair.target, pair.indexFrom, pair.indexMv, pair.dp.getPropertyDescriptor(), pair.dp.getPropertyDescriptor().getPropertyType());
+            SimpleTranslator convert = new SimpleTranslator(in, stageContext);
+            convert.setDebugName("StandardDIB convert");
+            convert.setMvContainer(_c);
+            ValidatorIterator validate = new ValidatorIterator(LoggingDataIterator.wrap(convert), stageContext, _c, _user);
+            validate.setDebugName("StandardDIB validate");
 
-            List<ColumnValidator> validators = ColumnValidators.create(pair.target, pair.dp, context.getConfigParameterBoolean(QueryUpdateService.ConfigParameters.PreserveEmptyString));
-            validate.addValidators(indexConvert, validators);
-        }
+            for (TranslateHelper pair : targetCols)
+            {
+                PropertyType pt = null==pair.dp ? null : pair.dp.getPropertyDescriptor().getPropertyType();
+                boolean isAttachment = pt == PropertyType.ATTACHMENT || pt == PropertyType.FILE_LINK;
+                boolean supportsMV = (null != pair.target && null != pair.target.getMvColumnName()) || (null != pair.dp && pair.dp.isMvEnabled());
+                int indexConvert;
+
+                if (null == pair.target || isAttachment)
+                    indexConvert = convert.addColumn(pair.indexFrom);
+                else if (null == pair.dp)
+                    indexConvert = convert.addConvertColumn(pair.target, pair.indexFrom, pair.indexMv, supportsMV);
+                else
+                    indexConvert = convert.addConvertColumn(pair.target, pair.indexFrom, pair.indexMv, pair.dp.getPropertyDescriptor(), pair.dp.getPropertyDescriptor().getPropertyType());
+
+                List<ColumnValidator> validators = ColumnValidators.create(pair.target, pair.dp, stageContext.getConfigParameterBoolean(QueryUpdateService.ConfigParameters.PreserveEmptyString));
+                validate.addValidators(indexConvert, validators);
+            }
+
+            return validate.hasValidators() ? validate : convert;
+        };
 
-        DataIterator last = validate.hasValidators() ? validate : convert;
+        DataIterator last = ParallelDataIterator.wrap(input, context, convertAndValidate, parallelism);
         return LoggingDataIterator.wrap(ErrorIterator.wrap(last, context, false, setupError));
     }
 
+    private static boolean hasLookupValidator(List<TranslateHelper> cols)
+    {
+        String lookupURI = DefaultPropertyValidator.createValidatorURI(PropertyValidatorType.Lookup).toString();
+        for (TranslateHelper pair : cols)
+        {
+            List<? extends IPropertyValidator> validators = null != pair.target ? pair.target.getValidators() : null != pair.dp ? pair.dp.getValidators() : List.of();
+            for (IPropertyValidator pv : validators)
+            {
+                if (lookupURI.equals(pv.getTypeURI()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     private String getTranslateHelperKey(ColumnInfo col)
     {
         return col.getPropertyURI() + ":" + col.getName().toLowerCase();
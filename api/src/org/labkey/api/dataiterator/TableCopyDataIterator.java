@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.dataiterator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DatabaseTableType;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.Parameter;
+import org.labkey.api.data.RuntimeSQLException;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.UpdateableTableInfo;
+import org.labkey.api.data.WrappedColumn;
+import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.exceptions.OptimisticConflictException;
+import org.labkey.api.exp.MvFieldWrapper;
+import org.labkey.api.exp.property.Domain;
+import org.labkey.api.exp.property.DomainKind;
+import org.labkey.api.exp.property.DomainProperty;
+import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.QueryUpdateService;
+import org.labkey.api.query.QueryUpdateService.InsertOption;
+import org.labkey.api.util.GUID;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Bulk load variant of TableInsertDataIterator for PostgreSQL. Instead of binding each row into a JDBC batch, rows
+ * are buffered as COPY text and loaded with a single COPY ... FROM STDIN per batch.
+ *
+ * When generated keys are needed (reselectIds, triggers, etc.) the batch is copied into a session temp table
+ * and then moved into the target table with a single INSERT ... SELECT ... RETURNING, so the generated keys for
+ * the whole batch are recovered in one round trip.
+ *
+ * Rows are released to the next data iterator only after the batch containing them has been loaded, so
+ * callers see the same 'rows are in the database' guarantee as with setCommitRowsBeforeContinuing().
+ *
+ * Use DataIteratorContext.setUseBulkLoad() to request this path. See isSupported() for the cases that fall back to
+ * the standard TableInsertDataIterator.
+ */
+public class TableCopyDataIterator extends TableInsertDataIterator
+{
+    private static final Logger LOG = LogManager.getLogger(TableCopyDataIterator.class);
+
+    static final int DEFAULT_BATCH_SIZE = 10000;
+    private static final String ROW_NUMBER_COLUMN = "_rownumber_";
+
+    private CopyManager _copyManager;
+    private final List<Binding> _copyBindings = new ArrayList<>();
+    private String _copyColumns;
+    private ColumnInfo _autoIncrementColumn = null;
+    private String _stagingTableName = null;
+
+    private Supplier[] _suppliers;
+    private final ArrayDeque<Object[]> _pending = new ArrayDeque<>();
+    private final ArrayDeque<Object[]> _released = new ArrayDeque<>();
+    private final StringBuilder _copyBuffer = new StringBuilder();
+    private Object[] _currentRow = null;
+    private boolean _firstNext = true;
+    private boolean _atEndOfInput = false;
+    private int _rowsLoaded = 0;
+
+
+    /** Returns true if the bulk load path can insert into this table while preserving TableInsertDataIterator semantics */
+    static boolean isSupported(TableInfo table, DataIteratorContext context, @Nullable Set<DomainProperty> vocabularyColumns)
+    {
+        if (!context.isUseBulkLoad())
+            return false;
+
+        InsertOption option = context.getInsertOption();
+        if (!option.batch || option.mergeRows)
+            return false;
+
+        if (!(table instanceof UpdateableTableInfo))
+            return false;
+        UpdateableTableInfo updatable = (UpdateableTableInfo)table;
+        TableInfo schemaTable = updatable.getSchemaTableInfo();
+        if (null == schemaTable || schemaTable.getTableType() != DatabaseTableType.TABLE || null == schemaTable.getSelectName())
+            return false;
+        if (!schemaTable.getSqlDialect().isPostgreSQL())
+            return false;
+
+        // exp.Object rows and exp.ObjectProperty values are maintained by the StatementUtils generated SQL
+        if (null != vocabularyColumns && !vocabularyColumns.isEmpty())
+            return false;
+        if (null != StringUtils.trimToNull(updatable.getObjectIdColumnName()))
+            return false;
+        String objectURIColumnName = updatable.getObjectURIColumnName();
+        if (null != objectURIColumnName && null != schemaTable.getColumn(objectURIColumnName) && updatable.isAlwaysInsertExpObject())
+            return false;
+        Domain domain = updatable.getDomain();
+        DomainKind kind = updatable.getDomainKind();
+        boolean isMaterializedDomain = null != domain && null != kind && StringUtils.isNotEmpty(kind.getStorageSchemaName());
+        if (null != domain && !isMaterializedDomain && !domain.getProperties().isEmpty())
+            return false;
+
+        return true;
+    }
+
+
+    TableCopyDataIterator(DataIterator data, TableInfo table, @Nullable Container c, DataIteratorContext context,
+                          @Nullable Set<String> keyColumns, @Nullable Set<String> addlSkipColumns, @Nullable Set<String> dontUpdate)
+    {
+        super(data, table, c, context, keyColumns, addlSkipColumns, dontUpdate);
+        setDebugName("copy:" + table.getName());
+    }
+
+
+    @Override
+    void init()
+    {
+        try
+        {
+            UpdateableTableInfo updatable = (UpdateableTableInfo)_table;
+            TableInfo schemaTable = updatable.getSchemaTableInfo();
+
+            _scope = schemaTable.getSchema().getScope();
+            _conn = _scope.getConnection();
+            PGConnection pgConn = _conn.unwrap(PGConnection.class);
+            if (null == pgConn)
+                throw new IllegalStateException("Could not get a PostgreSQL connection for bulk load");
+            _copyManager = pgConn.getCopyAPI();
+
+            initBindings(updatable, schemaTable);
+
+            _suppliers = new Supplier[_data.getColumnCount()+1];
+            for (int i=0 ; i<=_data.getColumnCount() ; i++)
+                _suppliers[i] = _data.getSupplier(i);
+
+            if (_context.getConfigParameters() != null)
+            {
+                Integer contextTxSize = (Integer) _context.getConfigParameters().get(QueryUpdateService.ConfigParameters.TransactionSize);
+                if (contextTxSize != null && contextTxSize > 1)
+                    _txSize = contextTxSize;
+                _log = (Logger)_context.getConfigParameters().get(QueryUpdateService.ConfigParameters.Logger);
+            }
+            if (_batchSize < 1)
+                _batchSize = _txSize > 0 ? Math.min(_txSize, DEFAULT_BATCH_SIZE) : DEFAULT_BATCH_SIZE;
+
+            if (null != _rowIdIndex && null != _autoIncrementColumn)
+                createStagingTable(schemaTable);
+        }
+        catch (SQLException x)
+        {
+            throw new RuntimeSQLException(x);
+        }
+    }
+
+
+    /* match target columns to input columns, the same way StatementUtils and StatementDataIterator.init() do */
+    private void initBindings(UpdateableTableInfo updatable, TableInfo schemaTable)
+    {
+        Map<String, Object> constants = new CaseInsensitiveHashMap<>();
+        if (null != _c)
+            constants.put("container", _c.getId());
+        for (int i=1 ; i<=_data.getColumnCount() ; i++)
+        {
+            if (_data.isConstant(i))
+                constants.put(_data.getColumnInfo(i).getName(), _data.getConstantValue(i));
+        }
+
+        Map<String, Integer> inputByUri = new CaseInsensitiveHashMap<>();
+        Map<String, Integer> inputByName = new CaseInsensitiveHashMap<>();
+        Map<String, Integer> mvByName = new CaseInsensitiveHashMap<>();
+        for (int i=1 ; i<=_data.getColumnCount() ; i++)
+        {
+            ColumnInfo col = _data.getColumnInfo(i);
+            if (null != col.getPropertyURI())
+                inputByUri.putIfAbsent(col.getPropertyURI(), i);
+            inputByName.putIfAbsent(col.getName(), i);
+            FieldKey mvName = col.getMvColumnName();
+            if (null != mvName)
+            {
+                mvByName.putIfAbsent(mvName.getName(), i);
+                ColumnInfo mvColumn = _table.getColumn(mvName);
+                if (null != mvColumn && null != mvColumn.getMetaDataName())
+                    mvByName.putIfAbsent(mvColumn.getMetaDataName(), i);
+            }
+        }
+
+        Map<String, String> remap = updatable.remapSchemaColumns();
+        if (null == remap)
+            remap = Collections.emptyMap();
+
+        StringBuilder columns = new StringBuilder();
+        String comma = "";
+        for (ColumnInfo column : schemaTable.getColumns())
+        {
+            if (column instanceof WrappedColumn)
+                continue;
+            if (column.isAutoIncrement() && !_context.supportsAutoIncrementKey())
+            {
+                _autoIncrementColumn = column;
+                continue;
+            }
+            if (column.isVersionColumn() && !"Modified".equalsIgnoreCase(column.getName()))
+                continue;
+
+            String name = StringUtils.defaultString(remap.get(column.getName()), column.getName());
+            if (_skipColumnNames.contains(name))
+                continue;
+
+            Binding binding;
+            if (null != column.getPropertyURI() && inputByUri.containsKey(column.getPropertyURI()))
+                binding = new Binding(column, _data.getSupplier(inputByUri.get(column.getPropertyURI())), false);
+            else if (inputByName.containsKey(name))
+                binding = new Binding(column, _data.getSupplier(inputByName.get(name)), false);
+            else if (mvByName.containsKey(column.getName()))
+                binding = new Binding(column, _data.getSupplier(mvByName.get(column.getName())), true);
+            else if (constants.containsKey(name))
+            {
+                Object constant = constants.get(name);
+                binding = new Binding(column, () -> constant, false);
+            }
+            else
+            {
+                // leave it to the column default (or NULL), same as an unbound parameter
+                continue;
+            }
+
+            _copyBindings.add(binding);
+            columns.append(comma).append(column.getSelectName());
+            comma = ", ";
+        }
+        _copyColumns = columns.toString();
+    }
+
+
+    private void createStagingTable(TableInfo schemaTable)
+    {
+        _stagingTableName = "copy$" + GUID.makeHash();
+        SQLFragment create = new SQLFragment("CREATE TEMPORARY TABLE ").append(_stagingTableName)
+                .append(" AS SELECT 0 AS ").append(ROW_NUMBER_COLUMN);
+        if (!_copyBindings.isEmpty())
+            create.append(", ").append(_copyColumns);
+        create.append(" FROM ").append(schemaTable.getSelectName()).append(" WITH NO DATA");
+        new SqlExecutor(_scope, _conn).execute(create);
+    }
+
+
+    @Override
+    public boolean next() throws BatchValidationException
+    {
+        if (_firstNext)
+        {
+            _firstNext = false;
+            onFirst();
+        }
+
+        if (_released.isEmpty() && !_atEndOfInput)
+            loadBatch();
+
+        _currentRow = _released.poll();
+        return null != _currentRow;
+    }
+
+
+    private void loadBatch() throws BatchValidationException
+    {
+        int columnCount = getColumnCount();
+        int inputColumnCount = _data.getColumnCount();
+
+        while (_pending.size() < _batchSize)
+        {
+            if (!_data.next())
+            {
+                _atEndOfInput = true;
+                break;
+            }
+
+            Object[] row = new Object[columnCount+1];
+            for (int i=0 ; i<=inputColumnCount ; i++)
+                row[i] = _suppliers[i].get();
+            _pending.add(row);
+
+            try
+            {
+                appendCopyRow((Integer)row[0]);
+            }
+            catch (SQLException x)
+            {
+                handleSQLException(x);
+            }
+
+            checkShouldCancel();
+        }
+
+        if (_pending.isEmpty())
+            return;
+
+        try
+        {
+            if (null != _stagingTableName)
+                loadBatchWithKeys();
+            else
+                copyIn("COPY " + ((UpdateableTableInfo)_table).getSchemaTableInfo().getSelectName() + " (" + _copyColumns + ") FROM STDIN");
+
+            _rowsLoaded += _pending.size();
+            _currentTxSize += _pending.size();
+            _released.addAll(_pending);
+            _pending.clear();
+
+            // This allows specifying more granular commits than the transaction wrapping the entire operation
+            if (_txSize > 0 && _currentTxSize >= _txSize && _scope.isTransactionActive() && !_atEndOfInput)
+            {
+                _currentTxSize = 0;
+                if (_log != null)
+                    _log.info("Committing " + _rowsLoaded + " rows");
+                _scope.getCurrentTransaction().commitAndKeepConnection();
+            }
+        }
+        catch (SQLException x)
+        {
+            handleSQLException(x);
+        }
+        catch (RuntimeSQLException x)
+        {
+            handleSQLException(x.getSQLException());
+        }
+    }
+
+
+    private void loadBatchWithKeys() throws SQLException
+    {
+        copyIn("COPY " + _stagingTableName + " (" + ROW_NUMBER_COLUMN + (_copyBindings.isEmpty() ? "" : ", " + _copyColumns) + ") FROM STDIN");
+
+        SQLFragment insert = new SQLFragment("INSERT INTO ").append(((UpdateableTableInfo)_table).getSchemaTableInfo().getSelectName());
+        if (_copyBindings.isEmpty())
+            insert.append(" SELECT FROM ").append(_stagingTableName);
+        else
+            insert.append(" (").append(_copyColumns).append(")\nSELECT ").append(_copyColumns).append(" FROM ").append(_stagingTableName);
+        insert.append("\nORDER BY ").append(ROW_NUMBER_COLUMN);
+        insert.append("\nRETURNING ").append(_autoIncrementColumn.getSelectName());
+
+        // Rows are inserted in ORDER BY order, so the generated keys increase with the row number. RETURNING doesn't
+        // promise any particular order, so sort the keys and match them up with the (ordered) pending rows.
+        ArrayList<Long> keys = new SqlSelector(_scope, _conn, insert).getArrayList(Long.class);
+        if (keys.size() != _pending.size())
+            throw new IllegalStateException("Expected " + _pending.size() + " generated keys, found " + keys.size());
+        Collections.sort(keys);
+        int k = 0;
+        for (Object[] row : _pending)
+        {
+            Long key = keys.get(k++);
+            row[_rowIdIndex] = _autoIncrementColumn.getJdbcType() == JdbcType.BIGINT ? (Object)key : (Object)key.intValue();
+        }
+
+        new SqlExecutor(_scope, _conn).execute("TRUNCATE " + _stagingTableName);
+    }
+
+
+    private void copyIn(String sql) throws SQLException
+    {
+        try
+        {
+            // We buffer the batch rather than stream via CopyIn, because an open COPY holds the connection, and
+            // upstream data iterators (e.g. lookups) may use the same connection while we are reading the next row
+            long count = _copyManager.copyIn(sql, new StringReader(_copyBuffer.toString()));
+            assert count == _pending.size();
+        }
+        catch (IOException x)
+        {
+            throw new SQLException(x);
+        }
+        finally
+        {
+            _copyBuffer.setLength(0);
+        }
+    }
+
+
+    private void appendCopyRow(int rowNumber) throws SQLException
+    {
+        String tab = "";
+        if (null != _stagingTableName)
+        {
+            _copyBuffer.append(rowNumber);
+            tab = "\t";
+        }
+        for (Binding binding : _copyBindings)
+        {
+            _copyBuffer.append(tab);
+            tab = "\t";
+            Object value = binding.from.get();
+            if (value instanceof MvFieldWrapper)
+                value = binding.mv ? ((MvFieldWrapper)value).getMvIndicator() : ((MvFieldWrapper)value).getValue();
+            else if (binding.mv)
+                value = null;
+            appendCopyValue(_copyBuffer, Parameter.getValueToBind(value, binding.column.getJdbcType()));
+        }
+        _copyBuffer.append('\n');
+    }
+
+
+    /** Format a value using the PostgreSQL COPY text format */
+    static void appendCopyValue(StringBuilder sb, @Nullable Object value)
+    {
+        if (null == value)
+        {
+            sb.append("\\N");
+        }
+        else if (value instanceof Boolean)
+        {
+            sb.append((Boolean)value ? 't' : 'f');
+        }
+        else if (value instanceof BigDecimal)
+        {
+            sb.append(((BigDecimal)value).toPlainString());
+        }
+        else if (value instanceof Number)
+        {
+            sb.append(value);
+        }
+        else if (value instanceof java.sql.Timestamp || value instanceof java.sql.Date || value instanceof java.sql.Time)
+        {
+            sb.append(value);
+        }
+        else if (value instanceof java.util.Date)
+        {
+            sb.append(new java.sql.Timestamp(((java.util.Date)value).getTime()));
+        }
+        else if (value instanceof byte[])
+        {
+            // bytea hex format, the backslash itself must be escaped for COPY
+            sb.append("\\\\x");
+            for (byte b : (byte[])value)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        else
+        {
+            String s = String.valueOf(value);
+            for (int i=0 ; i<s.length() ; i++)
+            {
+                char ch = s.charAt(i);
+                switch (ch)
+                {
+                    case '\\': sb.append("\\\\"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    default: sb.append(ch);
+                }
+            }
+        }
+    }
+
+
+    private void handleSQLException(SQLException x) throws BatchValidationException
+    {
+        if (StringUtils.startsWith(x.getSQLState(), "22") || RuntimeSQLException.isConstraintException(x))
+        {
+            getRowError().addGlobalError(x);
+            throw _errors;
+        }
+        else if (SqlDialect.isObjectNotFoundException(x))
+        {
+            OptimisticConflictException opt = OptimisticConflictException.create(Table.ERROR_TABLEDELETED);
+            getRowError().addGlobalError(opt);
+            throw _errors;
+        }
+        throw new RuntimeSQLException(x);
+    }
+
+
+    @Override
+    public Object get(int i)
+    {
+        return _currentRow[i];
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        if (null != _stagingTableName && null != _conn)
+        {
+            try
+            {
+                new SqlExecutor(_scope, _conn).execute("DROP TABLE IF EXISTS " + _stagingTableName);
+            }
+            catch (RuntimeSQLException x)
+            {
+                // e.g. the transaction has already failed, the temp table goes away with the session
+                LOG.debug("Could not drop bulk load staging table " + _stagingTableName, x);
+            }
+            _stagingTableName = null;
+        }
+        super.close();
+    }
+
+
+    private static class Binding
+    {
+        final ColumnInfo column;
+        final Supplier from;
+        final boolean mv;
+
+        Binding(ColumnInfo column, Supplier from, boolean mv)
+        {
+            this.column = column;
+            this.from = from;
+            this.mv = mv;
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private String format(Object value)
+        {
+            StringBuilder sb = new StringBuilder();
+            appendCopyValue(sb, value);
+            return sb.toString();
+        }
+
+        @Test
+        public void testCopyFormat()
+        {
+            assertEquals("\\N", format(null));
+            assertEquals("t", format(Boolean.TRUE));
+            assertEquals("f", format(Boolean.FALSE));
+            assertEquals("42", format(42));
+            assertEquals("12345678901234567890", format(new BigDecimal("1.234567890123456789E19")));
+            assertEquals("a\\tb\\nc\\rd\\\\e", format("a\tb\nc\rd\\e"));
+            assertEquals("\\\\x00ff10", format(new byte[]{0, (byte)0xFF, 0x10}));
+            assertEquals("2020-01-02", format(java.sql.Date.valueOf("2020-01-02")));
+        }
+    }
+}
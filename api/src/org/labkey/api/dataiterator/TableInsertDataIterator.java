@@ -48,14 +48,14 @@ import java.util.stream.Collectors;
 // TODO: convert usages to TableInsertDataIteratorBuilder and stop extending DataIteratorBuilder
 public class TableInsertDataIterator extends StatementDataIterator implements DataIteratorBuilder
 {
-    private DbScope _scope = null;
-    private Connection _conn = null;
-
-    private final TableInfo _table;
-    private final Container _c;
-    private boolean _selectIds;
-    private final InsertOption _insertOption;
-    private final Set<String> _skipColumnNames = new CaseInsensitiveHashSet();
+    DbScope _scope = null;
+    Connection _conn = null;
+
+    final TableInfo _table;
+    final Container _c;
+    boolean _selectIds;
+    final InsertOption _insertOption;
+    final Set<String> _skipColumnNames = new CaseInsensitiveHashSet();
     private final Set<String> _dontUpdate = new CaseInsensitiveHashSet();
     private final Set<String> _keyColumns = new CaseInsensitiveHashSet();
     private Set<DomainProperty> _adhocPropColumns = new LinkedHashSet<>();
@@ -132,13 +132,18 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
         {
             keyColumns.addAll(context.getAlternateKeys());
         }
-        TableInsertDataIterator ti = new TableInsertDataIterator(di, table, c, context, keyColumns, addlSkipColumns, dontUpdate);
+        TableInsertDataIterator ti;
+        if (TableCopyDataIterator.isSupported(table, context, vocabularyColumns))
+            ti = new TableCopyDataIterator(di, table, c, context, keyColumns, addlSkipColumns, dontUpdate);
+        else
+            ti = new TableInsertDataIterator(di, table, c, context, keyColumns, addlSkipColumns, dontUpdate);
         DataIterator ret = ti;
 
 
         // UNFORTUNATELY I can't tell if TableInsertDataIterator is row at a time until AFTER init()
         // However, _selectIds is set during construction, and will force row-at-time
-        if (commitRowsBeforeContinuing && !ti._selectIds)
+        // TableCopyDataIterator doesn't release rows until they have been loaded, so it never needs an embargo
+        if (commitRowsBeforeContinuing && !ti._selectIds && !(ti instanceof TableCopyDataIterator))
         {
             var emb = new EmbargoDataIterator(context, ti, null, null);
             ti.setEmbargoDataIterator(emb);
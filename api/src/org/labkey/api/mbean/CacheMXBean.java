@@ -16,6 +16,7 @@
 package org.labkey.api.mbean;
 
 import org.labkey.api.cache.CacheStats;
+import org.labkey.api.cache.CacheType;
 
 /**
  * User: matthewb
@@ -28,5 +29,6 @@ public interface CacheMXBean
     int getLimit();
     int getSize();
     CacheStats getCacheStats();
+    CacheType getCacheType();
     void clear();
 }
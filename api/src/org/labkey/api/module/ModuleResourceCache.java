@@ -120,6 +120,7 @@ public final class ModuleResourceCache<V> implements ModuleChangeListener
         };
 
         _cache = CacheManager.getBlockingCache(Constants.getMaxModules(), CacheManager.DAY, description, wrapper);  // Cache is one entry per module
+        _cache.setRefreshAhead(0.9);  // Reload in the background near the end of the day; file changes still clear immediately
         _handler = handler;
 
         ContextListener.addModuleChangeListener(this);
@@ -1692,6 +1692,25 @@ abstract public class PipelineJob extends Job implements Serializable
         return false;
     }
 
+    /**
+     * Resources this job expects to use, which the web server's job queue uses to decide how many jobs can run at once.
+     * By default, jobs that don't allow multiple simultaneous jobs are treated as database-heavy, so (as before) only
+     * one of them runs at a time unless the server is configured to allow more.
+     */
+    public PipelineJobResources getResources()
+    {
+        return allowMultipleSimultaneousJobs() ? PipelineJobResources.DEFAULT : PipelineJobResources.DB_HEAVY;
+    }
+
+    /**
+     * Jobs with a higher priority start before lower priority jobs that are waiting in the web server's job queue.
+     * Waiting jobs gain priority over time, so low priority jobs still start eventually.
+     */
+    public int getPriority()
+    {
+        return 0;
+    }
+
     synchronized public void setSubmitted()
     {
         _submitted = true;
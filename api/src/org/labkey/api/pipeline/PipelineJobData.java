@@ -17,12 +17,15 @@
 package org.labkey.api.pipeline;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class PipelineJobData
 {
     private List<PipelineJob> _running;
     private List<PipelineJob> _pending;
+    private Map<String, Object> _queueStats = Collections.emptyMap();
 
     public PipelineJobData()
     {
@@ -49,4 +52,15 @@ public class PipelineJobData
     {
         _pending.add(job);
     }
+
+    /** Queue metrics (wait times, utilization, etc.) for display, keyed by label */
+    public Map<String, Object> getQueueStats()
+    {
+        return _queueStats;
+    }
+
+    public void setQueueStats(Map<String, Object> queueStats)
+    {
+        _queueStats = queueStats;
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.pipeline;
+
+/**
+ * What a {@link PipelineJob} expects to use while it runs. The web server's job queue uses these estimates to decide
+ * how many jobs can run at once; they're not enforced. Jobs declare them by overriding {@link PipelineJob#getResources()}.
+ */
+public class PipelineJobResources
+{
+    /** A typical job: one thread, modest memory, light database use */
+    public static final PipelineJobResources DEFAULT = new PipelineJobResources(1, 256, false);
+    /** A job that does heavy database work, such as a large import; only a few of these run at once */
+    public static final PipelineJobResources DB_HEAVY = new PipelineJobResources(1, 256, true);
+
+    private final int _cpuSlots;
+    private final long _memoryMB;
+    private final boolean _dbHeavy;
+
+    /**
+     * @param cpuSlots Number of threads the job keeps busy
+     * @param memoryMB Estimated peak heap the job needs, in megabytes
+     * @param dbHeavy True if the job does enough database work that running many of these at once would swamp the database
+     */
+    public PipelineJobResources(int cpuSlots, long memoryMB, boolean dbHeavy)
+    {
+        _cpuSlots = Math.max(1, cpuSlots);
+        _memoryMB = Math.max(0, memoryMB);
+        _dbHeavy = dbHeavy;
+    }
+
+    public int getCpuSlots()
+    {
+        return _cpuSlots;
+    }
+
+    public long getMemoryMB()
+    {
+        return _memoryMB;
+    }
+
+    public boolean isDbHeavy()
+    {
+        return _dbHeavy;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _cpuSlots + " CPU, " + _memoryMB + " MB" + (_dbHeavy ? ", DB-heavy" : "");
+    }
+}
@@ -98,6 +98,9 @@ public abstract class AbstractQueryImportAction<FORM> extends FormApiAction<FORM
         public boolean acceptZeroResults;   // 0 changes will show the update message/redirect, instead of an error
     }
 
+    // Worker threads used to convert and validate imported rows, see DataIteratorContext.setParallelism()
+    private static final int IMPORT_PARALLELISM = Integer.getInteger("labkey.import.parallelism", Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     protected ImportViewBean _importViewBean = new ImportViewBean();
 
     // Caller can import into table, using TableInfo or into simpler List of Objects, using ColumnDescriptors
@@ -524,6 +527,7 @@ public abstract class AbstractQueryImportAction<FORM> extends FormApiAction<FORM
             DataIteratorContext context = new DataIteratorContext(errors);
             context.setInsertOption(_insertOption);
             context.setAllowImportLookupByAlternateKey(_importLookupByAlternateKey);
+            context.setParallelism(IMPORT_PARALLELISM);
             if (auditBehaviorType != null)
             {
                 Map<Enum, Object> configParameters = new HashMap<>();
@@ -92,7 +92,8 @@ public interface QueryChangeListener
         Container(Container.class),
         Description(String.class),
         Inherit(Boolean.class),
-        Hidden(Boolean.class);
+        Hidden(Boolean.class),
+        Materialized(Boolean.class);
 
         private final Class<?> _klass;
 
@@ -57,6 +57,9 @@ public interface QueryDefinition
     boolean isHidden();
     void setIsHidden(boolean f);
     boolean isSnapshot();
+    /** Materialized queries keep their results in a table that is refreshed when the tables they read from change. */
+    boolean isMaterialized();
+    void setIsMaterialized(boolean f);
     void setIsTemporary(boolean temporary);
     boolean isTemporary();
 
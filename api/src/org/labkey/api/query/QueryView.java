@@ -2714,6 +2714,46 @@ public class QueryView extends WebPartView<Object>
         }
     }
 
+    protected ArrowStreamWriter getArrowWriter(ColumnHeaderType headerType)
+    {
+        _exportView = true;
+        DataView view = createDataView();
+        DataRegion rgn = view.getDataRegion();
+        rgn.setAllowAsync(false);
+        rgn.setShowPagination(false);
+        RenderContext rc = view.getRenderContext();
+        rc.setCache(false);
+        try
+        {
+            Results results = rgn.getResults(rc);
+            ArrowStreamWriter arrow = new ArrowStreamWriter(results, getExportColumns(rgn.getDisplayColumns()));
+            arrow.setFilenamePrefix(getSettings().getQueryName() != null ? getSettings().getQueryName() : "query");
+            arrow.setColumnHeaderType(headerType);
+            return arrow;
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+    }
+
+    /** Exports in the Apache Arrow IPC streaming format, in record batches of batchSize rows */
+    public void exportToArrow(HttpServletResponse response, ColumnHeaderType headerType, int batchSize) throws IOException
+    {
+        _exportView = true;
+        TableInfo table = getTable();
+
+        if (table != null)
+        {
+            try (ArrowStreamWriter arrow = getArrowWriter(headerType))
+            {
+                arrow.setBatchSize(batchSize);
+                arrow.write(response);
+                logAuditEvent("Exported to Arrow", arrow.getDataRowCount());
+            }
+        }
+    }
+
     @Nullable
     public ByteArrayAttachmentFile exportToTsvFile(final TSVWriter.DELIM delim, final TSVWriter.QUOTE quote, ColumnHeaderType headerType,
                                                    @Nullable List<String> commentLines, @Nullable List<Integer> rowsOut, boolean includeTimestamp) throws Exception
@@ -0,0 +1,971 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.reader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.iterator.CloseableIterator;
+import org.labkey.api.test.TestWhen;
+import org.labkey.api.writer.PrintWriters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fast path for loading large, tab- or comma-delimited UTF-8 files. Instead of reading chars through a Reader and
+ * splitting each line into Strings, this memory-maps the file and scans the bytes for delimiters, quotes and line
+ * breaks eight at a time. Strings are created only for the columns being loaded (ColumnDescriptor.load), never for
+ * whole lines or skipped columns. Parsing follows TabLoader's rules (trimming, \N, backslash unescaping, quoted fields
+ * spanning lines, etc.) and TabLoader's factories choose this loader for files it supports.
+ *
+ * Delimiters, quotes and line breaks are ASCII and never appear inside a multi-byte UTF-8 sequence, so scanning bytes
+ * is safe; files with a UTF-16 or UTF-32 byte order mark are left to TabLoader. Multi-character delimiters are not
+ * supported.
+ */
+public class MappedTabLoader extends DataLoader
+{
+    private static final Logger LOG = LogManager.getLogger(MappedTabLoader.class);
+
+    // Smaller files aren't worth mapping. Start with -Dlabkey.mappedTabLoader=false to always use TabLoader.
+    private static final long MIN_FILE_SIZE = 1024 * 1024;
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("labkey.mappedTabLoader"));
+
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final byte COMMENT = '#';
+    private static final byte QUOTE = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final File _inputFile;
+    private final Map<String, String> _comments = new HashMap<>();
+    private final List<Cursor> _cursors = new ArrayList<>();  // cursors holding a mapped window, released by close()
+
+    private FileChannel _channel = null;
+    private long _size;
+    private long _dataStart = 0;
+    private int _commentLines = 0;
+    private int _windowSize = DEFAULT_WINDOW_SIZE;
+
+    private byte _delimiter = '\t';
+    private boolean _parseQuotes = true;
+    private boolean _unescapeBackslashes = true;
+
+    /** True if this loader should be used for the file: big enough to benefit, and UTF-8 (or ASCII) encoded */
+    public static boolean isSupported(File file)
+    {
+        if (!ENABLED || !file.isFile() || file.length() < MIN_FILE_SIZE)
+            return false;
+
+        try (InputStream is = new FileInputStream(file))
+        {
+            byte[] bom = new byte[4];
+            int read = is.read(bom);
+
+            // UTF-16 and UTF-32 byte order marks: FE FF, FF FE, 00 00 FE FF
+            if (read >= 2 && ((bom[0] == (byte) 0xFE && bom[1] == (byte) 0xFF) || (bom[0] == (byte) 0xFF && bom[1] == (byte) 0xFE)))
+                return false;
+            return read < 4 || bom[0] != 0 || bom[1] != 0 || bom[2] != (byte) 0xFE || bom[3] != (byte) 0xFF;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    public MappedTabLoader(File inputFile, Boolean hasColumnHeaders) throws IOException
+    {
+        this(inputFile, hasColumnHeaders, null);
+    }
+
+    public MappedTabLoader(File inputFile, Boolean hasColumnHeaders, @Nullable Container mvIndicatorContainer) throws IOException
+    {
+        super(mvIndicatorContainer);
+        setSource(inputFile);
+        _inputFile = inputFile;
+
+        if (null != hasColumnHeaders)
+            setHasColumnHeaders(hasColumnHeaders);
+
+        setScrollable(true);
+    }
+
+    public void parseAsCSV()
+    {
+        setDelimiterCharacter(',');
+        setParseQuotes(true);
+    }
+
+    public void setDelimiterCharacter(char delimiter)
+    {
+        if (delimiter > 0x7F)
+            throw new IllegalArgumentException("Delimiter must be an ASCII character");
+        _delimiter = (byte) delimiter;
+    }
+
+    public void setParseQuotes(boolean parseQuotes)
+    {
+        _parseQuotes = parseQuotes;
+    }
+
+    public void setUnescapeBackslashes(boolean unescapeBackslashes)
+    {
+        _unescapeBackslashes = unescapeBackslashes;
+    }
+
+    // For tests, to exercise rows that cross window boundaries
+    void setWindowSize(int windowSize)
+    {
+        _windowSize = windowSize;
+    }
+
+    public Map<String, String> getComments() throws IOException
+    {
+        ensureInitialized();
+
+        return Collections.unmodifiableMap(_comments);
+    }
+
+    @Override
+    protected void initialize() throws IOException
+    {
+        _channel = FileChannel.open(_inputFile.toPath(), StandardOpenOption.READ);
+        _size = _channel.size();
+
+        // Skip a UTF-8 byte order mark
+        ByteBuffer bom = ByteBuffer.allocate(3);
+        _channel.read(bom, 0);
+        if (bom.position() == 3 && bom.get(0) == (byte) 0xEF && bom.get(1) == (byte) 0xBB && bom.get(2) == (byte) 0xBF)
+            _dataStart = 3;
+
+        readComments();
+        super.initialize();
+    }
+
+    private void readComments()
+    {
+        try (Cursor cursor = new Cursor(_dataStart))
+        {
+            while (true)
+            {
+                String line = cursor.readLine();
+
+                if (null == line || (line.length() > 0 && line.charAt(0) != COMMENT))
+                    break;
+
+                _commentLines++;
+
+                int eq = line.indexOf('=');
+                if (eq != -1)
+                {
+                    String key = line.substring(1, eq).trim();
+                    String value = line.substring(eq + 1).trim();
+                    if (key.length() > 0 || value.length() > 0)
+                        _comments.put(key, value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String[][] getFirstNLines(int n) throws IOException
+    {
+        ensureChannel();
+        List<String[]> lineFields = new ArrayList<>(n);
+
+        try (Cursor cursor = new Cursor(_dataStart))
+        {
+            for (int i = 0; i < n; i++)
+            {
+                String[] fields = cursor.readFields(null);
+                if (null == fields)
+                    break;
+                lineFields.add(fields);
+            }
+        }
+
+        return lineFields.toArray(new String[0][]);
+    }
+
+    // getFirstNLines() is called during initialization, before the columns are set
+    private void ensureChannel() throws IOException
+    {
+        if (null == _channel)
+        {
+            _channel = FileChannel.open(_inputFile.toPath(), StandardOpenOption.READ);
+            _size = _channel.size();
+        }
+    }
+
+    @Override
+    public @NotNull CloseableIterator<Map<String, Object>> iterator()
+    {
+        try
+        {
+            ensureInitialized();
+            ensureChannel();
+            return new MappedTabLoaderIterator();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes the channel and drops every cursor's mapped window. A MappedByteBuffer is only unmapped once it's garbage
+     * collected, and Windows won't delete or overwrite a file while any part of it is mapped, so no reference to a
+     * window may outlive the loader. Reading from an iterator after this throws IllegalStateException.
+     */
+    @Override
+    public void close()
+    {
+        for (Cursor cursor : new ArrayList<>(_cursors))
+            cursor.close();
+
+        if (null != _channel)
+        {
+            try
+            {
+                _channel.close();
+            }
+            catch (IOException e)
+            {
+                LOG.debug("Failed to close " + _inputFile, e);
+            }
+            _channel = null;
+        }
+    }
+
+
+    public class MappedTabLoaderIterator extends DataLoaderIterator
+    {
+        private final Cursor _cursor;
+
+        protected MappedTabLoaderIterator() throws IOException
+        {
+            super(_commentLines + _skipLines);
+            assert _skipLines != -1;
+
+            _cursor = new Cursor(_dataStart);
+            for (int i = 0; i < lineNum(); i++)
+                _cursor.readLine();
+
+            // all input starts as String, we don't need to use a String converter
+            for (ColumnDescriptor col : getColumns())
+            {
+                if (col.converter == StringConverter && col.clazz == String.class)
+                    col.converter = noopConverter;
+            }
+        }
+
+        @Override
+        protected String[] readFields()
+        {
+            return _cursor.readFields(_columns);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                MappedTabLoader.this.close();
+            }
+            finally
+            {
+                super.close();
+            }
+        }
+    }
+
+
+    // Thrown when a row runs past the end of the mapped window; the row is re-parsed from a window that starts at it
+    private static final class NeedMoreException extends RuntimeException
+    {
+        private NeedMoreException()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final NeedMoreException NEED_MORE = new NeedMoreException();
+
+
+    /**
+     * A position in the file. Bytes are read from a mapped window of the file that is moved (and grown, if a single row
+     * is larger than the window) as parsing proceeds.
+     */
+    private class Cursor implements AutoCloseable
+    {
+        private final ArrayList<String> _fields = new ArrayList<>(30);
+        private ByteBuffer _buf;
+        private ByteBuffer _reader;
+        private long _base;     // file offset of the start of the window
+        private int _limit;     // number of bytes in the window
+        private int _pos;       // current position in the window
+        private int _window = _windowSize;
+        private byte[] _bytes = new byte[256];
+
+        private Cursor(long offset)
+        {
+            map(offset);
+            _cursors.add(this);
+        }
+
+        // Drop the window so it can be unmapped
+        @Override
+        public void close()
+        {
+            _buf = null;
+            _reader = null;
+            _cursors.remove(this);
+        }
+
+        private void checkOpen()
+        {
+            if (null == _buf)
+                throw new IllegalStateException(_inputFile + " has been closed");
+        }
+
+        private void map(long offset)
+        {
+            if (null == _channel)
+                throw new IllegalStateException(_inputFile + " has been closed");
+
+            try
+            {
+                long length = Math.min(_size - offset, _window);
+                MappedByteBuffer buf = _channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                _buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+                _reader = _buf.duplicate();
+                _base = offset;
+                _limit = (int) length;
+                _pos = 0;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Re-map so the row that starts at rowStart is at the beginning of the window, growing the window if the row
+        // didn't fit in the last one
+        private void remap(int rowStart)
+        {
+            if (rowStart == 0)
+            {
+                if (_window >= MAX_WINDOW_SIZE)
+                    throw new IllegalStateException("Row at offset " + _base + " of " + _inputFile + " is too large to load");
+                _window = (int) Math.min((long) _window * 2, MAX_WINDOW_SIZE);
+            }
+            map(_base + rowStart);
+        }
+
+        private boolean atEndOfFile(int pos)
+        {
+            return _base + pos >= _size;
+        }
+
+        // More of the file remains beyond the window
+        private boolean isTruncated()
+        {
+            return _base + _limit < _size;
+        }
+
+        private byte byteAt(int pos)
+        {
+            return _buf.get(pos);
+        }
+
+        /** Raw line (for comments and skipping headers), or null at end of file */
+        @Nullable String readLine()
+        {
+            checkOpen();
+
+            while (true)
+            {
+                int start = _pos;
+
+                try
+                {
+                    if (atEndOfFile(start))
+                        return null;
+
+                    int end = findLineEnd(start);
+                    String line = decode(start, end);
+                    _pos = skipLineBreak(end);
+                    return line;
+                }
+                catch (NeedMoreException e)
+                {
+                    remap(start);
+                }
+            }
+        }
+
+        /** Parse the next row, skipping comments and blank lines, or return null at end of file */
+        @Nullable String[] readFields(@Nullable ColumnDescriptor[] columns)
+        {
+            checkOpen();
+
+            while (true)
+            {
+                int start = _pos;
+
+                try
+                {
+                    if (atEndOfFile(start))
+                        return null;
+
+                    int end = findLineEnd(start);
+
+                    if ((end > start && byteAt(start) == COMMENT) || (!isIncludeBlankLines() && isBlank(start, end)))
+                    {
+                        _pos = skipLineBreak(end);
+                        continue;
+                    }
+
+                    return parseFields(start, end, columns);
+                }
+                catch (NeedMoreException e)
+                {
+                    remap(start);
+                }
+            }
+        }
+
+        // Mirrors TabLoader.readFields()
+        private String[] parseFields(int start, int end, @Nullable ColumnDescriptor[] columns)
+        {
+            _fields.clear();
+            int colIndex = 0;
+
+            while (start < end)
+            {
+                boolean loadThisColumn = null == columns || colIndex >= columns.length || columns[colIndex].load;
+                String field = null;
+                int fieldEnd;
+                byte ch = byteAt(start);
+
+                colIndex++;
+
+                if (ch == _delimiter)
+                {
+                    fieldEnd = start;
+                    field = _preserveEmptyString ? null : "";
+                }
+                else if (ch == QUOTE && _parseQuotes)
+                {
+                    // Find the closing quote, skipping doubled quotes; the field may span lines
+                    int quote = start;
+                    boolean hasQuotes = false;
+
+                    while (true)
+                    {
+                        quote = scan(quote + 1, _limit, QUOTE, QUOTE, QUOTE);
+
+                        if (quote == _limit || quote == _limit - 1)
+                        {
+                            // Need to see past the window to know how the field ends
+                            if (isTruncated())
+                                throw NEED_MORE;
+                            break;
+                        }
+
+                        if (byteAt(quote + 1) != QUOTE)
+                            break;
+
+                        hasQuotes = true;
+                        quote++;
+                    }
+
+                    if (loadThisColumn)
+                    {
+                        field = decode(start + 1, Math.min(quote, _limit));
+                        if (hasQuotes)
+                            field = field.replace("\"\"", "\"");
+                        if (field.indexOf('\r') != -1)
+                            field = field.replace("\r\n", "\n").replace('\r', '\n');
+                        // An unterminated quote runs to the end of the file, less its final line break
+                        if (quote >= _limit && field.endsWith("\n"))
+                            field = field.substring(0, field.length() - 1);
+                    }
+
+                    fieldEnd = quote + 1;
+
+                    // The quoted field may have continued onto later lines
+                    if (fieldEnd > end)
+                        end = fieldEnd >= _limit ? _limit : findLineEnd(fieldEnd);
+
+                    // Like TabLoader (issue 9727), append anything between the closing quote and the next delimiter
+                    if (fieldEnd < end && byteAt(fieldEnd) != _delimiter)
+                    {
+                        int trailing = fieldEnd;
+                        fieldEnd = scan(fieldEnd, end, _delimiter, _delimiter, _delimiter);
+                        if (loadThisColumn)
+                            field = field + decode(trailing, fieldEnd);
+                    }
+                }
+                else
+                {
+                    fieldEnd = scan(start, end, _delimiter, _delimiter, _delimiter);
+
+                    // Create a String only if we're going to load this column
+                    if (loadThisColumn)
+                        field = TabLoader.parseValue(decode(start, fieldEnd), _preserveEmptyString, _unescapeBackslashes, isThrowOnErrors());
+                }
+
+                if (loadThisColumn)
+                    _fields.add(field);
+
+                int next = fieldEnd + 1;
+
+                while (next < end && byteAt(next) != _delimiter && isWhitespace(byteAt(next)))
+                    next++;
+
+                start = next;
+            }
+
+            _pos = end >= _limit ? _limit : skipLineBreak(end);
+
+            return _fields.toArray(new String[0]);
+        }
+
+        // Position of the line break that ends the line starting at pos (or the end of the file)
+        private int findLineEnd(int pos)
+        {
+            int end = scan(pos, _limit, LF, CR, LF);
+
+            if (end == _limit && isTruncated())
+                throw NEED_MORE;
+
+            return end;
+        }
+
+        // Position after the line break at pos, treating \r\n as a single break
+        private int skipLineBreak(int pos)
+        {
+            if (pos >= _limit)
+                return _limit;
+
+            if (byteAt(pos) == CR)
+            {
+                if (pos + 1 == _limit && isTruncated())
+                    throw NEED_MORE;
+                if (pos + 1 < _limit && byteAt(pos + 1) == LF)
+                    return pos + 2;
+            }
+
+            return pos + 1;
+        }
+
+        /**
+         * Position of the first byte in [pos, limit) equal to a, b or c, or limit if there is none. Tests eight bytes at a
+         * time: for each target, XOR leaves a zero byte where it matches, and (x - 0x01..) & ~x & 0x80.. sets the high bit
+         * of the lowest zero byte. (Bits above a match can be false positives, but we only want the lowest.)
+         */
+        private int scan(int pos, int limit, byte a, byte b, byte c)
+        {
+            long pa = (a & 0xFFL) * ONES;
+            long pb = (b & 0xFFL) * ONES;
+            long pc = (c & 0xFFL) * ONES;
+
+            while (pos + 8 <= limit)
+            {
+                long word = _buf.getLong(pos);
+                long found = zeroBytes(word ^ pa) | zeroBytes(word ^ pb) | zeroBytes(word ^ pc);
+
+                if (found != 0)
+                    return pos + (Long.numberOfTrailingZeros(found) >>> 3);
+
+                pos += 8;
+            }
+
+            while (pos < limit)
+            {
+                byte x = _buf.get(pos);
+                if (x == a || x == b || x == c)
+                    return pos;
+                pos++;
+            }
+
+            return limit;
+        }
+
+        private boolean isBlank(int start, int end)
+        {
+            for (int i = start; i < end; i++)
+            {
+                // Same as StringUtils.trimToNull(), which trims control characters and spaces
+                if ((byteAt(i) & 0xFF) > ' ')
+                    return false;
+            }
+
+            return true;
+        }
+
+        private String decode(int start, int end)
+        {
+            int length = end - start;
+
+            if (length <= 0)
+                return "";
+
+            if (_bytes.length < length)
+                _bytes = new byte[Math.max(length, _bytes.length * 2)];
+
+            _reader.position(start);
+            _reader.get(_bytes, 0, length);
+
+            return new String(_bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long zeroBytes(long x)
+    {
+        return (x - ONES) & ~x & HIGHS;
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b >= 0 && Character.isWhitespace((char) b);
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static final String TSV =
+                "# algorithm=test\n" +
+                "#date = today\n" +
+                "\n" +
+                "name\tcount\tmeasure\tnote\r\n" +
+                "alpha\t1\t1.5\tplain\n" +
+                "# a comment in the data\n" +
+                "beta\t2\t2.5\t\"quoted, with \"\"quotes\"\"\"\n" +
+                "gamma\t3\t\t\"spans\r\ntwo lines\"\n" +
+                "   \n" +
+                "delta\t4\t4.5\tback\\\\slash\\tand tab \\N\n" +
+                "epsilon\t\\N\t5.5\tunicode \u00e9\u4e2d\n" +
+                "zeta\t6\t6.5\t\"trailing\"after\n" +
+                "eta\t7\t7.5";
+
+        static File createFile(String data, String ext, boolean bom) throws IOException
+        {
+            File f = File.createTempFile("junit", ext);
+            f.deleteOnExit();
+
+            if (bom)
+            {
+                try (OutputStream os = new FileOutputStream(f))
+                {
+                    os.write(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+                    os.write(data.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            else
+            {
+                try (Writer w = PrintWriters.getPrintWriter(f))
+                {
+                    w.write(data);
+                }
+            }
+
+            return f;
+        }
+
+        private void assertSameAsTabLoader(File file, boolean csv, int windowSize) throws IOException
+        {
+            TabLoader expected = new TabLoader(file, true);
+            MappedTabLoader actual = new MappedTabLoader(file, true);
+            actual.setWindowSize(windowSize);
+
+            if (csv)
+            {
+                expected.parseAsCSV();
+                actual.parseAsCSV();
+            }
+
+            try
+            {
+                ColumnDescriptor[] expectedColumns = expected.getColumns();
+                ColumnDescriptor[] actualColumns = actual.getColumns();
+                assertEquals(expectedColumns.length, actualColumns.length);
+                for (int i = 0; i < expectedColumns.length; i++)
+                {
+                    assertEquals(expectedColumns[i].name, actualColumns[i].name);
+                    assertEquals(expectedColumns[i].clazz, actualColumns[i].clazz);
+                }
+
+                assertEquals(expected.getComments(), actual.getComments());
+                assertEquals(expected.load(), actual.load());
+            }
+            finally
+            {
+                expected.close();
+                actual.close();
+            }
+        }
+
+        @Test
+        public void testMatchesTabLoader() throws IOException
+        {
+            File tsv = createFile(TSV, ".tsv", false);
+            assertSameAsTabLoader(tsv, false, DEFAULT_WINDOW_SIZE);
+
+            // Tiny windows force every row (and quoted fields spanning lines) across window boundaries
+            for (int window : new int[]{1, 7, 16, 33})
+                assertSameAsTabLoader(tsv, false, window);
+
+            assertSameAsTabLoader(createFile(TSV, ".tsv", true), false, 16);
+
+            String csv = TSV.replace('\t', ',').replace("quoted, with", "quoted; with");
+            assertSameAsTabLoader(createFile(csv, ".csv", false), true, DEFAULT_WINDOW_SIZE);
+            assertSameAsTabLoader(createFile(csv, ".csv", false), true, 9);
+        }
+
+        @Test
+        public void testSkippedColumns() throws IOException
+        {
+            File tsv = createFile(TSV, ".tsv", false);
+            MappedTabLoader loader = new MappedTabLoader(tsv, true);
+
+            try
+            {
+                ColumnDescriptor[] columns = loader.getColumns();
+                columns[1].load = false;
+                columns[3].load = false;
+
+                List<Map<String, Object>> rows = loader.load();
+                assertEquals(7, rows.size());
+                assertEquals("beta", rows.get(1).get("name"));
+                assertEquals(2.5, rows.get(1).get("measure"));
+                assertFalse(rows.get(1).containsKey("note"));
+                assertEquals("eta", rows.get(6).get("name"));
+            }
+            finally
+            {
+                loader.close();
+            }
+        }
+
+        @Test
+        public void testSupported() throws IOException
+        {
+            assertFalse(isSupported(createFile(TSV, ".tsv", false)));   // too small to bother
+
+            File big = createFile("a\tb\n" + StringUtils.repeat("1\t2\n", 300_000), ".tsv", false);
+            assertTrue(isSupported(big));
+            assertTrue(new TabLoader.TsvFactory().createLoader(big, true) instanceof MappedTabLoader);
+
+            File utf16 = File.createTempFile("junit", ".tsv");
+            utf16.deleteOnExit();
+            try (OutputStream os = new FileOutputStream(utf16))
+            {
+                os.write(new byte[]{(byte) 0xFF, (byte) 0xFE});
+                os.write(new byte[(int) MIN_FILE_SIZE]);
+            }
+            assertFalse(isSupported(utf16));
+        }
+
+        /** 500 columns, mixing text and numbers */
+        static String wideTsv(int rows)
+        {
+            StringBuilder wide = new StringBuilder();
+            for (int col = 0; col < 500; col++)
+                wide.append(col > 0 ? "\t" : "").append("column").append(col);
+            wide.append("\n");
+            for (int row = 0; row < rows; row++)
+            {
+                for (int col = 0; col < 500; col++)
+                    wide.append(col > 0 ? "\t" : "").append(col % 3 == 0 ? "text " + row : String.valueOf(row * col));
+                wide.append("\n");
+            }
+            return wide.toString();
+        }
+
+        /** Five columns, one of them quoted */
+        static String tallTsv(int rows)
+        {
+            StringBuilder tall = new StringBuilder("id\tname\tvalue\tflag\tdescription\n");
+            for (int row = 0; row < rows; row++)
+                tall.append(row).append("\tname").append(row).append("\t").append(row * 1.5).append("\ttrue\t\"a quoted, longer description of row ").append(row).append("\"\n");
+            return tall.toString();
+        }
+
+        /**
+         * A wide file (500 columns) and a tall file (20,000 rows), read with windows that split rows in various places,
+         * with all columns loaded and with only the first three loaded.
+         */
+        @Test
+        public void testWideAndTall() throws IOException
+        {
+            for (File file : new File[]{createFile(wideTsv(200), ".tsv", false), createFile(tallTsv(20_000), ".tsv", false)})
+            {
+                for (int window : new int[]{DEFAULT_WINDOW_SIZE, 64 * 1024, 4096})
+                {
+                    assertSameAsTabLoader(file, false, window);
+                    assertSameColumns(file, window);
+                }
+            }
+        }
+
+        private void assertSameColumns(File file, int windowSize) throws IOException
+        {
+            TabLoader expected = new TabLoader(file, true);
+            MappedTabLoader actual = new MappedTabLoader(file, true);
+            actual.setWindowSize(windowSize);
+
+            try
+            {
+                for (DataLoader loader : new DataLoader[]{expected, actual})
+                {
+                    ColumnDescriptor[] columns = loader.getColumns();
+                    for (int i = 3; i < columns.length; i++)
+                        columns[i].load = false;
+                }
+
+                assertEquals(expected.load(), actual.load());
+            }
+            finally
+            {
+                expected.close();
+                actual.close();
+            }
+        }
+
+        @Test
+        public void testClose() throws IOException
+        {
+            File tsv = createFile(TSV, ".tsv", false);
+            MappedTabLoader loader = new MappedTabLoader(tsv, true);
+            loader.setWindowSize(16);
+
+            CloseableIterator<Map<String, Object>> iter = loader.iterator();
+            assertTrue(iter.hasNext());
+            iter.next();
+            assertFalse(loader._cursors.isEmpty());
+
+            loader.close();
+            assertTrue(loader._cursors.isEmpty());
+
+            try
+            {
+                iter.hasNext();
+                fail("Expected reading after close to fail");
+            }
+            catch (IllegalStateException e)
+            {
+                // expected
+            }
+            iter.close();
+
+            // The loader can be iterated again after it's closed
+            assertEquals(7, loader.load().size());
+            loader.close();
+            assertTrue(loader._cursors.isEmpty());
+            assertTrue(tsv.delete());
+        }
+    }
+
+
+    /**
+     * Compares the throughput of this loader with TabLoader on the wide and tall files from TestCase, scaled up. Logs
+     * timings; only asserts that both read the same number of rows.
+     */
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerformanceTestCase extends Assert
+    {
+        @Test
+        public void testThroughput() throws IOException
+        {
+            compare("wide", TestCase.createFile(TestCase.wideTsv(2_000), ".tsv", false), 2_000);
+            compare("tall", TestCase.createFile(TestCase.tallTsv(500_000), ".tsv", false), 500_000);
+        }
+
+        private void compare(String name, File file, int rows) throws IOException
+        {
+            try
+            {
+                for (int round = 0; round < 3; round++)     // first rounds warm up
+                {
+                    long start = System.nanoTime();
+                    assertEquals(rows, count(new TabLoader(file, true)));
+                    long tabLoader = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    assertEquals(rows, count(new MappedTabLoader(file, true)));
+                    long mapped = System.nanoTime() - start;
+
+                    if (round == 2)
+                    {
+                        double mb = file.length() / (1024.0 * 1024.0);
+                        LOG.info(String.format("Reading %s file (%,d rows, %.1f MB): TabLoader %,d ms (%.1f MB/s), MappedTabLoader %,d ms (%.1f MB/s)", name, rows, mb,
+                                TimeUnit.NANOSECONDS.toMillis(tabLoader), mb / (tabLoader / 1e9), TimeUnit.NANOSECONDS.toMillis(mapped), mb / (mapped / 1e9)));
+                    }
+                }
+            }
+            finally
+            {
+                file.delete();
+            }
+        }
+
+        private int count(DataLoader loader) throws IOException
+        {
+            int rows = 0;
+
+            try (loader; CloseableIterator<Map<String, Object>> iter = loader.iterator())
+            {
+                while (iter.hasNext())
+                {
+                    iter.next();
+                    rows++;
+                }
+            }
+
+            return rows;
+        }
+    }
+}
@@ -75,8 +75,12 @@ public class TabLoader extends DataLoader
     public static class TsvFactory extends AbstractDataLoaderFactory
     {
         @NotNull @Override
-        public DataLoader createLoader(File file, boolean hasColumnHeaders, Container mvIndicatorContainer)
+        public DataLoader createLoader(File file, boolean hasColumnHeaders, Container mvIndicatorContainer) throws IOException
         {
+            // Large UTF-8 files load faster memory-mapped
+            if (MappedTabLoader.isSupported(file))
+                return new MappedTabLoader(file, hasColumnHeaders, mvIndicatorContainer);
+
             return new TabLoader(file, hasColumnHeaders, mvIndicatorContainer);
         }
 
@@ -96,6 +100,13 @@ public class TabLoader extends DataLoader
         @NotNull @Override
         public DataLoader createLoader(File file, boolean hasColumnHeaders, Container mvIndicatorContainer) throws IOException
         {
+            if (MappedTabLoader.isSupported(file))
+            {
+                MappedTabLoader loader = new MappedTabLoader(file, hasColumnHeaders, mvIndicatorContainer);
+                loader.parseAsCSV();
+                return loader;
+            }
+
             TabLoader loader = new TabLoader(file, hasColumnHeaders, mvIndicatorContainer);
             loader.parseAsCSV();
             return loader;
@@ -301,11 +312,17 @@ public class TabLoader extends DataLoader
      * we always strip.
      */
     protected String parseValue(String value)
+    {
+        return parseValue(value, _preserveEmptyString, _unescapeBackslashes, isThrowOnErrors());
+    }
+
+    // Shared with MappedTabLoader
+    static String parseValue(String value, boolean preserveEmptyString, boolean unescapeBackslashes, boolean throwOnErrors)
     {
         value = StringUtils.trimToEmpty(value);
         if ("\\N".equals(value))
-            return _preserveEmptyString ? null : "";
-        if (_unescapeBackslashes)
+            return preserveEmptyString ? null : "";
+        if (unescapeBackslashes && value.indexOf('\\') != -1)
         {
             try
             {
@@ -319,7 +336,7 @@ public class TabLoader extends DataLoader
                 if (e instanceof NumberFormatException)
                     msg += "Number format error ";
                 msg += e.getMessage();
-                if (isThrowOnErrors())
+                if (throwOnErrors)
                     throw new IllegalArgumentException(msg, e);
                 else
                     _log.warn(msg);
@@ -30,12 +30,12 @@ import org.labkey.api.data.SqlSelector;
 public class GroupCache
 {
     private static final CoreSchema CORE = CoreSchema.getInstance();
-    private static final BlockingCache<Integer, Group> CACHE = CacheManager.getBlockingCache(20000, CacheManager.DAY, "Groups", (groupId, argument) -> {
+    private static final BlockingCache<Integer, Group> CACHE = CacheManager.enableClusterInvalidation(CacheManager.getBlockingCache(20000, CacheManager.DAY, "Groups", (groupId, argument) -> {
         SQLFragment sql = new SQLFragment("SELECT * FROM " + CORE.getTableInfoPrincipals() + " WHERE Type <> 'u' AND UserId = ?", groupId);
         SqlSelector selector = new SqlSelector(CORE.getSchema(), sql);
 
         return selector.getObject(Group.class);
-    });
+    }));
 
 
     static @Nullable Group get(int groupId)
@@ -43,7 +43,7 @@ public class GroupMembershipCache
     private static final String IMMEDIATE_GROUP_MEMBERSHIPS_PREFIX = "ImmMemShip=";
     private static final String GROUP_MEMBERS_PREFIX = "Members=";
     private static final CoreSchema CORE = CoreSchema.getInstance();
-    private static final Cache<String, int[]> CACHE = CacheManager.getStringKeyCache(CacheManager.UNLIMITED, CacheManager.DAY, "Group Memberships");
+    private static final Cache<String, int[]> CACHE = CacheManager.enableClusterInvalidation(CacheManager.getStringKeyCache(CacheManager.UNLIMITED, CacheManager.DAY, "Group Memberships"));
 
     static
     {
@@ -100,6 +100,12 @@ public class MutableSecurityPolicy extends SecurityPolicy
         addAssignment(assignment);
     }
 
+    @Override
+    protected boolean isCompilable()
+    {
+        return false;
+    }
+
     protected void addAssignment(RoleAssignment assignment)
     {
         _assignments.add(assignment);
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.security;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.security.permissions.AdminPermission;
+import org.labkey.api.security.permissions.DeletePermission;
+import org.labkey.api.security.permissions.InsertPermission;
+import org.labkey.api.security.permissions.Permission;
+import org.labkey.api.security.permissions.ReadPermission;
+import org.labkey.api.security.permissions.UpdatePermission;
+import org.labkey.api.security.roles.EditorRole;
+import org.labkey.api.security.roles.ReaderRole;
+import org.labkey.api.security.roles.Role;
+import org.labkey.api.security.roles.RoleManager;
+import org.labkey.api.test.TestWhen;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable set of permissions compiled to a bitset. Each Permission class gets a dense ordinal the first time it's
+ * seen, so membership tests are a word lookup instead of a hash of the class. SecurityPolicy caches these for each set
+ * of principals and contextual roles it's asked about.
+ *
+ * Compiled sets are invalidated in bulk, by bumping a generation number, when roles gain permissions or
+ * SecurityPolicyManager drops its cached policies. Policy changes don't need that, since they replace the (immutable)
+ * SecurityPolicy, whose compiled sets then age out of SecurityPolicy's bounded cache; group membership changes show up
+ * as a different list of principals.
+ */
+public final class PermissionBits
+{
+    private static final AtomicInteger NEXT_ORDINAL = new AtomicInteger();
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+
+    private static final ClassValue<Integer> ORDINALS = new ClassValue<>()
+    {
+        @Override
+        protected Integer computeValue(Class<?> type)
+        {
+            return NEXT_ORDINAL.getAndIncrement();
+        }
+    };
+
+    private final long[] _words;
+    private final Set<Class<? extends Permission>> _permissions;
+    private final int _generation;
+
+    private PermissionBits(Set<Class<? extends Permission>> permissions, int generation)
+    {
+        long[] words = new long[0];
+
+        for (Class<? extends Permission> permission : permissions)
+        {
+            int ordinal = ordinal(permission);
+            int word = ordinal >>> 6;
+            if (word >= words.length)
+            {
+                long[] grown = new long[word + 1];
+                System.arraycopy(words, 0, grown, 0, words.length);
+                words = grown;
+            }
+            words[word] |= 1L << ordinal;
+        }
+
+        _words = words;
+        _permissions = Collections.unmodifiableSet(permissions);
+        _generation = generation;
+    }
+
+    /**
+     * Compiles the permissions; the set must not be modified afterwards. Callers read the generation from
+     * getGeneration() before resolving the permissions, so an invalidation that races with resolving them makes this
+     * set stale rather than being missed.
+     */
+    static PermissionBits of(@NotNull Set<Class<? extends Permission>> permissions, int generation)
+    {
+        return new PermissionBits(permissions, generation);
+    }
+
+    public static int ordinal(@NotNull Class<? extends Permission> permission)
+    {
+        return ORDINALS.get(permission);
+    }
+
+    /** Marks every compiled set as stale, e.g., because a role's permissions changed */
+    public static void invalidateAll()
+    {
+        GENERATION.incrementAndGet();
+    }
+
+    /** Changes whenever compiled sets are invalidated, so other caches of permission checks can follow along */
+    public static int getGeneration()
+    {
+        return GENERATION.get();
+    }
+
+    boolean isCurrent()
+    {
+        return _generation == GENERATION.get();
+    }
+
+    public boolean contains(@NotNull Class<? extends Permission> permission)
+    {
+        int ordinal = ordinal(permission);
+        int word = ordinal >>> 6;
+        return word < _words.length && (_words[word] & (1L << ordinal)) != 0;
+    }
+
+    public boolean containsAll(@NotNull Collection<Class<? extends Permission>> permissions)
+    {
+        for (Class<? extends Permission> permission : permissions)
+        {
+            if (!contains(permission))
+                return false;
+        }
+
+        return true;
+    }
+
+    public boolean containsAny(@NotNull Collection<Class<? extends Permission>> permissions)
+    {
+        for (Class<? extends Permission> permission : permissions)
+        {
+            if (contains(permission))
+                return true;
+        }
+
+        return false;
+    }
+
+    /** @return an unmodifiable view of the permissions */
+    public Set<Class<? extends Permission>> getPermissions()
+    {
+        return _permissions;
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testBits()
+        {
+            PermissionBits bits = of(new HashSet<>(List.of(ReadPermission.class, UpdatePermission.class)), getGeneration());
+
+            assertTrue(bits.contains(ReadPermission.class));
+            assertTrue(bits.contains(UpdatePermission.class));
+            assertFalse(bits.contains(InsertPermission.class));
+            assertFalse(bits.contains(AdminPermission.class));
+            assertTrue(bits.containsAll(List.of(ReadPermission.class, UpdatePermission.class)));
+            assertFalse(bits.containsAll(List.of(ReadPermission.class, DeletePermission.class)));
+            assertTrue(bits.containsAny(List.of(DeletePermission.class, UpdatePermission.class)));
+            assertFalse(bits.containsAny(List.of(DeletePermission.class, InsertPermission.class)));
+            assertEquals(ordinal(ReadPermission.class), ordinal(ReadPermission.class));
+            assertNotEquals(ordinal(ReadPermission.class), ordinal(UpdatePermission.class));
+
+            assertTrue(bits.isCurrent());
+            invalidateAll();
+            assertFalse(bits.isCurrent());
+        }
+
+        @Test
+        public void testPolicy()
+        {
+            User user = TestContext.get().getUser();
+            Container c = JunitUtil.getTestContainer();
+            SecurityPolicy policy = new SecurityPolicy(c, List.of(new RoleAssignment(c.getResourceId(), user, RoleManager.getRole(EditorRole.class))));
+
+            assertTrue(policy.hasPermission(user, ReadPermission.class));
+            assertTrue(policy.hasPermission(user, InsertPermission.class));
+            assertTrue(policy.hasPermissions(user, Set.of(ReadPermission.class, UpdatePermission.class), null));
+            assertTrue(policy.hasOneOf(user, List.of(AdminPermission.class, DeletePermission.class), null));
+
+            // Compiled and uncompiled answers must agree, including with contextual roles
+            Set<Class<? extends Permission>> expected = policy.getPermissions(user.getGroups(), user.getContextualRoles(policy));
+            assertEquals(expected, policy.getPermissions(user));
+            Set<Class<? extends Permission>> withReader = policy.getPermissions(user, RoleManager.roleSet(ReaderRole.class));
+            assertTrue(withReader.containsAll(expected));
+
+            // A policy change is a new policy
+            MutableSecurityPolicy mutable = new MutableSecurityPolicy(policy);
+            mutable.clearAssignedRoles(user);
+            assertEquals(mutable.getPermissions(user.getGroups(), user.getContextualRoles(mutable)), mutable.getPermissions(user));
+            assertTrue(policy.hasPermission(user, InsertPermission.class));
+        }
+
+        @Test
+        public void testCompiled()
+        {
+            User user = TestContext.get().getUser();
+            Container c = JunitUtil.getTestContainer();
+            SecurityPolicy policy = new SecurityPolicy(c, List.of(new RoleAssignment(c.getResourceId(), user, RoleManager.getRole(EditorRole.class))));
+
+            // Compiled once, then served from the policy's cache until invalidated
+            PermissionBits bits = policy.getPermissionBits(user, null);
+            assertSame(bits, policy.getPermissionBits(user, null));
+            invalidateAll();
+            PermissionBits recompiled = policy.getPermissionBits(user, null);
+            assertNotSame(bits, recompiled);
+            assertTrue(recompiled.isCurrent());
+            assertEquals(bits.getPermissions(), recompiled.getPermissions());
+
+            // Invalidated while the permissions were being resolved
+            int generation = getGeneration();
+            Set<Class<? extends Permission>> permissions = policy.getPermissions(user.getGroups(), user.getContextualRoles(policy));
+            invalidateAll();
+            assertFalse(of(permissions, generation).isCurrent());
+        }
+    }
+
+
+    /** Compares the per-check cost of resolving permissions with that of a compiled set. Logs timings only. */
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerformanceTestCase extends Assert
+    {
+        private static final Logger LOG = LogManager.getLogger(PerformanceTestCase.class);
+
+        @Test
+        public void testPerCheckCost()
+        {
+            User user = TestContext.get().getUser();
+            Container c = JunitUtil.getTestContainer();
+            SecurityPolicy policy = new SecurityPolicy(c, List.of(new RoleAssignment(c.getResourceId(), user, RoleManager.getRole(EditorRole.class))));
+            int iterations = 200_000;
+            boolean expected = policy.hasPermission(user, UpdatePermission.class);
+
+            for (int round = 0; round < 2; round++)     // first round warms up
+            {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                {
+                    Set<Role> contextual = user.getContextualRoles(policy);
+                    assertEquals(expected, policy.getPermissions(user.getGroups(), contextual).contains(UpdatePermission.class));
+                }
+                long uncompiled = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    assertEquals(expected, policy.hasPermission(user, UpdatePermission.class));
+                long compiled = System.nanoTime() - start;
+
+                if (round > 0)
+                    LOG.info(String.format("hasPermission: %,d ns per check uncompiled, %,d ns compiled", uncompiled / iterations, compiled / iterations));
+            }
+        }
+    }
+}
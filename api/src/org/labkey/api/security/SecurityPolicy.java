@@ -19,6 +19,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheManager;
 import org.labkey.api.cache.Throttle;
 import org.labkey.api.data.ContainerManager;
@@ -65,6 +66,10 @@ public class SecurityPolicy implements HasPermission
 
     protected Date _modified; // Updated in MutableSecurityPolicy subclass
 
+    // Compiled permissions for each policy, set of principals and contextual roles we've been asked about. One cache for
+    // all policies bounds the total however many policies SecurityPolicyManager holds. See PermissionBits.
+    private static final Cache<PermissionsKey, PermissionBits> COMPILED_PERMISSIONS = CacheManager.getCache(Integer.getInteger("labkey.compiledPermissionsCacheSize", 10000), CacheManager.UNLIMITED, "Compiled permissions");
+
     public SecurityPolicy(@NotNull String resourceId, @NotNull String resourceClass, @NotNull String containerId, @NotNull Collection<RoleAssignment> assignments, @Nullable Date lastModified)
     {
         _resourceId = resourceId;
@@ -219,13 +224,80 @@ public class SecurityPolicy implements HasPermission
 
     @NotNull
     public Set<Class<? extends Permission>> getPermissions(@NotNull UserPrincipal principal, @Nullable Set<Role> contextualRoles)
+    {
+        return new HashSet<>(getPermissionBits(principal, contextualRoles).getPermissions());
+    }
+
+    /**
+     * Resolves the principal's permissions, compiling them the first time this principal's groups and contextual roles
+     * are seen and returning the cached result after that.
+     */
+    @NotNull
+    protected PermissionBits getPermissionBits(@NotNull UserPrincipal principal, @Nullable Set<Role> contextualRoles)
     {
         // TODO: Should we be mutating the result of getContextualRoles()?  Some implementations would like to return unmodifiable collections...
         Set<Role> allContextualRoles = getContextualRoles(principal);
         if (contextualRoles != null)
             allContextualRoles.addAll(contextualRoles);
 
-        return getPermissions(principal.getGroups(), allContextualRoles);
+        int[] principals = principal.getGroups();
+
+        // Read before resolving the permissions, so an invalidation that races with resolving them isn't lost
+        int generation = PermissionBits.getGeneration();
+
+        if (!isCompilable())
+            return PermissionBits.of(getPermissions(principals, allContextualRoles), generation);
+
+        PermissionsKey key = new PermissionsKey(this, principals, allContextualRoles);
+        PermissionBits bits = COMPILED_PERMISSIONS.get(key);
+
+        if (null == bits || !bits.isCurrent())
+        {
+            bits = PermissionBits.of(getPermissions(principals, allContextualRoles), generation);
+            COMPILED_PERMISSIONS.put(new PermissionsKey(this, principals.clone(), new HashSet<>(allContextualRoles)), bits);
+        }
+
+        return bits;
+    }
+
+    /** Compiled permissions are cached only for policies that can't change */
+    protected boolean isCompilable()
+    {
+        return true;
+    }
+
+    // Policies are immutable, so keys compare them by identity; a changed policy is a new object and misses the cache
+    private static class PermissionsKey
+    {
+        private final SecurityPolicy _policy;
+        private final int[] _principals;
+        private final Set<Role> _contextualRoles;
+        private final int _hashCode;
+
+        private PermissionsKey(SecurityPolicy policy, int[] principals, Set<Role> contextualRoles)
+        {
+            _policy = policy;
+            _principals = principals;
+            _contextualRoles = contextualRoles;
+            _hashCode = 31 * (31 * System.identityHashCode(policy) + Arrays.hashCode(principals)) + contextualRoles.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof PermissionsKey))
+                return false;
+            PermissionsKey that = (PermissionsKey) o;
+            return _hashCode == that._hashCode && _policy == that._policy && Arrays.equals(_principals, that._principals) && _contextualRoles.equals(that._contextualRoles);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _hashCode;
+        }
     }
 
     /**
@@ -279,7 +351,7 @@ public class SecurityPolicy implements HasPermission
     public boolean hasPermission(@NotNull UserPrincipal principal, @NotNull Class<? extends Permission> permission, @Nullable Set<Role> contextualRoles)
     {
         testPermissionIsRegistered(permission);
-        boolean ret = getPermissions(principal, contextualRoles).contains(permission);
+        boolean ret = getPermissionBits(principal, contextualRoles).contains(permission);
         SecurityLogger.log("SecurityPolicy.hasPermission " + permission.getSimpleName(), principal, this, ret);
         return ret;
     }
@@ -301,7 +373,7 @@ public class SecurityPolicy implements HasPermission
     public boolean hasPermissions(@NotNull UserPrincipal principal, @NotNull Set<Class<? extends Permission>> permissions, @Nullable Set<Role> contextualRoles)
     {
         permissions.forEach(this::testPermissionIsRegistered);
-        boolean ret = getPermissions(principal, contextualRoles).containsAll(permissions);
+        boolean ret = getPermissionBits(principal, contextualRoles).containsAll(permissions);
         SecurityLogger.log("SecurityPolicy.hasPermissions " + permissions.toString(), principal, this, ret);
         return ret;
     }
@@ -316,16 +388,7 @@ public class SecurityPolicy implements HasPermission
     public boolean hasOneOf(@NotNull UserPrincipal principal, @NotNull Collection<Class<? extends Permission>> permissions, @Nullable Set<Role> contextualRoles)
     {
         permissions.forEach(this::testPermissionIsRegistered);
-        boolean ret = false;
-        Set<Class<? extends Permission>> grantedPerms = getPermissions(principal, contextualRoles);
-        for (Class<? extends Permission> requiredPerm : permissions)
-        {
-            if (grantedPerms.contains(requiredPerm))
-            {
-                ret = true;
-                break;
-            }
-        }
+        boolean ret = getPermissionBits(principal, contextualRoles).containsAny(permissions);
         SecurityLogger.log("SecurityPolicy.hasOneOf " + permissions.toString(), principal, this, ret);
         return ret;
     }
@@ -419,7 +482,7 @@ public class SecurityPolicy implements HasPermission
     public int getPermsAsOldBitMask(UserPrincipal principal)
     {
         int perms = 0;
-        Set<Class<? extends Permission>> permClasses = getPermissions(principal);
+        PermissionBits permClasses = getPermissionBits(principal, null);
         if (permClasses.contains(ReadPermission.class))
             perms |= ACL.PERM_READ;
         if (permClasses.contains(InsertPermission.class))
@@ -65,7 +65,7 @@ public class SecurityPolicyManager
 {
     private static final Logger logger = LogManager.getLogger(SecurityPolicyManager.class);
     private static final CoreSchema core = CoreSchema.getInstance();
-    private static final Cache<String, SecurityPolicy> CACHE = new DatabaseCache<>(core.getSchema().getScope(), CacheManager.UNLIMITED, "SecurityPolicies");
+    private static final Cache<String, SecurityPolicy> CACHE = CacheManager.enableClusterInvalidation(new DatabaseCache<>(core.getSchema().getScope(), CacheManager.UNLIMITED, "SecurityPolicies"));
 
     @NotNull
     public static SecurityPolicy getPolicy(@NotNull SecurableResource resource)
@@ -320,6 +320,7 @@ public class SecurityPolicyManager
     public static void removeAll()
     {
         CACHE.clear();
+        PermissionBits.invalidateAll();
     }
 
     public static void exportRoleAssignments(SecurityPolicy policy, RoleAssignmentsType roleAssignments)
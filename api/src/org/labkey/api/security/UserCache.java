@@ -58,7 +58,7 @@ class UserCache
         @Override
         protected Cache<String, UserCollections> createSharedCache(int maxSize, long defaultTimeToLive, String debugName)
         {
-            Cache<String, Wrapper<UserCollections>> shared = CacheManager.getStringKeyCache(maxSize, defaultTimeToLive, debugName);
+            Cache<String, Wrapper<UserCollections>> shared = CacheManager.enableClusterInvalidation(CacheManager.getStringKeyCache(maxSize, defaultTimeToLive, debugName));
             return new BlockingCache<>(shared, new UserCollectionsLoader());
         }
 
@@ -24,6 +24,7 @@ import org.labkey.api.data.JdbcType;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.security.Group;
+import org.labkey.api.security.PermissionBits;
 import org.labkey.api.security.SecurableResource;
 import org.labkey.api.security.SecurityPolicy;
 import org.labkey.api.security.User;
@@ -118,6 +119,7 @@ public abstract class AbstractRole implements Role
         Set<Class<? extends Permission>> p = new HashSet<>(_permissions);
         p.add(perm);
         _permissions = Collections.unmodifiableSet(p);
+        PermissionBits.invalidateAll();
     }
 
     @Override
@@ -60,7 +60,7 @@ public class JobRunner implements Executor
     }
 
 
-    private JobRunner(String name, int max, int priority)
+    public JobRunner(String name, int max, int priority)
     {
         _executor = new JobThreadPoolExecutor(max);
         _executor.setThreadFactory(new JobThreadFactory(priority));
@@ -129,6 +129,19 @@ public class MultiPhaseCPUTimer<K extends Enum<K>>
             assert !_closed;
         }
 
+        /**
+         * Adds the time another invocation spent in each phase to this one, and closes the other invocation. Use this
+         * to include work done on other threads on behalf of this invocation; those phases then report the total time
+         * across all threads, which can exceed the elapsed time.
+         */
+        public void add(InvocationTimer<K2> other)
+        {
+            other.close();
+
+            for (Map.Entry<K2, MutableLong> entry : other._map.entrySet())
+                _map.get(entry.getKey()).add(entry.getValue());
+        }
+
         public enum Order
         {
             EnumOrder
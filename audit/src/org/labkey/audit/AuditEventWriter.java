@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.audit;
+
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.audit.AuditLogService;
+import org.labkey.api.audit.AuditTypeEvent;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.security.User;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.Pair;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.audit.model.LogManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes queued audit events in batches, with one multi-row insert per audit table and user.
+ *
+ * Inside a transaction, events are held until just before the transaction commits and are then written on its
+ * connection, so they commit or roll back with it and a failure fails the commit of the request that caused it.
+ *
+ * Outside a transaction, events go into a buffer of at most -Dlabkey.auditBatchSize events (default 100). The caller
+ * whose event fills the buffer, or who finds its oldest event older than -Dlabkey.auditFlushMillis (default 1000),
+ * writes the whole buffer before returning. That caller pays for the batch and sees any failure, which keeps producers
+ * to the rate the database can absorb. A timer writes whatever is left when events stop arriving, and the buffer is
+ * written at shutdown. An event can therefore wait in memory for up to the flush interval, and events still buffered
+ * if the server dies are lost. Callers that need an event written before they return use AuditLogService.addEvent().
+ */
+class AuditEventWriter implements ShutdownListener
+{
+    private static final Logger LOG = org.apache.logging.log4j.LogManager.getLogger(AuditEventWriter.class);
+
+    private static final int MAX_BATCH = 1000;
+    private static final int BATCH_SIZE = Math.min(MAX_BATCH, Math.max(1, Integer.getInteger("labkey.auditBatchSize", 100)));
+    private static final long FLUSH_MILLIS = Math.max(1, Long.getLong("labkey.auditFlushMillis", 1000));
+
+    private final Object _lock = new Object();
+    private List<Pair<User, AuditTypeEvent>> _buffer = new ArrayList<>();
+    private long _oldest = 0;
+    private Timer _timer = null;
+    private boolean _shutdown = false;
+
+    private final AtomicLong _transactional = new AtomicLong();
+    private final AtomicLong _buffered = new AtomicLong();
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _writeNanos = new AtomicLong();
+
+    void add(User user, AuditTypeEvent event)
+    {
+        DbScope scope = DbScope.getLabKeyScope();
+        Pair<User, AuditTypeEvent> pair = new Pair<>(user, event);
+
+        if (scope.isTransactionActive())
+        {
+            TransactionEvents events = scope.addCommitTask(new TransactionEvents(), DbScope.CommitTaskOption.PRECOMMIT);
+            _transactional.incrementAndGet();
+
+            // Queued by a pre-commit task that runs after ours, so write it now, still inside the transaction
+            if (!events.add(pair))
+                write(Collections.singletonList(pair));
+            return;
+        }
+
+        List<Pair<User, AuditTypeEvent>> batch = null;
+        long now = System.currentTimeMillis();
+
+        synchronized (_lock)
+        {
+            if (!_shutdown)
+                ensureTimer();
+
+            if (_buffer.isEmpty())
+                _oldest = now;
+            _buffer.add(pair);
+            _buffered.incrementAndGet();
+
+            // After shutdown has flushed the buffer there's no timer, so write immediately
+            if (_shutdown || _buffer.size() >= BATCH_SIZE || now - _oldest >= FLUSH_MILLIS)
+                batch = takeBuffer();
+        }
+
+        if (null != batch)
+            write(batch);
+    }
+
+    // Caller must hold _lock
+    private List<Pair<User, AuditTypeEvent>> takeBuffer()
+    {
+        List<Pair<User, AuditTypeEvent>> batch = _buffer;
+        _buffer = new ArrayList<>();
+        return batch;
+    }
+
+    private void ensureTimer()
+    {
+        if (null == _timer)
+        {
+            _timer = new Timer("Audit event writer", true);
+            _timer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    flushIfOlderThan(FLUSH_MILLIS);
+                }
+            }, FLUSH_MILLIS, FLUSH_MILLIS);
+            ContextListener.addShutdownListener(this);
+        }
+    }
+
+    /** Write the buffered events if the oldest has waited at least maxAge milliseconds */
+    void flushIfOlderThan(long maxAge)
+    {
+        List<Pair<User, AuditTypeEvent>> batch;
+
+        synchronized (_lock)
+        {
+            if (_buffer.isEmpty() || System.currentTimeMillis() - _oldest < maxAge)
+                return;
+            batch = takeBuffer();
+        }
+
+        try
+        {
+            write(batch);
+        }
+        catch (RuntimeException ignored)
+        {
+            // Already logged, counted and reported to handleAuditFailure()
+        }
+    }
+
+    private void write(List<Pair<User, AuditTypeEvent>> events)
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            // In a transaction, this is pre-commit on its connection; otherwise each multi-row insert commits on its own
+            LogManager.get()._insertEvents(events);
+        }
+        catch (RuntimeException e)
+        {
+            _failures.addAndGet(events.size());
+            LOG.error("Failed to insert audit log events", e);
+            AuditLogService.handleAuditFailure(events.get(0).first, e);
+            throw e;
+        }
+
+        _writeNanos.addAndGet(System.nanoTime() - start);
+        _written.addAndGet(events.size());
+        _batches.incrementAndGet();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Audit event writer";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+    }
+
+    @Override
+    public void shutdownStarted()
+    {
+        synchronized (_lock)
+        {
+            _shutdown = true;
+            if (null != _timer)
+                _timer.cancel();
+        }
+
+        flushIfOlderThan(0);
+        LOG.info("Audit event writer: " + getMetrics());
+    }
+
+    /** Throughput statistics, for usage metrics and logging */
+    Map<String, Object> getMetrics()
+    {
+        long written = _written.get();
+        long nanos = _writeNanos.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+
+        metrics.put("transactional", _transactional.get());
+        metrics.put("buffered", _buffered.get());
+        synchronized (_lock)
+        {
+            metrics.put("bufferDepth", _buffer.size());
+        }
+        metrics.put("written", written);
+        metrics.put("batches", _batches.get());
+        metrics.put("failures", _failures.get());
+        metrics.put("eventsPerSecond", nanos > 0 ? written * TimeUnit.SECONDS.toNanos(1) / nanos : 0);
+
+        return metrics;
+    }
+
+
+    // Holds one transaction's events and writes them just before it commits. Equal to every other instance for this
+    // writer, so each transaction gets exactly one.
+    private class TransactionEvents implements Runnable
+    {
+        private final List<Pair<User, AuditTypeEvent>> _events = new ArrayList<>();
+        private boolean _flushed = false;
+
+        /** @return false if the events have already been written, in which case the caller must write this one */
+        boolean add(Pair<User, AuditTypeEvent> pair)
+        {
+            if (_flushed)
+                return false;
+            _events.add(pair);
+            return true;
+        }
+
+        @Override
+        public void run()
+        {
+            _flushed = true;
+            for (int i = 0; i < _events.size(); i += MAX_BATCH)
+                write(_events.subList(i, Math.min(i + MAX_BATCH, _events.size())));
+            _events.clear();
+        }
+
+        private AuditEventWriter getWriter()
+        {
+            return AuditEventWriter.this;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof TransactionEvents && ((TransactionEvents) o).getWriter() == getWriter();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(getWriter());
+        }
+    }
+}
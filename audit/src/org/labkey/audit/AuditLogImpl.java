@@ -42,6 +42,7 @@ import javax.servlet.ServletContext;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -57,6 +58,7 @@ public class AuditLogImpl implements AuditLogService, StartupListener
 
     private Queue<Pair<User, AuditTypeEvent>> _eventTypeQueue = new LinkedList<>();
     private AtomicBoolean  _logToDatabase = new AtomicBoolean(false);
+    private final AuditEventWriter _writer = new AuditEventWriter();
     private static final Object STARTUP_LOCK = new Object();
 
     public static AuditLogImpl get()
@@ -102,41 +104,45 @@ public class AuditLogImpl implements AuditLogService, StartupListener
         return _addEvent(user, type);
     }
 
-    private <K extends AuditTypeEvent> K _addEvent(User user, K event)
+    @Override
+    public void queueEvent(User user, AuditTypeEvent event)
     {
-        try (var ignored = SpringActionController.ignoreSqlUpdates())
+        // Events logged during startup are already queued
+        if (!_logToDatabase.get())
         {
-            assert event.getContainer() != null : "Container cannot be null";
+            _addEvent(user, event);
+            return;
+        }
 
-            if (event.getContainer() == null)
+        try (var ignored = SpringActionController.ignoreSqlUpdates())
+        {
+            try
             {
-                _log.warn("container was not specified for event type " + event.getEventType() + "; defaulting to root container.");
-                Container root = ContainerManager.getRoot();
-                event.setContainer(root.getId());
+                user = prepareEvent(user, event);
             }
-
-            if (user == null)
+            catch (RuntimeException e)
             {
-                if (HttpView.hasCurrentView() && HttpView.currentContext() != null)
-                    _log.warn("user was not specified for event type " + event.getEventType() + " in container " + ContainerManager.getForId(event.getContainer()).getPath() + "; defaulting to guest user.");
-                user = UserManager.getGuestUser();
+                _log.error("Failed to queue audit log event", e);
+                AuditLogService.handleAuditFailure(user, e);
+                throw e;
             }
 
-            // ensure some standard fields
-            if (event.getCreated() == null)
-                event.setCreated(new Date());
-            if (event.getCreatedBy() == null)
-                event.setCreatedBy(user);
+            // The writer reports its failures, on this thread or the one that commits the transaction
+            _writer.add(user, event);
+        }
+    }
 
-            Container c = ContainerManager.getForId(event.getContainer());
-            if (event.getProjectId() == null && c != null && c.getProject() != null)
-                event.setProjectId(c.getProject().getId());
+    /** Throughput statistics for queued events */
+    public Map<String, Object> getWriterMetrics()
+    {
+        return _writer.getMetrics();
+    }
 
-            if (event.getImpersonatedBy() == null && user.isImpersonated())
-            {
-                User impersonatingUser = user.getImpersonatingUser();
-                event.setImpersonatedBy(impersonatingUser.getUserId());
-            }
+    private <K extends AuditTypeEvent> K _addEvent(User user, K event)
+    {
+        try (var ignored = SpringActionController.ignoreSqlUpdates())
+        {
+            user = prepareEvent(user, event);
 
             if (!_logToDatabase.get())
             {
@@ -169,6 +175,44 @@ public class AuditLogImpl implements AuditLogService, StartupListener
         return null;
     }
 
+    // Fill in the standard fields, returning the user to record the event as
+    private User prepareEvent(User user, AuditTypeEvent event)
+    {
+        assert event.getContainer() != null : "Container cannot be null";
+
+        if (event.getContainer() == null)
+        {
+            _log.warn("container was not specified for event type " + event.getEventType() + "; defaulting to root container.");
+            Container root = ContainerManager.getRoot();
+            event.setContainer(root.getId());
+        }
+
+        if (user == null)
+        {
+            if (HttpView.hasCurrentView() && HttpView.currentContext() != null)
+                _log.warn("user was not specified for event type " + event.getEventType() + " in container " + ContainerManager.getForId(event.getContainer()).getPath() + "; defaulting to guest user.");
+            user = UserManager.getGuestUser();
+        }
+
+        // ensure some standard fields
+        if (event.getCreated() == null)
+            event.setCreated(new Date());
+        if (event.getCreatedBy() == null)
+            event.setCreatedBy(user);
+
+        Container c = ContainerManager.getForId(event.getContainer());
+        if (event.getProjectId() == null && c != null && c.getProject() != null)
+            event.setProjectId(c.getProject().getId());
+
+        if (event.getImpersonatedBy() == null && user.isImpersonated())
+        {
+            User impersonatingUser = user.getImpersonatingUser();
+            event.setImpersonatedBy(impersonatingUser.getUserId());
+        }
+
+        return user;
+    }
+
     @Override
     public String getTableName()
     {
@@ -21,6 +21,8 @@ import org.labkey.api.audit.AuditLogService;
 import org.labkey.api.audit.provider.SiteSettingsAuditProvider;
 import org.labkey.api.module.DefaultModule;
 import org.labkey.api.module.ModuleContext;
+import org.labkey.api.usageMetrics.UsageMetricsService;
+import org.labkey.api.util.UsageReportingLevel;
 import org.labkey.api.view.WebPartFactory;
 import org.labkey.audit.query.AuditQuerySchema;
 
@@ -75,6 +77,12 @@ public class AuditModule extends DefaultModule
         AuditLogService.get().registerAuditType(new SiteSettingsAuditProvider());
 
         AuditController.registerAdminConsoleLinks();
+
+        UsageMetricsService svc = UsageMetricsService.get();
+        if (null != svc)
+        {
+            svc.registerUsageMetrics(UsageReportingLevel.MEDIUM, getName(), () -> Collections.singletonMap("auditEventWriter", AuditLogImpl.get().getWriterMetrics()));
+        }
     }
 
     @Override
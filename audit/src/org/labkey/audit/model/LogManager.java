@@ -40,10 +40,14 @@ import org.labkey.api.exp.property.DomainKind;
 import org.labkey.api.exp.property.DomainProperty;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.User;
+import org.labkey.api.util.Pair;
 import org.labkey.api.view.HttpView;
 import org.labkey.audit.AuditSchema;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -76,29 +80,79 @@ public class LogManager
 
     public <K extends AuditTypeEvent> K _insertEvent(User user, K type)
     {
-        Logger auditLogger = org.apache.logging.log4j.LogManager.getLogger("org.labkey.audit.event." + type.getEventType().replaceAll(" ", ""));
-        auditLogger.info(type.getAuditLogMessage());
+        logEvent(type);
 
         AuditTypeProvider provider = AuditLogService.get().getAuditProvider(type.getEventType());
+        TableInfo dbTable = getDbTable(user, type, provider);
+
+        if (dbTable != null)
+        {
+            // consider using etl data iterator for inserts
+            type = validateFields(provider, type);
+            K ret = Table.insert(user, dbTable, type);
+            return ret;
+        }
+        return null;
+    }
+
+    /**
+     * Inserts events with one multi-row insert per provider table and user. Unlike _insertEvent(), the inserted events
+     * aren't returned, and so don't get their RowIds.
+     */
+    public void _insertEvents(List<Pair<User, AuditTypeEvent>> events)
+    {
+        Map<String, TableInfo> tables = new HashMap<>();
+        // Keyed by table and user id, since the user sets CreatedBy and ModifiedBy as in _insertEvent()
+        Map<Pair<TableInfo, Integer>, Pair<User, List<Map<String, Object>>>> rowsByTable = new LinkedHashMap<>();
+
+        for (Pair<User, AuditTypeEvent> pair : events)
+        {
+            User user = pair.first;
+            AuditTypeEvent event = pair.second;
+            logEvent(event);
+
+            AuditTypeProvider provider = AuditLogService.get().getAuditProvider(event.getEventType());
+
+            // Provisioned tables don't depend on the user or container, so look each up once per batch
+            TableInfo dbTable = tables.containsKey(event.getEventType()) ? tables.get(event.getEventType()) : getDbTable(user, event, provider);
+            tables.put(event.getEventType(), dbTable);
+
+            if (dbTable == null)
+                continue;
 
+            event = validateFields(provider, event);
+
+            ObjectFactory<AuditTypeEvent> factory = ObjectFactory.Registry.getFactory((Class<AuditTypeEvent>)event.getClass());
+            Map<String, Object> row = factory.toMap(event, new CaseInsensitiveHashMap<>());
+            Pair<TableInfo, Integer> key = new Pair<>(dbTable, null == user ? null : user.getUserId());
+            rowsByTable.computeIfAbsent(key, k -> new Pair<>(user, new ArrayList<>())).second.add(row);
+        }
+
+        for (Map.Entry<Pair<TableInfo, Integer>, Pair<User, List<Map<String, Object>>>> entry : rowsByTable.entrySet())
+            Table.batchInsert(entry.getValue().first, entry.getKey().first, entry.getValue().second);
+    }
+
+    private void logEvent(AuditTypeEvent type)
+    {
+        Logger auditLogger = org.apache.logging.log4j.LogManager.getLogger("org.labkey.audit.event." + type.getEventType().replaceAll(" ", ""));
+        auditLogger.info(type.getAuditLogMessage());
+    }
+
+    // The provisioned table the event belongs in, if any
+    private @Nullable TableInfo getDbTable(User user, AuditTypeEvent type, @Nullable AuditTypeProvider provider)
+    {
         if (provider != null)
         {
             Container c = ContainerManager.getForId(type.getContainer());
 
             UserSchema schema = AuditLogService.getAuditLogSchema(user, c != null ? c : ContainerManager.getRoot());
 
-                if (schema != null)
-                {
-                    TableInfo table = schema.getTable(provider.getEventName(), false);
+            if (schema != null)
+            {
+                TableInfo table = schema.getTable(provider.getEventName(), false);
 
                 if (table instanceof DefaultAuditTypeTable)
-                {
-                    // consider using etl data iterator for inserts
-                    type = validateFields(provider, type);
-                    TableInfo dbTable = ((DefaultAuditTypeTable)table).getRealTable();
-                    K ret = Table.insert(user, dbTable, type);
-                    return ret;
-                }
+                    return ((DefaultAuditTypeTable)table).getRealTable();
             }
         }
         return null;
@@ -75,6 +75,7 @@ import org.labkey.api.audit.AuditTypeEvent;
 import org.labkey.api.audit.provider.ContainerAuditProvider;
 import org.labkey.api.cache.CacheManager;
 import org.labkey.api.cache.CacheStats;
+import org.labkey.api.cache.Stats;
 import org.labkey.api.cache.TrackingCache;
 import org.labkey.api.cloud.CloudStoreService;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -2783,6 +2784,15 @@ public class AdminController extends SpringActionController
             html.append("<td class=\"labkey-column-header\">Expirations</td>");
             html.append("<td class=\"labkey-column-header\">Removes</td>");
             html.append("<td class=\"labkey-column-header\">Clears</td>");
+            html.append("<td class=\"labkey-column-header\">Evictions</td>");
+            html.append("<td class=\"labkey-column-header\">Weight</td>");
+            html.append("<td class=\"labkey-column-header\">Estimated&nbsp;KB</td>");
+            html.append("<td class=\"labkey-column-header\">Loads</td>");
+            html.append("<td class=\"labkey-column-header\">Avg&nbsp;Load&nbsp;ms</td>");
+            html.append("<td class=\"labkey-column-header\">Load&nbsp;Times&nbsp;(").append(PageFlowUtil.filter(getLoadTimeBucketLabels())).append(")</td>");
+            html.append("<td class=\"labkey-column-header\">Stale&nbsp;Hits</td>");
+            html.append("<td class=\"labkey-column-header\">Refreshes</td>");
+            html.append("<td class=\"labkey-column-header\">Refresh&nbsp;Failures</td>");
             html.append("<td class=\"labkey-column-header\">Miss Percentage</td>");
             html.append("<td class=\"labkey-column-header\">Clear</td></tr>");
 
@@ -2793,6 +2803,12 @@ public class AdminController extends SpringActionController
             long expirations = 0;
             long removes = 0;
             long clears = 0;
+            long evictions = 0;
+            long memory = 0;
+            long loads = 0;
+            long staleHits = 0;
+            long refreshes = 0;
+            long refreshFailures = 0;
             int rowCount = 0;
 
             for (CacheStats stat : stats)
@@ -2804,6 +2820,12 @@ public class AdminController extends SpringActionController
                 expirations += stat.getExpirations();
                 removes += stat.getRemoves();
                 clears += stat.getClears();
+                evictions += null != stat.getEvictions() ? stat.getEvictions() : 0;
+                memory += null != stat.getMemoryEstimate() ? stat.getMemoryEstimate() : 0;
+                loads += stat.getLoads();
+                staleHits += stat.getStaleHits();
+                refreshes += stat.getRefreshes();
+                refreshFailures += stat.getRefreshFailures();
 
                 html.append("<tr class=\"").append(rowCount % 2 == 0 ? "labkey-alternate-row" : "labkey-row").append("\">");
 
@@ -2812,7 +2834,11 @@ public class AdminController extends SpringActionController
                 Long limit = stat.getLimit();
                 Long maxSize = stat.getMaxSize();
 
-                appendLongs(html, limit, maxSize, stat.getSize(), stat.getGets(), stat.getMisses(), stat.getPuts(), stat.getExpirations(), stat.getRemoves(), stat.getClears());
+                appendLongs(html, limit, maxSize, stat.getSize(), stat.getGets(), stat.getMisses(), stat.getPuts(), stat.getExpirations(), stat.getRemoves(), stat.getClears(),
+                        stat.getEvictions(), stat.getWeight(), null != stat.getMemoryEstimate() ? stat.getMemoryEstimate() / 1024 : null, stat.getLoads());
+                html.append("<td align=\"right\">").append(Formats.f1.format(stat.getAverageLoadTime())).append("</td>");
+                html.append("<td align=\"right\">").append(PageFlowUtil.filter(StringUtils.join(stat.getLoadTimeHistogram(), '/'))).append("</td>");
+                appendLongs(html, stat.getStaleHits(), stat.getRefreshes(), stat.getRefreshFailures());
                 appendDoubles(html, stat.getMissRatio());
 
 
@@ -2828,13 +2854,25 @@ public class AdminController extends SpringActionController
             double ratio = 0 != gets ? misses / (double)gets : 0;
             html.append("<tr class=\"labkey-row\"><td><b>Total</b></td>");
 
-            appendLongs(html, null, null, size, gets, misses, puts, expirations, removes, clears);
+            appendLongs(html, null, null, size, gets, misses, puts, expirations, removes, clears, evictions, null, memory / 1024, loads);
+            html.append("<td>&nbsp;</td><td>&nbsp;</td>");
+            appendLongs(html, staleHits, refreshes, refreshFailures);
             appendDoubles(html, ratio);
 
             html.append("</tr>\n");
             html.append("</table>\n");
         }
 
+        // e.g., "<1/<10/<100/<1000/<10000/10000+" (ms)
+        private String getLoadTimeBucketLabels()
+        {
+            StringBuilder sb = new StringBuilder();
+            for (long bound : Stats.LOAD_TIME_BUCKETS)
+                sb.append("<").append(bound).append("/");
+            sb.append(Stats.LOAD_TIME_BUCKETS[Stats.LOAD_TIME_BUCKETS.length - 1]).append("+ ms");
+            return sb.toString();
+        }
+
         private void appendDescription(StringBuilder html, String description, @Nullable StackTraceElement[] creationStackTrace)
         {
             StringBuilder sb = new StringBuilder();
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+-- Transitive closure of exp.Edge, maintained by LineageClosure when the "lineage-closure" experimental feature is enabled.
+-- No foreign keys to exp.object: rows are removed/recomputed whenever the edges they were derived from are deleted.
+CREATE TABLE exp.EdgeClosure
+(
+    AncestorObjectId INT NOT NULL,
+    DescendantObjectId INT NOT NULL,
+    Depth INT NOT NULL,
+
+    CONSTRAINT PK_EdgeClosure PRIMARY KEY (AncestorObjectId, DescendantObjectId)
+);
+
+-- for query performance
+CREATE INDEX IX_EdgeClosure_DescendantAncestor ON exp.EdgeClosure (DescendantObjectId, AncestorObjectId, Depth);
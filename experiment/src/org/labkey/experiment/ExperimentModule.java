@@ -65,6 +65,7 @@ import org.labkey.api.security.User;
 import org.labkey.api.security.roles.RoleManager;
 import org.labkey.api.settings.AdminConsole;
 import org.labkey.api.settings.AppProps;
+import org.labkey.api.settings.ExperimentalFeatureService;
 import org.labkey.api.usageMetrics.UsageMetricsService;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.UsageReportingLevel;
@@ -133,7 +134,7 @@ public class ExperimentModule extends SpringModule implements SearchService.Docu
     @Override
     public Double getSchemaVersion()
     {
-        return 20.007;
+        return 20.008;
     }
 
     @Nullable
@@ -178,6 +179,10 @@ public class ExperimentModule extends SpringModule implements SearchService.Docu
         AdminConsole.addExperimentalFeatureFlag(ExperimentServiceImpl.EXPERIMENTAL_LEGACY_LINEAGE, "Legacy lineage query",
                 "This feature will restore the legacy lineage queries used on the Material and Data details pages", false);
 
+        AdminConsole.addExperimentalFeatureFlag(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE, "Lineage closure index",
+                "Maintain a transitive closure of the lineage graph (PostgreSQL only) and use it for lineage lookups instead of recursive queries. Enabling this rebuilds the closure, which may take a while on large servers.", false);
+        ExperimentalFeatureService.get().addFeatureListener(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE, (feature, enabled) -> LineageClosure.get().featureChanged(enabled));
+
         AdminConsole.addExperimentalFeatureFlag(AppProps.EXPERIMENTAL_RESOLVE_PROPERTY_URI_COLUMNS, "Resolve property URIs as columns on experiment tables",
                 "If a column is not found on an experiment table, attempt to resolve the column name as a Property URI and add it as a property column", false);
 
@@ -2546,7 +2546,9 @@ public class ExperimentServiceImpl implements ExperimentService
     public SQLFragment generateExperimentTreeSQL(SQLFragment lsidsFrag, ExpLineageOptions options)
     {
         SQLFragment sqlf = new SQLFragment();
-        Pair<String,String> tokens = getRunGraphCommonTableExpressions(sqlf, lsidsFrag, options);
+        Pair<String,String> tokens = options.isForLookup() && LineageClosure.get().isEnabled()
+                ? LineageClosure.get().addCommonTableExpressions(sqlf, lsidsFrag, options)
+                : getRunGraphCommonTableExpressions(sqlf, lsidsFrag, options);
         boolean up = options.isParents();
         boolean down = options.isChildren();
 
@@ -2678,7 +2680,9 @@ public class ExperimentServiceImpl implements ExperimentService
     private void removeEdgesForRun(int runId)
     {
         TableInfo edge = getTinfoEdge();
+        Set<Integer> affected = LineageClosure.get().collectAffected(new SQLFragment("runId=" + runId));
         int count = new SqlExecutor(edge.getSchema().getScope()).execute("DELETE FROM " + edge /* + (edge.getSqlDialect().isSqlServer() ? " WITH (TABLOCK, HOLDLOCK)" : "")  */ + " WHERE runId="+runId);
+        LineageClosure.get().edgesRemoved(affected);
         LOG.debug("Removed edges for run " + runId + "; count = " + count);
     }
 
@@ -2806,6 +2810,8 @@ public class ExperimentServiceImpl implements ExperimentService
         {
             throw new RuntimeSQLException(e);
         }
+
+        LineageClosure.get().edgesInserted(params);
     }
 
     private class SyncRunEdgesTask implements Runnable
@@ -3083,6 +3089,10 @@ public class ExperimentServiceImpl implements ExperimentService
             {
                 LOG.debug("Deleting all edges");
                 Table.delete(getTinfoEdge());
+
+                // the closure is rebuilt incrementally as the edges for each run are inserted
+                if (LineageClosure.get().isEnabled())
+                    LineageClosure.get().clear();
             }
 
             // Local cache of SampleType LSID to objectId. The SampleType objectId will be used as the node's ownerObjectId.
@@ -4001,11 +4011,13 @@ public class ExperimentServiceImpl implements ExperimentService
                 objectIdFrag.append(lsidInFrag).append(")");
 
                 TableInfo edge = getTinfoEdge();
-                SQLFragment deleteEdgeSql = new SQLFragment("DELETE FROM ").append(String.valueOf(edge))
-                        .append(" WHERE ")
-                        .append("fromObjectId ").append(objectIdFrag)
+                SQLFragment edgeFilter = new SQLFragment("fromObjectId ").append(objectIdFrag)
                         .append(" OR toObjectId ").append(objectIdFrag);
+                Set<Integer> affected = LineageClosure.get().collectAffected(edgeFilter);
+                SQLFragment deleteEdgeSql = new SQLFragment("DELETE FROM ").append(String.valueOf(edge))
+                        .append(" WHERE ").append(edgeFilter);
                 executor.execute(deleteEdgeSql);
+                LineageClosure.get().edgesRemoved(affected);
             }
 
             // delete exp.objects
@@ -4279,11 +4291,14 @@ public class ExperimentServiceImpl implements ExperimentService
                     throw new SQLException("Attempting to delete a Data from another container");
                 }
 
+                Set<Integer> affected = LineageClosure.get().collectAffected(new SQLFragment(
+                        "fromObjectId = (select objectid from exp.object where objecturi = ?) OR toObjectId = (select objectid from exp.object where objecturi = ?)", data.getLSID(), data.getLSID()));
                 SQLFragment deleteSql = new SQLFragment()
                     .append("DELETE FROM ").append(String.valueOf(getTinfoDataAliasMap())).append(" WHERE LSID = ?;\n").add(data.getLSID())
                     .append("DELETE FROM ").append(String.valueOf(getTinfoEdge())).append(" WHERE fromObjectId = (select objectid from exp.object where objecturi = ?);").add(data.getLSID())
                     .append("DELETE FROM ").append(String.valueOf(getTinfoEdge())).append(" WHERE toObjectId = (select objectid from exp.object where objecturi = ?);").add(data.getLSID());
                 new SqlExecutor(getExpSchema()).execute(deleteSql);
+                LineageClosure.get().edgesRemoved(affected);
 
                 OntologyManager.deleteOntologyObjects(container, data.getLSID());
 
@@ -4453,10 +4468,13 @@ public class ExperimentServiceImpl implements ExperimentService
             // These are usually deleted when the run is deleted (unless the run is in a different container)
             // and would be cleaned up when deleting the exp.Material and exp.Data in this container at the end of this method.
             // However, we need to delete any exp.edge referenced by exp.object before calling deleteAllObjects() for this container.
+            Set<Integer> affected = LineageClosure.get().collectAffected(new SQLFragment(
+                    "fromObjectId IN (SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?) OR toObjectId IN (SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?)", c, c));
             String deleteObjEdges =
                     "DELETE FROM " + getTinfoEdge() + "\nWHERE fromObjectId IN (SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?);\n"+
                     "DELETE FROM " + getTinfoEdge() + "\nWHERE toObjectId IN (SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?);";
             new SqlExecutor(getExpSchema()).execute(deleteObjEdges, c, c);
+            LineageClosure.get().edgesRemoved(affected);
 
             SimpleFilter containerFilter = SimpleFilter.createContainerFilter(c);
             Table.delete(getTinfoDataAliasMap(), containerFilter);
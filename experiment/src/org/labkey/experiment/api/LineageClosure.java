@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.experiment.api;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.RuntimeSQLException;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.exp.api.ExpLineageOptions;
+import org.labkey.api.settings.AppProps;
+import org.labkey.api.util.Pair;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maintains exp.EdgeClosure, the transitive closure of exp.Edge: one row per (ancestor, descendant) pair with the
+ * length of the shortest path between them. Lineage lookups (LineageTableInfo, LineageHelper and the ChildOf/ParentOf
+ * clauses) read ancestors and descendants directly from the closure instead of walking exp.Edge with a recursive CTE.
+ *
+ * The closure is optional: it is only maintained and used on PostgreSQL when the {@link #EXPERIMENTAL_LINEAGE_CLOSURE}
+ * feature is enabled. Turning the feature on rebuilds the closure from exp.Edge; turning it off empties the table.
+ *
+ * Inserted edges are applied incrementally: for a new edge u->v every ancestor of u (and u) becomes an ancestor of every
+ * descendant of v (and v). Deleting edges is harder to do incrementally, so the callers collect the affected nodes (the
+ * targets of the removed edges and their descendants) before the delete and the ancestors of those nodes are recomputed
+ * afterwards, reusing the still valid closure rows of unaffected ancestors.
+ *
+ * Every change to the closure first takes a SHARE ROW EXCLUSIVE lock on exp.EdgeClosure, held until the transaction
+ * ends. The incremental statements read the closure and exp.Edge and write rows derived from them, so two transactions
+ * adding A->B and B->C at the same time would otherwise never see each other's rows and A->C would be lost for good.
+ * The lock mode conflicts with itself but not with the ACCESS SHARE locks taken by lineage queries, so only writers wait.
+ *
+ * Depth semantics differ slightly from the recursive CTEs in ExperimentRunGraphForLookup2.jsp. Both return the same
+ * set of ancestors and descendants for a depth limit, since a node has a path within the limit exactly when its
+ * shortest path is within it. The closure always reports the shortest path, however, while the CTE lookup reports
+ * MIN(depth) over every path it walked: the shortest path for children, but for parents, whose depths are negative,
+ * the longest path within the limit. Lookups only filter on depth, so this makes no difference to them.
+ *
+ * Code that writes to exp.Edge directly, bypassing ExperimentServiceImpl, must call {@link #edgesInserted(List)} or
+ * {@link #rebuild()} to keep the closure current.
+ */
+public class LineageClosure
+{
+    public static final String EXPERIMENTAL_LINEAGE_CLOSURE = "lineage-closure";
+
+    private static final Logger LOG = LogManager.getLogger(LineageClosure.class);
+    private static final LineageClosure INSTANCE = new LineageClosure();
+
+    // same recursion limit as ExperimentRunGraphForLookup2.jsp
+    private static final int MAX_DEPTH = 1000;
+
+    public static LineageClosure get()
+    {
+        return INSTANCE;
+    }
+
+    private LineageClosure()
+    {
+    }
+
+    private DbSchema getExpSchema()
+    {
+        return ExperimentServiceImpl.get().getExpSchema();
+    }
+
+    public TableInfo getTinfoEdgeClosure()
+    {
+        return getExpSchema().getTable("EdgeClosure");
+    }
+
+    public boolean isEnabled()
+    {
+        return getExpSchema().getSqlDialect().isPostgreSQL() &&
+                AppProps.getInstance().isExperimentalFeatureEnabled(EXPERIMENTAL_LINEAGE_CLOSURE);
+    }
+
+    /** Called when the experimental feature is toggled */
+    public void featureChanged(boolean enabled)
+    {
+        if (!getExpSchema().getSqlDialect().isPostgreSQL())
+            return;
+
+        if (enabled)
+            rebuild();
+        else
+            clear();
+    }
+
+    public void clear()
+    {
+        LOG.debug("Clearing lineage closure");
+        Table.delete(getTinfoEdgeClosure());
+    }
+
+    /** Serialize closure maintenance until the current transaction ends; see the class comment */
+    private void lock()
+    {
+        new SqlExecutor(getExpSchema()).execute("LOCK TABLE " + getTinfoEdgeClosure() + " IN SHARE ROW EXCLUSIVE MODE");
+    }
+
+    /** Recompute the entire closure from exp.Edge. */
+    public void rebuild()
+    {
+        try (DbScope.Transaction tx = getExpSchema().getScope().ensureTransaction())
+        {
+            long start = System.currentTimeMillis();
+            lock();
+            clear();
+            SQLFragment targets = new SQLFragment(" IN (SELECT ToObjectId FROM ").append(ExperimentServiceImpl.get().getTinfoEdge().toString()).append(")");
+            int count = insertAncestors(targets);
+            tx.commit();
+            LOG.info("Rebuilt lineage closure: " + count + " rows in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Apply newly inserted edges to the closure.
+     * @param params the (fromObjectId, toObjectId, runId) parameters passed to the exp.Edge batch insert
+     */
+    public void edgesInserted(List<List<Object>> params)
+    {
+        if (params.isEmpty() || !isEnabled())
+            return;
+
+        assert getExpSchema().getScope().isTransactionActive();
+        lock();
+
+        // Each statement sees the closure updated by the preceding edges in the batch, so the shortest path
+        // through the new edge is always (ancestor -> from) + 1 + (to -> descendant) using the current closure.
+        TableInfo closure = getTinfoEdgeClosure();
+        String sql = "INSERT INTO " + closure + " (AncestorObjectId, DescendantObjectId, Depth)\n" +
+                "SELECT A.ObjectId, D.ObjectId, MIN(A.Depth + 1 + D.Depth)\n" +
+                "FROM (SELECT CAST(? AS INT) AS ObjectId, 0 AS Depth UNION ALL SELECT AncestorObjectId, Depth FROM " + closure + " WHERE DescendantObjectId = ?) A,\n" +
+                "     (SELECT CAST(? AS INT) AS ObjectId, 0 AS Depth UNION ALL SELECT DescendantObjectId, Depth FROM " + closure + " WHERE AncestorObjectId = ?) D\n" +
+                "WHERE A.ObjectId <> D.ObjectId\n" +
+                "GROUP BY A.ObjectId, D.ObjectId\n" +
+                "ON CONFLICT (AncestorObjectId, DescendantObjectId) DO UPDATE SET Depth = EXCLUDED.Depth\n" +
+                "WHERE " + closure + ".Depth > EXCLUDED.Depth";
+
+        List<List<?>> closureParams = new ArrayList<>(params.size());
+        for (List<Object> edge : params)
+        {
+            Object from = edge.get(0);
+            Object to = edge.get(1);
+            closureParams.add(List.of(from, from, to, to));
+        }
+
+        try
+        {
+            Table.batchExecute(getExpSchema(), sql, closureParams);
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+    }
+
+    /**
+     * Collect the nodes whose ancestors will change when the exp.Edge rows matching the filter are deleted:
+     * the targets of those edges and all of their descendants. Must be called before the edges are deleted and
+     * the result passed to {@link #edgesRemoved(Set)} afterwards.
+     *
+     * @param edgeFilter a WHERE clause over the unaliased exp.Edge columns, e.g. "RunId = ?"
+     */
+    @NotNull
+    public Set<Integer> collectAffected(SQLFragment edgeFilter)
+    {
+        if (!isEnabled())
+            return Collections.emptySet();
+
+        // Lock before reading, so the affected set can't be changed by another transaction before edgesRemoved()
+        assert getExpSchema().getScope().isTransactionActive();
+        lock();
+
+        SQLFragment targets = new SQLFragment("SELECT ToObjectId FROM ").append(ExperimentServiceImpl.get().getTinfoEdge().toString())
+                .append(" WHERE ").append(edgeFilter);
+
+        SQLFragment sql = new SQLFragment(targets);
+        sql.append("\nUNION\n");
+        sql.append("SELECT DescendantObjectId FROM ").append(getTinfoEdgeClosure().toString());
+        sql.append(" WHERE AncestorObjectId IN (").append(targets).append(")");
+
+        return new HashSet<>(new SqlSelector(getExpSchema(), sql).getCollection(Integer.class));
+    }
+
+    /**
+     * Recompute the ancestors of the nodes returned by {@link #collectAffected(SQLFragment)} once the edges have been deleted.
+     */
+    public void edgesRemoved(@NotNull Set<Integer> affected)
+    {
+        if (affected.isEmpty() || !isEnabled())
+            return;
+
+        assert getExpSchema().getScope().isTransactionActive();
+        lock();
+
+        SqlDialect dialect = getExpSchema().getSqlDialect();
+        SQLFragment inAffected = dialect.appendInClauseSql(new SQLFragment(), affected);
+
+        SQLFragment delete = new SQLFragment("DELETE FROM ").append(getTinfoEdgeClosure().toString())
+                .append(" WHERE DescendantObjectId").append(inAffected);
+        int deleted = new SqlExecutor(getExpSchema()).execute(delete);
+
+        int inserted = insertAncestors(inAffected);
+        LOG.debug("Recomputed lineage closure for " + affected.size() + " nodes; deleted " + deleted + ", inserted " + inserted);
+    }
+
+    /**
+     * Insert the closure rows for every node in the affected set, which must be closed under descendants and have no
+     * existing closure rows. The walk up exp.Edge only continues through affected nodes; once it reaches an unaffected
+     * node that node's closure rows are still valid and are joined in directly.
+     *
+     * @param inAffected an " IN (...)" fragment identifying the affected nodes
+     */
+    private int insertAncestors(SQLFragment inAffected)
+    {
+        TableInfo edge = ExperimentServiceImpl.get().getTinfoEdge();
+        TableInfo closure = getTinfoEdgeClosure();
+
+        SQLFragment sql = new SQLFragment();
+        sql.append("WITH RECURSIVE _up_ (DescendantObjectId, ObjectId, Depth) AS (\n");
+        sql.append("  SELECT E.ToObjectId, E.FromObjectId, 1 FROM ").append(edge.toString()).append(" E\n");
+        sql.append("  WHERE E.ToObjectId").append(inAffected).append("\n");
+        sql.append("  UNION\n");
+        sql.append("  SELECT U.DescendantObjectId, E.FromObjectId, U.Depth + 1 FROM _up_ U\n");
+        sql.append("    INNER JOIN ").append(edge.toString()).append(" E ON E.ToObjectId = U.ObjectId\n");
+        sql.append("  WHERE U.ObjectId").append(inAffected).append("\n");
+        sql.append("    AND U.Depth < ").append(MAX_DEPTH).append("\n");
+        sql.append(")\n");
+        sql.append("INSERT INTO ").append(closure.toString()).append(" (AncestorObjectId, DescendantObjectId, Depth)\n");
+        sql.append("SELECT AncestorObjectId, DescendantObjectId, MIN(Depth) FROM (\n");
+        sql.append("  SELECT U.ObjectId AS AncestorObjectId, U.DescendantObjectId, U.Depth FROM _up_ U\n");
+        sql.append("  UNION ALL\n");
+        // unaffected nodes reached by the walk contribute their own (unchanged) ancestors
+        sql.append("  SELECT C.AncestorObjectId, U.DescendantObjectId, U.Depth + C.Depth FROM _up_ U\n");
+        sql.append("    INNER JOIN ").append(closure.toString()).append(" C ON C.DescendantObjectId = U.ObjectId\n");
+        sql.append("  WHERE NOT (U.ObjectId").append(inAffected).append(")\n");
+        sql.append(") X\n");
+        sql.append("WHERE AncestorObjectId <> DescendantObjectId\n");
+        sql.append("GROUP BY AncestorObjectId, DescendantObjectId");
+
+        return new SqlExecutor(getExpSchema()).execute(sql);
+    }
+
+    /**
+     * Add the parents and children common table expressions for a lineage lookup query. The CTEs have the same
+     * columns as the $PARENTS$ and $CHILDREN$ expressions in ExperimentRunGraphForLookup2.jsp: one row per
+     * (self, objectid) pair with the shortest depth, negative for parents. The JSP reports the longest path within
+     * the depth limit for parents instead; see the class comment.
+     *
+     * @return the (parents, children) CTE tokens
+     */
+    public Pair<String, String> addCommonTableExpressions(SQLFragment ret, SQLFragment lsidsFrag, ExpLineageOptions options)
+    {
+        assert options.isForLookup();
+
+        String expType = StringUtils.defaultString(options.getExpType(), "ALL");
+        assert "ALL".equals(expType) || "Data".equals(expType) || "Material".equals(expType) || "ExperimentRun".equals(expType);
+
+        SQLFragment seeds = new SQLFragment();
+        if (options.isUseObjectIds())
+            seeds.append("(").append(lsidsFrag).append(") AS _seed_(objectid)");
+        else
+            seeds.append("(SELECT objectid FROM exp.object WHERE objecturi IN (").append(lsidsFrag).append(")) AS _seed_");
+
+        int depth = Math.abs(options.getDepth());
+
+        SQLFragment parents = lookupSelect(seeds, expType, depth, "AncestorObjectId", "DescendantObjectId", "-");
+        String parentsToken = ret.addCommonTableExpression("$CLOSURE_PARENTS$/" + parents.getRawSQL(), "org_lk_exp_PARENTS", parents);
+
+        SQLFragment children = lookupSelect(seeds, expType, depth, "DescendantObjectId", "AncestorObjectId", "");
+        String childrenToken = ret.addCommonTableExpression("$CLOSURE_CHILDREN$/" + children.getRawSQL(), "org_lk_exp_CHILDREN", children);
+
+        return new Pair<>(parentsToken, childrenToken);
+    }
+
+    private SQLFragment lookupSelect(SQLFragment seeds, String expType, int depth, String nodeColumn, String selfColumn, String sign)
+    {
+        String varcharType = getExpSchema().getSqlDialect().getSqlTypeName(JdbcType.VARCHAR);
+
+        SQLFragment sql = new SQLFragment();
+        sql.append("SELECT\n");
+        sql.append("  ").append(sign).append("C.Depth AS depth,\n");
+        sql.append("  _seed_.objectid AS self,\n");
+        sql.append("  C.").append(nodeColumn).append(" AS objectid,\n");
+        if ("ALL".equals(expType))
+        {
+            sql.append("  CASE WHEN M.rowId IS NOT NULL THEN 'Material' WHEN D.rowId IS NOT NULL THEN 'Data' WHEN R.rowId IS NOT NULL THEN 'ExperimentRun' END AS expType,\n");
+        }
+        else
+        {
+            sql.append("  CAST('").append(expType).append("' AS ").append(varcharType).append("(100)) AS expType,\n");
+        }
+        sql.append("  ").append(coalesce(expType, "container")).append(" AS container,\n");
+        sql.append("  ").append(coalesce(expType, "cpasType")).append(" AS cpasType,\n");
+        sql.append("  ").append(coalesce(expType, "name")).append(" AS name,\n");
+        sql.append("  ").append(coalesce(expType, "lsid")).append(" AS lsid,\n");
+        sql.append("  ").append(coalesce(expType, "rowId")).append(" AS rowId\n");
+        sql.append("FROM ").append(seeds).append("\n");
+        sql.append("  INNER JOIN ").append(getTinfoEdgeClosure().toString()).append(" C ON C.").append(selfColumn).append(" = _seed_.objectid\n");
+
+        String nodeId = "C." + nodeColumn;
+        switch (expType)
+        {
+            case "ALL":
+                sql.append("  LEFT OUTER JOIN exp.data D ON ").append(nodeId).append(" = D.ObjectId\n");
+                sql.append("  LEFT OUTER JOIN (select *, protocolLsid as cpasType FROM exp.experimentrun) R ON ").append(nodeId).append(" = R.ObjectId\n");
+                sql.append("  LEFT OUTER JOIN exp.material M ON ").append(nodeId).append(" = M.ObjectId\n");
+                break;
+            case "Data":
+                sql.append("  JOIN exp.data D ON ").append(nodeId).append(" = D.ObjectId\n");
+                break;
+            case "ExperimentRun":
+                sql.append("  JOIN (select *, protocolLsid as cpasType FROM exp.experimentrun) R ON ").append(nodeId).append(" = R.ObjectId\n");
+                break;
+            case "Material":
+                sql.append("  JOIN exp.material M ON ").append(nodeId).append(" = M.ObjectId\n");
+                break;
+        }
+
+        if (depth > 0)
+            sql.append("WHERE C.Depth <= ").append(depth);
+
+        return sql;
+    }
+
+    private static String coalesce(String expType, String name)
+    {
+        switch (expType)
+        {
+            default:
+                return "COALESCE(M." + name + ", D." + name + ", R." + name + ")";
+            case "Data":
+                return "D." + name;
+            case "ExperimentRun":
+                return "R." + name;
+            case "Material":
+                return "M." + name;
+        }
+    }
+}
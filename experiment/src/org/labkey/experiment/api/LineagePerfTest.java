@@ -64,11 +64,13 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 
 import static org.labkey.api.util.JunitUtil.deleteTestContainer;
 
@@ -79,6 +81,7 @@ public class LineagePerfTest extends Assert
     private static final Logger LOG = LogManager.getLogger(LineagePerfTest.class);
 
     private static boolean _currentSetting;
+    private static boolean _currentClosureSetting;
     private static User _user;
     private static Container _container;
 
@@ -87,6 +90,8 @@ public class LineagePerfTest extends Assert
     {
         _currentSetting = ExperimentalFeatureService.get().isFeatureEnabled(ExperimentServiceImpl.EXPERIMENTAL_LEGACY_LINEAGE);
         LOG.info("current legacy lineage setting: " + _currentSetting);
+        _currentClosureSetting = ExperimentalFeatureService.get().isFeatureEnabled(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE);
+        LOG.info("current lineage closure setting: " + _currentClosureSetting);
 
         _user = TestContext.get().getUser();
         assertNotNull("Should have access to a user", _user);
@@ -103,6 +108,8 @@ public class LineagePerfTest extends Assert
     {
         LOG.info("restoring legacy lineage setting: " + _currentSetting);
         ExperimentalFeatureService.get().setFeatureEnabled(ExperimentServiceImpl.EXPERIMENTAL_LEGACY_LINEAGE, _currentSetting, _user);
+        LOG.info("restoring lineage closure setting: " + _currentClosureSetting);
+        ExperimentalFeatureService.get().setFeatureEnabled(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE, _currentClosureSetting, _user);
         //deleteTestContainer();
     }
 
@@ -311,6 +318,11 @@ public class LineagePerfTest extends Assert
         CPUTimer newLineageGraph = new CPUTimer("new lineage graph");
         CPUTimer newInsertMoreTimer = new CPUTimer("new insertMore");
 
+        CPUTimer closureRebuildTimer = new CPUTimer("closure rebuild");
+        CPUTimer closureLineageQuery = new CPUTimer("closure lineage query");
+        CPUTimer closureLineageGraph = new CPUTimer("closure lineage graph");
+        CPUTimer closureInsertMoreTimer = new CPUTimer("closure insertMore");
+
         //
         // SETUP: insert lots of samples derived from each other
         //
@@ -334,7 +346,30 @@ public class LineagePerfTest extends Assert
 
         LOG.info("TEST querying with exp.edge lineage: ");
         ExperimentalFeatureService.get().setFeatureEnabled(ExperimentServiceImpl.EXPERIMENTAL_LEGACY_LINEAGE, false, _user);
+        ExperimentalFeatureService.get().setFeatureEnabled(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE, false, _user);
         lineageQueries("NEW", newLineageQuery, newLineageGraph, newInsertMoreTimer, st, firstData);
+        Collection<Map<String, Object>> edgeRows = lookupQuery().getMapCollection();
+
+        // the closure is only maintained on PostgreSQL
+        if (ExperimentService.get().getSchema().getSqlDialect().isPostgreSQL())
+        {
+            LOG.info("TEST querying with exp.edgeclosure lineage: ");
+            closureRebuildTimer.start();
+            ExperimentalFeatureService.get().setFeatureEnabled(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE, true, _user);
+            closureRebuildTimer.stop();
+
+            // lookups must return the same parents and children as the recursive CTE
+            Collection<Map<String, Object>> closureRows = lookupQuery().getMapCollection();
+            assertEquals(normalize(edgeRows), normalize(closureRows));
+
+            lineageQueries("CLOSURE", closureLineageQuery, closureLineageGraph, closureInsertMoreTimer, st, firstData);
+
+            // and must still agree after the incremental updates
+            closureRows = lookupQuery().getMapCollection();
+            ExperimentalFeatureService.get().setFeatureEnabled(LineageClosure.EXPERIMENTAL_LINEAGE_CLOSURE, false, _user);
+            edgeRows = lookupQuery().getMapCollection();
+            assertEquals(normalize(edgeRows), normalize(closureRows));
+        }
 
         elapsedTimer.stop();
 
@@ -350,6 +385,10 @@ public class LineagePerfTest extends Assert
         LOG.info(newLineageQuery);
         LOG.info(newLineageGraph);
         LOG.info(newInsertMoreTimer);
+        LOG.info(closureRebuildTimer);
+        LOG.info(closureLineageQuery);
+        LOG.info(closureLineageGraph);
+        LOG.info(closureInsertMoreTimer);
         LOG.info(elapsedTimer);
     }
 
@@ -438,9 +477,28 @@ public class LineagePerfTest extends Assert
         return Pair.of(st, data);
     }
 
-    private void lineageQueries(String prefix, CPUTimer lineageQuery, CPUTimer lineageGraph, CPUTimer insertMoreTimer, ExpSampleType st, ExpData firstData) throws ExperimentException
+    // multi-valued lookup values aren't returned in any particular order
+    private Map<Object, Set<String>> normalize(Collection<Map<String, Object>> rows)
+    {
+        Map<Object, Set<String>> ret = new HashMap<>();
+        for (Map<String, Object> row : rows)
+        {
+            Set<String> values = new TreeSet<>();
+            for (String col : List.of("Inputs_MyData_Name", "Inputs_MySamples_Name"))
+            {
+                Object value = row.get(col);
+                if (value != null)
+                    for (String v : StringUtils.split(value.toString(), ",\n"))
+                        values.add(col + ":" + v.trim());
+            }
+            ret.put(row.get("Name"), values);
+        }
+        return ret;
+    }
+
+    // query the lineage lookup columns
+    private TableSelector lookupQuery()
     {
-        // parse the query once
         final StringBuilder sql = new StringBuilder()
                 .append("SELECT\n")
                 .append("  ss.Name,\n")
@@ -449,7 +507,13 @@ public class LineagePerfTest extends Assert
                 .append("FROM samples.MySamples AS ss\n");
 
         final UserSchema schema = QueryService.get().getUserSchema(_user, _container, "samples");
-        final TableSelector ts = QueryService.get().selector(schema, sql.toString());
+        return QueryService.get().selector(schema, sql.toString());
+    }
+
+    private void lineageQueries(String prefix, CPUTimer lineageQuery, CPUTimer lineageGraph, CPUTimer insertMoreTimer, ExpSampleType st, ExpData firstData) throws ExperimentException
+    {
+        // parse the query once
+        final TableSelector ts = lookupQuery();
 
         final ExpLineageOptions opt = new ExpLineageOptions();
         final ViewBackgroundInfo info = new ViewBackgroundInfo(_container, _user, null);
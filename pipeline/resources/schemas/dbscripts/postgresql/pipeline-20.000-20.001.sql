@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+-- Durable job queue used by DbPipelineQueueImpl (-Dlabkey.pipeline.databaseQueue=true). Rows are claimed by
+-- worker nodes with SELECT ... FOR UPDATE SKIP LOCKED and kept alive with a lease that the owner renews.
+-- No foreign key to core.Containers: rows for deleted containers are discarded when they're claimed.
+CREATE TABLE pipeline.JobQueue
+(
+    RowId SERIAL,
+    Created TIMESTAMP NOT NULL DEFAULT now(),
+
+    Container ENTITYID NOT NULL,
+    Job VARCHAR(36) NOT NULL,
+    Description VARCHAR(255),
+    SingleThreaded BOOLEAN NOT NULL,
+    Status VARCHAR(20) NOT NULL,
+    Attempts INT NOT NULL DEFAULT 0,
+    Owner VARCHAR(255),
+    LeaseExpires TIMESTAMP,
+    CancelRequested BOOLEAN NOT NULL DEFAULT FALSE,
+    Serialized TEXT NOT NULL,
+
+    CONSTRAINT PK_JobQueue PRIMARY KEY (RowId),
+    CONSTRAINT UQ_JobQueue_Job UNIQUE (Job)
+);
+
+CREATE INDEX IX_JobQueue_Status ON pipeline.JobQueue (Status, RowId);
+
+-- At most one running job per container, and at most one running single-threaded job, across all nodes
+CREATE UNIQUE INDEX UQ_JobQueue_RunningContainer ON pipeline.JobQueue (Container) WHERE Status = 'RUNNING';
+CREATE UNIQUE INDEX UQ_JobQueue_RunningSingleThreaded ON pipeline.JobQueue (SingleThreaded) WHERE Status = 'RUNNING' AND SingleThreaded = TRUE;
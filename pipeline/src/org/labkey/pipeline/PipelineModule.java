@@ -60,7 +60,9 @@ import org.labkey.pipeline.analysis.CommandTaskImpl;
 import org.labkey.pipeline.analysis.FileAnalysisPipelineProvider;
 import org.labkey.pipeline.analysis.ProtocolManagementAuditProvider;
 import org.labkey.pipeline.analysis.ProtocolManagementWebPart;
+import org.labkey.pipeline.api.DbPipelineQueueImpl;
 import org.labkey.pipeline.api.ExecTaskFactory;
+import org.labkey.pipeline.api.FairShareScheduler;
 import org.labkey.pipeline.api.PipelineEmailPreferences;
 import org.labkey.pipeline.api.PipelineJobMarshaller;
 import org.labkey.pipeline.api.PipelineJobServiceImpl;
@@ -107,7 +109,7 @@ public class PipelineModule extends SpringModule implements ContainerManager.Con
     @Override
     public Double getSchemaVersion()
     {
-        return 20.000;
+        return 20.001;
     }
 
     @Override
@@ -271,6 +273,7 @@ public class PipelineModule extends SpringModule implements ContainerManager.Con
         return Set.of(
             PipelineController.TestCase.class,
             PipelineJobServiceImpl.IntegrationTestCase.class,
+            DbPipelineQueueImpl.TestCase.class,
             PipelineQueueImpl.TestCase.class,
             PipelineServiceImpl.TestCase.class,
             StatusController.TestCase.class,
@@ -284,6 +287,7 @@ public class PipelineModule extends SpringModule implements ContainerManager.Con
     {
         return Set.of(
             CommandTaskImpl.TestCase.class,
+            FairShareScheduler.TestCase.class,
             PathMapperImpl.TestCase.class,
             PipelineCommandTestCase.class,
             PipelineJobMarshaller.TestCase.class,
@@ -312,6 +316,11 @@ public class PipelineModule extends SpringModule implements ContainerManager.Con
             {
                 requeueAllPendingJobs();
             }
+            else if (queue instanceof DbPipelineQueueImpl)
+            {
+                // Jobs are still in the database; start claiming them (including any abandoned by a previous run)
+                ((DbPipelineQueueImpl) queue).start();
+            }
             else if (!queue.isLocal() && queue instanceof EPipelineQueueImpl)
             {
                 // Restart jobs that have been dropped from the queue and are supposed to run on the web server
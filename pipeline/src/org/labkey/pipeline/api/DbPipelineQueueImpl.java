@@ -0,0 +1,801 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.pipeline.api;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.ConnectionWrapper;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.RuntimeSQLException;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.PipelineJobData;
+import org.labkey.api.pipeline.PipelineJobService;
+import org.labkey.api.pipeline.PipelineService;
+import org.labkey.api.pipeline.PipelineStatusFile;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.security.User;
+import org.labkey.api.test.TestWhen;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.JobRunner;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.TestContext;
+import org.labkey.api.view.ActionURL;
+import org.labkey.api.view.ViewBackgroundInfo;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable alternative to {@link PipelineQueueImpl}: jobs are serialized (using the job store's JSON marshalling) into
+ * pipeline.JobQueue and any web server node sharing the database may run them. Each node polls the table and claims
+ * the oldest runnable job with SELECT ... FOR UPDATE SKIP LOCKED (UPDLOCK, READPAST on SQL Server), so nodes never
+ * block on each other's claims. Like the in-memory queue, at most one job per container and one single-threaded job
+ * runs at a time, here across all nodes; partial unique indexes enforce this if two nodes race for the same slot.
+ *
+ * A claim is a lease that the owning node renews while the job runs. If a node dies, its leases lapse and another node
+ * puts the jobs back in the queue, giving up (and marking the job as ERROR) after a few attempts. Lease times come from
+ * each node's clock, so nodes need reasonably synchronized clocks; the lease is long enough to absorb normal skew.
+ *
+ * Enable via -Dlabkey.pipeline.databaseQueue=true. Not used when a JMS queue (Enterprise Pipeline) is configured.
+ */
+public class DbPipelineQueueImpl extends AbstractPipelineQueue
+{
+    private static final Logger LOG = LogManager.getLogger(DbPipelineQueueImpl.class);
+
+    static final boolean ENABLED = Boolean.getBoolean("labkey.pipeline.databaseQueue");
+    private static final int MAX_RUNNING_JOBS = Integer.getInteger("labkey.pipeline.queue.maxRunningJobs", 10);
+    private static final int MAX_ATTEMPTS = Integer.getInteger("labkey.pipeline.queue.maxAttempts", 3);
+    private static final long LEASE_MS = TimeUnit.SECONDS.toMillis(Integer.getInteger("labkey.pipeline.queue.leaseSeconds", 120));
+    private static final long POLL_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final String PENDING = "PENDING";
+    private static final String RUNNING = "RUNNING";
+
+    private final String _owner;
+    private final JobRunner _runner = new JobRunner("Pipeline", MAX_RUNNING_JOBS);
+
+    // Jobs queued by this node, so we can run the original instance (rather than a deserialized copy) if we claim them
+    private final Map<String, PipelineJob> _local = new ConcurrentHashMap<>();
+    // Jobs this node has claimed and is running
+    private final Map<String, PipelineJob> _running = new ConcurrentHashMap<>();
+    // Jobs in _running that couldn't be serialized, so have no row and no lease
+    private final Set<String> _unqueued = ConcurrentHashMap.newKeySet();
+
+    private final Object _wakeLock = new Object();
+    private boolean _wake = false;      // guarded by _wakeLock
+    private volatile boolean _shuttingDown = false;
+    private Thread _dispatcher = null;
+
+    public DbPipelineQueueImpl()
+    {
+        // pid@host, unique among the JVMs sharing the database
+        this(ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    DbPipelineQueueImpl(String owner)
+    {
+        _owner = owner;
+    }
+
+    /** Start claiming jobs on this node. Called once the server has started up and the schema is current. */
+    public synchronized void start()
+    {
+        if (null != _dispatcher)
+            return;
+
+        _dispatcher = new Thread(this::dispatch, "PipelineQueue:dispatch");
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+
+        ContextListener.addShutdownListener(new ShutdownListener()
+        {
+            @Override
+            public String getName()
+            {
+                return "Pipeline job queue";
+            }
+
+            @Override
+            public void shutdownPre()
+            {
+                // Stop claiming; jobs still running here are retried elsewhere once their leases lapse
+                _shuttingDown = true;
+                wake();
+            }
+
+            @Override
+            public void shutdownStarted()
+            {
+            }
+        });
+
+        LOG.info("Pipeline jobs are queued in the database; this node is " + _owner);
+    }
+
+    private static TableInfo getTableInfo()
+    {
+        return PipelineSchema.getInstance().getTableInfoJobQueue();
+    }
+
+    private static DbScope getScope()
+    {
+        return PipelineSchema.getInstance().getSchema().getScope();
+    }
+
+    // JobIds are compared case-insensitively elsewhere (e.g., they're uppercase in StatusFiles), so normalize them
+    private static String key(String jobId)
+    {
+        return jobId.toLowerCase();
+    }
+
+    private static Timestamp leaseExpiration()
+    {
+        return new Timestamp(System.currentTimeMillis() + LEASE_MS);
+    }
+
+    @Override
+    protected void enqueue(PipelineJob job)
+    {
+        String serialized;
+        try
+        {
+            serialized = PipelineJob.serializeJob(job, false);
+        }
+        catch (Exception x)
+        {
+            // Can't be stored, so it can only run here and won't survive a restart
+            LOG.warn("Unable to serialize " + job + "; running it without queueing it in the database", x);
+            job.restoreQueue(this);
+            String key = key(job.getJobGUID());
+            _unqueued.add(key);
+            _running.put(key, job);
+            _runner.execute(job);
+            job.setSubmitted();
+            return;
+        }
+
+        String key = key(job.getJobGUID());
+        TableInfo ti = getTableInfo();
+        SqlExecutor executor = new SqlExecutor(getScope());
+
+        try (DbScope.Transaction transaction = getScope().ensureTransaction())
+        {
+            // A job retried from inside its own run(), e.g. by PipelineJob.autoRetry(), still has its RUNNING row, so
+            // reset that row rather than inserting a second one for the same job
+            int updated = executor.execute("UPDATE " + ti + " SET Container = ?, Description = ?, SingleThreaded = ?, Status = ?, Attempts = 0, Owner = NULL, LeaseExpires = NULL, CancelRequested = ?, Serialized = ? WHERE Job = ?",
+                    job.getContainerId(), truncate(job.getDescription()), !job.allowMultipleSimultaneousJobs(), PENDING, false, serialized, key);
+            if (0 == updated)
+            {
+                executor.execute("INSERT INTO " + ti + " (Container, Job, Description, SingleThreaded, Status, Serialized) VALUES (?, ?, ?, ?, ?, ?)",
+                        job.getContainerId(), key, truncate(job.getDescription()), !job.allowMultipleSimultaneousJobs(), PENDING, serialized);
+            }
+
+            // Only once the row is written, but before it's visible to the dispatcher
+            _local.put(key, job);
+            transaction.commit();
+        }
+        catch (RuntimeException x)
+        {
+            _local.remove(key, job);
+            throw x;
+        }
+
+        // The instance we were running, if any, no longer owns the row; let it finish without touching it
+        PipelineJob previous = _running.get(key);
+        if (null != previous && previous != job)
+            _running.remove(key, previous);
+
+        wake();
+    }
+
+    private static @Nullable String truncate(@Nullable String description)
+    {
+        return null == description || description.length() <= 255 ? description : description.substring(0, 255);
+    }
+
+    @Override
+    public boolean isLocal()
+    {
+        // Jobs run in the web server, though not necessarily this one
+        return true;
+    }
+
+    @Override
+    public boolean isTransient()
+    {
+        return false;
+    }
+
+    @Override
+    public void starting(PipelineJob job, Thread thread)
+    {
+        // WARNING: This method is for pipeline maintenance only.  Do not put
+        //          important functionality side-effects in here, since this
+        //          function is not supported in the Enterprise Pipeline.
+        LOG.debug("RUNNING:   " + job.toString());
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+        // Set centrally to avoid needing to set in each job, as in PipelineQueueImpl
+        QueryService.get().setEnvironment(QueryService.Environment.CONTAINER, job.getContainer());
+        QueryService.get().setEnvironment(QueryService.Environment.USER, job.getUser());
+    }
+
+    @Override
+    public void done(PipelineJob job)
+    {
+        // WARNING: This method is for pipeline maintenance only.  Do not put
+        //          important functionality side-effects in here, since this
+        //          function is not supported in the Enterprise Pipeline.
+        try
+        {
+            LOG.debug("COMPLETED: " + job.toString());
+            QueryService.get().clearEnvironment();
+
+            notifyDone(job);
+            ConnectionWrapper.dumpLeaksForThread(Thread.currentThread());
+        }
+        finally
+        {
+            // Only delete the row if it's still ours: if the job was requeued, or its lease was lost, the row now
+            // belongs to the new instance
+            String key = key(job.getJobGUID());
+            if (_running.remove(key, job) && !_unqueued.remove(key))
+                new SqlExecutor(getScope()).execute("DELETE FROM " + getTableInfo() + " WHERE Job = ? AND Owner = ? AND Status = ?", key, _owner, RUNNING);
+            wake();
+        }
+    }
+
+    private void wake()
+    {
+        synchronized (_wakeLock)
+        {
+            _wake = true;
+            _wakeLock.notifyAll();
+        }
+    }
+
+    private void dispatch()
+    {
+        long nextHeartbeat = 0;
+
+        while (!_shuttingDown)
+        {
+            try
+            {
+                long now = System.currentTimeMillis();
+                if (now >= nextHeartbeat)
+                {
+                    heartbeat();
+                    recoverExpired();
+                    nextHeartbeat = now + LEASE_MS / 4;
+                }
+
+                while (!_shuttingDown && _running.size() < MAX_RUNNING_JOBS && claimNext())
+                {
+                    // keep claiming until we're full or nothing else is runnable
+                }
+
+                // Other nodes don't wake us, so poll for the jobs they queue and finish
+                synchronized (_wakeLock)
+                {
+                    if (!_wake)
+                        _wakeLock.wait(POLL_MS);
+                    _wake = false;
+                }
+            }
+            catch (InterruptedException x)
+            {
+                return;
+            }
+            catch (Throwable t)
+            {
+                LOG.error("Error dispatching pipeline jobs", t);
+                try
+                {
+                    Thread.sleep(POLL_MS);
+                }
+                catch (InterruptedException x)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Claim the oldest job that's allowed to run now and start it.
+     * @return true if a job was claimed (even if it turned out to be unusable), false if there was nothing to claim
+     */
+    boolean claimNext()
+    {
+        DbScope scope = getScope();
+        SqlDialect dialect = scope.getSqlDialect();
+        TableInfo ti = getTableInfo();
+        QueuedJob claimed;
+
+        try (DbScope.Transaction transaction = scope.ensureTransaction())
+        {
+            SQLFragment sql = new SQLFragment("SELECT ");
+            if (dialect.isSqlServer())
+                sql.append("TOP 1 ");
+            sql.append("q.RowId, q.Job, q.Container, q.Serialized FROM ").append(ti, "q");
+            if (dialect.isSqlServer())
+                sql.append(" WITH (UPDLOCK, READPAST, ROWLOCK)");
+            sql.append(" WHERE q.Status = ?").add(PENDING);
+            // One job per container...
+            sql.append(" AND NOT EXISTS (SELECT 1 FROM ").append(ti, "r").append(" WHERE r.Status = ? AND r.Container = q.Container)").add(RUNNING);
+            // ...and one single-threaded job at a time
+            sql.append(" AND (q.SingleThreaded = ? OR NOT EXISTS (SELECT 1 FROM ").append(ti, "s").append(" WHERE s.Status = ? AND s.SingleThreaded = ?))").add(false).add(RUNNING).add(true);
+            sql.append(" ORDER BY q.RowId");
+            if (!dialect.isSqlServer())
+                sql.append(" LIMIT 1 FOR UPDATE OF q SKIP LOCKED");
+
+            List<QueuedJob> rows = new ArrayList<>(1);
+            new SqlSelector(scope, sql).forEach(rs -> rows.add(new QueuedJob(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4))));
+            if (rows.isEmpty())
+                return false;
+
+            claimed = rows.get(0);
+            new SqlExecutor(scope).execute("UPDATE " + ti + " SET Status = ?, Owner = ?, LeaseExpires = ?, Attempts = Attempts + 1 WHERE RowId = ?",
+                    RUNNING, _owner, leaseExpiration(), claimed.rowId);
+            transaction.commit();
+        }
+        catch (RuntimeSQLException x)
+        {
+            // Another node claimed a job in the same container (or another single-threaded job) at the same time
+            if (x.isConstraintException())
+                return false;
+            throw x;
+        }
+
+        PipelineJob job = _local.remove(claimed.jobId);
+        if (null == job)
+            job = PipelineJob.deserializeJob(claimed.serialized);
+
+        if (null == job || null == ContainerManager.getForId(claimed.containerId))
+        {
+            LOG.warn("Discarding queued pipeline job " + claimed.jobId + ": " + (null == job ? "unable to deserialize it" : "its container no longer exists"));
+            new SqlExecutor(scope).execute("DELETE FROM " + ti + " WHERE RowId = ?", claimed.rowId);
+            return true;
+        }
+
+        job.restoreQueue(this);
+        _running.put(claimed.jobId, job);
+        _runner.execute(job);
+        job.setSubmitted();
+        return true;
+    }
+
+    // Renew the leases on the jobs we're running, interrupt any that another node has asked to cancel, and stop any
+    // whose lease we've lost
+    void heartbeat()
+    {
+        if (_running.isEmpty())
+            return;
+
+        TableInfo ti = getTableInfo();
+        new SqlExecutor(getScope()).execute("UPDATE " + ti + " SET LeaseExpires = ? WHERE Owner = ? AND Status = ?", leaseExpiration(), _owner, RUNNING);
+
+        Set<String> held = new HashSet<>();
+        new SqlSelector(getScope(), "SELECT Job, CancelRequested FROM " + ti + " WHERE Owner = ? AND Status = ?", _owner, RUNNING).forEach(rs -> {
+            String jobId = rs.getString(1);
+            held.add(jobId);
+            PipelineJob job = _running.get(jobId);
+            if (rs.getBoolean(2) && null != job && !job.checkInterrupted())
+            {
+                job.getLogger().info("Interrupting job as requested by another server.");
+                job.interrupt();
+            }
+        });
+
+        // Claims only happen on this thread, so anything in _running without a row was claimed before this node
+        // stalled past its lease. Another node has recovered the job and may already be running it.
+        for (Map.Entry<String, PipelineJob> entry : _running.entrySet())
+        {
+            String jobId = entry.getKey();
+            PipelineJob job = entry.getValue();
+            if (held.contains(jobId) || _unqueued.contains(jobId) || !_running.remove(jobId, job))
+                continue;
+
+            LOG.warn("Lost the lease on pipeline job " + jobId + "; interrupting it so it doesn't run on two servers");
+            job.getLogger().warn("Interrupting job because this server stopped renewing its lease and the job was requeued.");
+            job.interrupt();
+        }
+    }
+
+    // Jobs whose leases have lapsed were claimed by a node that died or stalled. Put them back in the queue, up to
+    // MAX_ATTEMPTS times. The status and lease conditions on each update make this safe to run on every node at once.
+    void recoverExpired()
+    {
+        TableInfo ti = getTableInfo();
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        SqlExecutor executor = new SqlExecutor(getScope());
+
+        List<QueuedJob> expired = new ArrayList<>();
+        new SqlSelector(getScope(), "SELECT RowId, Job, Attempts FROM " + ti + " WHERE Status = ? AND LeaseExpires < ? AND Owner <> ?", RUNNING, now, _owner)
+                .forEach(rs -> expired.add(new QueuedJob(rs.getInt(1), rs.getString(2), rs.getInt(3))));
+
+        for (QueuedJob row : expired)
+        {
+            if (row.attempts >= MAX_ATTEMPTS)
+            {
+                if (1 == executor.execute("DELETE FROM " + ti + " WHERE RowId = ? AND Status = ? AND LeaseExpires < ?", row.rowId, RUNNING, now))
+                {
+                    LOG.warn("Giving up on pipeline job " + row.jobId + " after " + row.attempts + " attempts");
+                    PipelineStatusFileImpl sf = PipelineStatusManager.getJobStatusFile(row.jobId);
+                    if (null != sf)
+                    {
+                        sf.setStatus(PipelineJob.TaskStatus.error.toString());
+                        sf.setInfo("The server running this job stopped responding " + row.attempts + " times");
+                        PipelineStatusManager.updateStatusFile(sf);
+                    }
+                }
+            }
+            else if (1 == executor.execute("UPDATE " + ti + " SET Status = ?, Owner = NULL, LeaseExpires = NULL WHERE RowId = ? AND Status = ? AND LeaseExpires < ?", PENDING, row.rowId, RUNNING, now))
+            {
+                LOG.info("Requeued pipeline job " + row.jobId + " after its lease expired");
+            }
+        }
+    }
+
+    boolean inContainer(Container c, PipelineJob job)
+    {
+        // We use null to mean "all containers"
+        return c == null || c.getId().equals(job.getContainerId());
+    }
+
+    @Override
+    public boolean cancelJob(User user, Container c, PipelineStatusFile statusFile)
+    {
+        if (statusFile.getJobStore() != null)
+        {
+            PipelineJob job = PipelineJob.deserializeJob(statusFile.getJobStore());
+            if (job != null)
+            {
+                job.getLogger().info("Attempting to cancel as requested by " + user);
+                PipelineJob.logStartStopInfo("Attempting to cancel job ID " + job.getJobGUID() + ", " + statusFile.getFilePath() + " as requested by " + user);
+            }
+        }
+
+        String key = key(statusFile.getJobId());
+        TableInfo ti = getTableInfo();
+        SQLFragment containerClause = new SQLFragment();
+        if (null != c)
+            containerClause.append(" AND Container = ?").add(c.getId());
+
+        // Remove the job if it's still waiting
+        SQLFragment delete = new SQLFragment("DELETE FROM ").append(ti.getSelectName()).append(" WHERE Job = ? AND Status = ?").add(key).add(PENDING).append(containerClause);
+        if (1 == new SqlExecutor(getScope()).execute(delete))
+        {
+            PipelineJob job = _local.remove(key);
+            if (null != job)
+            {
+                job.cancel(false);
+                job.getLogger().info("Cancelling job by removing from job queue.");
+            }
+            PipelineJob.logStartStopInfo("Cancelling job by removing from job queue. Job ID: " + key + ", " + statusFile.getFilePath());
+            // It should already be set to CANCELLING. Set to CANCELLED to indicate that it's dead.
+            statusFile.setStatus(PipelineJob.TaskStatus.cancelled.toString());
+            statusFile.save();
+            return true;
+        }
+
+        PipelineJob job = _running.get(key);
+        if (null != job && inContainer(c, job))
+        {
+            job.getLogger().info("Interrupting job by sending interrupt request.");
+            PipelineJob.logStartStopInfo("Interrupting job by sending interrupt request. Job ID: " + job.getJobGUID() + ", " + statusFile.getFilePath());
+            return job.interrupt();
+        }
+
+        // Running on another node; its next heartbeat interrupts it
+        SQLFragment flag = new SQLFragment("UPDATE ").append(ti.getSelectName()).append(" SET CancelRequested = ? WHERE Job = ? AND Status = ?").add(true).add(key).add(RUNNING).append(containerClause);
+        return 1 == new SqlExecutor(getScope()).execute(flag);
+    }
+
+    @Override
+    public List<PipelineJob> findJobs(String location)
+    {
+        // As with the in-memory queue, the only location is the default location
+        List<PipelineJob> result = new ArrayList<>();
+        if (location.equals(PipelineJobService.get().getDefaultExecutionLocation()))
+        {
+            for (QueuedJob row : getQueuedJobs(null))
+            {
+                PipelineJob job = getJob(row);
+                if (null != job)
+                    result.add(job);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public PipelineJobData getJobDataInMemory(Container c)
+    {
+        PipelineJobData ret = new PipelineJobData();
+
+        for (QueuedJob row : getQueuedJobs(c))
+        {
+            PipelineJob job = getJob(row);
+            if (null == job)
+                continue;
+            if (RUNNING.equals(row.status))
+                ret.addRunningJob(job);
+            else
+                ret.addPendingJob(job);
+        }
+        return ret;
+    }
+
+    private List<QueuedJob> getQueuedJobs(@Nullable Container c)
+    {
+        SQLFragment sql = new SQLFragment("SELECT RowId, Job, Container, Serialized, Status FROM ").append(getTableInfo().getSelectName());
+        if (null != c)
+            sql.append(" WHERE Container = ?").add(c.getId());
+        sql.append(" ORDER BY RowId");
+
+        List<QueuedJob> rows = new ArrayList<>();
+        new SqlSelector(getScope(), sql).forEach(rs -> {
+            QueuedJob row = new QueuedJob(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+            row.status = rs.getString(5);
+            rows.add(row);
+        });
+        return rows;
+    }
+
+    // The live instance if this node has it, otherwise a deserialized copy
+    private @Nullable PipelineJob getJob(QueuedJob row)
+    {
+        PipelineJob job = _running.get(row.jobId);
+        if (null == job)
+            job = _local.get(row.jobId);
+        return null != job ? job : PipelineJob.deserializeJob(row.serialized);
+    }
+
+    private static class QueuedJob
+    {
+        private final int rowId;
+        private final String jobId;
+        private String containerId;
+        private String serialized;
+        private int attempts;
+        private String status;
+
+        private QueuedJob(int rowId, String jobId, String containerId, String serialized)
+        {
+            this.rowId = rowId;
+            this.jobId = jobId;
+            this.containerId = containerId;
+            this.serialized = serialized;
+        }
+
+        private QueuedJob(int rowId, String jobId, int attempts)
+        {
+            this.rowId = rowId;
+            this.jobId = jobId;
+            this.attempts = attempts;
+        }
+    }
+
+    //
+    // JUNIT
+    //
+
+    private static class TestJob extends PipelineJob
+    {
+        // Static, so they survive (and aren't part of) serialization
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static volatile CountDownLatch RELEASE = new CountDownLatch(0);
+
+        // For serialization
+        protected TestJob() {}
+
+        TestJob(Container c, User user)
+        {
+            super(null, new ViewBackgroundInfo(c, user, null), PipelineService.get().findPipelineRoot(c));
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                RELEASE.await(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ignored) {}
+            COUNTER.incrementAndGet();
+        }
+
+        @Override
+        public boolean allowMultipleSimultaneousJobs()
+        {
+            return true;
+        }
+
+        @Override
+        protected boolean canInterrupt()
+        {
+            return true;
+        }
+
+        @Override
+        public String getDescription()
+        {
+            return "DbPipelineQueueImpl test job";
+        }
+
+        @Override
+        public ActionURL getStatusHref()
+        {
+            return null;
+        }
+    }
+
+    @TestWhen(TestWhen.When.BVT)
+    public static class TestCase extends Assert
+    {
+        private final List<String> _jobIds = new ArrayList<>();
+
+        @After
+        public void cleanup()
+        {
+            TestJob.RELEASE.countDown();
+            for (String jobId : _jobIds)
+                new SqlExecutor(getScope()).execute("DELETE FROM " + getTableInfo() + " WHERE Job = ?", jobId);
+        }
+
+        @Test
+        public void testClaimsAcrossNodes() throws Exception
+        {
+            User user = TestContext.get().getUser();
+            Container a = JunitUtil.getTestContainer();
+            Container b = ContainerManager.ensureContainer(a, "DbPipelineQueueImpl");
+
+            // Two queues standing in for two web server nodes; neither is started, so the test drives the claims
+            DbPipelineQueueImpl node1 = new DbPipelineQueueImpl("test-node-1");
+            DbPipelineQueueImpl node2 = new DbPipelineQueueImpl("test-node-2");
+            TestJob.RELEASE = new CountDownLatch(1);
+            int before = TestJob.COUNTER.get();
+
+            TestJob[] jobs = new TestJob[] { new TestJob(a, user), new TestJob(a, user), new TestJob(b, user) };
+            for (TestJob job : jobs)
+            {
+                _jobIds.add(key(job.getJobGUID()));
+                node1.enqueue(job);
+            }
+
+            // First job in a, then the job in b; the second job in a waits for the first
+            assertTrue(node1.claimNext());
+            assertTrue(node2.claimNext());
+            assertFalse(node1.claimNext());
+            assertFalse(node2.claimNext());
+            assertEquals(2, new SqlSelector(getScope(), "SELECT COUNT(*) FROM " + getTableInfo() + " WHERE Status = ? AND Owner LIKE 'test-node-%'", RUNNING).getObject(Integer.class).intValue());
+
+            // Once they finish, the second job in a can run
+            TestJob.RELEASE.countDown();
+            jobs[0].get();
+            for (int i = 0; i < 100 && !node2.claimNext(); i++)
+                Thread.sleep(100);
+            jobs[2].get();
+            for (int i = 0; i < 100 && before + 3 > TestJob.COUNTER.get(); i++)
+                Thread.sleep(100);
+            assertEquals(before + 3, TestJob.COUNTER.get());
+            assertEquals(0, new SqlSelector(getScope(), "SELECT COUNT(*) FROM " + getTableInfo() + " WHERE Owner LIKE 'test-node-%'").getObject(Integer.class).intValue());
+        }
+
+        @Test
+        public void testLeaseExpiry()
+        {
+            User user = TestContext.get().getUser();
+            DbPipelineQueueImpl dead = new DbPipelineQueueImpl("test-node-dead");
+            DbPipelineQueueImpl live = new DbPipelineQueueImpl("test-node-live");
+
+            TestJob job = new TestJob(JunitUtil.getTestContainer(), user);
+            String key = key(job.getJobGUID());
+            _jobIds.add(key);
+            dead.enqueue(job);
+
+            // Simulate a node that claimed the job and then died
+            new SqlExecutor(getScope()).execute("UPDATE " + getTableInfo() + " SET Status = ?, Owner = ?, Attempts = 1, LeaseExpires = ? WHERE Job = ?",
+                    RUNNING, "test-node-dead", new Timestamp(System.currentTimeMillis() - 1000), key);
+
+            live.recoverExpired();
+            assertEquals(PENDING, new SqlSelector(getScope(), "SELECT Status FROM " + getTableInfo() + " WHERE Job = ?", key).getObject(String.class));
+
+            // Out of attempts: the job is dropped rather than requeued
+            new SqlExecutor(getScope()).execute("UPDATE " + getTableInfo() + " SET Status = ?, Owner = ?, Attempts = ?, LeaseExpires = ? WHERE Job = ?",
+                    RUNNING, "test-node-dead", MAX_ATTEMPTS, new Timestamp(System.currentTimeMillis() - 1000), key);
+            live.recoverExpired();
+            assertFalse(new SqlSelector(getScope(), "SELECT Job FROM " + getTableInfo() + " WHERE Job = ?", key).exists());
+        }
+
+        @Test
+        public void testRequeueWhileRunning() throws Exception
+        {
+            User user = TestContext.get().getUser();
+            DbPipelineQueueImpl node = new DbPipelineQueueImpl("test-node-retry");
+            TestJob.RELEASE = new CountDownLatch(1);
+            int before = TestJob.COUNTER.get();
+
+            TestJob job = new TestJob(JunitUtil.getTestContainer(), user);
+            String key = key(job.getJobGUID());
+            _jobIds.add(key);
+            node.enqueue(job);
+            assertTrue(node.claimNext());
+
+            // What PipelineJob.autoRetry() does: queue a copy of the job, with the same id, while it's still running
+            PipelineJob retry = PipelineJob.deserializeJob(PipelineJob.serializeJob(job, false));
+            assertNotNull(retry);
+            node.enqueue(retry);
+            assertEquals(PENDING, new SqlSelector(getScope(), "SELECT Status FROM " + getTableInfo() + " WHERE Job = ?", key).getObject(String.class));
+
+            // The original finishing must not delete the retry's row
+            TestJob.RELEASE.countDown();
+            job.get();
+            assertTrue(new SqlSelector(getScope(), "SELECT Job FROM " + getTableInfo() + " WHERE Job = ?", key).exists());
+
+            assertTrue(node.claimNext());
+            retry.get();
+            for (int i = 0; i < 100 && before + 2 > TestJob.COUNTER.get(); i++)
+                Thread.sleep(100);
+            assertEquals(before + 2, TestJob.COUNTER.get());
+            assertFalse(new SqlSelector(getScope(), "SELECT Job FROM " + getTableInfo() + " WHERE Job = ?", key).exists());
+        }
+
+        @Test
+        public void testLostLease()
+        {
+            User user = TestContext.get().getUser();
+            DbPipelineQueueImpl node = new DbPipelineQueueImpl("test-node-stalled");
+            TestJob.RELEASE = new CountDownLatch(1);
+
+            TestJob job = new TestJob(JunitUtil.getTestContainer(), user);
+            String key = key(job.getJobGUID());
+            _jobIds.add(key);
+            node.enqueue(job);
+            assertTrue(node.claimNext());
+
+            // Simulate another node recovering the job after this one stalled past its lease
+            new SqlExecutor(getScope()).execute("UPDATE " + getTableInfo() + " SET Status = ?, Owner = NULL, LeaseExpires = NULL WHERE Job = ?", PENDING, key);
+
+            node.heartbeat();
+            assertTrue(job.checkInterrupted());
+            assertNull(new SqlSelector(getScope(), "SELECT LeaseExpires FROM " + getTableInfo() + " WHERE Job = ?", key).getObject(Timestamp.class));
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.pipeline.api;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.PipelineJobResources;
+import org.labkey.api.security.User;
+import org.labkey.api.util.URLHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts jobs as resources allow, sharing the server fairly between projects and, within a project, between users.
+ * Enable it with -Dlabkey.pipeline.scheduler=fairshare; its capacity limits and ordering differ from the default
+ * (legacy) scheduler's ten running jobs started in queue order.
+ *
+ * <ul>
+ * <li>Capacity: jobs declare CPU slots, a memory estimate and whether they're database-heavy
+ * ({@link PipelineJob#getResources()}); a job starts only if the running jobs leave room for it. Limits are set with
+ * -Dlabkey.pipeline.cpuSlots (default: number of processors), -Dlabkey.pipeline.memoryMB (default: half the max heap),
+ * -Dlabkey.pipeline.dbHeavySlots (default 1) and -Dlabkey.pipeline.maxJobsPerContainer (default 1). The defaults for
+ * the last two match the original queue's policy; raise them to let one folder's jobs run side by side.</li>
+ * <li>Order: higher {@link PipelineJob#getPriority()} first. Among equals, the project (then user) that has recently
+ * used the least CPU time relative to its weight goes first, then the oldest job. Usage decays with a half-life of
+ * -Dlabkey.pipeline.fairShareHalfLifeMinutes (default 60). Project weights default to 1 and can be set with
+ * -Dlabkey.pipeline.fairShareWeight.&lt;project name&gt;.</li>
+ * <li>Starvation: a job is starving once it has waited longer than -Dlabkey.pipeline.starvationMinutes (default 30)
+ * since it was queued or since its project last started a job, whichever is later. Starving jobs gain one priority
+ * level, plus one more every -Dlabkey.pipeline.agingMinutes (default 5). A project that keeps getting jobs started
+ * never starves, however old its queued jobs are, so a flood of old jobs doesn't outrank a newcomer's fair share.
+ * If the best-ranked job is starving but doesn't fit, nothing else starts until enough running jobs finish to make
+ * room for it, so large jobs aren't starved by a stream of small ones.</li>
+ * </ul>
+ */
+public class FairShareScheduler extends PipelineJobScheduler
+{
+    private final int _cpuSlots;
+    private final long _memoryMB;
+    private final int _dbHeavySlots;
+    private final int _maxJobsPerContainer;
+    private final long _halfLifeMs;
+    private final long _agingMs;
+    private final long _starvationMs;
+
+    // Decayed CPU slot-milliseconds used by finished jobs, by project and by user
+    private final Map<String, Usage> _projectUsage = new HashMap<>();
+    private final Map<String, Usage> _userUsage = new HashMap<>();
+    // When each project last had a job started
+    private final Map<String, Long> _lastStarted = new HashMap<>();
+
+    FairShareScheduler()
+    {
+        this(Integer.getInteger("labkey.pipeline.cpuSlots", Runtime.getRuntime().availableProcessors()),
+             Long.getLong("labkey.pipeline.memoryMB", Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)),
+             Integer.getInteger("labkey.pipeline.dbHeavySlots", 1),
+             Integer.getInteger("labkey.pipeline.maxJobsPerContainer", 1),
+             TimeUnit.MINUTES.toMillis(Integer.getInteger("labkey.pipeline.fairShareHalfLifeMinutes", 60)),
+             TimeUnit.MINUTES.toMillis(Integer.getInteger("labkey.pipeline.agingMinutes", 5)),
+             TimeUnit.MINUTES.toMillis(Integer.getInteger("labkey.pipeline.starvationMinutes", 30)));
+    }
+
+    FairShareScheduler(int cpuSlots, long memoryMB, int dbHeavySlots, int maxJobsPerContainer, long halfLifeMs, long agingMs, long starvationMs)
+    {
+        _cpuSlots = Math.max(1, cpuSlots);
+        _memoryMB = Math.max(1, memoryMB);
+        _dbHeavySlots = Math.max(1, dbHeavySlots);
+        _maxJobsPerContainer = Math.max(1, maxJobsPerContainer);
+        _halfLifeMs = Math.max(1, halfLifeMs);
+        _agingMs = Math.max(1, agingMs);
+        _starvationMs = starvationMs;
+    }
+
+    @Override
+    int getCapacity()
+    {
+        return _cpuSlots;
+    }
+
+    // Overridable for tests, which use jobs without real containers or users
+    String getContainerKey(PipelineJob job)
+    {
+        return job.getContainerId();
+    }
+
+    String getProjectKey(PipelineJob job)
+    {
+        Container c = job.getContainer();
+        Container project = null == c ? null : c.getProject();
+        return null != project ? project.getName() : String.valueOf(job.getContainerId());
+    }
+
+    String getUserKey(PipelineJob job)
+    {
+        User user = job.getUser();
+        return getProjectKey(job) + "/" + (null == user ? 0 : user.getUserId());
+    }
+
+    double getWeight(String projectKey)
+    {
+        String weight = System.getProperty("labkey.pipeline.fairShareWeight." + projectKey);
+        try
+        {
+            return null == weight ? 1.0 : Math.max(0.01, Double.parseDouble(weight));
+        }
+        catch (NumberFormatException x)
+        {
+            return 1.0;
+        }
+    }
+
+    private long getMemoryMB(PipelineJob job)
+    {
+        return Math.min(job.getResources().getMemoryMB(), _memoryMB);
+    }
+
+    @Override
+    @Nullable PipelineJob next(List<PipelineJob> pending, Collection<PipelineJob> running)
+    {
+        if (pending.isEmpty())
+            return null;
+
+        long now = now();
+
+        // What the running jobs are using; running jobs also count toward their project's and user's share
+        int cpu = 0;
+        long memory = 0;
+        int dbHeavy = 0;
+        Map<String, Integer> perContainer = new HashMap<>();
+        Map<String, Double> projectShare = new HashMap<>();
+        Map<String, Double> userShare = new HashMap<>();
+
+        for (PipelineJob job : running)
+        {
+            int slots = getCpuSlots(job);
+            cpu += slots;
+            memory += getMemoryMB(job);
+            if (job.getResources().isDbHeavy())
+                dbHeavy++;
+            perContainer.merge(getContainerKey(job), 1, Integer::sum);
+
+            // A job that has only just started still counts against its project
+            double used = (double) slots * Math.max(1, now - getStartedAt(job, now));
+            projectShare.merge(getProjectKey(job), used, Double::sum);
+            userShare.merge(getUserKey(job), used, Double::sum);
+        }
+
+        // Rank the waiting jobs
+        Map<PipelineJob, Rank> ranks = new IdentityHashMap<>();
+        for (PipelineJob job : pending)
+        {
+            String project = getProjectKey(job);
+            String user = getUserKey(job);
+            long queuedAt = getQueuedAt(job, now);
+            long waited = now - Math.max(queuedAt, _lastStarted.getOrDefault(project, queuedAt));
+            long aging = waited >= _starvationMs ? 1 + (waited - _starvationMs) / _agingMs : 0;
+            double projectUsed = projectShare.getOrDefault(project, 0.0) + decayed(_projectUsage.get(project), now);
+            double userUsed = userShare.getOrDefault(user, 0.0) + decayed(_userUsage.get(user), now);
+
+            ranks.put(job, new Rank(job.getPriority() + aging, projectUsed / getWeight(project), userUsed, queuedAt, aging > 0));
+        }
+
+        List<PipelineJob> ordered = new ArrayList<>(pending);
+        ordered.sort(Comparator.comparing(ranks::get));
+
+        for (PipelineJob job : ordered)
+        {
+            PipelineJobResources resources = job.getResources();
+
+            if (perContainer.getOrDefault(getContainerKey(job), 0) >= _maxJobsPerContainer)
+                continue;
+            if (resources.isDbHeavy() && dbHeavy >= _dbHeavySlots)
+                continue;
+
+            boolean fits = cpu + getCpuSlots(job) <= _cpuSlots && memory + getMemoryMB(job) <= _memoryMB;
+            if (fits)
+                return job;
+
+            // A starving job that's only waiting for capacity reserves it: let the running jobs drain until it fits
+            if (ranks.get(job).starving)
+                return null;
+        }
+
+        return null;
+    }
+
+    @Override
+    void started(PipelineJob job)
+    {
+        _lastStarted.put(getProjectKey(job), now());
+        super.started(job);
+    }
+
+    @Override
+    void finished(PipelineJob job)
+    {
+        long now = now();
+        long startedAt = getStartedAt(job, -1);
+        if (startedAt >= 0)
+        {
+            double used = (double) getCpuSlots(job) * (now - startedAt);
+            _projectUsage.computeIfAbsent(getProjectKey(job), k -> new Usage()).add(used, now, _halfLifeMs);
+            _userUsage.computeIfAbsent(getUserKey(job), k -> new Usage()).add(used, now, _halfLifeMs);
+        }
+        super.finished(job);
+    }
+
+    private double decayed(@Nullable Usage usage, long now)
+    {
+        return null == usage ? 0.0 : usage.get(now, _halfLifeMs);
+    }
+
+    private static class Usage
+    {
+        private double _value = 0;
+        private long _asOf = 0;
+
+        double get(long now, long halfLifeMs)
+        {
+            return _value * Math.pow(0.5, (double) (now - _asOf) / halfLifeMs);
+        }
+
+        void add(double used, long now, long halfLifeMs)
+        {
+            _value = get(now, halfLifeMs) + used;
+            _asOf = now;
+        }
+    }
+
+    private static class Rank implements Comparable<Rank>
+    {
+        private final long priority;
+        private final double projectShare;
+        private final double userShare;
+        private final long queuedAt;
+        private final boolean starving;
+
+        private Rank(long priority, double projectShare, double userShare, long queuedAt, boolean starving)
+        {
+            this.priority = priority;
+            this.projectShare = projectShare;
+            this.userShare = userShare;
+            this.queuedAt = queuedAt;
+            this.starving = starving;
+        }
+
+        @Override
+        public int compareTo(Rank o)
+        {
+            int ret = Long.compare(o.priority, priority);
+            if (0 == ret)
+                ret = Double.compare(projectShare, o.projectShare);
+            if (0 == ret)
+                ret = Double.compare(userShare, o.userShare);
+            if (0 == ret)
+                ret = Long.compare(queuedAt, o.queuedAt);
+            return ret;
+        }
+    }
+
+
+    private static class TestJob extends PipelineJob
+    {
+        private final String _project;
+        private final int _priority;
+        private final PipelineJobResources _resources;
+
+        TestJob(String project, int priority, PipelineJobResources resources)
+        {
+            _project = project;
+            _priority = priority;
+            _resources = resources;
+        }
+
+        @Override
+        public PipelineJobResources getResources()
+        {
+            return _resources;
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return _priority;
+        }
+
+        @Override
+        public URLHelper getStatusHref()
+        {
+            return null;
+        }
+
+        @Override
+        public String getDescription()
+        {
+            return "FairShareScheduler test job in " + _project;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static class TestScheduler extends FairShareScheduler
+        {
+            private long _now = 0;
+
+            TestScheduler(int cpuSlots, int dbHeavySlots, int maxJobsPerContainer, long agingMs, long starvationMs)
+            {
+                super(cpuSlots, 1024, dbHeavySlots, maxJobsPerContainer, TimeUnit.HOURS.toMillis(1), agingMs, starvationMs);
+            }
+
+            @Override
+            long now()
+            {
+                return _now;
+            }
+
+            @Override
+            String getContainerKey(PipelineJob job)
+            {
+                return ((TestJob) job)._project;
+            }
+
+            @Override
+            String getProjectKey(PipelineJob job)
+            {
+                return ((TestJob) job)._project;
+            }
+
+            @Override
+            String getUserKey(PipelineJob job)
+            {
+                return ((TestJob) job)._project;
+            }
+        }
+
+        private final List<PipelineJob> _pending = new ArrayList<>();
+        private final List<PipelineJob> _running = new ArrayList<>();
+
+        private TestJob queue(FairShareScheduler scheduler, String project, int priority, PipelineJobResources resources)
+        {
+            TestJob job = new TestJob(project, priority, resources);
+            scheduler.queued(job);
+            _pending.add(job);
+            return job;
+        }
+
+        private PipelineJob start(FairShareScheduler scheduler)
+        {
+            PipelineJob job = scheduler.next(_pending, _running);
+            if (null != job)
+            {
+                _pending.remove(job);
+                _running.add(job);
+                scheduler.started(job);
+            }
+            return job;
+        }
+
+        private void finish(FairShareScheduler scheduler, PipelineJob job)
+        {
+            _running.remove(job);
+            scheduler.finished(job);
+        }
+
+        @Test
+        public void testFairShareAndLimits()
+        {
+            FairShareScheduler scheduler = new TestScheduler(4, 1, 2, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+            // One lab floods the queue, then another submits a single job
+            List<TestJob> flood = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                flood.add(queue(scheduler, "busy", 0, PipelineJobResources.DEFAULT));
+            TestJob other = queue(scheduler, "quiet", 0, PipelineJobResources.DEFAULT);
+
+            // The busy lab's first job starts; the quiet lab hasn't used anything, so it goes next despite queueing last
+            assertSame(flood.get(0), start(scheduler));
+            assertSame(other, start(scheduler));
+            // Two jobs per container allowed, then the busy lab waits even though slots are free
+            assertSame(flood.get(1), start(scheduler));
+            assertNull(start(scheduler));
+
+            finish(scheduler, flood.get(0));
+            assertSame(flood.get(2), start(scheduler));
+
+            // Only one DB-heavy job at a time
+            TestJob heavy1 = queue(scheduler, "a", 0, PipelineJobResources.DB_HEAVY);
+            TestJob heavy2 = queue(scheduler, "b", 0, PipelineJobResources.DB_HEAVY);
+            assertSame(heavy1, start(scheduler));
+            assertNull(start(scheduler));
+            finish(scheduler, heavy1);
+            assertSame(heavy2, start(scheduler));
+        }
+
+        @Test
+        public void testPriorityAndStarvation()
+        {
+            FairShareScheduler scheduler = new TestScheduler(4, 1, 10, TimeUnit.HOURS.toMillis(1), 0);
+
+            TestJob small1 = queue(scheduler, "a", 0, PipelineJobResources.DEFAULT);
+            TestJob urgent = queue(scheduler, "b", 5, PipelineJobResources.DEFAULT);
+            assertSame(urgent, start(scheduler));
+            assertSame(small1, start(scheduler));
+
+            // A big job that doesn't fit reserves capacity (starvation threshold is 0 here), so smaller jobs queued
+            // behind it wait rather than filling the freed slots
+            TestJob big = queue(scheduler, "c", 1, new PipelineJobResources(4, 256, false));
+            TestJob small2 = queue(scheduler, "d", 0, PipelineJobResources.DEFAULT);
+            assertNull(start(scheduler));
+            finish(scheduler, urgent);
+            assertNull(start(scheduler));
+            finish(scheduler, small1);
+            assertSame(big, start(scheduler));
+            finish(scheduler, big);
+            assertSame(small2, start(scheduler));
+        }
+
+        @Test
+        public void testAgingIsAStarvationFloor()
+        {
+            TestScheduler scheduler = new TestScheduler(1, 1, 10, TimeUnit.MINUTES.toMillis(5), TimeUnit.MINUTES.toMillis(30));
+
+            // One lab queues a flood of jobs and starts the first
+            List<TestJob> flood = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                flood.add(queue(scheduler, "busy", 0, PipelineJobResources.DEFAULT));
+            assertSame(flood.get(0), start(scheduler));
+
+            // Ten minutes (two aging periods) later another lab submits a job; the flood is older, but the newcomer
+            // hasn't used anything, so it goes first
+            scheduler._now = TimeUnit.MINUTES.toMillis(10);
+            TestJob quiet = queue(scheduler, "quiet", 0, PipelineJobResources.DEFAULT);
+            finish(scheduler, flood.get(0));
+            assertSame(quiet, start(scheduler));
+
+            // The busy lab hasn't started anything for 40 minutes, so it's starving and outranks a new project with a
+            // smaller share
+            scheduler._now = TimeUnit.MINUTES.toMillis(40);
+            TestJob fresh = queue(scheduler, "fresh", 0, PipelineJobResources.DEFAULT);
+            finish(scheduler, quiet);
+            assertSame(flood.get(1), start(scheduler));
+
+            // Once one of its jobs has started it's no longer starving, and fair share decides again
+            finish(scheduler, flood.get(1));
+            assertSame(fresh, start(scheduler));
+        }
+    }
+}
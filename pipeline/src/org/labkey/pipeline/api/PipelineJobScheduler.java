@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.pipeline.api;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.util.DateUtil;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which of the waiting jobs {@link PipelineQueueImpl} starts next. The queue calls every method while holding
+ * its lock, so implementations needn't be thread-safe. This base class tracks the queue wait-time and utilization
+ * metrics shown on the pipeline status page.
+ *
+ * Choose an implementation via -Dlabkey.pipeline.scheduler: "legacy" (the default, the queue's original first-come,
+ * first-served policy), "fairshare", or the name of a subclass with a no-argument constructor.
+ */
+public abstract class PipelineJobScheduler
+{
+    private static final Logger LOG = LogManager.getLogger(PipelineJobScheduler.class);
+
+    private final long _created = System.currentTimeMillis();
+    private final Map<PipelineJob, Long> _queuedAt = new IdentityHashMap<>();
+    private final Map<PipelineJob, Long> _startedAt = new IdentityHashMap<>();
+
+    private long _started = 0;
+    private long _totalWaitMs = 0;
+    private long _maxWaitMs = 0;
+    private int _busySlots = 0;
+    private long _busySlotMs = 0;
+    private long _lastChange = _created;
+
+    static PipelineJobScheduler create()
+    {
+        String name = System.getProperty("labkey.pipeline.scheduler", "legacy");
+
+        if ("fairshare".equalsIgnoreCase(name))
+            return new FairShareScheduler();
+        if ("legacy".equalsIgnoreCase(name))
+            return new Legacy();
+
+        try
+        {
+            return (PipelineJobScheduler) Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException x)
+        {
+            LOG.error("Unable to create pipeline scheduler \"" + name + "\"; using the legacy scheduler", x);
+            return new Legacy();
+        }
+    }
+
+    /**
+     * @param pending Jobs waiting to start, in the order they were queued
+     * @param running Jobs that have been started and haven't finished
+     * @return The job to start now, or null if none should start until something changes
+     */
+    abstract @Nullable PipelineJob next(List<PipelineJob> pending, Collection<PipelineJob> running);
+
+    /** Number of CPU slots the scheduler can hand out, for utilization */
+    abstract int getCapacity();
+
+    /** CPU slots this job occupies while it runs */
+    int getCpuSlots(PipelineJob job)
+    {
+        return Math.min(job.getResources().getCpuSlots(), getCapacity());
+    }
+
+    // Overridable for tests
+    long now()
+    {
+        return System.currentTimeMillis();
+    }
+
+    void queued(PipelineJob job)
+    {
+        _queuedAt.put(job, now());
+    }
+
+    void started(PipelineJob job)
+    {
+        long now = now();
+        long wait = now - getQueuedAt(job, now);
+        _started++;
+        _totalWaitMs += wait;
+        _maxWaitMs = Math.max(_maxWaitMs, wait);
+        _startedAt.put(job, now);
+        changeBusySlots(now, getCpuSlots(job));
+    }
+
+    /** The job finished, or was removed from the queue before it started */
+    void finished(PipelineJob job)
+    {
+        _queuedAt.remove(job);
+        if (null != _startedAt.remove(job))
+            changeBusySlots(now(), -getCpuSlots(job));
+    }
+
+    long getQueuedAt(PipelineJob job, long defaultValue)
+    {
+        return _queuedAt.getOrDefault(job, defaultValue);
+    }
+
+    long getStartedAt(PipelineJob job, long defaultValue)
+    {
+        return _startedAt.getOrDefault(job, defaultValue);
+    }
+
+    private void changeBusySlots(long now, int delta)
+    {
+        _busySlotMs += (long) _busySlots * (now - _lastChange);
+        _lastChange = now;
+        _busySlots += delta;
+    }
+
+    Map<String, Object> getStats(List<PipelineJob> pending)
+    {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        for (PipelineJob job : pending)
+            oldest = Math.min(oldest, getQueuedAt(job, now));
+
+        long busySlotMs = _busySlotMs + (long) _busySlots * (now - _lastChange);
+        long elapsed = Math.max(1, now - _created);
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("Scheduler", getClass().getSimpleName());
+        stats.put("CPU slots in use", _busySlots + " of " + getCapacity());
+        stats.put("Utilization since startup", Math.round(100.0 * busySlotMs / elapsed / getCapacity()) + "%");
+        stats.put("Jobs started", _started);
+        stats.put("Average wait", DateUtil.formatDuration(_started == 0 ? 0 : _totalWaitMs / _started));
+        stats.put("Longest wait", DateUtil.formatDuration(_maxWaitMs));
+        stats.put("Oldest waiting job", DateUtil.formatDuration(now - oldest));
+        return stats;
+    }
+
+    /**
+     * The original policy: one job per container, and only one job at a time that doesn't allow multiple simultaneous
+     * jobs, started in the order they were queued.
+     */
+    static class Legacy extends PipelineJobScheduler
+    {
+        @Override
+        @Nullable PipelineJob next(List<PipelineJob> pending, Collection<PipelineJob> running)
+        {
+            Set<String> containers = new HashSet<>();
+            boolean singleThreadedJobFound = false;
+            for (PipelineJob job : running)
+            {
+                containers.add(job.getContainerId());
+                if (!job.allowMultipleSimultaneousJobs())
+                    singleThreadedJobFound = true;
+            }
+
+            for (PipelineJob job : pending)
+            {
+                if (!job.allowMultipleSimultaneousJobs() && singleThreadedJobFound)
+                    continue;
+                if (containers.contains(job.getContainerId()))
+                    continue;
+                return job;
+            }
+            return null;
+        }
+
+        @Override
+        int getCapacity()
+        {
+            return PipelineQueueImpl.MAX_RUNNING_JOBS;
+        }
+    }
+}
@@ -49,7 +49,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class PipelineQueueImpl extends AbstractPipelineQueue
 {
     private static final Logger LOG = LogManager.getLogger(PipelineQueueImpl.class);
-    private static final int MAX_RUNNING_JOBS = 10;
+    static final int MAX_RUNNING_JOBS = 10;
 
     private final List<PipelineJob> _pending = new ArrayList<>();
     private final List<PipelineJob> _running = new ArrayList<>();
@@ -59,11 +59,13 @@ public class PipelineQueueImpl extends AbstractPipelineQueue
     private final Set<PipelineJob> _submitted = new HashSet<>();
 
     private final JobRunner _runner = new JobRunner("Pipeline", MAX_RUNNING_JOBS);
+    private final PipelineJobScheduler _scheduler = PipelineJobScheduler.create();
 
     @Override
     protected synchronized void enqueue(PipelineJob job)
     {
         _pending.add(job);
+        _scheduler.queued(job);
         submitJobs();
     }
 
@@ -121,6 +123,7 @@ public class PipelineQueueImpl extends AbstractPipelineQueue
             assert removed;
             removed = _submitted.remove(job);
             assert removed;
+            _scheduler.finished(job);
         }
         finally
         {
@@ -130,42 +133,31 @@ public class PipelineQueueImpl extends AbstractPipelineQueue
 
     /**
      * Look through the pending jobs and see if there are any that can be submitted to the runner right now.
-     * Some jobs are single threaded.  There can be only one single threaded job in the queue at any time.
-     * Multi-threaded jobs are allowed to be run one per container.
+     * The {@link PipelineJobScheduler} decides which job goes next, based on the resources each job declares and
+     * how much of the server each project and user has recently used.
      *
      * We do not submit a job to the JobRunner unless it is ok to run it right now.
      * The JobRunner takes care of limiting the simultaneous jobs to {@link #MAX_RUNNING_JOBS}
      */
     private synchronized void submitJobs()
     {
-        if (_pending.size() == 0)
-            return;
-        HashSet<String> containers = new HashSet<>();
-        boolean singleThreadedJobFound = false;
-        for (PipelineJob job : _submitted)
+        while (_submitted.size() < MAX_RUNNING_JOBS)
         {
-            containers.add(job.getContainerId());
-            if (!job.allowMultipleSimultaneousJobs())
+            List<PipelineJob> waiting = new ArrayList<>(_pending.size());
+            for (PipelineJob job : _pending)
             {
-                singleThreadedJobFound = true;
+                if (!_submitted.contains(job))
+                    waiting.add(job);
             }
-        }
-        for (PipelineJob job : _pending.toArray(new PipelineJob[_pending.size()]))
-        {
-            if (_submitted.contains(job))
-                continue;
-            if (!job.allowMultipleSimultaneousJobs() && singleThreadedJobFound)
-                continue;
-            if (containers.contains(job.getContainerId()))
-                continue;
+
+            PipelineJob job = _scheduler.next(waiting, _submitted);
+            if (job == null)
+                return;
+
             _submitted.add(job);
-            containers.add(job.getContainerId());
+            _scheduler.started(job);
             _runner.execute(job);
             job.setSubmitted();
-            if (!job.allowMultipleSimultaneousJobs())
-            {
-                singleThreadedJobFound = true;
-            }
         }
     }
 
@@ -197,6 +189,7 @@ public class PipelineQueueImpl extends AbstractPipelineQueue
             {
                 job.cancel(false);
                 it.remove();
+                _scheduler.finished(job);
                 job.getLogger().info("Cancelling job by removing from job queue.");
                 PipelineJob.logStartStopInfo("Cancelling job by removing from job queue. Job ID: " + job.getJobGUID() + ", " + statusFile.getFilePath());
                 // It should already be set to CANCELLING. Set to CANCELLED to indicate that it's dead.
@@ -255,6 +248,7 @@ public class PipelineQueueImpl extends AbstractPipelineQueue
             if (inContainer(c, job))
                 ret.addPendingJob(job);
         }
+        ret.setQueueStats(_scheduler.getStats(_pending));
         return ret;
     }
 
@@ -71,4 +71,9 @@ public class PipelineSchema
     {
         return getSchema().getTable("TriggeredFiles");
     }
+
+    public TableInfo getTableInfoJobQueue()
+    {
+        return getSchema().getTable("JobQueue");
+    }
 }
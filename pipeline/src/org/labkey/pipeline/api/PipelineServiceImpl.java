@@ -142,7 +142,7 @@ public class PipelineServiceImpl implements PipelineService
 
         if (factory == null)
         {
-            _queue = new PipelineQueueImpl();
+            _queue = DbPipelineQueueImpl.ENABLED ? new DbPipelineQueueImpl() : new PipelineQueueImpl();
         }
         else
         {
@@ -26,6 +26,7 @@
 <%@ page import="org.labkey.api.view.JspView" %>
 <%@ page import="org.labkey.pipeline.PipelineController" %>
 <%@ page import="org.labkey.pipeline.status.StatusController" %>
+<%@ page import="java.util.Map" %>
 <%@ page extends="org.labkey.api.jsp.JspBase" %>
 <%!
 private Object outputJob(String status, PipelineJob job,
@@ -99,5 +100,18 @@ private Object outputJob(String status, PipelineJob job,
             <%=outputJob("pending", job, isAllContainers, canCancel)%><%
         } %>
         </table><%
+    }
+
+    if (!jobData.getQueueStats().isEmpty())
+    { %>
+        <br/>
+        <table border="1">
+        <tr><th colspan="2">queue</th></tr><%
+
+        for (Map.Entry<String, Object> stat : jobData.getQueueStats().entrySet())
+        { %>
+            <tr><td><%=h(stat.getKey())%></td><td><%=h(stat.getValue())%></td></tr><%
+        } %>
+        </table><%
     } %>
     <%= button("Grid").href(StatusController.urlShowList(ContainerManager.getRoot(), false)) %>
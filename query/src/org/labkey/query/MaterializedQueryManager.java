@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.query;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerFilter;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.CoreSchema;
+import org.labkey.api.data.DatabaseTableType;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.MaterializedQueryHelper;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.FilteredTable;
+import org.labkey.api.query.QueryChangeListener;
+import org.labkey.api.query.QueryDefinition;
+import org.labkey.api.query.QueryException;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.query.SchemaKey;
+import org.labkey.api.security.User;
+import org.labkey.api.test.TestWhen;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the results of saved queries marked as materialized in tables, using {@link MaterializedQueryHelper}.
+ * Each distinct SQL a query generates (which varies by container filter and by the containers the user can read) gets
+ * its own table. A table is rebuilt when the row count or latest Modified value of one of the database tables the
+ * query reads from changes, and otherwise after -Dlabkey.query.materializedRefreshMinutes (60 by default; 0 means
+ * only on change). Updates that don't touch Modified, and tables that aren't plain database tables, are only caught
+ * by that scheduled refresh.
+ *
+ * Counting rows and finding the latest Modified isn't free on large tables, so each table checks its sources at most
+ * once every -Dlabkey.query.materializedCheckSeconds (10 by default); reads in between use the table as it is.
+ */
+public class MaterializedQueryManager implements QueryChangeListener
+{
+    private static final MaterializedQueryManager INSTANCE = new MaterializedQueryManager();
+
+    static final long MAX_AGE = CacheManager.MINUTE * Long.getLong("labkey.query.materializedRefreshMinutes", 60);
+    static final long CHECK_INTERVAL = CacheManager.SECOND * Long.getLong("labkey.query.materializedCheckSeconds", 10);
+
+    // Keys start with the MaterializedQuery key, so all the tables for one query can be dropped together
+    private final Cache<String, Materialization> _materializations = CacheManager.getStringKeyCache(1000, CacheManager.DAY, "Materialized queries");
+    private final Map<String, MaterializedQuery> _queries = new ConcurrentHashMap<>();
+
+    public static MaterializedQueryManager get()
+    {
+        return INSTANCE;
+    }
+
+    private MaterializedQueryManager()
+    {
+    }
+
+    /** The hit and refresh statistics for a query definition */
+    public MaterializedQuery getMaterializedQuery(QueryDefinition def)
+    {
+        Container c = def.getDefinitionContainer();
+        return _queries.computeIfAbsent(makeKey(c, def.getSchemaPath(), def.getName()), key -> new MaterializedQuery(key, c, def.getSchemaPath(), def.getName()));
+    }
+
+    public List<MaterializedQuery> getMaterializedQueries()
+    {
+        return _queries.values().stream()
+            .sorted(Comparator.comparing(MaterializedQuery::getKey))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the FROM clause for reading the query's results from its table, materializing them first if they're
+     * missing or out of date; null if this query can't be materialized, in which case the caller should just run it.
+     */
+    public @Nullable SQLFragment getFromSql(MaterializedQuery query, DbScope scope, SQLFragment select, Collection<TableInfo> sourceTables, String alias)
+    {
+        // Results are kept in the temp schema, so only queries against the primary data source can be materialized
+        if (scope != DbSchema.getTemp().getScope())
+            return null;
+
+        String key = query.getKey() + "\n" + select.getSQL() + "\n" + select.getParams();
+        Materialization materialization = _materializations.get(key, null, (k, argument) -> new Materialization(query, scope, select, sourceTables));
+        SQLFragment from = materialization._helper.getFromSql(alias, null);
+        query._reads.incrementAndGet();
+
+        return from;
+    }
+
+    /** Makes the next read of each table check its source tables, rather than waiting for CHECK_INTERVAL to pass */
+    void recheckSources()
+    {
+        for (String key : _materializations.getKeys())
+        {
+            Materialization materialization = _materializations.get(key);
+            if (null != materialization)
+                materialization.recheck();
+        }
+    }
+
+    private void drop(Container c, SchemaKey schema, Collection<String> names)
+    {
+        for (String name : names)
+        {
+            String key = makeKey(c, schema, name);
+            _queries.remove(key);
+            _materializations.removeUsingFilter(new Cache.StringPrefixFilter(key + "\n"));
+        }
+    }
+
+    private static String makeKey(Container c, SchemaKey schema, String name)
+    {
+        return c.getId() + "/" + schema.toString().toLowerCase() + "/" + name.toLowerCase();
+    }
+
+    /**
+     * The database table to watch for changes to this table's rows, or null if there isn't one we can check cheaply,
+     * e.g. a virtual table or a view.
+     */
+    static @Nullable TableInfo getWatchedTable(TableInfo table)
+    {
+        while (table instanceof FilteredTable)
+            table = ((FilteredTable<?>) table).getRealTable();
+
+        if (null == table || table.getTableType() != DatabaseTableType.TABLE || null == table.getSelectName())
+            return null;
+
+        return table;
+    }
+
+    /** One query per data source that returns the row count and latest Modified of each table */
+    private static String getUpToDateKey(List<TableInfo> tables)
+    {
+        Map<DbScope, SQLFragment> probes = new LinkedHashMap<>();
+        int i = 0;
+
+        for (TableInfo table : tables)
+        {
+            SQLFragment probe = probes.computeIfAbsent(table.getSchema().getScope(), scope -> new SQLFragment("SELECT 0 AS x"));
+            probe.append(",\n(SELECT COUNT(*) FROM ").append(table.getSelectName()).append(") AS c").append(String.valueOf(i));
+
+            ColumnInfo modified = table.getColumn("Modified");
+            if (null != modified && modified.getJdbcType() == JdbcType.TIMESTAMP)
+                probe.append(",\n(SELECT MAX(").append(modified.getSelectName()).append(") FROM ").append(table.getSelectName()).append(") AS m").append(String.valueOf(i));
+            i++;
+        }
+
+        StringBuilder key = new StringBuilder();
+        probes.forEach((scope, probe) -> key.append(new SqlSelector(scope, probe).getMap().values()));
+        return key.toString();
+    }
+
+    @Override
+    public void queryCreated(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull Collection<String> queries)
+    {
+    }
+
+    @Override
+    public void queryChanged(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull QueryProperty property, @NotNull Collection<QueryPropertyChange> changes)
+    {
+        if (property == QueryProperty.Name)
+            drop(container, schema, changes.stream().map(change -> (String) change.getOldValue()).collect(Collectors.toList()));
+        else if (property == QueryProperty.Container || property == QueryProperty.Materialized)
+            drop(container, schema, changes.stream().map(change -> change.getSource().getName()).collect(Collectors.toList()));
+    }
+
+    @Override
+    public void queryDeleted(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull Collection<String> queries)
+    {
+        drop(container, schema, queries);
+    }
+
+    @Override
+    public Collection<String> queryDependents(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull Collection<String> queries)
+    {
+        return Collections.emptyList();
+    }
+
+
+    /** The table, and the tables watched for changes, for one distinct SQL of a materialized query */
+    private static class Materialization
+    {
+        private final MaterializedQueryHelper _helper;
+        private final List<TableInfo> _watched;
+        private final int _unwatchedTables;
+
+        // Most recent up-to-date key and when it was read
+        private String _checkedKey = null;
+        private long _checked = 0;
+
+        Materialization(MaterializedQuery query, DbScope scope, SQLFragment select, Collection<TableInfo> sourceTables)
+        {
+            List<TableInfo> watched = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            int unwatched = 0;
+
+            for (TableInfo sourceTable : sourceTables)
+            {
+                TableInfo table = getWatchedTable(sourceTable);
+                if (null == table)
+                    unwatched++;
+                else if (seen.add(table.getSchema().getScope().getDataSourceName() + "/" + table.getSelectName()))
+                    watched.add(table);
+            }
+
+            _watched = watched;
+            _unwatchedTables = unwatched;
+            // The helper tells us when it rebuilds on this thread, so concurrent reads can't be mistaken for refreshes
+            _helper = new MaterializedQueryHelper.Builder("mq", scope, new SQLFragment(select))
+                .maxTimeToCache(MAX_AGE)
+                .addInvalidCheck(this::getUpToDateKey)
+                .onMaterialize(duration -> query.refreshed(duration, this))
+                .build();
+        }
+
+        // Concurrent readers wait for one check rather than each running it
+        private synchronized String getUpToDateKey()
+        {
+            long now = System.currentTimeMillis();
+            if (null == _checkedKey || now - _checked >= CHECK_INTERVAL)
+            {
+                _checkedKey = MaterializedQueryManager.getUpToDateKey(_watched);
+                _checked = now;
+            }
+            return _checkedKey;
+        }
+
+        private synchronized void recheck()
+        {
+            _checkedKey = null;
+        }
+    }
+
+
+    /** Hit and refresh statistics for a materialized query definition, across all the tables materialized for it */
+    public static class MaterializedQuery
+    {
+        private final String _key;
+        private final Container _container;
+        private final SchemaKey _schema;
+        private final String _name;
+        private final AtomicLong _reads = new AtomicLong();
+        private final AtomicLong _refreshes = new AtomicLong();
+
+        private volatile long _lastRefresh = 0;
+        private volatile long _lastRefreshDuration = 0;
+        private volatile int _watchedTables = 0;
+        private volatile int _unwatchedTables = 0;
+
+        private MaterializedQuery(String key, Container container, SchemaKey schema, String name)
+        {
+            _key = key;
+            _container = container;
+            _schema = schema;
+            _name = name;
+        }
+
+        private void refreshed(long duration, Materialization materialization)
+        {
+            _refreshes.incrementAndGet();
+            _lastRefresh = System.currentTimeMillis() - duration;
+            _lastRefreshDuration = duration;
+            _watchedTables = materialization._watched.size();
+            _unwatchedTables = materialization._unwatchedTables;
+        }
+
+        String getKey()
+        {
+            return _key;
+        }
+
+        public Container getContainer()
+        {
+            return _container;
+        }
+
+        public SchemaKey getSchema()
+        {
+            return _schema;
+        }
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        /** Number of times the results were read from an up-to-date table */
+        public long getHits()
+        {
+            // A read that rebuilt the table counts its refresh before the read itself
+            return Math.max(0, _reads.get() - _refreshes.get());
+        }
+
+        /** Number of times the query was run to (re)build a table */
+        public long getRefreshes()
+        {
+            return _refreshes.get();
+        }
+
+        /** When the most recent refresh started, 0 if never */
+        public long getLastRefresh()
+        {
+            return _lastRefresh;
+        }
+
+        /** How long the most recent refresh took, in milliseconds */
+        public long getLastRefreshDuration()
+        {
+            return _lastRefreshDuration;
+        }
+
+        /** Number of database tables checked for changes as of the most recent refresh */
+        public int getWatchedTables()
+        {
+            return _watchedTables;
+        }
+
+        /** Number of source tables that can't be checked for changes, so are only picked up by the scheduled refresh */
+        public int getUnwatchedTables()
+        {
+            return _unwatchedTables;
+        }
+    }
+
+
+    @TestWhen(TestWhen.When.BVT)
+    public static class TestCase extends Assert
+    {
+        private QueryDefinition _def;
+        private Container _child;
+
+        @Before
+        public void setUp() throws Exception
+        {
+            User user = TestContext.get().getUser();
+            Container c = JunitUtil.getTestContainer();
+
+            _def = QueryService.get().createQueryDef(user, c, SchemaKey.fromParts("core"), "mq_" + GUID.makeHash());
+            _def.setSql("SELECT COUNT(*) AS N FROM core.Containers");
+            _def.setIsMaterialized(true);
+            _def.save(user, c);
+        }
+
+        @After
+        public void tearDown() throws Exception
+        {
+            User user = TestContext.get().getUser();
+
+            if (null != _def)
+                _def.delete(user);
+            if (null != _child)
+                ContainerManager.delete(_child, user);
+        }
+
+        @Test
+        public void testUpToDateKey()
+        {
+            List<TableInfo> containers = Collections.singletonList(CoreSchema.getInstance().getTableInfoContainers());
+            String before = getUpToDateKey(containers);
+            assertEquals(before, getUpToDateKey(containers));
+
+            _child = ContainerManager.ensureContainer(JunitUtil.getTestContainer().getPath() + "/mq_" + GUID.makeHash());
+            assertNotEquals(before, getUpToDateKey(containers));
+        }
+
+        @Test
+        public void testHitsAndRefreshes()
+        {
+            MaterializedQuery stats = get().getMaterializedQuery(_def);
+            assertEquals(0, stats.getRefreshes());
+
+            long count = select();
+            assertEquals(1, stats.getRefreshes());
+            assertEquals(0, stats.getHits());
+            assertEquals(1, stats.getWatchedTables());
+
+            assertEquals(count, select());
+            assertEquals(1, stats.getRefreshes());
+            assertEquals(1, stats.getHits());
+
+            // Adding a folder changes a table the query reads from, which is noticed at the next check
+            _child = ContainerManager.ensureContainer(JunitUtil.getTestContainer().getPath() + "/mq_" + GUID.makeHash());
+            get().recheckSources();
+            select();
+            assertEquals(2, stats.getRefreshes());
+            assertEquals(1, stats.getHits());
+        }
+
+        private long select()
+        {
+            List<QueryException> errors = new ArrayList<>();
+            TableInfo table = _def.getTable(errors, true);
+            assertTrue(errors.toString(), errors.isEmpty());
+            assertNotNull(table);
+
+            SQLFragment sql = new SQLFragment("SELECT N FROM ").append(table.getFromSQL("mq"));
+            Long count = new SqlSelector(table.getSchema(), sql).getObject(Long.class);
+            assertNotNull(count);
+            return count;
+        }
+    }
+}
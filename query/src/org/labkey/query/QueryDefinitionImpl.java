@@ -586,6 +586,8 @@ public abstract class QueryDefinitionImpl implements QueryDefinition
             QueryTableInfo queryTable = (QueryTableInfo)ret;
             queryTable.setDescription(getDescription());
             queryTable.setName(getName());
+            if (isMaterialized())
+                queryTable.setMaterializedQuery(MaterializedQueryManager.get().getMaterializedQuery(this));
 
             if (includeMetadata)
             {
@@ -776,6 +778,22 @@ public abstract class QueryDefinitionImpl implements QueryDefinition
         edit().setFlags(mgr.setIsSnapshot(_queryDef.getFlags(), f));
     }
 
+    @Override
+    public boolean isMaterialized()
+    {
+        return mgr.isMaterialized(_queryDef.getFlags());
+    }
+
+    @Override
+    public void setIsMaterialized(boolean f)
+    {
+        if (isMaterialized() == f)
+            return;
+        boolean oldValue = isMaterialized();
+        edit().setFlags(mgr.setIsMaterialized(_queryDef.getFlags(), f));
+        _changes.add(new QueryPropertyChange<>(this, QueryProperty.Materialized, oldValue, f));
+    }
+
     @Override
     public void setMetadataXml(String xml)
     {
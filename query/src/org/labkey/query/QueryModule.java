@@ -184,6 +184,7 @@ public class QueryModule extends DefaultModule
 
         QueryService.get().addQueryListener(new CustomViewQueryChangeListener());
         QueryService.get().addQueryListener(new QuerySnapshotQueryChangeListener());
+        QueryService.get().addQueryListener(MaterializedQueryManager.get());
 
         ReportService.registerProvider(ReportServiceImpl.getInstance());
         ReportService.get().addUIProvider(new ReportUIProvider());
@@ -341,6 +342,7 @@ public class QueryModule extends DefaultModule
     public Set<Class> getIntegrationTests()
     {
         return Set.of(
+            MaterializedQueryManager.TestCase.class,
             ModuleReportCache.TestCase.class,
             MultiValueTest.class,
             OlapController.TestCase.class,
@@ -24,6 +24,7 @@ public class PropertiesForm extends QueryForm
     public String description;
     public boolean inheritable = false;
     public boolean hidden = false;
+    public boolean materialized = false;
 
 	public PropertiesForm()
 	{
@@ -54,4 +55,9 @@ public class PropertiesForm extends QueryForm
     {
         hidden = b;
     }
+
+    public void setMaterialized(boolean b)
+    {
+        materialized = b;
+    }
 }
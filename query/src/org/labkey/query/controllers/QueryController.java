@@ -84,6 +84,7 @@ import org.labkey.api.settings.LookAndFeelProperties;
 import org.labkey.api.stats.BaseAggregatesAnalyticsProvider;
 import org.labkey.api.stats.ColumnAnalyticsProvider;
 import org.labkey.api.study.DatasetTable;
+import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.ExceptionUtil;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.HelpTopic;
@@ -126,6 +127,7 @@ import org.labkey.query.CustomViewUtil;
 import org.labkey.query.EditQueriesPermission;
 import org.labkey.query.EditableCustomView;
 import org.labkey.query.LinkedTableInfo;
+import org.labkey.query.MaterializedQueryManager;
 import org.labkey.query.MetadataTableJSON;
 import org.labkey.query.ModuleCustomQueryDefinition;
 import org.labkey.query.ModuleCustomView;
@@ -219,6 +221,7 @@ public class QueryController extends SpringActionController
     public static void registerAdminConsoleLinks()
     {
         AdminConsole.addLink(AdminConsole.SettingsLinkType.Diagnostics, "data sources", new ActionURL(DataSourceAdminAction.class, ContainerManager.getRoot()));
+        AdminConsole.addLink(AdminConsole.SettingsLinkType.Diagnostics, "materialized queries", new ActionURL(MaterializedQueriesAction.class, ContainerManager.getRoot()));
     }
 
     public static class RemoteQueryConnectionUrls
@@ -676,6 +679,72 @@ public class QueryController extends SpringActionController
     }
 
 
+    @AdminConsoleAction(AdminOperationsPermission.class)
+    public static class MaterializedQueriesAction extends SimpleViewAction<Object>
+    {
+        @Override
+        public ModelAndView getView(Object o, BindException errors)
+        {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("\n<div>This page lists the saved queries that store their results in a table, and how often those results were read from the table (hits) versus recalculated (refreshes) since server startup.</div><br/>\n");
+            sb.append("\n<table class=\"labkey-data-region\">\n");
+            sb.append("<tr class=\"labkey-show-borders\">");
+            sb.append("  <td class=\"labkey-column-header\">Folder</td>");
+            sb.append("  <td class=\"labkey-column-header\">Schema</td>");
+            sb.append("  <td class=\"labkey-column-header\">Query</td>");
+            sb.append("  <td class=\"labkey-column-header\">Hits</td>");
+            sb.append("  <td class=\"labkey-column-header\">Refreshes</td>");
+            sb.append("  <td class=\"labkey-column-header\">Last Refresh</td>");
+            sb.append("  <td class=\"labkey-column-header\">Last Refresh Time</td>");
+            sb.append("  <td class=\"labkey-column-header\">Tables Checked For Changes</td>");
+            sb.append("  <td class=\"labkey-column-header\">Tables Not Checked</td></tr>\n");
+
+            int rowCount = 0;
+            for (MaterializedQueryManager.MaterializedQuery query : MaterializedQueryManager.get().getMaterializedQueries())
+            {
+                if (rowCount % 2 == 0)
+                    sb.append("<tr class=\"labkey-alternate-row labkey-show-borders\">");
+                else
+                    sb.append("<tr class=\"labkey-row labkey-show-borders\">");
+
+                sb.append("<td>");
+                sb.append(PageFlowUtil.filter(query.getContainer().getPath()));
+                sb.append("</td><td>");
+                sb.append(PageFlowUtil.filter(query.getSchema().toString()));
+                sb.append("</td><td>");
+                sb.append(PageFlowUtil.filter(query.getName()));
+                sb.append("</td><td>");
+                sb.append(query.getHits());
+                sb.append("</td><td>");
+                sb.append(query.getRefreshes());
+                sb.append("</td><td>");
+                if (query.getLastRefresh() != 0)
+                    sb.append(PageFlowUtil.filter(DateUtil.formatDateTime(getContainer(), new Date(query.getLastRefresh()))));
+                sb.append("</td><td>");
+                sb.append(PageFlowUtil.filter(DateUtil.formatDuration(query.getLastRefreshDuration())));
+                sb.append("</td><td>");
+                sb.append(query.getWatchedTables());
+                sb.append("</td><td>");
+                sb.append(query.getUnwatchedTables());
+                sb.append("</td></tr>\n");
+
+                rowCount++;
+            }
+
+            sb.append("</table>\n");
+
+            return new HtmlView(HtmlString.unsafe(sb.toString()));
+        }
+
+        @Override
+        public void addNavTrail(NavTree root)
+        {
+            requireNonNull(PageFlowUtil.urlProvider(AdminUrls.class)).addAdminNavTrail(root, "Materialized Queries", null);
+        }
+    }
+
+
     @RequiresPermission(ReadPermission.class)
     public static class BrowseAction extends SimpleViewAction<Object>
     {
@@ -1846,6 +1915,44 @@ public class QueryController extends SpringActionController
     }
 
 
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public static class ExportRowsArrowForm extends ExportQueryForm
+    {
+        private int _batchSize = ArrowStreamWriter.DEFAULT_BATCH_SIZE;
+
+        public int getBatchSize()
+        {
+            return _batchSize;
+        }
+
+        public void setBatchSize(int batchSize)
+        {
+            _batchSize = batchSize;
+        }
+    }
+
+
+    /** Exports the query's rows in the Apache Arrow IPC streaming format, for analytics clients like pyarrow and R */
+    @RequiresPermission(ReadPermission.class)
+    @Action(ActionType.Export.class)
+    public static class ExportRowsArrowAction extends _ExportQuery<ExportRowsArrowForm>
+    {
+        public ExportRowsArrowAction()
+        {
+            setCommandClass(ExportRowsArrowForm.class);
+        }
+
+        @Override
+        void _export(ExportRowsArrowForm form, QueryView view) throws Exception
+        {
+            if (form.getBatchSize() < 1 || form.getBatchSize() > ArrowStreamWriter.MAX_BATCH_SIZE)
+                throw new BadRequestException("batchSize must be between 1 and " + ArrowStreamWriter.MAX_BATCH_SIZE, HttpServletResponse.SC_BAD_REQUEST);
+
+            view.exportToArrow(getViewContext().getResponse(), form.getHeaderType(), form.getBatchSize());
+        }
+    }
+
+
     @RequiresNoPermission
     @IgnoresTermsOfUse
     @Action(ActionType.Export.class)
@@ -2247,6 +2354,7 @@ public class QueryController extends SpringActionController
             _form.setDescription(queryDef.getDescription());
             _form.setInheritable(queryDef.canInherit());
             _form.setHidden(queryDef.isHidden());
+            _form.setMaterialized(queryDef.isMaterialized());
             setHelpTopic(new HelpTopic("editQueryProperties"));
             _queryName = form.getQueryName();
 
@@ -2289,6 +2397,7 @@ public class QueryController extends SpringActionController
             queryDef.setDescription(form.description);
             queryDef.setCanInherit(form.inheritable);
             queryDef.setIsHidden(form.hidden);
+            queryDef.setIsMaterialized(form.materialized);
             queryDef.save(getUser(), getContainer());
             return true;
         }
@@ -6942,7 +7051,8 @@ public class QueryController extends SpringActionController
 
             // @AdminConsoleAction
             assertForAdminPermission(ContainerManager.getRoot(), user,
-                new DataSourceAdminAction()
+                new DataSourceAdminAction(),
+                new MaterializedQueriesAction()
             );
 
             // In addition to administrators (tested above), trusted analysts who are editors can create and edit queries
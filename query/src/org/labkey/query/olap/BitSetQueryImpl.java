@@ -1042,6 +1042,7 @@ public class BitSetQueryImpl
                     continue;
 
                 MemberSet rowMemberSet = null;
+                MemberSet rowFilterSet = null;
 
                 for (Member colMember : colsExpr.getCollection())
                 {
@@ -1070,6 +1071,13 @@ public class BitSetQueryImpl
                                 rowMemberSet = _dataSourceHelper.membersQuery(joinLevel, rowMember);
                             else
                                 rowMemberSet = _dataSourceHelper.membersQuery(countDistinctLevel, rowMember);
+
+                            // the row's intersection with the where/count filters is the same for every column,
+                            // so compute it once per row rather than once per cell
+                            if (null != whereSet)
+                                rowMemberSet = MemberSet.intersect(rowMemberSet, whereSet);
+                            else if (null != filterSet && joinLevel == countDistinctLevel)
+                                rowFilterSet = MemberSet.intersect(rowMemberSet, filterSet);
                         }
 
                         // first time we see this column, cache the members associated with the column member
@@ -1096,9 +1104,8 @@ public class BitSetQueryImpl
                         {
                             // if there is a whereFilter
                             // collect the joinLevel members that intersect the current row and column membersets and the whereFilter
-                            MemberSet join = null == whereSet ?
-                                    MemberSet.intersect(rowMemberSet, colMemberSet) :
-                                    MemberSet.intersect(rowMemberSet, colMemberSet, whereSet);
+                            // rowMemberSet has already been intersected with whereSet
+                            MemberSet join = MemberSet.intersect(rowMemberSet, colMemberSet);
 
                             // now find the associated members in the measureLevel and filter if necessary
                             // TODO avoid new MemberSetResult() wrapper
@@ -1127,8 +1134,8 @@ public class BitSetQueryImpl
                             }
                             else
                             {
-                                count = MemberSet.countIntersect(rowMemberSet, colMemberSet, filterSet);
-                                if (null != allNullMember && rowMemberSet.contains(allNullMember) && colMemberSet.contains(allNullMember) && filterSet.contains(allNullMember))
+                                count = MemberSet.countIntersect(rowFilterSet, colMemberSet);
+                                if (null != allNullMember && rowFilterSet.contains(allNullMember) && colMemberSet.contains(allNullMember))
                                     count -= 1;
                             }
                         }
@@ -1384,7 +1391,9 @@ public class BitSetQueryImpl
     }
 
 
-    static Cache<String, MemberSet> _resultsCache = CacheManager.getStringKeyCache(CacheManager.UNLIMITED, TimeUnit.DAYS.toMillis(1), "olap - count distinct queries");
+    // Bounded so that a large cube can't grow this without limit; least recently used entries are evicted first
+    static final int RESULTS_CACHE_LIMIT = 10_000;
+    static Cache<String, MemberSet> _resultsCache = CacheManager.getStringKeyCache(RESULTS_CACHE_LIMIT, TimeUnit.DAYS.toMillis(1), "olap - count distinct queries");
 
     MemberSet resultsCacheGet(String query)
     {
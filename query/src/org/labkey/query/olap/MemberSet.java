@@ -16,10 +16,12 @@
 package org.labkey.query.olap;
 
 import org.apache.commons.collections4.iterators.IteratorChain;
+import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
+import org.labkey.api.collections.RoaringBitSet;
 import org.labkey.api.collections.SparseBitSet;
 import org.olap4j.OlapException;
 import org.olap4j.metadata.Hierarchy;
@@ -34,11 +36,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -204,7 +208,7 @@ public class MemberSet extends AbstractSet<Member>
             return memberSets[0].size();
         String levelName = null;
 
-        ArrayList<SparseBitSet> sets = new ArrayList<>();
+        ArrayList<RoaringBitSet> sets = new ArrayList<>();
         for (MemberSet m : memberSets)
         {
             if (m.isEmpty())
@@ -223,15 +227,18 @@ public class MemberSet extends AbstractSet<Member>
             return sets.get(0).cardinality();
 
         if (sets.size() == 2)
-            return countIntersect(sets.get(0), sets.get(1));
+            return RoaringBitSet.andCardinality(sets.get(0), sets.get(1));
 
-        SparseBitSet intersection = sets.get(0).clone();
-        for (int s=1 ; s<sets.size() ; s++)
-            intersection.and(sets.get(s));
-        return intersection.cardinality();
+        // intersect all but the largest set (smallest first), then count against the largest without materializing it
+        sets.sort(Comparator.comparingInt(RoaringBitSet::cardinality));
+        RoaringBitSet largest = sets.remove(sets.size() - 1);
+        RoaringBitSet intersection = RoaringBitSet.intersect(sets.toArray(new RoaringBitSet[0]));
+        return RoaringBitSet.andCardinality(intersection, largest);
     }
 
 
+    /** SparseBitSet version, no longer used by LevelMemberSet but kept for comparison in TestCase */
+
     public static int countIntersect(SparseBitSet A, SparseBitSet B)
     {
         int count = 0;
@@ -486,16 +493,16 @@ public class MemberSet extends AbstractSet<Member>
     private class LevelMemberSet implements Set<Member>
     {
         Level _level;
-        final SparseBitSet _set;
+        final RoaringBitSet _set;
 
         private LevelMemberSet(Level level)
         {
             _level = level;
-            _set = new SparseBitSet();
+            _set = new RoaringBitSet();
         }
 
 
-        private LevelMemberSet(Level level, SparseBitSet s)
+        private LevelMemberSet(Level level, RoaringBitSet s)
         {
             _level = level;
             _set = s;
@@ -505,7 +512,7 @@ public class MemberSet extends AbstractSet<Member>
         LevelMemberSet(Level level, Collection<Member> members)
         {
             _level = level;
-            _set = new SparseBitSet(members.size());
+            _set = new RoaringBitSet();
             for (Member m : members)
             {
                 if (!m.getLevel().getUniqueName().equals(_level.getUniqueName()))
@@ -537,7 +544,7 @@ public class MemberSet extends AbstractSet<Member>
 
         List<Member> getMembers() throws OlapException
         {
-            SparseBitSet s = _set;
+            RoaringBitSet s = _set;
             ArrayList<Member> list = new ArrayList<>(s.cardinality());
             List<Member> members = _level.getMembers();
             for( int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i+1) )
@@ -891,6 +898,92 @@ public class MemberSet extends AbstractSet<Member>
             assertEquals(5,countIntersect(fib,twosAndThrees));
         }
 
+        @Test
+        public void testRoaringBitSet()
+        {
+            RoaringBitSet fib = new RoaringBitSet();
+            for (int f : Arrays.asList(
+                /* 1 */ 1, 1, 2, 3, 5, 8, 13, 21, 34, 55,
+                /* 11 */ 89, 144, 233, 377, 610, 987, 1597, 2584, 4181, 6765,
+                /* 21 */ 10946, 17711, 28657, 46368, 75025, 121393, 196418, 317811, 514229,  832040,
+                /* 31 */ 1346269, 2178309, 3524578, 5702887, 9227465, 14930352, 24157817, 39088169, 63245986, 102_334_155))
+                fib.set(f);
+            fib.seal();
+            RoaringBitSet twosAndThrees = new RoaringBitSet();
+            for (int i=0 ; i<=6 ; i++)
+            {
+                twosAndThrees.set((int)Math.pow(2,i) * 1);
+                twosAndThrees.set((int)Math.pow(2,i) * 3);
+                twosAndThrees.set((int)Math.pow(2,i) * 9);
+            }
+            twosAndThrees.seal();
+            RoaringBitSet odd = new RoaringBitSet();
+            for (int i=0 ; i<50 ; i++)
+                odd.set(i * 2 + 1);
+            odd.seal();
+            assertEquals(39, fib.cardinality());
+            assertEquals(21, twosAndThrees.cardinality());
+            assertEquals(7, RoaringBitSet.andCardinality(fib, odd));
+            assertEquals(5, RoaringBitSet.andCardinality(fib, twosAndThrees));
+            // 1, 3
+            assertEquals(2, RoaringBitSet.intersect(fib, twosAndThrees, odd).cardinality());
+        }
+
+        /**
+         * Compare countIntersect() over RoaringBitSet with the old SparseBitSet walk, on participant-like sets
+         * (a few dense sets and many sparse ones over 1M ordinals). Timings are logged, not asserted.
+         */
+        @Test
+        public void testIntersectPerformance()
+        {
+            Random r = new Random(1);
+            int range = 1_000_000;
+            int sets = 24;
+            SparseBitSet[] sparse = new SparseBitSet[sets];
+            RoaringBitSet[] roaring = new RoaringBitSet[sets];
+            for (int s=0 ; s<sets ; s++)
+            {
+                double density = s % 4 == 0 ? 0.5 : 0.002;
+                sparse[s] = new SparseBitSet();
+                roaring[s] = new RoaringBitSet();
+                for (int i=0 ; i<range ; i++)
+                {
+                    if (r.nextDouble() < density)
+                    {
+                        sparse[s].set(i);
+                        roaring[s].set(i);
+                    }
+                }
+                sparse[s].seal();
+                roaring[s].seal();
+            }
+
+            long checksumSparse = 0, checksumRoaring = 0;
+            long start = System.nanoTime();
+            for (int a=0 ; a<sets ; a++)
+                for (int b=0 ; b<sets ; b++)
+                    checksumSparse += countIntersect(sparse[a], sparse[b]);
+            long sparseNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int a=0 ; a<sets ; a++)
+                for (int b=0 ; b<sets ; b++)
+                    checksumRoaring += RoaringBitSet.andCardinality(roaring[a], roaring[b]);
+            long roaringNanos = System.nanoTime() - start;
+
+            assertEquals(checksumSparse, checksumRoaring);
+
+            long sparseBytes = 0, roaringBytes = 0;
+            for (int s=0 ; s<sets ; s++)
+            {
+                sparseBytes += sparse[s].getMemorySizeInBytes();
+                roaringBytes += roaring[s].getMemorySizeInBytes();
+            }
+            LogManager.getLogger(MemberSet.class).info(String.format(
+                    "countIntersect %d pairs: SparseBitSet %dms (%dKB), RoaringBitSet %dms (%dKB)",
+                    sets * sets, sparseNanos / 1_000_000, sparseBytes / 1024, roaringNanos / 1_000_000, roaringBytes / 1024));
+        }
+
         @Test
         public void testLevelMemberSet()
         {
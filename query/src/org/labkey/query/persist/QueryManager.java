@@ -88,6 +88,7 @@ public class QueryManager
     public static final int FLAG_INHERITABLE = 0x01;
     public static final int FLAG_HIDDEN = 0x02;
     public static final int FLAG_SNAPSHOT = 0x04;
+    public static final int FLAG_MATERIALIZED = 0x08;
 
     public static QueryManager get()
     {
@@ -428,6 +429,23 @@ public class QueryManager
             return flag & ~FLAG_SNAPSHOT;
         }
     }
+
+    public boolean isMaterialized(int flag)
+    {
+        return (flag & FLAG_MATERIALIZED) != 0;
+    }
+
+    public int setIsMaterialized(int flag, boolean f)
+    {
+        if (f)
+        {
+            return flag | FLAG_MATERIALIZED;
+        }
+        else
+        {
+            return flag & ~FLAG_MATERIALIZED;
+        }
+    }
     
     public String getDbSchemaName()
     {
@@ -149,6 +149,8 @@ public class Query
 	String _querySource;
     ArrayList<QParameter> _parameters;
     private final Set<SchemaKey> _resolvedTables = new HashSet<>();
+    // the TableInfos behind _resolvedTables, including those read by nested queries; materialized queries watch these for changes
+    private final Set<TableInfo> _sourceTables = Collections.newSetFromMap(new IdentityHashMap<>());
 
     // for displaying dependency graph in UI
     private final HashSetValuedHashMap<QueryService.DependencyObject, QueryService.DependencyObject> _dependencies = new HashSetValuedHashMap<>();
@@ -750,7 +752,10 @@ public class Query
             {
                 TableInfo tinfo = ret.getTableInfo();
                 if (tinfo != null)
+                {
                     _resolvedTables.add(SchemaKey.fromParts(tinfo.getSchema().getName(), tinfo.getName()));
+                    _sourceTables.add(tinfo);
+                }
             }
         }
         catch (QueryNotFoundException qnfe)
@@ -825,6 +830,13 @@ public class Query
     }
 
 
+    /** The tables this query reads from, directly or through the saved queries it references */
+    public Set<TableInfo> getSourceTables()
+    {
+        return Collections.unmodifiableSet(_sourceTables);
+    }
+
+
     private QueryRelation _resolveTable(
             QuerySchema currentSchema, QNode node, FieldKey key, String alias,
             // OUT parameters
@@ -955,6 +967,7 @@ public class Query
 
             // merge dependencies
             _dependencies.putAll(query._dependencies);
+            _sourceTables.addAll(query._sourceTables);
 
             // and add this dependency
             if (trackDependency)
@@ -17,6 +17,7 @@
 package org.labkey.query.sql;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.AbstractTableInfo;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.ContainerFilter;
@@ -31,6 +32,7 @@ import org.labkey.api.security.UserPrincipal;
 import org.labkey.api.security.permissions.Permission;
 import org.labkey.api.security.permissions.ReadPermission;
 import org.labkey.api.util.MemTracker;
+import org.labkey.query.MaterializedQueryManager;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -41,6 +43,7 @@ import java.util.TreeMap;
 public class QueryTableInfo extends AbstractTableInfo implements ContainerFilterable, HasResolvedTables
 {
     QueryRelation _relation;
+    private MaterializedQueryManager.MaterializedQuery _materializedQuery = null;
 
 
     public QueryTableInfo(QueryRelation relation, String name)
@@ -66,11 +69,25 @@ public class QueryTableInfo extends AbstractTableInfo implements ContainerFilter
     {
         SQLFragment f = new SQLFragment();
         SQLFragment sql = _relation.getSql();
+        if (null != _materializedQuery && getNamedParameters().isEmpty())
+        {
+            SQLFragment materialized = MaterializedQueryManager.get().getFromSql(_materializedQuery, getSchema().getScope(), sql, _relation._query.getSourceTables(), alias);
+            if (null != materialized)
+                return materialized;
+        }
         f.append("(").append(sql).append(") ").append(alias);
         return f;
     }
 
 
+    /** Read this query's results from a table that is refreshed when its source tables change, rather than running the query each time */
+    public void setMaterializedQuery(@Nullable MaterializedQueryManager.MaterializedQuery materializedQuery)
+    {
+        checkLocked();
+        _materializedQuery = materializedQuery;
+    }
+
+
     @Override
     public @NotNull Collection<QueryService.ParameterDecl> getNamedParameters()
     {
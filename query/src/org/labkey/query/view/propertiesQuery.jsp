@@ -51,6 +51,15 @@
                 </select>
             </td>
         </tr>
+        <tr>
+            <td class="labkey-form-label" nowrap="true">Store results in a table?</td>
+            <td>
+                <select name="materialized">
+                    <option value="true"<%=selected(form.materialized)%>>Yes</option>
+                    <option value="false"<%=selected(!form.materialized)%>>No</option>
+                </select>
+            </td>
+        </tr>
         <tr>
             <td/>
             <td><labkey:button text="Save" /></td>
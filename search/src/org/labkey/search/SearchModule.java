@@ -40,9 +40,12 @@ import org.labkey.api.webdav.WebdavResource;
 import org.labkey.api.webdav.WebdavService;
 import org.labkey.search.audit.SearchAuditProvider;
 import org.labkey.search.model.AbstractSearchService;
+import org.labkey.search.model.CrawlJournal;
+import org.labkey.search.model.CrawlWatcher;
 import org.labkey.search.model.DavCrawler;
 import org.labkey.search.model.DocumentConversionServiceImpl;
 import org.labkey.search.model.LuceneSearchServiceImpl;
+import org.labkey.search.model.ReadableContainerCache;
 import org.labkey.search.umls.UmlsController;
 import org.labkey.search.view.SearchWebPartFactory;
 
@@ -146,6 +149,7 @@ public class SearchModule extends DefaultModule
 
         // add a container listener so we'll know when containers are deleted
         ContainerManager.addContainerListener(new SearchContainerListener());
+        ReadableContainerCache.registerListeners();
 
         FolderManagement.addTab(FolderManagement.TYPE.FolderManagement, "Search", "fullTextSearch", FolderManagement.NOT_ROOT, SearchController.SearchSettingsAction.class);
     }
@@ -193,8 +197,11 @@ public class SearchModule extends DefaultModule
     {
         return Set.of
         (
+            CrawlJournal.TestCase.class,
+            CrawlWatcher.TestCase.class,
             LuceneSearchServiceImpl.TestCase.class,
-            LuceneSearchServiceImpl.TikaTestCase.class
+            LuceneSearchServiceImpl.TikaTestCase.class,
+            ReadableContainerCache.TestCase.class
         );
     }
 }
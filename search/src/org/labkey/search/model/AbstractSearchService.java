@@ -815,10 +815,11 @@ public abstract class AbstractSearchService implements SearchService, ShutdownLi
         }
     }
 
+    // Indexing threads parse and prepare documents concurrently; override the default via -Dlabkey.search.indexingThreads
     protected int getCountIndexingThreads()
     {
         int cpu = Runtime.getRuntime().availableProcessors();
-        return Math.max(1,cpu/4);
+        return Integer.getInteger("labkey.search.indexingThreads", Math.max(1,cpu/4));
     }
 
     protected void startThreads()
@@ -1007,6 +1008,13 @@ public abstract class AbstractSearchService implements SearchService, ShutdownLi
         }
     };
 
+    // call when holding _commitLock
+    protected boolean isCommitDue(int countIndexedSinceCommit)
+    {
+        return countIndexedSinceCommit > 10000;
+    }
+
+
     private void commitCheck(long ms)
     {
         synchronized (_commitLock)
@@ -1081,7 +1089,7 @@ public abstract class AbstractSearchService implements SearchService, ShutdownLi
                     incrementIndexStat(ms, category);
                     _countIndexedSinceCommit++;
                     _lastIndexedTime = ms;
-                    if (_countIndexedSinceCommit > 10000)
+                    if (isCommitDue(_countIndexedSinceCommit))
                         commit();
                 }
             }
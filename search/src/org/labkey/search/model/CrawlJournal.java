@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.search.model;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Compact on-disk record of what the DavCrawler last saw in each file system directory: name, size, modified and
+ * indexed time for every file. Each directory's entries live in a single file (named by a hash of the directory's
+ * path), so the crawler loads them in one read instead of querying search.CrawlResources. The journal is a cache of
+ * crawl state; if it's missing or unreadable the crawler falls back to the database.
+ */
+public class CrawlJournal
+{
+    private static final Logger _log = LogManager.getLogger(CrawlJournal.class);
+
+    static final String DIRECTORY_NAME = "labkey_crawl_journal";
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("labkey.search.crawlJournal", "true"));
+
+    private static final int MAGIC = 0x4C4B434A; // "LKCJ"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".jnl";
+
+    private final Supplier<File> _root;
+
+    CrawlJournal(Supplier<File> root)
+    {
+        _root = root;
+    }
+
+    /** By default, the journal sits next to the full-text index */
+    static File getDefaultDirectory()
+    {
+        File indexDir = SearchPropertyManager.getIndexDirectory().getAbsoluteFile();
+        return new File(indexDir.getParentFile(), DIRECTORY_NAME);
+    }
+
+    /**
+     * @return The journaled files in this directory, keyed by name, or null if the directory has no usable journal
+     */
+    @Nullable
+    Map<String, DavCrawler.ResourceInfo> read(Path path)
+    {
+        if (!ENABLED)
+            return null;
+
+        File file = getFile(path);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !toPathString(path).equals(in.readUTF()))
+                return null;
+
+            int count = in.readInt();
+            Map<String, DavCrawler.ResourceInfo> map = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+
+            for (int i = 0; i < count; i++)
+            {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                long indexed = in.readLong();
+                map.put(name, new DavCrawler.ResourceInfo(new Date(indexed), new Date(modified), length));
+            }
+
+            return map;
+        }
+        catch (FileNotFoundException x)
+        {
+            return null;
+        }
+        catch (IOException x)
+        {
+            _log.warn("Ignoring unreadable crawl journal " + file + ": " + x.getMessage());
+            return null;
+        }
+    }
+
+    /** Replace the journal for this directory with these entries */
+    void write(Path path, Map<String, DavCrawler.ResourceInfo> entries)
+    {
+        if (!ENABLED)
+            return;
+
+        File file = getFile(path);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try
+        {
+            Files.createDirectories(file.getParentFile().toPath());
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(toPathString(path));
+                out.writeInt(entries.size());
+
+                for (Map.Entry<String, DavCrawler.ResourceInfo> e : entries.entrySet())
+                {
+                    DavCrawler.ResourceInfo info = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(info.length);
+                    out.writeLong(null == info.modified ? DavCrawler.SavePaths.nullDate.getTime() : info.modified.getTime());
+                    out.writeLong(null == info.lastIndexed ? DavCrawler.SavePaths.nullDate.getTime() : info.lastIndexed.getTime());
+                }
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException x)
+        {
+            // The journal is just a cache; the next crawl of this directory falls back to the database
+            _log.warn("Unable to write crawl journal " + file + ": " + x.getMessage());
+            delete(path);
+            temp.delete();
+        }
+    }
+
+    void delete(Path path)
+    {
+        if (ENABLED)
+            getFile(path).delete();
+    }
+
+    /** Forget everything journaled at or below this path */
+    void clear(Path prefix)
+    {
+        if (!ENABLED)
+            return;
+
+        File root = _root.get();
+
+        if (prefix.size() == 0)
+        {
+            FileUtil.deleteDir(root);
+            return;
+        }
+
+        // Journal files are named by hash, so read each header to find the directories under prefix. This is
+        // proportional to the number of journaled directories, but only happens when an admin forces a reindex.
+        File[] buckets = root.listFiles(File::isDirectory);
+        if (null == buckets)
+            return;
+
+        for (File bucket : buckets)
+        {
+            File[] files = bucket.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (null == files)
+                continue;
+
+            for (File file : files)
+            {
+                Path path = readPath(file);
+                if (null == path || path.startsWith(prefix))
+                    file.delete();
+            }
+        }
+    }
+
+    @Nullable
+    private Path readPath(File file)
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            return Path.parse(in.readUTF());
+        }
+        catch (IOException x)
+        {
+            return null;
+        }
+    }
+
+    private File getFile(Path path)
+    {
+        String name = UUID.nameUUIDFromBytes(toPathString(path).getBytes(StandardCharsets.UTF_8)).toString();
+        // Fan out over 256 subdirectories to keep directory listings small
+        return new File(new File(_root.get(), name.substring(0, 2)), name + SUFFIX);
+    }
+
+    private static String toPathString(Path path)
+    {
+        return path.toString("/", "/");
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testJournal() throws IOException
+        {
+            File root = FileUtil.createTempDirectory("crawlJournal");
+
+            try
+            {
+                CrawlJournal journal = new CrawlJournal(() -> root);
+                Path a = Path.parse("/_webdav/home/@files/a/");
+                Path ab = Path.parse("/_webdav/home/@files/a/b/");
+                Path c = Path.parse("/_webdav/home/@files/c/");
+
+                assertNull(journal.read(a));
+
+                Map<String, DavCrawler.ResourceInfo> entries = new HashMap<>();
+                entries.put("one.txt", new DavCrawler.ResourceInfo(new Date(2000), new Date(1000), 10));
+                entries.put("two.pdf", new DavCrawler.ResourceInfo(null, new Date(3000), 20));
+                journal.write(a, entries);
+                journal.write(ab, entries);
+                journal.write(c, entries);
+
+                Map<String, DavCrawler.ResourceInfo> read = journal.read(a);
+                assertNotNull(read);
+                assertEquals(entries.keySet(), read.keySet());
+                assertEquals(10, read.get("one.txt").length);
+                assertEquals(1000, read.get("one.txt").modified.getTime());
+                assertEquals(2000, read.get("one.txt").lastIndexed.getTime());
+                assertEquals(DavCrawler.SavePaths.nullDate.getTime(), read.get("two.pdf").lastIndexed.getTime());
+
+                journal.clear(a);
+                assertNull(journal.read(a));
+                assertNull(journal.read(ab));
+                assertNotNull(journal.read(c));
+
+                journal.delete(c);
+                assertNull(journal.read(c));
+            }
+            finally
+            {
+                FileUtil.deleteDir(root);
+            }
+        }
+    }
+}
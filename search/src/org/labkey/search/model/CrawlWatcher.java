@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.search.model;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Optional file system notification for the DavCrawler. Directories are registered with a WatchService as they're
+ * crawled; once a crawl of a watched directory completes, the directory is "clean" until the WatchService reports a
+ * change in it. The crawler skips clean directories without listing them and is told (in batches) about directories
+ * that change, so crawl cost follows the rate of change rather than the size of the tree.
+ *
+ * Enable via -Dlabkey.search.crawlWatch=true. -Dlabkey.search.crawlWatchLimit caps the number of watched directories,
+ * since each one consumes an OS watch handle (e.g., an inotify watch on Linux).
+ */
+public class CrawlWatcher
+{
+    private static final Logger _log = LogManager.getLogger(CrawlWatcher.class);
+
+    static final boolean ENABLED = Boolean.getBoolean("labkey.search.crawlWatch");
+    private static final int LIMIT = Integer.getInteger("labkey.search.crawlWatchLimit", 10_000);
+    private static final long BATCH_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final Consumer<Path> _changed;
+    private final boolean _enabled;
+    private final long _batchMs;
+    // Guarded by this, so the watcher thread can't handle a key's events before register() has recorded its path
+    private final Map<WatchKey, Path> _keys = new HashMap<>();
+    private final Map<Path, WatchKey> _watched = new ConcurrentHashMap<>();
+    // Sequence number of the most recent event seen in each directory
+    private final Map<Path, Long> _lastEvent = new ConcurrentHashMap<>();
+    private final Set<Path> _clean = ConcurrentHashMap.newKeySet();
+    private final AtomicLong _sequence = new AtomicLong();
+
+    private volatile long _overflow = 0;
+    private volatile boolean _closed = false;
+    private WatchService _service = null;
+
+    /**
+     * @param changed Called on the watcher thread with each watched directory that has changed
+     */
+    CrawlWatcher(Consumer<Path> changed)
+    {
+        this(changed, ENABLED, BATCH_MS);
+    }
+
+    // For tests
+    private CrawlWatcher(Consumer<Path> changed, boolean enabled, long batchMs)
+    {
+        _changed = changed;
+        _enabled = enabled;
+        _batchMs = batchMs;
+    }
+
+    /**
+     * Start watching a directory (if not already watched) before the crawler lists it.
+     * @return A sequence number to pass to markClean() once the crawl completes, or -1 if the directory isn't watched
+     */
+    synchronized long register(Path path, File dir)
+    {
+        if (!_enabled || _closed)
+            return -1;
+
+        try
+        {
+            if (!_watched.containsKey(path))
+            {
+                if (_watched.size() >= LIMIT)
+                    return -1;
+
+                if (null == _service)
+                    start();
+
+                WatchKey key = dir.toPath().register(_service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                _keys.put(key, path);
+                _watched.put(path, key);
+            }
+
+            return _sequence.get();
+        }
+        catch (IOException | UnsupportedOperationException x)
+        {
+            _log.debug("Unable to watch " + dir + ": " + x.getMessage());
+            return -1;
+        }
+    }
+
+    /** The crawl that began at sequence has completed; the directory is clean unless it changed since then */
+    void markClean(Path path, long sequence)
+    {
+        if (sequence < 0 || !_watched.containsKey(path))
+            return;
+
+        if (_lastEvent.getOrDefault(path, 0L) <= sequence && _overflow <= sequence)
+            _clean.add(path);
+    }
+
+    boolean isClean(Path path)
+    {
+        return _clean.contains(path);
+    }
+
+    /** Require the next crawl of everything at or below prefix to list its directories */
+    void markDirty(Path prefix)
+    {
+        _clean.removeIf(path -> path.startsWith(prefix));
+    }
+
+    int getWatchedCount()
+    {
+        return _watched.size();
+    }
+
+    int getCleanCount()
+    {
+        return _clean.size();
+    }
+
+    synchronized void close()
+    {
+        _closed = true;
+        _clean.clear();
+
+        if (null != _service)
+        {
+            try
+            {
+                _service.close();
+            }
+            catch (IOException x)
+            {
+                // ignore
+            }
+        }
+    }
+
+    private void start() throws IOException
+    {
+        _service = FileSystems.getDefault().newWatchService();
+
+        Thread t = new Thread(this::run, "DavCrawler:watch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void run()
+    {
+        Set<Path> changed = new HashSet<>();
+        long nextBatch = System.currentTimeMillis() + _batchMs;
+
+        while (!_closed)
+        {
+            try
+            {
+                WatchKey key = _service.poll(1, TimeUnit.SECONDS);
+
+                if (null != key)
+                {
+                    Path path;
+                    long sequence;
+
+                    // Waits for a register() that's in progress, so the key's path is known and the event's sequence
+                    // number is later than the one register() returned
+                    synchronized (this)
+                    {
+                        path = _keys.get(key);
+                        sequence = _sequence.incrementAndGet();
+                    }
+
+                    for (WatchEvent<?> event : key.pollEvents())
+                    {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        {
+                            // We've lost events, so no directory can be trusted
+                            _overflow = sequence;
+                            _clean.clear();
+                            changed.addAll(_watched.keySet());
+                        }
+                    }
+
+                    if (null != path)
+                    {
+                        _lastEvent.put(path, sequence);
+                        _clean.remove(path);
+                        changed.add(path);
+                    }
+
+                    if (!key.reset())
+                    {
+                        // Directory was deleted or is otherwise inaccessible
+                        synchronized (this)
+                        {
+                            _keys.remove(key);
+                            if (null != path)
+                            {
+                                _watched.remove(path);
+                                _lastEvent.remove(path);
+                            }
+                        }
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextBatch)
+                {
+                    for (Path path : changed)
+                        _changed.accept(path);
+                    changed.clear();
+                    nextBatch = now + _batchMs;
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException x)
+            {
+                return;
+            }
+            catch (Throwable t)
+            {
+                _log.error("Unexpected error", t);
+            }
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        // Polling watch services (e.g., on macOS) can take several seconds to notice a change
+        private static final long TIMEOUT_SECONDS = 30;
+
+        @Test
+        public void testWatch() throws Exception
+        {
+            File root = FileUtil.createTempDirectory("crawlWatcher");
+            BlockingQueue<Path> changed = new LinkedBlockingQueue<>();
+            CrawlWatcher watcher = new CrawlWatcher(changed::add, true, 0);
+
+            try
+            {
+                Path a = Path.parse("/_webdav/home/@files/a/");
+                long sequence = watcher.register(a, root);
+                assertTrue(sequence >= 0);
+                assertEquals(sequence, watcher.register(a, root));
+                assertEquals(1, watcher.getWatchedCount());
+
+                watcher.markClean(a, sequence);
+                assertTrue(watcher.isClean(a));
+
+                assertTrue(new File(root, "one.txt").createNewFile());
+                awaitChange(changed, a);
+                assertFalse(watcher.isClean(a));
+
+                // A crawl that began before the change doesn't make the directory clean
+                watcher.markClean(a, sequence);
+                assertFalse(watcher.isClean(a));
+
+                // A change right after registering is reported and keeps the directory dirty
+                File dir = new File(root, "b");
+                assertTrue(dir.mkdir());
+                Path b = Path.parse("/_webdav/home/@files/a/b/");
+                long bSequence = watcher.register(b, dir);
+                assertTrue(new File(dir, "two.txt").createNewFile());
+                awaitChange(changed, b);
+                watcher.markClean(b, bSequence);
+                assertFalse(watcher.isClean(b));
+                assertEquals(2, watcher.getWatchedCount());
+                assertEquals(0, watcher.getCleanCount());
+            }
+            finally
+            {
+                watcher.close();
+                FileUtil.deleteDir(root);
+            }
+
+            assertEquals(-1, watcher.register(Path.parse("/_webdav/home/@files/c/"), root));
+        }
+
+        private void awaitChange(BlockingQueue<Path> changed, Path expected) throws InterruptedException
+        {
+            while (true)
+            {
+                Path path = changed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                assertNotNull("No change reported for " + expected, path);
+                if (path.equals(expected))
+                    return;
+            }
+        }
+    }
+}
@@ -57,6 +57,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: matthewb
@@ -100,14 +101,20 @@ public class DavCrawler implements ShutdownListener
     public static class ResourceInfo
     {
         ResourceInfo(Date indexed, Date modified)
+        {
+            this(indexed, modified, -1);
+        }
+
+        ResourceInfo(Date indexed, Date modified, long length)
         {
             this.lastIndexed = indexed;
             this.modified = modified;
+            this.length = length;
         }
 
         Date lastIndexed;
         Date modified;
-        //long length;
+        long length;    // -1 if unknown (not tracked in the database, only in the crawl journal)
     }
 
     static private Cache<Path,ResourceInfo> errors = CacheManager.getCache(1000,TimeUnit.DAYS.toMillis(7),"crawler indexing errors");
@@ -180,6 +187,7 @@ public class DavCrawler implements ShutdownListener
     public void shutdownPre()
     {
         _shuttingDown = true;
+        _watcher.close();
         if (null != _crawlerThread)
             _crawlerThread.interrupt();
     }
@@ -216,6 +224,9 @@ public class DavCrawler implements ShutdownListener
 
         // note use oldDate++ so that the crawler can schedule tasks ahead of these bulk updated collections
         _paths.updatePrefix(path, new Date(SavePaths.oldDate.getTime() + 24*60*60*1000), force);
+        _watcher.markDirty(path);
+        if (force)
+            _journal.clear(path);
 
         addPathToCrawl(path, SavePaths.oldDate);
     }
@@ -249,6 +260,9 @@ public class DavCrawler implements ShutdownListener
         Date _lastCrawl=null;
         Date _nextCrawl=null;
         Date _indexTime = null;
+        // For file system directories, the snapshot to journal once indexing succeeds
+        Map<String,ResourceInfo> _journalEntries = null;
+        long _watchSequence = -1;
 
         IndexDirectoryJob(Path path, Date last, Date next)
         {
@@ -264,6 +278,11 @@ public class DavCrawler implements ShutdownListener
         public void success()
         {
             _paths.updatePath(_path, _indexTime, _nextCrawl, true);
+            if (null != _journalEntries)
+            {
+                _journal.write(_path, _journalEntries);
+                _watcher.markClean(_path, _watchSequence);
+            }
             addRecent(_directory);
         }
 
@@ -293,7 +312,10 @@ public class DavCrawler implements ShutdownListener
             if (null == _directory || !_directory.isCollection() || !_directory.shouldIndex() || skipContainer(_directory))
             {
                 if (_path.startsWith(getResolver().getRootPath()))
+                {
                     _paths.deletePath(_path);
+                    _journal.delete(_path);
+                }
                 return;
             }
 
@@ -302,6 +324,22 @@ public class DavCrawler implements ShutdownListener
             long nextCrawl = _indexTime.getTime() + (long)(changeInterval * (0.5 + 0.5 * Math.random()));
             _nextCrawl = new Date(nextCrawl);
 
+            // File system directories are tracked in the crawl journal (and optionally watched for changes)
+            File dir = (_directory instanceof WebdavResolver.WebFolder) ? null : _directory.getFile();
+            if (null != dir)
+            {
+                if (!_full && _watcher.isClean(_path))
+                {
+                    // Nothing in this directory has changed since we last crawled it
+                    _skippedDirectories.incrementAndGet();
+                    _paths.updatePath(_path, _indexTime, _nextCrawl, true);
+                    return;
+                }
+
+                _watchSequence = _watcher.register(_path, dir);
+                _journalEntries = new HashMap<>();
+            }
+
             // if this is a web folder, call enumerate documents
             if (_directory instanceof WebdavResolver.WebFolder)
             {
@@ -311,10 +349,13 @@ public class DavCrawler implements ShutdownListener
                 getSearchService().indexContainer(_task, c,  _full ? null : _lastCrawl);
             }
 
-            // get current index status for files
-            // CONSIDER: store lastModifiedTime in crawlResources
+            // get current index status for files, preferring the journal (one file read) over the database
             // CONSIDER: store documentId in crawlResources
-            Map<String,ResourceInfo> map = _paths.getFiles(_path);
+            Map<String,ResourceInfo> map = null == dir ? null : _journal.read(_path);
+            if (null == map)
+                map = _paths.getFiles(_path);
+            else
+                _journalReads.incrementAndGet();
 
             for (WebdavResource child : _directory.list())
             {
@@ -329,8 +370,14 @@ public class DavCrawler implements ShutdownListener
                     Date lastIndexed   = (null==info || null==info.lastIndexed) ? SavePaths.nullDate : info.lastIndexed;
                     Date savedModified = (null==info || null==info.modified) ? SavePaths.nullDate : info.modified;
                     long lastModified = child.getLastModified();
+                    File childFile = null != _journalEntries ? child.getFile() : null;
+                    long length = null != childFile ? childFile.length() : -1;
+                    boolean sameLength = null == info || info.length < 0 || info.length == length;
 
-                    if (lastModified == savedModified.getTime() && (lastModified <= lastIndexed.getTime() || lastIndexed.getTime() == SavePaths.failDate.getTime()))
+                    if (null != childFile)
+                        _journalEntries.put(child.getName(), new ResourceInfo(lastIndexed, new Date(lastModified), length));
+
+                    if (lastModified == savedModified.getTime() && sameLength && (lastModified <= lastIndexed.getTime() || lastIndexed.getTime() == SavePaths.failDate.getTime()))
                         continue;
 
                     // if we've failed at indexing this, don't try again: see Issue 16776
@@ -403,6 +450,9 @@ public class DavCrawler implements ShutdownListener
 
                     _task.addResource(child, SearchService.PRIORITY.background);
                     addRecent(child);
+
+                    if (null != childFile)
+                        _journalEntries.put(child.getName(), new ResourceInfo(_indexTime, new Date(lastModified), length));
                 }
                 else if (!child.shouldIndex())
                 {
@@ -591,7 +641,7 @@ public class DavCrawler implements ShutdownListener
             return true;
 
         // UNDONE: shouldn't be hard-coded
-        if ("labkey_full_text_index".equals(name))
+        if ("labkey_full_text_index".equals(name) || CrawlJournal.DIRECTORY_NAME.equals(name))
             return true;
 
         // google convention
@@ -624,6 +674,10 @@ public class DavCrawler implements ShutdownListener
     //
 
     SavePaths _paths = new org.labkey.search.model.SavePaths();
+    CrawlJournal _journal = new CrawlJournal(CrawlJournal::getDefaultDirectory);
+    CrawlWatcher _watcher = new CrawlWatcher(path -> addPathToCrawl(path, new Date(System.currentTimeMillis())));
+    final AtomicLong _journalReads = new AtomicLong();
+    final AtomicLong _skippedDirectories = new AtomicLong();
     WebdavResolver _resolver = null;
     SearchService _ss = null;
 
@@ -674,6 +728,10 @@ public class DavCrawler implements ShutdownListener
 
         m.put("Directory limiter", Math.round(_listingRateLimiter.getTarget().getRate(TimeUnit.SECONDS)) + "/sec");
         m.put("File I/O limiter", (_fileIORateLimiter.getTarget().getRate(TimeUnit.SECONDS)/1000000) + " MB/sec");
+        m.put("Directories read from crawl journal", _journalReads.get());
+        m.put("Unchanged directories skipped", _skippedDirectories.get());
+        if (CrawlWatcher.ENABLED)
+            m.put("Watched directories (clean)", _watcher.getWatchedCount() + " (" + _watcher.getCleanCount() + ")");
 
         String activity = getActivityHtml();
         m.put("Recent crawler activity", activity);
@@ -728,5 +786,8 @@ public class DavCrawler implements ShutdownListener
     public void clearFailedDocuments()
     {
         _paths.clearFailedDocuments();
+        // The journal doesn't distinguish failed documents, so let the next crawl consult the database
+        _journal.clear(Path.rootPath);
+        _watcher.markDirty(Path.rootPath);
     }
 }
\ No newline at end of file
@@ -70,6 +70,7 @@ import org.junit.Test;
 import org.labkey.api.collections.Sets;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.dialect.SqlDialect;
 import org.labkey.api.portal.ProjectUrls;
@@ -129,7 +130,15 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -148,6 +157,9 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
     // other threads immediately. Initialize to Noop class to prevent rare NPE (e.g., system maintenance runs before index
     // is initialized).
     private static final WritableIndexManager NOOP_WRITABLE_INDEX = new NoopWritableIndex("the indexer has not been started", _log);
+    // Tika parsing that takes longer than this is abandoned and the document is skipped. Adjust via
+    // -Dlabkey.search.parseTimeoutSeconds; zero or less parses on the indexing thread with no timeout.
+    private static final int PARSE_TIMEOUT_SECONDS = Integer.getInteger("labkey.search.parseTimeoutSeconds", 300);
     private volatile WritableIndexManager _indexManager = NOOP_WRITABLE_INDEX;
 
     private final MultiPhaseCPUTimer<SEARCH_PHASE> TIMER = new MultiPhaseCPUTimer<>(SEARCH_PHASE.class, SEARCH_PHASE.values());
@@ -156,6 +168,19 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
     // We track this to avoid clearing last indexed multiple times in certain cases (delete index, upgrade), see #39330
     private final AtomicLong _countIndexedSinceClearLastIndexed = new AtomicLong(1);
 
+    // Tika parsing runs on this pool so the indexing thread can enforce a per-file timeout. Each indexing thread waits
+    // on at most one parse, so the pool grows only by the number of parses that have timed out but not yet returned.
+    private final ExecutorService _parseExecutor;
+
+    // Indexing throughput, by stage
+    private final LongAdder _documentsParsed = new LongAdder();
+    private final LongAdder _parseNanos = new LongAdder();
+    private final LongAdder _parseTimeouts = new LongAdder();
+    private final LongAdder _documentsPrepared = new LongAdder();
+    private final LongAdder _prepareNanos = new LongAdder();
+    private final LongAdder _documentsIndexed = new LongAdder();
+    private final LongAdder _indexNanos = new LongAdder();
+
     enum FIELD_NAME
     {
         // Use these for english language text that should be stemmed
@@ -211,6 +236,14 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
         }
 
         _autoDetectParser = new AutoDetectParser(config);
+
+        AtomicInteger count = new AtomicInteger();
+        _parseExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "SearchService:parse-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY + 1);
+            return t;
+        });
     }
 
     /**
@@ -449,6 +482,7 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
     @Override
     public boolean processAndIndex(String id, WebdavResource r, Throwable[] handledException)
     {
+        long start = System.nanoTime();
         FileStream fs = null;
 
         try
@@ -679,6 +713,9 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
                 _log.debug("indexing " + dump);
             }
 
+            _documentsPrepared.increment();
+            _prepareNanos.add(System.nanoTime() - start);
+
             return index(r.getDocumentId(), r, doc);
         }
         catch (NoClassDefFoundError err)
@@ -784,6 +821,10 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
             // Malformed zip file
             logAsWarning(r, "Malformed zip file");
         }
+        else if (e instanceof ParseTimeoutException)
+        {
+            logAsWarning(r, "Document took too long to parse", topMessage);
+        }
         else if (e instanceof EncryptedDocumentException)
         {
             // Encrypted office document, examples: encrypted.xlsx, MS Tracking Sheet.xls, HRP_AE_21MAY2008_version1.xls, encrypted.docx
@@ -936,8 +977,83 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
     }
 
 
-    // parse the document of the resource, not that parse() and accept() should agree on what is parsable
+    // parse the document of the resource on the parse pool, abandoning it after PARSE_TIMEOUT_SECONDS
     private void parse(WebdavResource r, FileStream fs, InputStream is, ContentHandler handler, Metadata metadata, boolean tooBig) throws IOException, SAXException, TikaException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            if (PARSE_TIMEOUT_SECONDS <= 0)
+            {
+                parseDocument(r, is, handler, metadata, tooBig);
+                return;
+            }
+
+            Future<Void> future = _parseExecutor.submit(() -> {
+                try
+                {
+                    parseDocument(r, is, handler, metadata, tooBig);
+                    return null;
+                }
+                finally
+                {
+                    DbScope.closeAllConnectionsForCurrentThread();
+                }
+            });
+
+            try
+            {
+                future.get(PARSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                // Interrupt the parse; the caller closes the input stream, which stops most parsers that ignore interrupts
+                future.cancel(true);
+                _parseTimeouts.increment();
+                throw new ParseTimeoutException(e);
+            }
+            catch (InterruptedException e)
+            {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing " + r.getName(), e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException)cause;
+                if (cause instanceof SAXException)
+                    throw (SAXException)cause;
+                if (cause instanceof TikaException)
+                    throw (TikaException)cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                if (cause instanceof Error)
+                    throw (Error)cause;
+                throw new TikaException("Unexpected exception while parsing", cause);
+            }
+        }
+        finally
+        {
+            _documentsParsed.increment();
+            _parseNanos.add(System.nanoTime() - start);
+        }
+    }
+
+
+    private static class ParseTimeoutException extends TikaException
+    {
+        private ParseTimeoutException(TimeoutException e)
+        {
+            super("Parsing took longer than " + PARSE_TIMEOUT_SECONDS + " seconds", e);
+        }
+    }
+
+
+    // parse the document of the resource, not that parse() and accept() should agree on what is parsable
+    private void parseDocument(WebdavResource r, InputStream is, ContentHandler handler, Metadata metadata, boolean tooBig) throws IOException, SAXException, TikaException
     {
         if (!is.markSupported())
             is = new BufferedInputStream(is);
@@ -1230,10 +1346,14 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
 
     private boolean index(String id, WebdavResource r, Document doc)
     {
+        long start = System.nanoTime();
+
         try
         {
             _indexManager.index(r.getDocumentId(), doc);
             _countIndexedSinceClearLastIndexed.incrementAndGet();
+            _documentsIndexed.increment();
+            _indexNanos.add(System.nanoTime() - start);
             return true;
         }
         catch (IndexManagerClosedException x)
@@ -1301,6 +1421,12 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
         }
     }
 
+    @Override
+    protected boolean isCommitDue(int countIndexedSinceCommit)
+    {
+        return _indexManager.isCommitDue();
+    }
+
     @Override
     protected void commitIndex()
     {
@@ -1627,6 +1753,7 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
     @Override
     protected void shutDown()
     {
+        _parseExecutor.shutdownNow();
         closeIndex();
         _standardAnalyzer.close();
     }
@@ -1662,14 +1789,31 @@ public class LuceneSearchServiceImpl extends AbstractSearchService
         }
 
         map.putAll(super.getIndexerStats());
+
+        map.put("Documents parsed by Tika", _documentsParsed.sum());
+        map.put("Average Tika parse time (ms)", averageMillis(_parseNanos, _documentsParsed));
+        map.put("Tika parse timeouts", _parseTimeouts.sum());
+        map.put("Average document preparation time, including parsing (ms)", averageMillis(_prepareNanos, _documentsPrepared));
+        map.put("Average index write time (ms)", averageMillis(_indexNanos, _documentsIndexed));
+        map.putAll(_indexManager.getIndexingStats());
+
         return map;
     }
 
+    private static String averageMillis(LongAdder nanos, LongAdder count)
+    {
+        long n = count.sum();
+        return String.format("%.2f", 0 == n ? 0.0 : nanos.sum() / 1_000_000.0 / n);
+    }
+
 
     @Override
     public Map<String, Double> getSearchStats()
     {
-        return TIMER.getTimes();
+        Map<String, Double> stats = new LinkedHashMap<>(TIMER.getTimes());
+        stats.put("Security Filter Cache Hit Percentage", ReadableContainerCache.getHitPercentage());
+
+        return stats;
     }
 
     private boolean isImage(String contentType)
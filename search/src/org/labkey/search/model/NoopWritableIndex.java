@@ -85,6 +85,12 @@ public class NoopWritableIndex implements WritableIndexManager
     {
     }
 
+    @Override
+    public boolean isCommitDue()
+    {
+        return false;
+    }
+
     @Override
     public void close()
     {
@@ -96,6 +102,12 @@ public class NoopWritableIndex implements WritableIndexManager
         return Collections.singletonMap("Format", "No-op index");
     }
 
+    @Override
+    public Map<String, Object> getIndexingStats()
+    {
+        return Collections.emptyMap();
+    }
+
     @Override
     public Directory getCurrentDirectory()
     {
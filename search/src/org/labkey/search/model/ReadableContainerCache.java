@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2020 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.search.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.ContainerType;
+import org.labkey.api.security.Group;
+import org.labkey.api.security.PermissionBits;
+import org.labkey.api.security.SecurityManager;
+import org.labkey.api.security.User;
+import org.labkey.api.security.UserPrincipal;
+import org.labkey.api.security.permissions.ReadPermission;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
+
+import java.beans.PropertyChangeEvent;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches, for each user and search scope, the containers whose documents the user may see in search results. Building
+ * the set walks the container tree checking read permission on every folder, which is the bulk of SecurityQuery's cost
+ * on servers with many folders, and it rarely changes between one search and the next.
+ *
+ * Entries are stamped with a version that's bumped whenever a container is created, deleted, moved, or changed (which
+ * includes its security policy) and whenever group membership changes. An entry built before the latest bump is
+ * ignored, so a search never uses a set computed from out-of-date permissions.
+ */
+public class ReadableContainerCache
+{
+    private static final Cache<String, Entry> CACHE = CacheManager.enableClusterInvalidation(CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "Search readable containers"));
+    private static final AtomicLong VERSION = new AtomicLong();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private ReadableContainerCache()
+    {
+    }
+
+    /** Listens for the container and group changes that invalidate cached sets */
+    public static void registerListeners()
+    {
+        ContainerManager.addContainerListener(new ContainerManager.AbstractContainerListener()
+        {
+            @Override
+            public void containerCreated(Container c, User user)
+            {
+                invalidate();
+            }
+
+            @Override
+            public void containerDeleted(Container c, User user)
+            {
+                invalidate();
+            }
+
+            @Override
+            public void containerMoved(Container c, Container oldParent, User user)
+            {
+                invalidate();
+            }
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt)
+            {
+                invalidate();
+            }
+        });
+
+        SecurityManager.addGroupListener(new SecurityManager.GroupListener()
+        {
+            @Override
+            public void principalAddedToGroup(Group group, UserPrincipal principal)
+            {
+                invalidate();
+            }
+
+            @Override
+            public void principalDeletedFromGroup(Group group, UserPrincipal principal)
+            {
+                invalidate();
+            }
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt)
+            {
+            }
+        });
+    }
+
+    static void invalidate()
+    {
+        VERSION.incrementAndGet();
+        // Also clears the cache on the other nodes of a cluster
+        CACHE.clear();
+    }
+
+    /**
+     * @return an unmodifiable map of container ID to container for every container under searchRoot (or just
+     * searchRoot, if not recursive) that user can read and that should be searched
+     */
+    static @NotNull Map<String, Container> get(User user, Container searchRoot, Container currentContainer, boolean recursive)
+    {
+        // Impersonating a role adds contextual roles that aren't reflected in the cache key
+        if (user.isImpersonated())
+            return compute(user, searchRoot, currentContainer, recursive);
+
+        // Read the version before computing, so a concurrent change leaves us with a stale entry rather than a wrong one
+        Version version = new Version();
+        String key = user.getUserId() + "/" + Arrays.toString(user.getGroups()) + "/" + searchRoot.getId() + "/" + currentContainer.getId() + "/" + recursive;
+        Entry entry = CACHE.get(key);
+
+        if (null != entry && entry.version.equals(version))
+        {
+            HITS.incrementAndGet();
+            return entry.containers;
+        }
+
+        MISSES.incrementAndGet();
+        Map<String, Container> containers = compute(user, searchRoot, currentContainer, recursive);
+        CACHE.put(key, new Entry(version, containers));
+
+        return containers;
+    }
+
+    private static Map<String, Container> compute(User user, Container searchRoot, Container currentContainer, boolean recursive)
+    {
+        final Map<String, Container> containerIds;
+
+        if (recursive)
+        {
+            // Returns root plus all children (including workbooks & tabs) where user has read permissions
+            List<Container> containers = ContainerManager.getAllChildren(searchRoot, user);
+            containerIds = new HashMap<>(containers.size() * 2);
+
+            for (Container c : containers)
+            {
+                boolean searchable = (c.isSearchable() || c.equals(currentContainer)) && (c.isContainerFor(ContainerType.DataType.search) || c.shouldDisplay(user));
+
+                if (searchable)
+                {
+                    containerIds.put(c.getId(), c);
+                }
+            }
+        }
+        else
+        {
+            containerIds = new HashMap<>();
+
+            if (searchRoot.hasPermission(user, ReadPermission.class))
+                containerIds.put(searchRoot.getId(), searchRoot);
+        }
+
+        return Collections.unmodifiableMap(containerIds);
+    }
+
+    /** @return the percentage of lookups answered from the cache, for the search statistics page */
+    static double getHitPercentage()
+    {
+        long hits = HITS.get();
+        long total = hits + MISSES.get();
+
+        return 0 == total ? 0.0 : 100.0 * hits / total;
+    }
+
+    // Role permission changes and bulk security cache clears don't fire container events, but they do invalidate
+    // compiled permissions
+    private static class Version
+    {
+        private final long _version = VERSION.get();
+        private final int _permissionGeneration = PermissionBits.getGeneration();
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Version that = (Version) o;
+            return _version == that._version && _permissionGeneration == that._permissionGeneration;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * Long.hashCode(_version) + _permissionGeneration;
+        }
+    }
+
+    private static class Entry
+    {
+        private final Version version;
+        private final Map<String, Container> containers;
+
+        private Entry(Version version, Map<String, Container> containers)
+        {
+            this.version = version;
+            this.containers = containers;
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testCache()
+        {
+            User user = TestContext.get().getUser();
+            Container c = JunitUtil.getTestContainer();
+
+            Map<String, Container> first = get(user, c, c, true);
+            assertTrue(first.containsKey(c.getId()));
+            assertSame("Expected a cached set", first, get(user, c, c, true));
+            assertNotSame("Scopes must be cached separately", first, get(user, c, c, false));
+
+            invalidate();
+            Map<String, Container> second = get(user, c, c, true);
+            assertNotSame("Expected a new set after invalidation", first, second);
+            assertEquals(first, second);
+
+            PermissionBits.invalidateAll();
+            assertNotSame("Expected a new set after permissions changed", second, get(user, c, c, true));
+
+            // Non-recursive searches see only the root
+            assertEquals(Collections.singleton(c.getId()), get(user, c, c, false).keySet());
+        }
+    }
+}
@@ -32,8 +32,6 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.FixedBitSet;
 import org.jetbrains.annotations.NotNull;
 import org.labkey.api.data.Container;
-import org.labkey.api.data.ContainerManager;
-import org.labkey.api.data.ContainerType;
 import org.labkey.api.module.Module;
 import org.labkey.api.search.SearchService;
 import org.labkey.api.security.SecurableResource;
@@ -47,6 +45,7 @@ import org.labkey.search.model.LuceneSearchServiceImpl.FIELD_NAME;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.apache.lucene.search.DocIdSetIterator.NO_MORE_DOCS;
 
@@ -61,7 +60,7 @@ class SecurityQuery extends Query
     private final Container _currentContainer;
     private final boolean _recursive;
 
-    private final HashMap<String, Container> _containerIds;
+    private final Map<String, Container> _containerIds;
     private final HashMap<String, Boolean> _securableResourceIds = new HashMap<>();
     private final InvocationTimer<SearchService.SEARCH_PHASE> _iTimer;
 
@@ -76,29 +75,8 @@ class SecurityQuery extends Query
 
         _iTimer = iTimer;
 
-        if (recursive)
-        {
-            // Returns root plus all children (including workbooks & tabs) where user has read permissions
-            List<Container> containers = ContainerManager.getAllChildren(searchRoot, user);
-            _containerIds = new HashMap<>(containers.size() * 2);
-
-            for (Container c : containers)
-            {
-                boolean searchable = (c.isSearchable() || c.equals(currentContainer)) && (c.isContainerFor(ContainerType.DataType.search) || c.shouldDisplay(user));
-
-                if (searchable)
-                {
-                    _containerIds.put(c.getId(), c);
-                }
-            }
-        }
-        else
-        {
-            _containerIds = new HashMap<>();
-
-            if (searchRoot.hasPermission(user, ReadPermission.class))
-                _containerIds.put(searchRoot.getId(), searchRoot);
-        }
+        // Usually cached from the user's previous search
+        _containerIds = ReadableContainerCache.get(user, searchRoot, currentContainer, recursive);
     }
 
 
@@ -135,28 +113,12 @@ class SecurityQuery extends Query
                     // Can be null, if no documents (e.g., shortly after bootstrap or clear index)
                     if (null != securityContextDocValues)
                     {
+                        // Decide once per distinct security context in this segment, then test each document's ordinal
+                        FixedBitSet readableOrds = getReadableOrds(securityContextDocValues);
+
                         while (NO_MORE_DOCS != (doc = securityContextDocValues.nextDoc()))
                         {
-                            BytesRef bytesRef = securityContextDocValues.binaryValue();
-                            String securityContext = StringUtils.trimToNull(bytesRef.utf8ToString());
-
-                            final String containerId;
-                            final String resourceId;
-
-                            // SecurityContext is usually just a container ID, but in some cases it adds a resource ID.
-                            if (securityContext.length() > 36)
-                            {
-                                containerId = securityContext.substring(0, 36);
-                                resourceId = securityContext.substring(37);
-                            }
-                            else
-                            {
-                                containerId = securityContext;
-                                resourceId = null;
-                            }
-
-                            // Must have read permission on the container (always). Must also have read permissions on resource ID, if non-null.
-                            if (_containerIds.containsKey(containerId) && (null == resourceId || canReadResource(resourceId, containerId)))
+                            if (readableOrds.get(securityContextDocValues.ordValue()))
                                 bits.set(doc);
                         }
                     }
@@ -171,6 +133,39 @@ class SecurityQuery extends Query
         };
     }
 
+    private FixedBitSet getReadableOrds(SortedDocValues securityContextDocValues) throws IOException
+    {
+        int count = securityContextDocValues.getValueCount();
+        FixedBitSet readableOrds = new FixedBitSet(count);
+
+        for (int ord = 0; ord < count; ord++)
+        {
+            BytesRef bytesRef = securityContextDocValues.lookupOrd(ord);
+            String securityContext = StringUtils.trimToNull(bytesRef.utf8ToString());
+
+            final String containerId;
+            final String resourceId;
+
+            // SecurityContext is usually just a container ID, but in some cases it adds a resource ID.
+            if (securityContext.length() > 36)
+            {
+                containerId = securityContext.substring(0, 36);
+                resourceId = securityContext.substring(37);
+            }
+            else
+            {
+                containerId = securityContext;
+                resourceId = null;
+            }
+
+            // Must have read permission on the container (always). Must also have read permissions on resource ID, if non-null.
+            if (_containerIds.containsKey(containerId) && (null == resourceId || canReadResource(resourceId, containerId)))
+                readableOrds.set(ord);
+        }
+
+        return readableOrds;
+    }
+
     private boolean canReadResource(String resourceId, String containerId)
     {
         assert !resourceId.equals(containerId);
@@ -46,10 +46,17 @@ public interface WritableIndexManager
 
     void commit();
 
+    /**
+     * Should the indexer commit now, based on the size of the in-memory buffer and the time since the last commit?
+     */
+    boolean isCommitDue();
+
     void close() throws IOException;
 
     Map<String, String> getIndexFormatProperties();
 
+    Map<String, Object> getIndexingStats();
+
     Directory getCurrentDirectory();
 
     /**
@@ -53,9 +53,13 @@ import java.nio.file.AccessDeniedException;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * User: adam
@@ -69,10 +73,31 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
     private static final Logger _log = LogManager.getLogger(WritableIndexManagerImpl.class);
     private static final AtomicInteger _maybeRefreshRequests = new AtomicInteger();
 
+    // Size of the IndexWriter's in-memory buffer; we commit shortly before it fills, so each commit writes one large
+    // segment instead of many small ones. Adjust via -Dlabkey.search.ramBufferMB.
+    private static final double RAM_BUFFER_MB = Double.parseDouble(System.getProperty("labkey.search.ramBufferMB", "64"));
+    private static final long COMMIT_RAM_BYTES = (long)(RAM_BUFFER_MB * 0.9 * 1024 * 1024);
+    // Commit uncommitted changes at least this often, even if the buffer is nearly empty
+    private static final long COMMIT_INTERVAL_MS = Long.getLong("labkey.search.commitIntervalSeconds", 60) * 1000;
+    // During bulk indexing, reopening the near-real-time reader every few seconds flushes the buffer into tiny segments.
+    // Once this many changes arrive between refresh checks, refresh at most every BULK_REFRESH_INTERVAL_MS instead.
+    private static final int BULK_REFRESH_CHANGES = 500;
+    private static final long BULK_REFRESH_INTERVAL_MS = 30 * 1000;
+
     private final Object _writerLock = new Object();
     private final IndexWriter _iw;
+    // Documents waiting to be written; whichever indexing thread acquires _writerLock writes everything queued so far
+    private final Queue<PendingDocument> _pending = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder _documentsWritten = new LongAdder();
+    private final LongAdder _batchesWritten = new LongAdder();
+    private final LongAdder _commits = new LongAdder();
+    private final LongAdder _commitMillis = new LongAdder();
+    private final long _created = System.currentTimeMillis();
 
-    private boolean _closed = false;
+    private volatile long _lastCommit = _created;
+    private volatile long _lastRefresh = _created;
+    private volatile boolean _closed = false;
 
     static
     {
@@ -98,7 +123,7 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
         try
         {
             // Consider: wrap analyzer with LimitTokenCountAnalyzer to limit indexed content?
-            iw = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+            iw = new IndexWriter(directory, new IndexWriterConfig(analyzer).setRAMBufferSizeMB(RAM_BUFFER_MB));
         }
         finally
         {
@@ -146,11 +171,81 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
     @Override
     public void index(String id, Document doc) throws IOException
     {
+        PendingDocument pending = new PendingDocument(id, doc);
+        _pending.add(pending);
+
+        // Group writes: while one thread holds the lock, others queue up behind it and the next lock holder writes the
+        // whole batch. A thread whose document was written by another thread returns without touching the writer.
         synchronized (_writerLock)
         {
-            deleteDocument(id);
-            getIndexWriter().addDocument(doc);
-            maybeRefresh(); // Make this document immediately available for searching (i.e., near-real-time searching), see #39330
+            if (!pending._written)
+                writePending();
+        }
+
+        pending.rethrow();
+    }
+
+
+    // Caller must hold _writerLock
+    private void writePending()
+    {
+        assert Thread.holdsLock(_writerLock);
+        int count = 0;
+        PendingDocument pending;
+
+        while (null != (pending = _pending.poll()))
+        {
+            try
+            {
+                // updateDocument() atomically deletes any previous version of this document and adds the new one
+                getIndexWriter().updateDocument(new Term(LuceneSearchServiceImpl.FIELD_NAME.uniqueId.toString(), pending._id), pending._doc);
+                count++;
+            }
+            catch (Throwable t)
+            {
+                pending._failure = t;
+            }
+            finally
+            {
+                pending._written = true;
+            }
+        }
+
+        if (count > 0)
+        {
+            _documentsWritten.add(count);
+            _batchesWritten.increment();
+            maybeRefresh(count); // Make these documents immediately available for searching (i.e., near-real-time searching), see #39330
+        }
+    }
+
+
+    private static class PendingDocument
+    {
+        private final String _id;
+        private final Document _doc;
+
+        // Guarded by _writerLock
+        private boolean _written = false;
+        private Throwable _failure = null;
+
+        private PendingDocument(String id, Document doc)
+        {
+            _id = id;
+            _doc = doc;
+        }
+
+        private void rethrow() throws IOException
+        {
+            if (null == _failure)
+                return;
+            if (_failure instanceof IOException)
+                throw (IOException)_failure;
+            if (_failure instanceof RuntimeException)
+                throw (RuntimeException)_failure;
+            if (_failure instanceof Error)
+                throw (Error)_failure;
+            throw new IOException(_failure);
         }
     }
 
@@ -250,8 +345,15 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
 
             try
             {
+                long start = System.currentTimeMillis();
                 iw.commit();
                 _manager.maybeRefreshBlocking();
+
+                // The blocking refresh above satisfies any outstanding refresh requests
+                _maybeRefreshRequests.set(0);
+                _lastCommit = _lastRefresh = System.currentTimeMillis();
+                _commits.increment();
+                _commitMillis.add(_lastCommit - start);
             }
             catch (AccessDeniedException e)
             {
@@ -325,6 +427,39 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
         }
     }
 
+    @Override
+    public boolean isCommitDue()
+    {
+        if (_closed)
+            return false;
+
+        // Commit just before the RAM buffer fills and Lucene flushes it on its own
+        if (_iw.ramBytesUsed() >= COMMIT_RAM_BYTES)
+            return true;
+
+        return System.currentTimeMillis() - _lastCommit >= COMMIT_INTERVAL_MS && _iw.hasUncommittedChanges();
+    }
+
+
+    @Override
+    public Map<String, Object> getIndexingStats()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long documents = _documentsWritten.sum();
+        long batches = _batchesWritten.sum();
+        long commits = _commits.sum();
+        double seconds = (System.currentTimeMillis() - _created) / 1000.0;
+
+        map.put("Documents written since index opened", documents);
+        map.put("Average documents per index write batch", String.format("%.1f", 0 == batches ? 0.0 : (double)documents / batches));
+        map.put("Average documents written per second since index opened", String.format("%.1f", 0 == seconds ? 0.0 : documents / seconds));
+        map.put("Index commits since index opened", commits);
+        map.put("Average commit time (ms)", 0 == commits ? 0 : _commitMillis.sum() / commits);
+        map.put("Index RAM buffer used (MB)", String.format("%.1f of %.1f", _closed ? 0.0 : _iw.ramBytesUsed() / (1024.0 * 1024.0), RAM_BUFFER_MB));
+
+        return map;
+    }
+
     @Override
     public Directory getCurrentDirectory()
     {
@@ -339,7 +474,17 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
 
     private void maybeRefresh()
     {
-        _maybeRefreshRequests.incrementAndGet();
+        maybeRefresh(1);
+    }
+
+    private void maybeRefresh(int changes)
+    {
+        _maybeRefreshRequests.addAndGet(changes);
+    }
+
+    private boolean isRefreshDue(int changes)
+    {
+        return changes < BULK_REFRESH_CHANGES || System.currentTimeMillis() - _lastRefresh >= BULK_REFRESH_INTERVAL_MS;
     }
 
     public static class MaybeRefreshJob implements Job
@@ -381,11 +526,15 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
         {
             try
             {
-                int requests = _maybeRefreshRequests.getAndSet(0);
+                int requests = _maybeRefreshRequests.get();
                 if (requests > 0)
                 {
                     WritableIndexManagerImpl impl = (WritableIndexManagerImpl)context.getJobDetail().getJobDataMap().get(WritableIndexManagerImpl.class.getName());
-                    impl.refreshNow();
+                    if (impl.isRefreshDue(requests))
+                    {
+                        _maybeRefreshRequests.addAndGet(-requests);
+                        impl.refreshNow();
+                    }
                 }
             }
             catch (Exception e)
@@ -398,5 +547,6 @@ class WritableIndexManagerImpl extends IndexManager implements WritableIndexMana
     public void refreshNow() throws IOException
     {
         _manager.maybeRefresh();
+        _lastRefresh = System.currentTimeMillis();
     }
 }
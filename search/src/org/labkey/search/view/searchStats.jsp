@@ -38,7 +38,7 @@ else
         Map<String, Double> m = ((AbstractSearchService)ss).getSearchStats();
 
         %>
-        <tr><td colspan=3 valign="top">Average time in milliseconds for each phase of searching the index:</td></tr>
+        <tr><td colspan=3 valign="top">Average time in milliseconds for each phase of searching the index, and how often the security filter was cached:</td></tr>
         <tr><td colspan=3 valign="top">&nbsp;</td></tr><%
 
         for (Map.Entry<String, Double> e : m.entrySet())
@@ -28,7 +28,6 @@ import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.*;
-import org.labkey.api.data.Selector.ForEachBatchBlock;
 import org.labkey.api.data.dialect.SqlDialect;
 import org.labkey.api.dataiterator.DataIterator;
 import org.labkey.api.dataiterator.DataIteratorBuilder;
@@ -69,6 +68,7 @@ import org.labkey.api.test.TestWhen;
 import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.GUID;
 import org.labkey.api.util.HeartBeat;
+import org.labkey.api.util.JobRunner;
 import org.labkey.api.util.JunitUtil;
 import org.labkey.api.util.MultiPhaseCPUTimer;
 import org.labkey.api.util.MultiPhaseCPUTimer.InvocationTimer.Order;
@@ -98,15 +98,19 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
@@ -115,6 +119,8 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * User: brittp
@@ -129,7 +135,8 @@ public class SpecimenImporter
         CalculateLocation, GetLastEvent, DetermineUpdateVial, SetUpdateParameters, HandleComments, UpdateVials, UpdateComments,
         UpdateSpecimenProcessingInfo, UpdateRequestability, UpdateVialCounts, ResyncStudy, SetLastSpecimenLoad, DropTempTable,
         UpdateAllStatistics, CommitTransaction, ClearCaches, PopulateMaterials, PopulateSpecimens, PopulateVials, PopulateSpecimenEvents,
-        PopulateTempTable, PopulateLabs, SpecimenTypes, DeleteOldData, PrepareQcComments, NotifyChanged}
+        PopulateTempTable, PopulateLabs, SpecimenTypes, DeleteOldData, PrepareQcComments, NotifyChanged, CalculateVialRollups,
+        WaitForVialRollups}
 
     private static final MultiPhaseCPUTimer<ImportPhases> TIMER = new MultiPhaseCPUTimer<>(ImportPhases.class, ImportPhases.values());
 
@@ -1429,8 +1436,12 @@ public class SpecimenImporter
                                   " WHERE RowId NOT IN (SELECT SpecimenId FROM " + getTableInfoVial().getSelectName() + ")");
             }
 
+            // A merge only changes the vials in the temp table, so only those need their rollups recalculated. Reloading
+            // locations can change any vial's AtRepository, so that still recalculates everything.
+            SQLFragment affectedVialIds = merge && null == sifMap.get(_labsTableType) ? getAffectedVialIdsSql(loadInfo) : null;
+
             // No need to setPhase() here... method sets timer phases immediately
-            updateCalculatedSpecimenData(merge, editingSpecimens);
+            updateCalculatedSpecimenData(merge, editingSpecimens, affectedVialIds);
 
             setStatus(GENERAL_JOB_STATUS_MSG + " (update study)");
             _iTimer.setPhase(ImportPhases.ResyncStudy);
@@ -1778,7 +1789,7 @@ public class SpecimenImporter
         info("Complete.");
     }
 
-    private void updateSpecimenProcessingInfo()
+    private void updateSpecimenProcessingInfo(@Nullable SQLFragment affectedVialIds)
     {
         TableInfo specimenTable = getTableInfoSpecimen();
         String specimenTableSelectName = specimenTable.getSelectName();
@@ -1791,6 +1802,7 @@ public class SpecimenImporter
                 "\tGROUP BY SpecimenId\n" +
                 "\tHAVING COUNT(ProcessingLocation) = 1\n" +
                 ")");
+        sql.append(getAffectedSpecimensWhereSql(affectedVialIds));
         info("Updating processing locations on the specimen table...");
         new SqlExecutor(StudySchema.getInstance().getSchema()).execute(sql);
         info("Complete.");
@@ -1802,16 +1814,46 @@ public class SpecimenImporter
                 "\tGROUP BY SpecimenId\n" +
                 "\tHAVING COUNT(FirstProcessedByInitials) = 1\n" +
                 ")");
+        sql.append(getAffectedSpecimensWhereSql(affectedVialIds));
         info("Updating first processed by initials on the specimen table...");
         new SqlExecutor(StudySchema.getInstance().getSchema()).execute(sql);
         info("Complete.");
     }
 
+    private SQLFragment getAffectedSpecimensWhereSql(@Nullable SQLFragment affectedVialIds)
+    {
+        SQLFragment sql = new SQLFragment();
+        if (null != affectedVialIds)
+        {
+            sql.append("\nWHERE RowId IN (SELECT SpecimenId FROM ").append(getTableInfoVial().getSelectName())
+                    .append(" WHERE RowId IN (").append(affectedVialIds).append("))");
+        }
+        return sql;
+    }
+
+    /**
+     * The vials whose events were just loaded from the temp table; during a merge these are the only vials whose
+     * rollups can have changed.
+     */
+    private SQLFragment getAffectedVialIdsSql(SpecimenLoadInfo info)
+    {
+        TableInfo vialTable = getTableInfoVial();
+        String vialTableSelectName = vialTable.getSelectName();
+
+        SQLFragment sql = new SQLFragment("SELECT ").append(vialTable.getColumn("RowId").getValueSql(vialTableSelectName));
+        sql.append(" FROM ").append(vialTableSelectName).append(" WHERE ")
+                .append(vialTable.getColumn("GlobalUniqueId").getValueSql(vialTableSelectName))
+                .append(" IN (SELECT GlobalUniqueId FROM ").append(info.getTempTableName()).append(")");
+        return sql;
+    }
+
     private static final int CURRENT_SITE_UPDATE_SIZE = 1000;
     private static final int CURRENT_SITE_UPDATE_LOGGING_SIZE = 10000;   // Can choose to log at a less frequent rate than the update batch size
 
-    // UNDONE: add vials in-clause to only update data for rows that changed
-    private void updateCalculatedSpecimenData(final boolean merge, final boolean editingSpecimens)
+    /**
+     * @param affectedVialIds SQL selecting the RowIds of the vials to recalculate, or null to recalculate every vial
+     */
+    private void updateCalculatedSpecimenData(final boolean merge, final boolean editingSpecimens, @Nullable SQLFragment affectedVialIds)
     {
         setStatus(GENERAL_JOB_STATUS_MSG + " (update)");
         _iTimer.setPhase(ImportPhases.PrepareQcComments);
@@ -1829,8 +1871,302 @@ public class SpecimenImporter
         _iTimer.setPhase(ImportPhases.VialUpdatePreLoopPrep);
         // clear caches before determining current sites:
         SpecimenManager.getInstance().clearCaches(_container);
-        final Map<Integer, Location> siteMap = new HashMap<>();
 
+        _iTimer.setPhase(ImportPhases.HandleComments);
+
+        TableInfo commentTable = StudySchema.getInstance().getTableInfoSpecimenComment();
+
+        // Populate a GlobalUniqueId -> SpecimenEvent map containing all quality control vial comments in this container
+        final Map<String, SpecimenComment> qcCommentMap = new HashMap<>();
+
+        SQLFragment selectCommentsSql = new SQLFragment();
+        selectCommentsSql.append("SELECT c.* FROM ");
+        selectCommentsSql.append(commentTable, "c");
+        selectCommentsSql.append(" INNER JOIN ");
+        selectCommentsSql.append(getTableInfoVial(), "v");
+        selectCommentsSql.append(" ON c.GlobalUniqueId = v.GlobalUniqueId WHERE Container = ? AND (QualityControlFlag = ? OR QualityControlFlagForced = ?)");
+        selectCommentsSql.add(getContainer());
+        selectCommentsSql.add(true);
+        selectCommentsSql.add(true);
+
+        new SqlSelector(StudySchema.getInstance().getSchema(), selectCommentsSql).forEach(comment -> qcCommentMap.put(comment.getGlobalUniqueId(), comment), SpecimenComment.class);
+
+        if (null != affectedVialIds)
+            info("Updating vials changed by this import...");
+
+        if (canCalculateVialRollupsInSql())
+        {
+            updateVialRollupsInSql(affectedVialIds);
+            updateQualityControlComments(merge, affectedVialIds, qcCommentMap);
+        }
+        else
+        {
+            updateVialRollupsInJava(merge, affectedVialIds, qcCommentMap);
+        }
+
+        // finally, after all other data has been updated, we can update our cached specimen counts and processing locations:
+        setStatus(GENERAL_JOB_STATUS_MSG + " (update counts)");
+        _iTimer.setPhase(ImportPhases.UpdateSpecimenProcessingInfo);
+        updateSpecimenProcessingInfo(affectedVialIds);
+
+        _iTimer.setPhase(ImportPhases.UpdateRequestability);
+        try
+        {
+            RequestabilityManager.getInstance().updateRequestability(_container, _user, false, editingSpecimens, _logger);
+        }
+        catch (RequestabilityManager.InvalidRuleException e)
+        {
+            throw new IllegalStateException("One or more requestability rules is invalid.  Please remove or correct the invalid rule.", e);
+        }
+
+        _iTimer.setPhase(ImportPhases.UpdateVialCounts);
+        info("Updating cached vial counts...");
+
+        SpecimenManager.getInstance().updateVialCounts(_container, _user);
+
+        info("Vial count update complete.");
+    }
+
+    // Rollups that updateVialRollupsInSql() knows how to calculate
+    private static final Set<EventVialRollup> SQL_EVENT_VIAL_ROLLUPS = EnumSet.of(EventVialRollup.EventVialLatest, EventVialRollup.EventVialFirst, EventVialRollup.EventVialLatestNonBlank);
+
+    private boolean canCalculateVialRollupsInSql()
+    {
+        for (List<RollupInstance<EventVialRollup>> rollupList : _eventToVialRollups.values())
+        {
+            for (RollupInstance<EventVialRollup> rollup : rollupList)
+            {
+                JdbcType fromType = rollup.getFromType();
+                // MAX() picks the value out of each vial's events, and not every database can MAX() a boolean
+                if (!SQL_EVENT_VIAL_ROLLUPS.contains(rollup.second) || !(fromType.isNumeric() || fromType.isText() || fromType.isDateOrTime()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the current location, processing location, latest comments and the event -> vial rollups for each
+     * vial in a single UPDATE. Events are ranked in the same order as SpecimenManager.getSpecimenEventDateComparator(),
+     * and the rules for picking the first and current events match SpecimenManager.getFirstEvent() and
+     * getCurrentLocationId(). Only vials whose values change are written.
+     */
+    private void updateVialRollupsInSql(@Nullable SQLFragment affectedVialIds)
+    {
+        setStatus(GENERAL_JOB_STATUS_MSG + " (update vials)");
+        _iTimer.setPhase(ImportPhases.CalculateVialRollups);
+
+        TableInfo vialTable = getTableInfoVial();
+        String vialTableSelectName = vialTable.getSelectName();
+        TableInfo eventTable = getTableInfoSpecimenEvent();
+        SqlDialect dialect = eventTable.getSqlDialect();
+
+        // Event columns to read, starting with those the standard columns need, and the vial columns to write
+        CaseInsensitiveHashSet eventCols = new CaseInsensitiveHashSet("VialId", "LabId", "ProcessedByInitials", "ShipDate", "ShipBatchNumber", "ShipFlag", "Comments", "QualityComments");
+        List<Pair<String, ColumnInfo>> updateCols = new ArrayList<>();
+        for (String name : Arrays.asList("CurrentLocation", "ProcessingLocation", "FirstProcessedByInitials", "AtRepository", "LatestComments", "LatestQualityComments"))
+            updateCols.add(new Pair<>(name, vialTable.getColumn(name)));
+        List<SQLFragment> rollupCalcs = new ArrayList<>();
+        List<SQLFragment> nonBlankRanks = new ArrayList<>();
+
+        String firstRank = "CASE WHEN FirstUsableRank <= EventCount - 1 THEN FirstUsableRank WHEN EventCount > 1 THEN EventCount - 1 ELSE 1 END";
+
+        for (Map.Entry<String, List<RollupInstance<EventVialRollup>>> rollupEntry : _eventToVialRollups.entrySet())
+        {
+            ColumnInfo eventColumn = eventTable.getColumn(rollupEntry.getKey());
+            if (null == eventColumn)
+                throw new IllegalStateException("Expected Specimen Event table column to exist.");
+            String eventColName = eventColumn.getSelectName();
+            eventCols.add(eventColName);
+
+            for (RollupInstance<EventVialRollup> rollupItem : rollupEntry.getValue())
+            {
+                ColumnInfo vialColumn = vialTable.getColumn(rollupItem.first);
+                if (null == vialColumn)
+                    throw new IllegalStateException("Expected Vial table column to exist.");
+                String alias = "Rollup" + rollupCalcs.size();
+
+                String rank;
+                switch (rollupItem.second)
+                {
+                    case EventVialLatest:
+                        rank = "EventCount";
+                        break;
+                    case EventVialFirst:
+                        rank = firstRank;
+                        break;
+                    case EventVialLatestNonBlank:
+                        rank = "NonBlankRank" + nonBlankRanks.size();
+                        SQLFragment nonBlank = new SQLFragment(eventColName).append(" IS NOT NULL");
+                        if (rollupItem.getFromType().isText())
+                            nonBlank.append(" AND ").append(trimWhitespace(dialect, eventColName)).append(" <> ''");
+                        nonBlankRanks.add(new SQLFragment("MAX(CASE WHEN ").append(nonBlank).append(" THEN EventRank END) OVER (PARTITION BY VialId) AS ").append(rank));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unexpected rollup: " + rollupItem.second);
+                }
+
+                rollupCalcs.add(new SQLFragment("MAX(CASE WHEN EventRank = ").append(rank).append(" THEN ").append(eventColName).append(" END) AS ").append(alias));
+                updateCols.add(new Pair<>(alias, vialColumn));
+            }
+        }
+
+        // Rank each vial's events by date, as SpecimenEventDateComparator does: events without dates first, then by
+        // date; on the same date shipping comes before storage, which comes before receipt; then by ExternalId
+        String anyDate = "COALESCE(LabReceiptDate, StorageDate, ShipDate)";
+        SQLFragment rankedSql = new SQLFragment("SELECT ").append(StringUtils.join(eventCols, ", "));
+        rankedSql.append(",\n\t\tCASE WHEN LabReceiptDate IS NULL AND StorageDate IS NULL AND ShipDate IS NULL AND ")
+                .append("NOT (LabId = OriginatingLocationId OR (LabId IS NULL AND OriginatingLocationId IS NULL)) THEN 1 ELSE 0 END AS SkipAsFirst,\n\t\t")
+                .append("ROW_NUMBER() OVER (PARTITION BY VialId ORDER BY CASE WHEN ").append(anyDate).append(" IS NULL THEN 0 ELSE 1 END, ")
+                .append(anyDate).append(", CASE WHEN LabReceiptDate IS NOT NULL THEN 1 WHEN StorageDate IS NOT NULL THEN 2 ELSE 3 END DESC, ExternalId) AS EventRank\n\t");
+        rankedSql.append("FROM ").append(eventTable.getSelectName()).append("\n\tWHERE Obsolete = ").append(dialect.getBooleanFALSE());
+        if (null != affectedVialIds)
+            rankedSql.append(" AND VialId IN (").append(affectedVialIds).append(")");
+
+        SQLFragment eventsSql = new SQLFragment("SELECT Ranked.*,\n\t\tCOUNT(*) OVER (PARTITION BY VialId) AS EventCount,\n\t\t")
+                .append("MIN(CASE WHEN SkipAsFirst = 0 THEN EventRank END) OVER (PARTITION BY VialId) AS FirstUsableRank");
+        for (SQLFragment nonBlankRank : nonBlankRanks)
+            eventsSql.append(",\n\t\t").append(nonBlankRank);
+        eventsSql.append("\n\tFROM (").append(rankedSql).append(") Ranked");
+
+        SQLFragment rollupsSql = new SQLFragment("SELECT VialId,\n\t\t")
+                .append("MAX(CASE WHEN EventRank = EventCount AND ShipDate IS NULL AND COALESCE(ShipBatchNumber, 0) = 0 AND COALESCE(ShipFlag, 0) = 0 THEN LabId END) AS CurrentLocation,\n\t\t")
+                .append("MAX(CASE WHEN EventRank = ").append(firstRank).append(" THEN LabId END) AS ProcessingLocation,\n\t\t")
+                .append("MAX(CASE WHEN EventRank = ").append(firstRank).append(" THEN ProcessedByInitials END) AS FirstProcessedByInitials,\n\t\t")
+                .append("MAX(CASE WHEN EventRank = EventCount THEN Comments END) AS LatestComments,\n\t\t")
+                .append("MAX(CASE WHEN EventRank = EventCount THEN QualityComments END) AS LatestQualityComments");
+        for (SQLFragment rollupCalc : rollupCalcs)
+            rollupsSql.append(",\n\t\t").append(rollupCalc);
+        rollupsSql.append("\n\tFROM (").append(eventsSql).append(") Events\n\tGROUP BY VialId");
+
+        SQLFragment vialRollupsSql = new SQLFragment("SELECT Rollups.*, CASE WHEN Site.Repository = ").append(dialect.getBooleanTRUE())
+                .append(" THEN ").append(dialect.getBooleanTRUE()).append(" ELSE ").append(dialect.getBooleanFALSE()).append(" END AS AtRepository\n\t")
+                .append("FROM (").append(rollupsSql).append(") Rollups\n\tLEFT OUTER JOIN ").append(getTableInfoLocation().getSelectName())
+                .append(" Site ON Site.RowId = Rollups.CurrentLocation");
+
+        SQLFragment sql = new SQLFragment("UPDATE ").append(vialTableSelectName).append(" SET ");
+        String sep = "";
+        for (Pair<String, ColumnInfo> col : updateCols)
+        {
+            sql.append(sep).append(col.second.getSelectName()).append(" = VialRollups.").append(col.first);
+            sep = ",\n\t";
+        }
+        sql.append("\nFROM (").append(vialRollupsSql).append(") VialRollups\nWHERE ")
+                .append(vialTable.getColumn("RowId").getValueSql(vialTableSelectName)).append(" = VialRollups.VialId AND (");
+        sep = "";
+        for (Pair<String, ColumnInfo> col : updateCols)
+        {
+            // Only write vials where something is different. Spelled out rather than IS DISTINCT FROM, which SQL Server
+            // lacks; a plain <> is NULL, not TRUE, when only one side is NULL.
+            SQLFragment current = col.second.getValueSql(vialTableSelectName);
+            String value = "VialRollups." + col.first;
+            sql.append(sep).append("(").append(current).append(" <> ").append(value)
+                    .append(" OR (").append(current).append(" IS NULL AND ").append(value).append(" IS NOT NULL)")
+                    .append(" OR (").append(current).append(" IS NOT NULL AND ").append(value).append(" IS NULL))");
+            sep = " OR\n\t";
+        }
+        sql.append(")");
+
+        info("Calculating vial rollups...");
+        if (DEBUG)
+            logSQLFragment(sql);
+        int count = new SqlExecutor(StudySchema.getInstance().getSchema()).execute(sql);
+        info("Updated " + count + " vial" + (count == 1 ? "" : "s") + ".");
+    }
+
+    // LTRIM() and RTRIM() only strip spaces, but the Java rollups use StringUtils.isBlank(), so turn tabs, line breaks,
+    // vertical tabs and form feeds into spaces first
+    private static SQLFragment trimWhitespace(SqlDialect dialect, String expression)
+    {
+        String chr = dialect.isSqlServer() ? "CHAR" : "CHR";
+        SQLFragment sql = new SQLFragment(expression);
+        for (int c = 9; c <= 13; c++)
+            sql = new SQLFragment("REPLACE(").append(sql).append(", ").append(chr).append("(").append(String.valueOf(c)).append("), ' ')");
+        return new SQLFragment("LTRIM(RTRIM(").append(sql).append("))");
+    }
+
+    private void updateQualityControlComments(final boolean merge, @Nullable SQLFragment affectedVialIds, final Map<String, SpecimenComment> qcCommentMap)
+    {
+        if (qcCommentMap.isEmpty())
+            return;
+
+        _iTimer.setPhase(ImportPhases.HandleComments);
+        TableInfo commentTable = StudySchema.getInstance().getTableInfoSpecimenComment();
+        final String updateCommentSql = "UPDATE " + commentTable + " SET QualityControlComments = ? WHERE GlobalUniqueId = ?";
+
+        SimpleFilter filter = new SimpleFilter(new SimpleFilter.InClause(FieldKey.fromParts("GlobalUniqueId"), qcCommentMap.keySet()));
+        if (null != affectedVialIds)
+            filter.addWhereClause(new SQLFragment("RowId IN (").append(affectedVialIds).append(")"), FieldKey.fromParts("RowId"));
+
+        new TableSelector(getTableInfoVial(), filter, new Sort("RowId")).forEachMapBatch(vialBatch -> {
+            VialRollupBatch batch = new VialRollupBatch(vialBatch.size());
+            List<Vial> vials = new ArrayList<>(vialBatch.size());
+            for (Map<String, Object> map : vialBatch)
+                vials.add(new Vial(_container, map));
+
+            Map<Vial, List<SpecimenEvent>> dateOrderedEvents = SpecimenManager.getInstance().getDateOrderedEventLists(vials, false);
+            for (Vial vial : vials)
+                addQualityControlComment(vial, dateOrderedEvents.get(vial), qcCommentMap.get(vial.getGlobalUniqueId()), batch);
+
+            writeVialRollupBatch(merge, batch, null, updateCommentSql);
+            _iTimer.setPhase(ImportPhases.HandleComments);
+        }, CURRENT_SITE_UPDATE_SIZE);
+    }
+
+    private void addQualityControlComment(Vial vial, List<SpecimenEvent> dateOrderedEvents, @Nullable SpecimenComment comment, VialRollupBatch batch)
+    {
+        if (comment != null)
+        {
+            // if we have a comment, it may be because we're in a bad QC state. If so, we should update
+            // the reason for the QC problem.
+            String message = null;
+
+            Set<String> conflicts = getConflictingEventColumns(dateOrderedEvents);
+
+            if (!conflicts.isEmpty())
+            {
+                batch._conflicts.put(vial, conflicts);
+
+                String sep = "";
+                message = "Conflicts found: ";
+                for (String conflict : conflicts)
+                {
+                    message += sep + conflict;
+                    sep = ", ";
+                }
+            }
+
+            batch._commentParams.add(Arrays.asList(message, vial.getGlobalUniqueId()));
+        }
+    }
+
+    /** A batch of vials with their events, and the updates the rollup calculation produced for them */
+    private static class VialRollupBatch
+    {
+        private final List<Pair<Vial, List<Map<String, Object>>>> _vials;
+        private final List<List<?>> _vialParams = new ArrayList<>();
+        private final List<List<?>> _commentParams = new ArrayList<>();
+        private final Map<Vial, Set<String>> _conflicts = new LinkedHashMap<>();
+        private MultiPhaseCPUTimer.InvocationTimer<ImportPhases> _timer = null;
+
+        private VialRollupBatch(int size)
+        {
+            _vials = new ArrayList<>(size);
+        }
+    }
+
+    // Threads that calculate vial rollups, shared by all imports; set to 1 to calculate on the importing thread
+    private static final int ROLLUP_THREADS = Math.max(1, Integer.getInteger("labkey.specimen.rollupThreads", Runtime.getRuntime().availableProcessors()));
+    private static final JobRunner ROLLUP_WORKERS = new JobRunner("SpecimenRollup", ROLLUP_THREADS, Thread.NORM_PRIORITY);
+
+    /**
+     * Used when there are rollups that updateVialRollupsInSql() can't calculate. This thread streams the vials, grouped
+     * with their events, in batches and hands each batch to the rollup workers, which sort the events and calculate
+     * the rollups. This thread then writes the results in batch order: the import's transaction is only visible on
+     * this thread's connection, so the workers never touch the database. At most two batches per worker are in flight.
+     */
+    private void updateVialRollupsInJava(final boolean merge, @Nullable SQLFragment affectedVialIds, final Map<String, SpecimenComment> qcCommentMap)
+    {
         TableInfo vialTable = getTableInfoVial();
         StringBuilder vialPropertiesSB = new StringBuilder("UPDATE ").append(vialTable.getSelectName())
             .append(" SET CurrentLocation = CAST(? AS INTEGER), ProcessingLocation = CAST(? AS INTEGER), FirstProcessedByInitials = ?, AtRepository = ?, LatestComments = ?, LatestQualityComments = ? ");
@@ -1852,25 +2188,22 @@ public class SpecimenImporter
 
         final String vialPropertiesSql = vialPropertiesSB.toString();
 
-        _iTimer.setPhase(ImportPhases.HandleComments);
-
         TableInfo commentTable = StudySchema.getInstance().getTableInfoSpecimenComment();
         final String updateCommentSql = "UPDATE " + commentTable + " SET QualityControlComments = ? WHERE GlobalUniqueId = ?";
 
-        // Populate a GlobalUniqueId -> SpecimenEvent map containing all quality control vial comments in this container
-        final Map<String, SpecimenComment> qcCommentMap = new HashMap<>();
-
-        SQLFragment selectCommentsSql = new SQLFragment();
-        selectCommentsSql.append("SELECT c.* FROM ");
-        selectCommentsSql.append(commentTable, "c");
-        selectCommentsSql.append(" INNER JOIN ");
-        selectCommentsSql.append(getTableInfoVial(), "v");
-        selectCommentsSql.append(" ON c.GlobalUniqueId = v.GlobalUniqueId WHERE Container = ? AND (QualityControlFlag = ? OR QualityControlFlagForced = ?)");
-        selectCommentsSql.add(getContainer());
-        selectCommentsSql.add(true);
-        selectCommentsSql.add(true);
+        // Look up everything the workers need from the database up front
+        final Map<Integer, Location> siteMap = new HashMap<>();
+        for (Location location : StudyManager.getInstance().getLocations(_container))
+            siteMap.put(location.getRowId(), location);
 
-        new SqlSelector(StudySchema.getInstance().getSchema(), selectCommentsSql).forEach(comment -> qcCommentMap.put(comment.getGlobalUniqueId(), comment), SpecimenComment.class);
+        final List<Pair<ColumnInfo, List<RollupInstance<EventVialRollup>>>> rollups = new ArrayList<>();
+        for (Map.Entry<String, List<RollupInstance<EventVialRollup>>> rollupEntry : _eventToVialRollups.entrySet())
+        {
+            ColumnInfo column = getTableInfoSpecimenEvent().getColumn(rollupEntry.getKey());
+            if (null == column)
+                throw new IllegalStateException("Expected Specimen Event table column to exist.");
+            rollups.add(new Pair<>(column, rollupEntry.getValue()));
+        }
 
 //        if (!merge)
 //            new SpecimenTablesProvider(getContainer(), getUser(), null).dropTableIndices(SpecimenTablesProvider.VIAL_TABLENAME);
@@ -1878,243 +2211,261 @@ public class SpecimenImporter
         // TODO: Select only required subset of Event and Vial columns?
         _iTimer.setPhase(ImportPhases.GetDateOrderedEvents);
 
-        TableSelector eventSelector = new TableSelector(getTableInfoSpecimenEvent(), new SimpleFilter(FieldKey.fromString("Obsolete"), false), new Sort("VialId"));
+        SimpleFilter eventFilter = new SimpleFilter(FieldKey.fromString("Obsolete"), false);
+        SimpleFilter vialFilter = null;
+        if (null != affectedVialIds)
+        {
+            eventFilter.addWhereClause(new SQLFragment("VialId IN (").append(affectedVialIds).append(")"), FieldKey.fromParts("VialId"));
+            vialFilter = new SimpleFilter();
+            vialFilter.addWhereClause(new SQLFragment("RowId IN (").append(affectedVialIds).append(")"), FieldKey.fromParts("RowId"));
+        }
+
+        TableSelector eventSelector = new TableSelector(getTableInfoSpecimenEvent(), eventFilter, new Sort("VialId"));
+        final Deque<Pair<VialRollupBatch, FutureTask<VialRollupBatch>>> inFlight = new ArrayDeque<>();
+        final MutableInt rowCount = new MutableInt();
+        final MutableInt vialCount = new MutableInt();
+        long start = System.currentTimeMillis();
 
         try (Results eventResults = eventSelector.getResults(false))
         {
-            final MutableInt rowCount = new MutableInt();
             final MarkableIterator<Map<String, Object>> eventIterator = new MarkableIterator<>(eventResults.iterator());
-            final Comparator<SpecimenEvent> eventComparator = SpecimenManager.getInstance().getSpecimenEventDateComparator();
 
             _iTimer.setPhase(ImportPhases.GetVialBatch);
-            TableSelector vialSelector = new TableSelector(getTableInfoVial(), null, new Sort("RowId"));
-
-            vialSelector.forEachMapBatch(new ForEachBatchBlock<Map<String, Object>>()
-            {
-                @Override
-                public void exec(List<Map<String, Object>> vialBatch) throws SQLException
-                {
-                    int count = rowCount.intValue();
-                    if (count % CURRENT_SITE_UPDATE_LOGGING_SIZE == 0)
-                        info("Updating vial rows " + (count + 1) + " through " + (count + CURRENT_SITE_UPDATE_LOGGING_SIZE) + ".");
+            TableSelector vialSelector = new TableSelector(getTableInfoVial(), vialFilter, new Sort("RowId"));
 
-                    setStatus(GENERAL_JOB_STATUS_MSG + " (update vials)");
+            vialSelector.forEachMapBatch(vialBatch -> {
+                int count = rowCount.intValue();
+                if (count % CURRENT_SITE_UPDATE_LOGGING_SIZE == 0)
+                    info("Updating vial rows " + (count + 1) + " through " + (count + CURRENT_SITE_UPDATE_LOGGING_SIZE) + ".");
 
-                    final List<Vial> vials = new ArrayList<>(CURRENT_SITE_UPDATE_SIZE);
+                setStatus(GENERAL_JOB_STATUS_MSG + " (update vials)");
 
-                    for (Map<String, Object> map : vialBatch)
-                        vials.add(new Vial(_container, map));
+                VialRollupBatch batch = new VialRollupBatch(vialBatch.size());
 
-                    List<List<?>> vialPropertiesParams = new ArrayList<>(CURRENT_SITE_UPDATE_SIZE);
-                    List<List<?>> commentParams = new ArrayList<>();
+                for (Map<String, Object> map : vialBatch)
+                {
+                    Vial vial = new Vial(_container, map);
+                    long vialId = vial.getRowId();
 
-                    for (Vial vial : vials)
+                    List<Map<String, Object>> events = new ArrayList<>();
+                    while (eventIterator.hasNext())
                     {
-                        long vialId = vial.getRowId();
+                        eventIterator.mark();
+                        Map<String, Object> eventMap = eventIterator.next();
 
-                        _iTimer.setPhase(ImportPhases.GetDateOrderedEvents);
-                        List<SpecimenEvent> dateOrderedEvents = new ArrayList<>();
-                        while (eventIterator.hasNext())
+                        if (vialId == (Long) eventMap.get("VialId"))
                         {
-                            eventIterator.mark();
-                            Map<String, Object> map = eventIterator.next();
-
-                            if (vialId == (Long) map.get("VialId"))
-                            {
-                                dateOrderedEvents.add(new SpecimenEvent(_container, map));
-                            }
-                            else
-                            {
-                                eventIterator.reset();
-                                break;
-                            }
+                            events.add(eventMap);
                         }
-                        dateOrderedEvents.sort(eventComparator);
+                        else
+                        {
+                            eventIterator.reset();
+                            break;
+                        }
+                    }
+                    batch._vials.add(new Pair<>(vial, events));
+                }
 
-                        _iTimer.setPhase(ImportPhases.GetProcessingLocationId);
-                        Integer processingLocation = SpecimenManager.getInstance().getProcessingLocationId(dateOrderedEvents);
-                        _iTimer.setPhase(ImportPhases.GetFirstProcessedBy);
-                        String firstProcessedByInitials = SpecimenManager.getInstance().getFirstProcessedByInitials(dateOrderedEvents);
-                        _iTimer.setPhase(ImportPhases.GetCurrentLocationId);
-                        Integer currentLocation = SpecimenManager.getInstance().getCurrentLocationId(dateOrderedEvents);
+                FutureTask<VialRollupBatch> task = new FutureTask<>(() -> calculateVialRollups(batch, rollups, siteMap, qcCommentMap));
+                if (ROLLUP_THREADS > 1)
+                    ROLLUP_WORKERS.execute(task);
+                else
+                    task.run();
+                inFlight.add(new Pair<>(batch, task));
 
-                        _iTimer.setPhase(ImportPhases.CalculateLocation);
-                        boolean atRepository = false;
+                // Write finished batches, and wait for the oldest one if too many are outstanding
+                while (!inFlight.isEmpty() && (inFlight.size() > 2 * ROLLUP_THREADS || inFlight.peek().second.isDone()))
+                    writeVialRollupBatch(merge, waitForVialRollups(inFlight.remove()), vialPropertiesSql, updateCommentSql);
 
-                        if (currentLocation != null)
-                        {
-                            Location location;
+                rowCount.add(CURRENT_SITE_UPDATE_SIZE);
+                vialCount.add(vialBatch.size());
+                _iTimer.setPhase(ImportPhases.GetVialBatch);
+            }, CURRENT_SITE_UPDATE_SIZE);
 
-                            if (!siteMap.containsKey(currentLocation))
-                            {
-                                location = StudyManager.getInstance().getLocation(_container, currentLocation);
-                                if (location != null)
-                                    siteMap.put(currentLocation, location);
-                            }
-                            else
-                            {
-                                location = siteMap.get(currentLocation);
-                            }
+            while (!inFlight.isEmpty())
+                writeVialRollupBatch(merge, waitForVialRollups(inFlight.remove()), vialPropertiesSql, updateCommentSql);
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+        finally
+        {
+            // If something failed, don't leave the workers busy with batches nobody will write
+            for (Pair<VialRollupBatch, FutureTask<VialRollupBatch>> pair : inFlight)
+                pair.second.cancel(true);
+        }
 
-                            if (location != null)
-                                atRepository = location.isRepository() != null && location.isRepository();
-                        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        info("Calculated rollups for " + vialCount.intValue() + " vials on " + ROLLUP_THREADS + " thread" + (ROLLUP_THREADS == 1 ? "" : "s") +
+                " in " + DateUtil.formatDuration(elapsed) + " (" + (vialCount.longValue() * 1000 / elapsed) + " vials per second).");
 
-                        // All of the additional fields (deviationCodes, Concetration, Integrity, Yield, Ratio, QualityComments, Comments) always take the latest value
-                        _iTimer.setPhase(ImportPhases.GetLastEvent);
-                        SpecimenEvent lastEvent = SpecimenManager.getInstance().getLastEvent(dateOrderedEvents);
-                        if (null == lastEvent)
-                            throw new IllegalStateException("There should always be at least 1 event.");
-
-                        _iTimer.setPhase(ImportPhases.DetermineUpdateVial);
-                        boolean updateVial = false;
-                        List<Object> params = new ArrayList<>();
-
-                        if (!Objects.equals(currentLocation, vial.getCurrentLocation()) ||
-                                !Objects.equals(processingLocation, vial.getProcessingLocation()) ||
-                                !Objects.equals(firstProcessedByInitials, vial.getFirstProcessedByInitials()) ||
-                                atRepository != vial.isAtRepository() ||
-                                !Objects.equals(vial.getLatestComments(), lastEvent.getComments()) ||
-                                !Objects.equals(vial.getLatestQualityComments(), lastEvent.getQualityComments()))
-                        {
-                            updateVial = true;          // Something is different
-                        }
+//        if (!merge)
+//            new SpecimenTablesProvider(getContainer(), getUser(), null).addTableIndices(SpecimenTablesProvider.VIAL_TABLENAME);
+    }
 
-                        if (!updateVial)
-                        {
-                            for (Map.Entry<String, List<RollupInstance<EventVialRollup>>> rollupEntry : _eventToVialRollups.entrySet())
-                            {
-                                String eventColName = rollupEntry.getKey();
-                                ColumnInfo column = getTableInfoSpecimenEvent().getColumn(eventColName);
-                                if (null == column)
-                                    throw new IllegalStateException("Expected Specimen Event table column to exist.");
-                                String eventColSelectName = column.getSelectName();
-                                for (RollupInstance<EventVialRollup> rollupItem : rollupEntry.getValue())
-                                {
-                                    String vialColName = rollupItem.first;
-                                    Object rollupResult = rollupItem.second.getRollupResult(dateOrderedEvents, eventColSelectName,
-                                            rollupItem.getFromType(), rollupItem.getToType());
-                                    if (!Objects.equals(vial.get(vialColName), rollupResult))
-                                    {
-                                        updateVial = true;      // Something is different
-                                        break;
-                                    }
-                                }
-                                if (updateVial)
-                                    break;
-                            }
-                        }
+    /**
+     * Runs on a rollup worker. Must not use the database; everything it needs from it is passed in. Times the phases
+     * with its own timer, which is added to the import's timings when the batch is written, so those phases report
+     * the total time across all workers.
+     */
+    private VialRollupBatch calculateVialRollups(VialRollupBatch batch, List<Pair<ColumnInfo, List<RollupInstance<EventVialRollup>>>> rollups,
+                                                 Map<Integer, Location> siteMap, Map<String, SpecimenComment> qcCommentMap)
+    {
+        MultiPhaseCPUTimer.InvocationTimer<ImportPhases> timer = TIMER.getInvocationTimer();
+        batch._timer = timer;
+        Comparator<SpecimenEvent> eventComparator = SpecimenManager.getInstance().getSpecimenEventDateComparator();
 
-                        _iTimer.setPhase(ImportPhases.SetUpdateParameters);
-                        if (updateVial)
-                        {
-                            // Something is different; update everything
-                            params.add(currentLocation);
-                            params.add(processingLocation);
-                            params.add(firstProcessedByInitials);
-                            params.add(atRepository);
-                            params.add(lastEvent.getComments());
-                            params.add(lastEvent.getQualityComments());
-
-                            for (Map.Entry<String, List<RollupInstance<EventVialRollup>>> rollupEntry : _eventToVialRollups.entrySet())
-                            {
-                                String eventColName = rollupEntry.getKey();
-                                ColumnInfo column = getTableInfoSpecimenEvent().getColumn(eventColName);
-                                if (null == column)
-                                    throw new IllegalStateException("Expected Specimen Event table column to exist.");
-                                String eventColAlias = column.getAlias();     // Use alias since we're looking up in the rowMap
-                                for (RollupInstance<EventVialRollup> rollupItem : rollupEntry.getValue())
-                                {
-                                    Object rollupResult = rollupItem.second.getRollupResult(dateOrderedEvents, eventColAlias,
-                                            rollupItem.getFromType(), rollupItem.getToType());
-                                    params.add(rollupResult);
-                                }
-                            }
+        for (Pair<Vial, List<Map<String, Object>>> pair : batch._vials)
+        {
+            Vial vial = pair.first;
 
-                            params.add(vial.getRowId());
-                            vialPropertiesParams.add(params);
-                        }
+            timer.setPhase(ImportPhases.GetDateOrderedEvents);
+            List<SpecimenEvent> dateOrderedEvents = new ArrayList<>(pair.second.size());
+            for (Map<String, Object> map : pair.second)
+                dateOrderedEvents.add(new SpecimenEvent(_container, map));
+            dateOrderedEvents.sort(eventComparator);
 
-                        _iTimer.setPhase(ImportPhases.HandleComments);
-                        SpecimenComment comment = qcCommentMap.get(vial.getGlobalUniqueId());
+            timer.setPhase(ImportPhases.GetProcessingLocationId);
+            Integer processingLocation = SpecimenManager.getInstance().getProcessingLocationId(dateOrderedEvents);
+            timer.setPhase(ImportPhases.GetFirstProcessedBy);
+            String firstProcessedByInitials = SpecimenManager.getInstance().getFirstProcessedByInitials(dateOrderedEvents);
+            timer.setPhase(ImportPhases.GetCurrentLocationId);
+            Integer currentLocation = SpecimenManager.getInstance().getCurrentLocationId(dateOrderedEvents);
 
-                        if (comment != null)
-                        {
-                            // if we have a comment, it may be because we're in a bad QC state. If so, we should update
-                            // the reason for the QC problem.
-                            String message = null;
+            timer.setPhase(ImportPhases.CalculateLocation);
+            boolean atRepository = false;
 
-                            Set<String> conflicts = getConflictingEventColumns(dateOrderedEvents);
+            if (currentLocation != null)
+            {
+                Location location = siteMap.get(currentLocation);
+                if (location != null)
+                    atRepository = location.isRepository() != null && location.isRepository();
+            }
 
-                            if (!conflicts.isEmpty())
-                            {
-                                // Null out conflicting Vial columns
-                                if (merge)
-                                {
-                                    // NOTE: in checkForConflictingSpecimens() we check the imported specimen columns used
-                                    // to generate the specimen hash are not in conflict so we shouldn't need to clear any
-                                    // columns on the specimen table. Vial columns are not part of the specimen hash and
-                                    // can safely be cleared without compromising the specimen hash.
-                                    clearConflictingVialColumns(vial, conflicts);
-                                }
+            // All of the additional fields (deviationCodes, Concetration, Integrity, Yield, Ratio, QualityComments, Comments) always take the latest value
+            timer.setPhase(ImportPhases.GetLastEvent);
+            SpecimenEvent lastEvent = SpecimenManager.getInstance().getLastEvent(dateOrderedEvents);
+            if (null == lastEvent)
+                throw new IllegalStateException("There should always be at least 1 event.");
 
-                                String sep = "";
-                                message = "Conflicts found: ";
-                                for (String conflict : conflicts)
-                                {
-                                    message += sep + conflict;
-                                    sep = ", ";
-                                }
-                            }
+            timer.setPhase(ImportPhases.DetermineUpdateVial);
+            boolean updateVial = false;
+            List<Object> params = new ArrayList<>();
 
-                            commentParams.add(Arrays.asList(message, vial.getGlobalUniqueId()));
+            if (!Objects.equals(currentLocation, vial.getCurrentLocation()) ||
+                    !Objects.equals(processingLocation, vial.getProcessingLocation()) ||
+                    !Objects.equals(firstProcessedByInitials, vial.getFirstProcessedByInitials()) ||
+                    atRepository != vial.isAtRepository() ||
+                    !Objects.equals(vial.getLatestComments(), lastEvent.getComments()) ||
+                    !Objects.equals(vial.getLatestQualityComments(), lastEvent.getQualityComments()))
+            {
+                updateVial = true;          // Something is different
+            }
+
+            if (!updateVial)
+            {
+                for (Pair<ColumnInfo, List<RollupInstance<EventVialRollup>>> rollup : rollups)
+                {
+                    String eventColSelectName = rollup.first.getSelectName();
+                    for (RollupInstance<EventVialRollup> rollupItem : rollup.second)
+                    {
+                        String vialColName = rollupItem.first;
+                        Object rollupResult = rollupItem.second.getRollupResult(dateOrderedEvents, eventColSelectName,
+                                rollupItem.getFromType(), rollupItem.getToType());
+                        if (!Objects.equals(vial.get(vialColName), rollupResult))
+                        {
+                            updateVial = true;      // Something is different
+                            break;
                         }
                     }
+                    if (updateVial)
+                        break;
+                }
+            }
 
-                    _iTimer.setPhase(ImportPhases.UpdateVials);
-                    if (!vialPropertiesParams.isEmpty())
-                        Table.batchExecute(StudySchema.getInstance().getSchema(), vialPropertiesSql, vialPropertiesParams);
-
-                    _iTimer.setPhase(ImportPhases.UpdateComments);
-                    if (!commentParams.isEmpty())
-                        Table.batchExecute(StudySchema.getInstance().getSchema(), updateCommentSql, commentParams);
+            timer.setPhase(ImportPhases.SetUpdateParameters);
+            if (updateVial)
+            {
+                // Something is different; update everything
+                params.add(currentLocation);
+                params.add(processingLocation);
+                params.add(firstProcessedByInitials);
+                params.add(atRepository);
+                params.add(lastEvent.getComments());
+                params.add(lastEvent.getQualityComments());
 
-                    rowCount.add(CURRENT_SITE_UPDATE_SIZE);
-                    _iTimer.setPhase(ImportPhases.GetVialBatch);
+                for (Pair<ColumnInfo, List<RollupInstance<EventVialRollup>>> rollup : rollups)
+                {
+                    String eventColAlias = rollup.first.getAlias();     // Use alias since we're looking up in the rowMap
+                    for (RollupInstance<EventVialRollup> rollupItem : rollup.second)
+                    {
+                        Object rollupResult = rollupItem.second.getRollupResult(dateOrderedEvents, eventColAlias,
+                                rollupItem.getFromType(), rollupItem.getToType());
+                        params.add(rollupResult);
+                    }
                 }
-            }, CURRENT_SITE_UPDATE_SIZE);
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeSQLException(e);
-        }
 
-//        if (!merge)
-//            new SpecimenTablesProvider(getContainer(), getUser(), null).addTableIndices(SpecimenTablesProvider.VIAL_TABLENAME);
+                params.add(vial.getRowId());
+                batch._vialParams.add(params);
+            }
 
-        // finally, after all other data has been updated, we can update our cached specimen counts and processing locations:
-        setStatus(GENERAL_JOB_STATUS_MSG + " (update counts)");
-        _iTimer.setPhase(ImportPhases.UpdateSpecimenProcessingInfo);
-        updateSpecimenProcessingInfo();
+            timer.setPhase(ImportPhases.HandleComments);
+            addQualityControlComment(vial, dateOrderedEvents, qcCommentMap.get(vial.getGlobalUniqueId()), batch);
+        }
 
-        _iTimer.setPhase(ImportPhases.UpdateRequestability);
+        timer.setPhase(null);
+        return batch;
+    }
+
+    private VialRollupBatch waitForVialRollups(Pair<VialRollupBatch, FutureTask<VialRollupBatch>> pair)
+    {
+        _iTimer.setPhase(ImportPhases.WaitForVialRollups);
         try
         {
-            RequestabilityManager.getInstance().updateRequestability(_container, _user, false, editingSpecimens, _logger);
+            return pair.second.get();
         }
-        catch (RequestabilityManager.InvalidRuleException e)
+        catch (InterruptedException e)
         {
-            throw new IllegalStateException("One or more requestability rules is invalid.  Please remove or correct the invalid rule.", e);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
         }
+        finally
+        {
+            if (null != pair.first._timer && pair.second.isDone())
+                _iTimer.add(pair.first._timer);
+        }
+    }
 
-        _iTimer.setPhase(ImportPhases.UpdateVialCounts);
-        info("Updating cached vial counts...");
+    private void writeVialRollupBatch(boolean merge, VialRollupBatch batch, @Nullable String vialPropertiesSql, String updateCommentSql) throws SQLException
+    {
+        _iTimer.setPhase(ImportPhases.HandleComments);
+        // Null out conflicting Vial columns
+        if (merge)
+        {
+            // NOTE: in checkForConflictingSpecimens() we check the imported specimen columns used
+            // to generate the specimen hash are not in conflict so we shouldn't need to clear any
+            // columns on the specimen table. Vial columns are not part of the specimen hash and
+            // can safely be cleared without compromising the specimen hash.
+            for (Map.Entry<Vial, Set<String>> entry : batch._conflicts.entrySet())
+                clearConflictingVialColumns(entry.getKey(), entry.getValue());
+        }
 
-        SpecimenManager.getInstance().updateVialCounts(_container, _user);
+        _iTimer.setPhase(ImportPhases.UpdateVials);
+        if (null != vialPropertiesSql && !batch._vialParams.isEmpty())
+            Table.batchExecute(StudySchema.getInstance().getSchema(), vialPropertiesSql, batch._vialParams);
 
-        info("Vial count update complete.");
+        _iTimer.setPhase(ImportPhases.UpdateComments);
+        if (!batch._commentParams.isEmpty())
+            Table.batchExecute(StudySchema.getInstance().getSchema(), updateCommentSql, batch._commentParams);
     }
-    
+
     private Map<SpecimenTableType, SpecimenImportFile> populateFileMap(VirtualFile dir, Map<SpecimenTableType, SpecimenImportFile> fileNameMap) throws IOException
     {
         for (String dirName : dir.listDirs())
@@ -4082,6 +4433,132 @@ public class SpecimenImporter
             }
         }
 
+        @Test
+        public void vialRollupsSqlMatchesJavaTest()
+        {
+            Container c = JunitUtil.getTestContainer();
+            User user = TestContext.get().getUser();
+
+            // Provisioned specimen tables need to be created in this order
+            StudySchema.getInstance().getTableInfoSpecimen(c, user);
+            StudySchema.getInstance().getTableInfoVial(c, user);
+            StudySchema.getInstance().getTableInfoSpecimenEvent(c, user);
+            SpecimenImporter importer = new SpecimenImporter(c, user);
+            importer._iTimer = TIMER.getInvocationTimer();
+
+            // Never committed, so the fixture is rolled back when the transaction closes
+            try (DbScope.Transaction ignored = StudySchema.getInstance().getScope().beginTransaction())
+            {
+                Map<String, Object> site = new CaseInsensitiveHashMap<>();
+                site.put("Container", c.getId());
+                site.put("EntityId", GUID.makeGUID());
+                site.put("Label", "Rollup Test Repository");
+                site.put("Repository", true);
+                int repository = (Integer) Table.insert(user, importer.getTableInfoLocation(), site).get("RowId");
+                site.put("EntityId", GUID.makeGUID());
+                site.put("Label", "Rollup Test Lab");
+                site.put("Repository", false);
+                int lab = (Integer) Table.insert(user, importer.getTableInfoLocation(), site).get("RowId");
+                LocationCache.clear(c);
+
+                Map<String, Object> specimen = new CaseInsensitiveHashMap<>();
+                specimen.put("SpecimenHash", "RollupTest");
+                long specimenId = ((Number) Table.insert(user, importer.getTableInfoSpecimen(), specimen).get("RowId")).longValue();
+
+                long vialId = new SqlSelector(StudySchema.getInstance().getSchema(),
+                        "SELECT COALESCE(MAX(RowId), 0) FROM " + importer.getTableInfoVial().getSelectName()).getObject(Long.class);
+                List<Long> vialIds = new ArrayList<>();
+                for (int i = 0; i < 3; i++)
+                {
+                    Map<String, Object> vial = new CaseInsensitiveHashMap<>();
+                    vial.put("RowId", ++vialId);
+                    vial.put("GlobalUniqueId", "RollupTest-" + vialId);
+                    vial.put("SpecimenId", specimenId);
+                    Table.insert(user, importer.getTableInfoVial(), vial);
+                    vialIds.add(vialId);
+                }
+
+                Timestamp day1 = Timestamp.valueOf("2020-01-01 00:00:00");
+                Timestamp day2 = Timestamp.valueOf("2020-01-02 00:00:00");
+                long externalId = 0;
+
+                // Received at the lab, then stored at the repository
+                insertEvent(importer, user, vialIds.get(0), ++externalId, lab, "LabReceiptDate", day1, "AB", "first", null);
+                insertEvent(importer, user, vialIds.get(0), ++externalId, repository, "StorageDate", day2, "CD", "latest", "quality");
+                // Received at the repository, then shipped, so it has no current location; the latest comments are blank
+                insertEvent(importer, user, vialIds.get(1), ++externalId, repository, "LabReceiptDate", day1, "EF", "received", "quality");
+                insertEvent(importer, user, vialIds.get(1), ++externalId, repository, "ShipDate", day2, null, "\t\n", null);
+                // A single undated event
+                insertEvent(importer, user, vialIds.get(2), ++externalId, lab, null, null, null, null, null);
+
+                SQLFragment affectedVialIds = new SQLFragment(StringUtils.join(vialIds, ", "));
+
+                // NULL -> value: the vials start without any rollups
+                importer.updateVialRollupsInSql(affectedVialIds);
+                List<Map<String, Object>> expected = selectVialRollups(importer, affectedVialIds);
+                assertEquals(repository, expected.get(0).get("CurrentLocation"));
+                assertEquals(lab, expected.get(0).get("ProcessingLocation"));
+                assertEquals(Boolean.TRUE, expected.get(0).get("AtRepository"));
+                assertEquals("latest", expected.get(0).get("LatestComments"));
+                assertNull(expected.get(1).get("CurrentLocation"));
+                assertEquals(lab, expected.get(2).get("CurrentLocation"));
+
+                scrambleVialRollups(importer, affectedVialIds, repository);
+                importer.updateVialRollupsInJava(false, affectedVialIds, Collections.emptyMap());
+                assertEquals(expected, selectVialRollups(importer, affectedVialIds));
+
+                // Value -> NULL: the SQL rollups must clear stale values, too
+                scrambleVialRollups(importer, affectedVialIds, repository);
+                importer.updateVialRollupsInSql(affectedVialIds);
+                assertEquals(expected, selectVialRollups(importer, affectedVialIds));
+            }
+            finally
+            {
+                TIMER.releaseInvocationTimer(importer._iTimer);
+                LocationCache.clear(c);
+            }
+        }
+
+        private void insertEvent(SpecimenImporter importer, User user, long vialId, long externalId, int labId, @Nullable String dateColumn,
+                                 @Nullable Timestamp date, @Nullable String processedBy, @Nullable String comments, @Nullable String qualityComments)
+        {
+            Map<String, Object> event = new CaseInsensitiveHashMap<>();
+            event.put("VialId", vialId);
+            event.put("ExternalId", externalId);
+            event.put("LabId", labId);
+            event.put("ProcessedByInitials", processedBy);
+            event.put("Comments", comments);
+            event.put("QualityComments", qualityComments);
+            event.put("Obsolete", false);
+            if (null != dateColumn)
+                event.put(dateColumn, date);
+            Table.insert(user, importer.getTableInfoSpecimenEvent(), event);
+        }
+
+        // Overwrite every calculated column with a value the rollups won't produce, NULL where they produce a value
+        private void scrambleVialRollups(SpecimenImporter importer, SQLFragment affectedVialIds, int repository)
+        {
+            SQLFragment sql = new SQLFragment("UPDATE ").append(importer.getTableInfoVial().getSelectName())
+                    .append(" SET CurrentLocation = CASE WHEN CurrentLocation IS NULL THEN ? END, ProcessingLocation = NULL, ")
+                    .append("FirstProcessedByInitials = 'stale', AtRepository = CASE WHEN AtRepository = ? THEN ? ELSE ? END, ")
+                    .append("LatestComments = 'stale', LatestQualityComments = 'stale' WHERE RowId IN (").append(affectedVialIds).append(")");
+            sql.add(repository);
+            sql.add(true);
+            sql.add(false);
+            sql.add(true);
+            new SqlExecutor(StudySchema.getInstance().getSchema()).execute(sql);
+        }
+
+        private List<Map<String, Object>> selectVialRollups(SpecimenImporter importer, SQLFragment affectedVialIds)
+        {
+            SQLFragment sql = new SQLFragment("SELECT RowId, CurrentLocation, ProcessingLocation, FirstProcessedByInitials, AtRepository, ")
+                    .append("LatestComments, LatestQualityComments FROM ").append(importer.getTableInfoVial().getSelectName())
+                    .append(" WHERE RowId IN (").append(affectedVialIds).append(") ORDER BY RowId");
+            List<Map<String, Object>> rows = new ArrayList<>();
+            new SqlSelector(StudySchema.getInstance().getSchema(), sql).forEachMap(row -> rows.add(new CaseInsensitiveHashMap<>(row)));
+            return rows;
+        }
+
         private void checkConsistency(DbSchema schema, String tableName, ImportableColumn importableColumn)
         {
             TableInfo tableInfo = schema.getTable(tableName);